@@ -39,7 +39,6 @@ import java.io.UnsupportedEncodingException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -53,12 +52,15 @@ import jexer.bits.ColorTheme;
 import jexer.bits.StringUtils;
 import jexer.event.TCommandEvent;
 import jexer.event.TInputEvent;
+import jexer.event.TInputEventQueue;
 import jexer.event.TKeypressEvent;
 import jexer.event.TMenuEvent;
 import jexer.event.TMouseEvent;
 import jexer.event.TResizeEvent;
 import jexer.backend.Backend;
+import jexer.backend.BackendListener;
 import jexer.backend.ECMA48Backend;
+import jexer.backend.LayerScreen;
 import jexer.backend.MultiBackend;
 import jexer.backend.Screen;
 import jexer.backend.SwingBackend;
@@ -79,7 +81,7 @@ import static jexer.TKeypress.*;
  * application.  It manages windows, provides a menu bar and status bar, and
  * processes events received from the user.
  */
-public class TApplication implements Runnable {
+public class TApplication implements Runnable, BackendListener {
 
     /**
      * Translated strings.
@@ -204,15 +206,21 @@ public class TApplication implements Runnable {
     private long doubleClickTime = 250;
 
     /**
-     * Event queue that is filled by run().
+     * Event queue that is filled by postEvent() from any thread and
+     * drained by run().
      */
-    private List<TInputEvent> fillEventQueue;
+    private TInputEventQueue fillEventQueue;
 
     /**
-     * Event queue that will be drained by either primary or secondary
-     * Thread.
+     * Event queue that is filled by run() and will be drained by either
+     * primary or secondary Thread.
      */
-    private List<TInputEvent> drainEventQueue;
+    private TInputEventQueue drainEventQueue;
+
+    /**
+     * Events being dispatched by run().  Only touched by the run() thread.
+     */
+    private List<TInputEvent> dispatchEvents;
 
     /**
      * Top-level menus in this application.
@@ -252,7 +260,7 @@ public class TApplication implements Runnable {
     /**
      * Timers that are being ticked.
      */
-    private List<TTimer> timers;
+    private TimerQueue timers;
 
     /**
      * When true, the application has been started.
@@ -269,6 +277,37 @@ public class TApplication implements Runnable {
      */
     private volatile boolean repaint = true;
 
+    /**
+     * If true, redraw only the parts of the screen that widgets have
+     * invalidated when nothing has forced a full repaint.
+     */
+    private boolean damageRepaint = true;
+
+    /**
+     * If true, each window is drawn into its own offscreen layer, which is
+     * only redrawn when the window changes, and drawAll() composites the
+     * layers in Z order.
+     */
+    private boolean retainedMode = false;
+
+    /**
+     * Scratch layer holding the screen under a translucent window while it
+     * is drawn.
+     */
+    private LayerScreen translucentBelow = null;
+
+    /**
+     * Scratch layer holding what a translucent window drew.
+     */
+    private LayerScreen translucentAbove = null;
+
+    /**
+     * Rectangles invalidated since the last draw, as {left, top, right,
+     * bottom} in absolute screen coordinates (right and bottom are
+     * exclusive).
+     */
+    private List<int []> damage = new ArrayList<int []>();
+
     /**
      * Y coordinate of the top edge of the desktop.  For now this is a
      * constant.  Someday it would be nice to have a multi-line menu or
@@ -407,6 +446,12 @@ public class TApplication implements Runnable {
      */
     protected boolean translucence = true;
 
+    /**
+     * The most damaged rectangles to track before merging them all into
+     * one.
+     */
+    private static final int MAX_DAMAGE_REGIONS = 16;
+
     /**
      * WidgetEventHandler is the main event consumer loop.  There are at most
      * two such threads in existence: the primary for normal case and a
@@ -463,70 +508,59 @@ public class TApplication implements Runnable {
 
                 // Wait until application notifies me
                 while (!application.quit) {
-                    try {
-                        synchronized (application.drainEventQueue) {
-                            if (application.drainEventQueue.size() > 0) {
-                                break;
-                            }
-                        }
+                    if (!application.drainEventQueue.isEmpty()) {
+                        break;
+                    }
 
-                        long timeout = 0;
-                        if (first) {
-                            first = false;
-                        } else {
-                            timeout = application.getSleepTime(1000);
-                        }
+                    long timeout = 0;
+                    if (first) {
+                        first = false;
+                    } else {
+                        timeout = application.getSleepTime(1000);
+                    }
 
-                        if (timeout == 0) {
-                            // A timer needs to fire, break out.
-                            break;
-                        }
+                    if (timeout == 0) {
+                        // A timer needs to fire, break out.
+                        break;
+                    }
 
-                        if (debugThreads) {
-                            System.err.printf("%d %s %s %s sleep %d millis\n",
-                                System.currentTimeMillis(), this,
-                                primary ? "primary" : "secondary",
-                                Thread.currentThread(), timeout);
-                        }
+                    if (debugThreads) {
+                        System.err.printf("%d %s %s %s sleep %d millis\n",
+                            System.currentTimeMillis(), this,
+                            primary ? "primary" : "secondary",
+                            Thread.currentThread(), timeout);
+                    }
 
-                        synchronized (this) {
-                            this.wait(timeout);
-                        }
+                    application.drainEventQueue.await(timeout);
 
-                        if (debugThreads) {
-                            System.err.printf("%d %s %s %s AWAKE\n",
-                                System.currentTimeMillis(), this,
-                                primary ? "primary" : "secondary",
-                                Thread.currentThread());
-                        }
+                    if (debugThreads) {
+                        System.err.printf("%d %s %s %s AWAKE\n",
+                            System.currentTimeMillis(), this,
+                            primary ? "primary" : "secondary",
+                            Thread.currentThread());
+                    }
 
-                        if ((!primary)
-                            && (application.secondaryEventReceiver == null)
-                        ) {
-                            // Secondary thread, emergency exit.  If we got
-                            // here then something went wrong with the
-                            // handoff between yield() and closeWindow().
-                            synchronized (application.primaryEventHandler) {
-                                application.primaryEventHandler.notify();
-                            }
-                            application.secondaryEventHandler = null;
-                            throw new RuntimeException("secondary exited " +
-                                "at wrong time");
+                    if ((!primary)
+                        && (application.secondaryEventReceiver == null)
+                    ) {
+                        // Secondary thread, emergency exit.  If we got
+                        // here then something went wrong with the
+                        // handoff between yield() and closeWindow().
+                        synchronized (application.primaryEventHandler) {
+                            application.primaryEventHandler.notify();
                         }
-                        break;
-                    } catch (InterruptedException e) {
-                        // SQUASH
+                        application.secondaryEventHandler = null;
+                        throw new RuntimeException("secondary exited " +
+                            "at wrong time");
                     }
+                    break;
                 } // while (!application.quit)
 
                 // Pull all events off the queue
                 for (;;) {
-                    TInputEvent event = null;
-                    synchronized (application.drainEventQueue) {
-                        if (application.drainEventQueue.size() == 0) {
-                            break;
-                        }
-                        event = application.drainEventQueue.remove(0);
+                    TInputEvent event = application.drainEventQueue.poll();
+                    if (event == null) {
+                        break;
                     }
 
                     // We will have an event to process, so repaint the
@@ -571,6 +605,12 @@ public class TApplication implements Runnable {
                     application.finishEventProcessing();
                 }
 
+                // Drop any wakeup raised while this pass ran (including by
+                // its own doRepaint() calls), as a notify() would have been
+                // lost, so that the next await() really sleeps.  New events
+                // are still seen by isEmpty().
+                application.drainEventQueue.clearSignal();
+
             } // while (true) (main runnable loop)
         }
     }
@@ -881,15 +921,28 @@ public class TApplication implements Runnable {
             translucence = false;
         }
 
+        // Partial repaint option
+        if (System.getProperty("jexer.damageRepaint",
+                "true").equals("false")) {
+            damageRepaint = false;
+        }
+
+        // Retained mode window layers option
+        if (System.getProperty("jexer.retainedMode",
+                "false").equals("true")) {
+            retainedMode = true;
+        }
+
         theme           = new ColorTheme();
         desktopTop      = (hideMenuBar ? 0 : 1);
         desktopBottom   = getScreen().getHeight() - 1 + (hideStatusBar ? 1 : 0);
-        fillEventQueue  = new LinkedList<TInputEvent>();
-        drainEventQueue = new LinkedList<TInputEvent>();
+        fillEventQueue  = new TInputEventQueue(1024);
+        drainEventQueue = new TInputEventQueue(4096);
+        dispatchEvents  = new ArrayList<TInputEvent>();
         windows         = new LinkedList<TWindow>();
         menus           = new ArrayList<TMenu>();
         subMenus        = new ArrayList<TMenu>();
-        timers          = new LinkedList<TTimer>();
+        timers          = new TimerQueue();
         accelerators    = new HashMap<TKeypress, TMenuItem>();
         menuItems       = new LinkedList<TMenuItem>();
         desktop         = new TDesktop(this);
@@ -932,10 +985,47 @@ public class TApplication implements Runnable {
             TTimer animationTimer = addTimer(1000 / ANIMATION_FPS, true,
                 new TAction() {
                     public void DO() {
-                        doRepaint();
+                        if (!damageRepaint) {
+                            doRepaint();
+                        } else if ((screenHandler != null)
+                            && getScreen().hasPulse()
+                        ) {
+                            // Pulse colors are computed by the backend when
+                            // it flushes, so keep flushing them at the
+                            // animation rate without redrawing anything.
+                            screenHandler.setDirty();
+                        }
                     }
                 }
             );
+            if (damageRepaint) {
+                // The tick alone only has to pick up invalidated regions.
+                animationTimer.setRepaint(false);
+
+                // The Swing backends blink the cursor and text when they
+                // flush, which used to ride on the full repaints.  Keep
+                // flushing them at the blink rate.
+                long millis = 0;
+                if (backend instanceof SwingBackend) {
+                    millis = ((SwingBackend) backend).getBlinkMillis();
+                } else if (backend instanceof MultiBackend) {
+                    millis = 500;
+                }
+                if (millis > 0) {
+                    TTimer blinkTimer = addTimer(millis, true,
+                        new TAction() {
+                            public void DO() {
+                                // Update idle checks.
+                                TApplication.this.getBackend().hasEvents();
+                                if (screenHandler != null) {
+                                    screenHandler.setDirty();
+                                }
+                            }
+                        }
+                    );
+                    blinkTimer.setRepaint(false);
+                }
+            }
         }
 
         // Load the help system
@@ -982,65 +1072,42 @@ public class TApplication implements Runnable {
         started = true;
 
         while (!quit) {
-            synchronized (this) {
-                boolean doWait = false;
-
-                if (!backend.hasEvents()) {
-                    synchronized (fillEventQueue) {
-                        if (fillEventQueue.size() == 0) {
-                            doWait = true;
-                        }
-                    }
+            if (!backend.hasEvents() && fillEventQueue.isEmpty()) {
+                // No I/O to dispatch, so wait until the backend provides
+                // new I/O.
+                if (debugThreads) {
+                    System.err.println(System.currentTimeMillis() +
+                        " " + Thread.currentThread() + " MAIN sleep");
                 }
 
-                if (doWait) {
-                    // No I/O to dispatch, so wait until the backend
-                    // provides new I/O.
-                    try {
-                        if (debugThreads) {
-                            System.err.println(System.currentTimeMillis() +
-                                " " + Thread.currentThread() + " MAIN sleep");
-                        }
-
-                        this.wait();
+                fillEventQueue.await(0);
 
-                        if (debugThreads) {
-                            System.err.println(System.currentTimeMillis() +
-                                " " + Thread.currentThread() + " MAIN AWAKE");
-                        }
-                    } catch (InterruptedException e) {
-                        // I'm awake and don't care why, let's see what's
-                        // going on out there.
-                    }
+                if (debugThreads) {
+                    System.err.println(System.currentTimeMillis() +
+                        " " + Thread.currentThread() + " MAIN AWAKE");
                 }
-
-            } // synchronized (this)
-
-            synchronized (fillEventQueue) {
-                // Pull any pending I/O events
-                backend.getEvents(fillEventQueue);
             }
 
-            // Dispatch each event to the appropriate handler, one at a time.
-            for (;;) {
-                TInputEvent event = null;
-                synchronized (fillEventQueue) {
-                    if (fillEventQueue.size() == 0) {
-                        break;
-                    }
-                    event = fillEventQueue.remove(0);
-                }
-                metaHandleEvent(event);
+            // Pull any posted events and pending I/O events, collapse
+            // redundant mouse motion and resizes, and dispatch each event
+            // to the appropriate handler, one at a time.
+            fillEventQueue.drainTo(dispatchEvents);
+            backend.getEvents(dispatchEvents);
+            TInputEventQueue.coalesce(dispatchEvents);
+            for (int i = 0; i < dispatchEvents.size(); i++) {
+                metaHandleEvent(dispatchEvents.get(i));
             }
+            dispatchEvents.clear();
 
             // Wake a consumer thread if we have any pending events.
-            if (drainEventQueue.size() > 0) {
+            if (!drainEventQueue.isEmpty()) {
                 wakeEventHandler();
             }
 
         } // while (!quit)
 
         // Shutdown the event consumer threads
+        drainEventQueue.signal();
         if (secondaryEventHandler != null) {
             synchronized (secondaryEventHandler) {
                 secondaryEventHandler.notify();
@@ -1068,6 +1135,18 @@ public class TApplication implements Runnable {
         // System.err.println("*** TApplication.run() exits ***");
     }
 
+    // ------------------------------------------------------------------------
+    // BackendListener --------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Wake the main run() loop to look for new events.  Backends call this
+     * when they have input ready.
+     */
+    public final void wakeup() {
+        fillEventQueue.signal();
+    }
+
     // ------------------------------------------------------------------------
     // Event handlers ---------------------------------------------------------
     // ------------------------------------------------------------------------
@@ -1426,6 +1505,7 @@ public class TApplication implements Runnable {
                         resize.getHeight());
                     screenResizeTime = System.currentTimeMillis();
                 }
+                invalidateLayers();
                 desktopBottom = getScreen().getHeight() - 1;
                 if (hideStatusBar) {
                     desktopBottom++;
@@ -1456,10 +1536,8 @@ public class TApplication implements Runnable {
             return;
         }
 
-        synchronized (drainEventQueue) {
-            // Put into the main queue
-            drainEventQueue.add(event);
-        }
+        // Put into the main queue
+        drainEventQueue.add(event);
     }
 
     /**
@@ -1840,23 +1918,28 @@ public class TApplication implements Runnable {
                     Thread.currentThread() + " doIdle() 2\n");
             }
 
-            // Run any timers that have timed out
-            Date now = new Date();
-            List<TTimer> keepTimers = new LinkedList<TTimer>();
-            for (TTimer timer: timers) {
-                if (timer.getNextTick().getTime() <= now.getTime()) {
-                    // Something might change, so repaint the screen.
+            // Run any timers that have timed out.  They are pulled off the
+            // queue as one batch first, so that actions can freely add and
+            // remove timers.
+            long now = System.nanoTime();
+            List<TTimer> expiredTimers = Collections.emptyList();
+            if ((timers.size() > 0) && (timers.getNextDeadline() - now <= 0)) {
+                expiredTimers = new ArrayList<TTimer>();
+                timers.expire(now, expiredTimers);
+            }
+            for (TTimer timer: expiredTimers) {
+                if (timer.cancelled) {
+                    continue;
+                }
+                // Something might change, so repaint the screen.
+                if (timer.repaint || !damageRepaint) {
                     repaint = true;
-                    timer.tick();
-                    if (timer.recurring) {
-                        keepTimers.add(timer);
-                    }
-                } else {
-                    keepTimers.add(timer);
+                }
+                timer.tick(now);
+                if (timer.recurring && !timer.cancelled) {
+                    timers.add(timer);
                 }
             }
-            timers.clear();
-            timers.addAll(keepTimers);
         }
 
         // Call onIdle's
@@ -1877,7 +1960,9 @@ public class TApplication implements Runnable {
         for (Runnable invoke: invokes) {
             invoke.run();
         }
-        doRepaint();
+        if (!damageRepaint || (invokes.size() > 0)) {
+            doRepaint();
+        }
 
     }
 
@@ -1889,16 +1974,9 @@ public class TApplication implements Runnable {
             return;
         }
 
-        if (secondaryEventHandler != null) {
-            synchronized (secondaryEventHandler) {
-                secondaryEventHandler.notify();
-            }
-        } else {
-            assert (primaryEventHandler != null);
-            synchronized (primaryEventHandler) {
-                primaryEventHandler.notify();
-            }
-        }
+        // Whichever of the primary or secondary handler is active is the
+        // one parked on drainEventQueue.
+        drainEventQueue.signal();
     }
 
     /**
@@ -1995,6 +2073,41 @@ public class TApplication implements Runnable {
      */
     public void setTranslucence(final boolean enabled) {
         translucence = enabled;
+        invalidateLayers();
+    }
+
+    /**
+     * Check if windows are drawn into offscreen layers and composited.
+     *
+     * @return true if retained mode is enabled
+     */
+    public boolean isRetainedMode() {
+        return retainedMode;
+    }
+
+    /**
+     * Set the retained mode option.  When enabled, each window is drawn
+     * into its own offscreen layer that is only redrawn when the window is
+     * active, resized, or invalidated (TWidget.invalidate() or
+     * TWidget.doRepaint()).  Windows that change in some other way, for
+     * example from another thread, must call TWindow.invalidateLayer().
+     *
+     * @param enabled if true, composite windows from offscreen layers
+     */
+    public void setRetainedMode(final boolean enabled) {
+        retainedMode = enabled;
+        invalidateLayers();
+        doRepaint();
+    }
+
+    /**
+     * Force every window's offscreen layer to be redrawn on the next
+     * update, for example after changing the color theme.
+     */
+    public void invalidateLayers() {
+        for (TWindow window: windows) {
+            window.invalidateLayer();
+        }
     }
 
     /**
@@ -2013,6 +2126,7 @@ public class TApplication implements Runnable {
         } else {
             translucence = true;
         }
+        invalidateLayers();
 
         int alpha = opacity * 255 / 100;
         for (TWindow window: windows) {
@@ -2047,21 +2161,79 @@ public class TApplication implements Runnable {
      */
     public void doRepaint() {
         repaint = true;
-        boolean wakeAndReturn = false;
-        synchronized (drainEventQueue) {
-            if (fillEventQueue.size() > 0) {
-                // User input is waiting, that will update the screen.  Wake
-                // the backend reader.
-                if (debugEvents) {
-                    System.err.printf("Drop: input waiting in backend\n");
+        requestDraw();
+    }
+
+    /**
+     * Mark a rectangle of the screen as needing to be redrawn on the next
+     * update.  Unlike doRepaint(), only the windows that overlap the
+     * rectangle are redrawn, and only within it.
+     *
+     * @param x left column of the rectangle, in absolute coordinates
+     * @param y top row of the rectangle, in absolute coordinates
+     * @param width number of columns
+     * @param height number of rows
+     */
+    public final void invalidate(final int x, final int y, final int width,
+        final int height) {
+
+        if (!damageRepaint) {
+            doRepaint();
+            return;
+        }
+
+        Screen screen = getScreen();
+        int left = Math.max(0, x);
+        int top = Math.max(0, y);
+        int right = Math.min(screen.getWidth(), x + width);
+        int bottom = Math.min(screen.getHeight(), y + height);
+        if ((right <= left) || (bottom <= top)) {
+            return;
+        }
+
+        synchronized (damage) {
+            // Fold in every rectangle this one overlaps or touches.
+            for (int i = 0; i < damage.size();) {
+                int [] other = damage.get(i);
+                if ((other[0] <= right) && (left <= other[2])
+                    && (other[1] <= bottom) && (top <= other[3])
+                ) {
+                    left = Math.min(left, other[0]);
+                    top = Math.min(top, other[1]);
+                    right = Math.max(right, other[2]);
+                    bottom = Math.max(bottom, other[3]);
+                    damage.remove(i);
+                    i = 0;
+                } else {
+                    i++;
                 }
-                wakeAndReturn = true;
             }
+            if (damage.size() >= MAX_DAMAGE_REGIONS) {
+                for (int [] other: damage) {
+                    left = Math.min(left, other[0]);
+                    top = Math.min(top, other[1]);
+                    right = Math.max(right, other[2]);
+                    bottom = Math.max(bottom, other[3]);
+                }
+                damage.clear();
+            }
+            damage.add(new int [] { left, top, right, bottom });
         }
-        if (wakeAndReturn) {
-            synchronized (this) {
-                this.notify();
+        requestDraw();
+    }
+
+    /**
+     * Wake the event handler to draw the screen, unless an update is
+     * already coming or the screen cannot update this quickly.
+     */
+    private void requestDraw() {
+        if (!fillEventQueue.isEmpty()) {
+            // User input is waiting, that will update the screen.  Wake
+            // the backend reader.
+            if (debugEvents) {
+                System.err.printf("Drop: input waiting in backend\n");
             }
+            wakeup();
             return;
         }
         if (screenHandler != null) {
@@ -2119,6 +2291,7 @@ public class TApplication implements Runnable {
      * @param close if true, close the previous desktop
      */
     public final void setDesktop(final TDesktop desktop, final boolean close) {
+        TDesktop oldDesktop = this.desktop;
         if (this.desktop != null) {
             if (close) {
                 this.desktop.onPreClose();
@@ -2127,6 +2300,12 @@ public class TApplication implements Runnable {
             }
         }
         this.desktop = desktop;
+        if (!close && (oldDesktop != null) && (oldDesktop != desktop)) {
+            // The old desktop is kept but will no longer be drawn or see
+            // onIdle().  Give its widgets one last chance to notice that
+            // they are off screen.
+            oldDesktop.onIdle();
+        }
 
         desktopTop = (hideMenuBar ? 0 : 1);
         desktopBottom = getScreen().getHeight() - 1 + (hideStatusBar ?
@@ -2568,6 +2747,46 @@ public class TApplication implements Runnable {
         getScreen().invertCell(x, y);
     }
 
+    /**
+     * Draw one window on the screen, either directly or by compositing its
+     * offscreen layer.
+     *
+     * @param screen the screen
+     * @param window the window
+     */
+    private void drawWindow(final Screen screen, final TWindow window) {
+        if (!retainedMode) {
+            if (translucence) {
+                drawTranslucentWindow(screen, window);
+            } else {
+                window.drawChildren();
+            }
+            return;
+        }
+
+        LayerScreen layer = window.getLayer();
+        int windowX = window.getX();
+        int windowY = window.getY();
+        int windowWidth = layer.getWidth();
+        int windowHeight = layer.getHeight();
+        screen.resetClipping();
+        if (translucence) {
+            screen.blendScreen(layer, windowX, windowY, windowWidth,
+                windowHeight, window.getAlpha(), true);
+            final int shadowOpacity = 30;
+            final int shadowAlpha = shadowOpacity * 255 / 100;
+            screen.blendRectangle(windowX + windowWidth, windowY + 1,
+                2, windowHeight - 1, 0x000000, shadowAlpha);
+            screen.blendRectangle(windowX + 2, windowY + windowHeight,
+                windowWidth, 1, 0x000000, shadowAlpha);
+        } else {
+            screen.copyScreen(layer, windowX, windowY, windowWidth,
+                windowHeight);
+            screen.drawBoxShadow(windowX, windowY, windowX + windowWidth,
+                windowY + windowHeight);
+        }
+    }
+
     /**
      * Draw a translucent window with a shadow on the screen.
      *
@@ -2577,20 +2796,32 @@ public class TApplication implements Runnable {
     private void drawTranslucentWindow(final Screen screen,
         final TWindow window) {
 
-        // Alpha blending: have the window draw to a snapshot of the screen
-        // without alpha, and then merge it on the screen with alpha.
+        // Alpha blending: have the window draw over the screen without
+        // alpha, save what it drew, put back what was there, and then blend
+        // what it drew with alpha.  The two scratch layers are reused
+        // across frames.
         int windowX = window.getX();
         int windowY = window.getY();
         int windowWidth = window.getWidth();
         int windowHeight = window.getHeight();
-        Screen oldSnapshot = screen.snapshot(windowX, windowY,
-            windowWidth + 2, windowHeight + 1);
+        if ((translucentBelow == null)
+            || (translucentBelow.getScreen() != screen)
+        ) {
+            translucentBelow = new LayerScreen(screen, windowWidth,
+                windowHeight);
+            translucentAbove = new LayerScreen(screen, windowWidth,
+                windowHeight);
+        }
+        translucentBelow.setBounds(windowX, windowY, windowWidth,
+            windowHeight);
+        translucentBelow.capture();
         window.drawChildren();
-        Screen newSnapshot = screen.snapshot(windowX, windowY,
+        translucentAbove.setBounds(windowX, windowY, windowWidth,
+            windowHeight);
+        translucentAbove.capture();
+        screen.copyScreen(translucentBelow, windowX, windowY,
             windowWidth, windowHeight);
-        screen.copyScreen(oldSnapshot, windowX, windowY,
-            windowWidth, windowHeight);
-        screen.blendScreen(newSnapshot, windowX, windowY,
+        screen.blendScreen(translucentAbove, windowX, windowY,
             windowWidth, windowHeight, window.getAlpha(), true);
         screen.resetClipping();
 
@@ -2615,6 +2846,27 @@ public class TApplication implements Runnable {
                 System.currentTimeMillis(), Thread.currentThread());
         }
 
+        // Collect the invalidated regions.  A full repaint covers them, and
+        // they cannot be drawn on their own underneath an open menu or a
+        // pixel overlay.
+        List<int []> regions = null;
+        synchronized (damage) {
+            if (damage.size() > 0) {
+                if (!repaint) {
+                    regions = new ArrayList<int []>(damage);
+                }
+                damage.clear();
+            }
+        }
+        if ((regions != null)
+            && ((activeMenu != null)
+                || (subMenus.size() > 0)
+                || (overlay.getItems().size() > 0))
+        ) {
+            regions = null;
+            repaint = true;
+        }
+
         // I don't think this does anything useful anymore...
         if (!repaint && (customMousePointer == null)
             && (customWidgetMousePointer == null)
@@ -2623,13 +2875,17 @@ public class TApplication implements Runnable {
                 System.err.printf("%d %s drawAll() !repaint\n",
                     System.currentTimeMillis(), Thread.currentThread());
             }
-            if ((oldDrawnMouseX != mouseX) || (oldDrawnMouseY != mouseY)) {
+            if ((regions != null)
+                || (oldDrawnMouseX != mouseX)
+                || (oldDrawnMouseY != mouseY)
+            ) {
                 if (debugThreads) {
                     System.err.printf("%d %s drawAll() !repaint MOUSE\n",
                         System.currentTimeMillis(), Thread.currentThread());
                 }
 
-                // The only thing that has happened is the mouse moved.
+                // The only things that have happened are the mouse moved
+                // and/or some widgets invalidated parts of the screen.
 
                 // Redraw the old cell at that position, and save the cell at
                 // the new mouse position.
@@ -2641,6 +2897,9 @@ public class TApplication implements Runnable {
                 oldDrawnMouseCell.restoreImage();
                 getScreen().putCharXY(oldDrawnMouseX, oldDrawnMouseY,
                     oldDrawnMouseCell);
+                if (regions != null) {
+                    drawRegions(regions);
+                }
                 oldDrawnMouseCell = getScreen().getCharXY(mouseX, mouseY);
                 if (backend instanceof ECMA48Backend) {
                     // Special case: the entire row containing the mouse has
@@ -2716,11 +2975,7 @@ public class TApplication implements Runnable {
         Collections.reverse(sorted);
         for (TWindow window: sorted) {
             if (window.isShown()) {
-                if (translucence) {
-                    drawTranslucentWindow(getScreen(), window);
-                } else {
-                    window.drawChildren();
-                }
+                drawWindow(getScreen(), window);
             }
         }
 
@@ -2799,35 +3054,7 @@ public class TApplication implements Runnable {
 
         getScreen().resetClipping();
 
-        if (hideStatusBar == false) {
-            // Draw the status bar of the top-level window
-            TStatusBar statusBar = null;
-            if (topLevel != null) {
-                if (topLevel.isShown()) {
-                    statusBar = topLevel.getStatusBar();
-                }
-            } else {
-                if (desktop != null) {
-                    statusBar = desktop.getStatusBar();
-                }
-            }
-
-            if (statusBar != null) {
-                getScreen().resetClipping();
-                statusBar.setWidth(getScreen().getWidth());
-                if (topLevel != null) {
-                    statusBar.setY(getScreen().getHeight() - topLevel.getY());
-                } else {
-                    statusBar.setY(desktopBottom);
-                }
-                statusBar.draw();
-            } else {
-                CellAttributes barColor = new CellAttributes();
-                barColor.setTo(getTheme().getColor("tstatusbar.text"));
-                getScreen().hLineXY(0, desktopBottom, getScreen().getWidth(),
-                    ' ', barColor);
-            }
-        }
+        drawStatusBar(topLevel);
 
         // Draw the mouse pointer
         if (debugThreads) {
@@ -2861,45 +3088,9 @@ public class TApplication implements Runnable {
                 screenSelectionX1, screenSelectionY1, screenSelectionRectangle);
         }
 
-        // The active widget
-        TWidget activeWidget = null;
-
         // Place the cursor if it is visible
         if (!menuIsActive) {
-
-            int visibleWindowCount = 0;
-            for (TWindow window: sorted) {
-                if (window.isShown()) {
-                    visibleWindowCount++;
-                }
-            }
-            if ((visibleWindowCount == 0) || desktopCanHaveCursor) {
-                // No windows are visible, only the desktop.  Allow it to
-                // have the cursor.
-                if (desktop != null) {
-                    sorted.add(desktop);
-                }
-            }
-
-            if (sorted.size() > 0) {
-                activeWidget = sorted.get(sorted.size() - 1).getActiveChild();
-                int cursorClipTop = desktopTop;
-                int cursorClipBottom = desktopBottom;
-                if (activeWidget.isCursorVisible()) {
-                    if ((activeWidget.getCursorAbsoluteY() <= cursorClipBottom)
-                        && (activeWidget.getCursorAbsoluteY() >= cursorClipTop)
-                    ) {
-                        getScreen().putCursor(true,
-                            activeWidget.getCursorAbsoluteX(),
-                            activeWidget.getCursorAbsoluteY());
-                        cursor = true;
-                    } else {
-                        // Turn off the cursor.  Also place it at 0,0.
-                        getScreen().putCursor(false, 0, 0);
-                        cursor = false;
-                    }
-                }
-            }
+            cursor = placeCursor(sorted);
         }
         // Kill the cursor
         if (!cursor) {
@@ -2946,14 +3137,186 @@ public class TApplication implements Runnable {
         repaint = false;
     }
 
+    /**
+     * Redraw only the damaged parts of the screen.  Each region is cleared
+     * and rebuilt from the desktop up, drawing only the windows that
+     * overlap it, with all drawing clipped to the region.  The caller has
+     * already ensured no menu is open.
+     *
+     * @param regions the damaged rectangles, as {left, top, right, bottom}
+     * in absolute screen coordinates
+     */
+    private void drawRegions(final List<int []> regions) {
+        Screen screen = getScreen();
+
+        List<TWindow> sorted = new ArrayList<TWindow>(windows);
+        Collections.sort(sorted);
+        TWindow topLevel = null;
+        if (sorted.size() > 0) {
+            topLevel = sorted.get(0);
+        }
+        Collections.reverse(sorted);
+
+        for (int [] region: regions) {
+            int left = region[0];
+            int top = region[1];
+            int right = region[2];
+            int bottom = region[3];
+
+            screen.resetClipping();
+            screen.setDrawingRegion(left, top, right - left, bottom - top);
+            screen.clear(left, top, right - left, bottom - top);
+
+            if (desktop != null) {
+                desktop.drawChildren();
+            }
+            for (TWindow window: sorted) {
+                if (!window.isShown()) {
+                    continue;
+                }
+                // Windows cast a shadow two columns right and one row down.
+                if ((window.getX() >= right)
+                    || (window.getX() + window.getWidth() + 2 <= left)
+                    || (window.getY() >= bottom)
+                    || (window.getY() + window.getHeight() + 1 <= top)
+                ) {
+                    continue;
+                }
+                drawWindow(screen, window);
+            }
+
+            screen.resetClipping();
+            if ((hideMenuBar == false) && (top == 0)) {
+                drawMenuBar();
+            }
+            if ((hideStatusBar == false) && (bottom > desktopBottom)) {
+                drawStatusBar(topLevel);
+            }
+        }
+        screen.resetDrawingRegion();
+        screen.resetClipping();
+
+        if (!placeCursor(sorted)) {
+            screen.hideCursor();
+        }
+    }
+
+    /**
+     * Draw the menu bar with no menu open.
+     */
+    private void drawMenuBar() {
+        Screen screen = getScreen();
+        CellAttributes menuColor = theme.getColor("tmenu");
+        CellAttributes menuMnemonicColor = theme.getColor("tmenu.mnemonic");
+
+        screen.resetClipping();
+        screen.hLineXY(0, 0, screen.getWidth(), ' ', menuColor);
+        int x = 1;
+        for (TMenu menu: menus) {
+            screen.hLineXY(x, 0, StringUtils.width(menu.getTitle()) + 2, ' ',
+                menuColor);
+            screen.putStringXY(x + 1, 0, menu.getTitle(), menuColor);
+            screen.putCharXY(x + 1 +
+                menu.getMnemonic().getScreenShortcutIdx(),
+                0, menu.getMnemonic().getShortcut(), menuMnemonicColor);
+            x += StringUtils.width(menu.getTitle()) + 2;
+        }
+        if ((menuTrayText != null) && (menuTrayText.length() > 0)) {
+            screen.putStringXY(screen.getWidth() -
+                StringUtils.width(menuTrayText), 0, menuTrayText, menuColor);
+        }
+    }
+
+    /**
+     * Draw the status bar of the top-level window, or a blank bar.
+     *
+     * @param topLevel the top-level window or menu, or null for the desktop
+     */
+    private void drawStatusBar(final TWindow topLevel) {
+        if (hideStatusBar == false) {
+            // Draw the status bar of the top-level window
+            TStatusBar statusBar = null;
+            if (topLevel != null) {
+                if (topLevel.isShown()) {
+                    statusBar = topLevel.getStatusBar();
+                }
+            } else {
+                if (desktop != null) {
+                    statusBar = desktop.getStatusBar();
+                }
+            }
+
+            if (statusBar != null) {
+                getScreen().resetClipping();
+                statusBar.setWidth(getScreen().getWidth());
+                if (topLevel != null) {
+                    statusBar.setY(getScreen().getHeight() - topLevel.getY());
+                } else {
+                    statusBar.setY(desktopBottom);
+                }
+                statusBar.draw();
+            } else {
+                CellAttributes barColor = new CellAttributes();
+                barColor.setTo(getTheme().getColor("tstatusbar.text"));
+                getScreen().hLineXY(0, desktopBottom, getScreen().getWidth(),
+                    ' ', barColor);
+            }
+        }
+    }
+
+    /**
+     * Place the cursor for the active widget of the top window.
+     *
+     * @param sorted the windows in reverse Z order.  The desktop may be
+     * added to the end.
+     * @return true if the cursor is visible
+     */
+    private boolean placeCursor(final List<TWindow> sorted) {
+        boolean cursor = false;
+        TWidget activeWidget = null;
+
+        int visibleWindowCount = 0;
+        for (TWindow window: sorted) {
+            if (window.isShown()) {
+                visibleWindowCount++;
+            }
+        }
+        if ((visibleWindowCount == 0) || desktopCanHaveCursor) {
+            // No windows are visible, only the desktop.  Allow it to
+            // have the cursor.
+            if (desktop != null) {
+                sorted.add(desktop);
+            }
+        }
+
+        if (sorted.size() > 0) {
+            activeWidget = sorted.get(sorted.size() - 1).getActiveChild();
+            int cursorClipTop = desktopTop;
+            int cursorClipBottom = desktopBottom;
+            if (activeWidget.isCursorVisible()) {
+                if ((activeWidget.getCursorAbsoluteY() <= cursorClipBottom)
+                    && (activeWidget.getCursorAbsoluteY() >= cursorClipTop)
+                ) {
+                    getScreen().putCursor(true,
+                        activeWidget.getCursorAbsoluteX(),
+                        activeWidget.getCursorAbsoluteY());
+                    cursor = true;
+                } else {
+                    // Turn off the cursor.  Also place it at 0,0.
+                    getScreen().putCursor(false, 0, 0);
+                    cursor = false;
+                }
+            }
+        }
+        return cursor;
+    }
+
     /**
      * Force this application to exit.
      */
     public void exit() {
         quit = true;
-        synchronized (this) {
-            this.notify();
-        }
+        wakeup();
         if (screenHandler != null) {
             screenHandler.setDirty();
         }
@@ -2971,6 +3334,17 @@ public class TApplication implements Runnable {
     // TWindow management -----------------------------------------------------
     // ------------------------------------------------------------------------
 
+    /**
+     * Subclasses can use this hook to track windows as they are closed,
+     * rather than scanning the window list.  Called after the window is
+     * removed from the window list and its onClose() has run.
+     *
+     * @param window the closed window
+     */
+    protected void onWindowClose(final TWindow window) {
+        // Default does nothing.
+    }
+
     /**
      * Return the total number of windows.
      *
@@ -3227,6 +3601,7 @@ public class TApplication implements Runnable {
 
         // Perform window cleanup
         window.onClose();
+        onWindowClose(window);
 
         // Check if we are closing a TMessageBox or similar
         if (secondaryEventReceiver != null) {
@@ -3238,9 +3613,7 @@ public class TApplication implements Runnable {
 
             // Wake the secondary thread, it will wake the primary as it
             // exits.
-            synchronized (secondaryEventHandler) {
-                secondaryEventHandler.notify();
-            }
+            drainEventQueue.signal();
 
         } // synchronized (windows)
 
@@ -3379,7 +3752,6 @@ public class TApplication implements Runnable {
         if (desktop != null) {
             desktop.setActive(false);
         }
-
     }
 
     /**
@@ -4032,22 +4404,30 @@ public class TApplication implements Runnable {
         }
     }
 
+    /**
+     * Get the dispatch latency histogram: the time between an input event
+     * being generated and its being handed to the widgets.
+     *
+     * @return the histogram; bucket i counts events that waited less than
+     * 2^(i+1) microseconds
+     * @see TInputEventQueue#getLatencyHistogram()
+     */
+    public final long [] getEventLatencyHistogram() {
+        return drainEventQueue.getLatencyHistogram();
+    }
+
     /**
      * Post an event to process.
      *
      * @param event new event to add to the queue
      */
     public final void postEvent(final TInputEvent event) {
-        synchronized (this) {
-            synchronized (fillEventQueue) {
-                fillEventQueue.add(event);
-            }
-            if (debugThreads) {
-                System.err.println(System.currentTimeMillis() + " " +
-                    Thread.currentThread() + " postEvent() wake up main");
-            }
-            this.notify();
+        fillEventQueue.add(event);
+        if (debugThreads) {
+            System.err.println(System.currentTimeMillis() + " " +
+                Thread.currentThread() + " postEvent() wake up main");
         }
+        wakeup();
     }
 
     /**
@@ -4056,17 +4436,13 @@ public class TApplication implements Runnable {
      * @param event new event to add to the queue
      */
     public final void postMenuEvent(final TInputEvent event) {
-        synchronized (this) {
-            synchronized (fillEventQueue) {
-                fillEventQueue.add(event);
-            }
-            if (debugThreads) {
-                System.err.println(System.currentTimeMillis() + " " +
-                    Thread.currentThread() + " postMenuEvent() wake up main");
-            }
-            closeMenu();
-            this.notify();
+        fillEventQueue.add(event);
+        if (debugThreads) {
+            System.err.println(System.currentTimeMillis() + " " +
+                Thread.currentThread() + " postMenuEvent() wake up main");
         }
+        closeMenu();
+        wakeup();
     }
 
     /**
@@ -4258,23 +4634,21 @@ public class TApplication implements Runnable {
      * @return number of milliseconds between now and the next timer event
      */
     private long getSleepTime(final long timeout) {
-        Date now = new Date();
-        long nowTime = now.getTime();
-        long sleepTime = timeout;
-
+        long nextDeadline;
         synchronized (timers) {
-            for (TTimer timer: timers) {
-                long nextTickTime = timer.getNextTick().getTime();
-                if (nextTickTime < nowTime) {
-                    return 0;
-                }
-
-                long timeDifference = nextTickTime - nowTime;
-                if (timeDifference < sleepTime) {
-                    sleepTime = timeDifference;
-                }
+            if (timers.size() == 0) {
+                return timeout;
             }
+            nextDeadline = timers.getNextDeadline();
+        }
+
+        long remaining = nextDeadline - System.nanoTime();
+        if (remaining <= 0) {
+            return 0;
         }
+        // Round up so that we do not wake just short of the deadline and
+        // spin.
+        long sleepTime = Math.min(timeout, (remaining + 999999L) / 1000000L);
 
         assert (sleepTime >= 0);
         assert (sleepTime <= timeout);
@@ -4306,10 +4680,54 @@ public class TApplication implements Runnable {
      */
     public final void removeTimer(final TTimer timer) {
         synchronized (timers) {
+            timer.cancelled = true;
             timers.remove(timer);
         }
     }
 
+    /**
+     * Get the mean lateness of timer ticks, measured from each timer's
+     * deadline to when it was actually dispatched.
+     *
+     * @return the mean lateness in nanoseconds
+     */
+    public final long getTimerJitterMean() {
+        synchronized (timers) {
+            return timers.getJitterMean();
+        }
+    }
+
+    /**
+     * Get the largest lateness of any timer tick.
+     *
+     * @return the maximum lateness in nanoseconds
+     */
+    public final long getTimerJitterMax() {
+        synchronized (timers) {
+            return timers.getJitterMax();
+        }
+    }
+
+    /**
+     * Get the number of timer ticks the jitter statistics cover.
+     *
+     * @return the number of ticks
+     */
+    public final long getTimerJitterCount() {
+        synchronized (timers) {
+            return timers.getJitterCount();
+        }
+    }
+
+    /**
+     * Reset the timer jitter statistics.
+     */
+    public final void resetTimerJitter() {
+        synchronized (timers) {
+            timers.resetJitter();
+        }
+    }
+
     // ------------------------------------------------------------------------
     // Other TWindow constructors ---------------------------------------------
     // ------------------------------------------------------------------------
@@ -304,21 +304,22 @@ public class TCalendar extends TWidget {
     }
 
     /**
-     * Set calendar value.
+     * Set calendar value, and display its month.
      *
      * @param calendar the new value to use
      */
     public final void setValue(final Calendar calendar) {
-        this.calendar.setTimeInMillis(calendar.getTimeInMillis());
+        setValue(calendar.getTimeInMillis());
     }
 
     /**
-     * Set calendar value.
+     * Set calendar value, and display its month.
      *
      * @param millis the millis to set to
      */
     public final void setValue(final long millis) {
         this.calendar.setTimeInMillis(millis);
+        displayCalendar.setTimeInMillis(millis);
     }
 
 }
@@ -28,13 +28,22 @@
  */
 package jexer;
 
-import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
-
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jexer.backend.Backend;
 import jexer.bits.Animation;
 import jexer.bits.Cell;
+import jexer.bits.CellAttributes;
 import jexer.bits.ImageUtils;
 import jexer.event.TCommandEvent;
 import jexer.event.TKeypressEvent;
@@ -75,10 +84,28 @@ public class TImage extends TWidget implements EditMenuUser {
         SCALE,
     }
 
+    /**
+     * The minimum number of rendered tiles to keep.  The budget grows with
+     * the widget size so that the visible tiles of the current and next
+     * few animation frames always fit.
+     */
+    private static final int TILE_BUDGET = 4096;
+
+    /**
+     * The number of animation frames to prepare ahead of the one in view.
+     */
+    private static final int PREPARE_AHEAD = 2;
+
     // ------------------------------------------------------------------------
     // Variables --------------------------------------------------------------
     // ------------------------------------------------------------------------
 
+    /**
+     * The thread shared by all images that prepares animation frames ahead
+     * of playback.
+     */
+    private static ThreadPoolExecutor preparer = null;
+
     /**
      * Scaling strategy to use.
      */
@@ -95,9 +122,10 @@ public class TImage extends TWidget implements EditMenuUser {
     private TAction clickAction;
 
     /**
-     * The image to display.
+     * Where the rotated and scaled image lies in the cells, or null if it
+     * must be recomputed.
      */
-    private BufferedImage image;
+    private Layout layout;
 
     /**
      * If false, the image is fully opaque.
@@ -136,17 +164,12 @@ public class TImage extends TWidget implements EditMenuUser {
     private int top;
 
     /**
-     * The cells containing the broken up image pieces.
-     */
-    private Cell cells[][];
-
-    /**
-     * The number of rows in cells[].
+     * The number of text cell rows covered by the image.
      */
     private int cellRows;
 
     /**
-     * The number of columns in cells[].
+     * The number of text cell columns covered by the image.
      */
     private int cellColumns;
 
@@ -165,6 +188,367 @@ public class TImage extends TWidget implements EditMenuUser {
      */
     private Animation animation;
 
+    /**
+     * The number of the animation frame in view, or -1 if this is not an
+     * animation.
+     */
+    private int frameNumber = -1;
+
+    /**
+     * The parameters used to produce the visible tiles.
+     */
+    private FrameKey frameKey;
+
+    /**
+     * Tiles of the image that have already been rendered.
+     */
+    private TileCache tiles = new TileCache();
+
+    /**
+     * The image ID to give the next rendered tile.
+     */
+    private AtomicInteger nextImageId = new AtomicInteger(
+        System.identityHashCode(this) ^ (int) System.currentTimeMillis());
+
+    /**
+     * FrameKey holds everything that goes into turning a source frame into
+     * cells.  A rendered tile can only be reused if its key matches.
+     */
+    private static class FrameKey {
+
+        /**
+         * The width in pixels for one text cell.
+         */
+        private int textWidth;
+
+        /**
+         * The height in pixels for one text cell.
+         */
+        private int textHeight;
+
+        /**
+         * The number of text cell columns for the widget.
+         */
+        private int width;
+
+        /**
+         * The number of text cell rows for the widget.
+         */
+        private int height;
+
+        /**
+         * Scaling strategy.
+         */
+        private Scale scale;
+
+        /**
+         * The scaling factor.
+         */
+        private double scaleFactor;
+
+        /**
+         * The clockwise rotation.
+         */
+        private int clockwise;
+
+        /**
+         * Anti-aliasing.
+         */
+        private boolean antiAlias;
+
+        /**
+         * If false, the image is fully opaque.
+         */
+        private boolean maybeTransparent;
+
+        /**
+         * The color for the letterboxed area.
+         */
+        private java.awt.Color backColor;
+
+        /**
+         * The attributes behind the image cells.
+         */
+        private CellAttributes background;
+
+        /**
+         * Public constructor.
+         *
+         * @param image the image whose current settings will be used
+         * @param textWidth the width in pixels for one text cell
+         * @param textHeight the height in pixels for one text cell
+         */
+        public FrameKey(final TImage image, final int textWidth,
+            final int textHeight) {
+
+            this.textWidth = textWidth;
+            this.textHeight = textHeight;
+            scale = image.scale;
+            if (scale != Scale.NONE) {
+                // Only the stretched and letterboxed images depend on the
+                // widget size.
+                width = image.getWidth();
+                height = image.getHeight();
+            }
+            scaleFactor = image.scaleFactor;
+            clockwise = image.clockwise;
+            antiAlias = image.antiAlias;
+            maybeTransparent = image.maybeTransparent;
+            backColor = image.scaleBackColor;
+            background = new CellAttributes(image.getWindow().getBackground());
+        }
+
+        /**
+         * Comparison check.  All fields must match to return true.
+         *
+         * @param rhs another FrameKey instance
+         * @return true if all fields are equal
+         */
+        @Override
+        public boolean equals(final Object rhs) {
+            if (!(rhs instanceof FrameKey)) {
+                return false;
+            }
+            FrameKey that = (FrameKey) rhs;
+            return ((textWidth == that.textWidth)
+                && (textHeight == that.textHeight)
+                && (width == that.width)
+                && (height == that.height)
+                && (scale == that.scale)
+                && (scaleFactor == that.scaleFactor)
+                && (clockwise == that.clockwise)
+                && (antiAlias == that.antiAlias)
+                && (maybeTransparent == that.maybeTransparent)
+                && backColor.equals(that.backColor)
+                && background.equals(that.background));
+        }
+
+        /**
+         * Hashcode uses all fields in equals().
+         *
+         * @return the hash
+         */
+        @Override
+        public int hashCode() {
+            int A = 13;
+            int B = 23;
+            int hash = A;
+            hash = (B * hash) + textWidth;
+            hash = (B * hash) + textHeight;
+            hash = (B * hash) + width;
+            hash = (B * hash) + height;
+            hash = (B * hash) + scale.hashCode();
+            hash = (B * hash) + Double.hashCode(scaleFactor);
+            hash = (B * hash) + clockwise;
+            hash = (B * hash) + (antiAlias ? 1 : 0);
+            hash = (B * hash) + (maybeTransparent ? 1 : 0);
+            hash = (B * hash) + backColor.hashCode();
+            hash = (B * hash) + background.hashCode();
+            return hash;
+        }
+    }
+
+    /**
+     * Layout describes where a source image lands once it is rotated and
+     * scaled: the size of the whole canvas, and the transform from source
+     * pixels to canvas pixels.
+     */
+    private static class Layout {
+
+        /**
+         * The width of the canvas in pixels.
+         */
+        private int canvasWidth;
+
+        /**
+         * The height of the canvas in pixels.
+         */
+        private int canvasHeight;
+
+        /**
+         * The number of text cell columns covered by the canvas.
+         */
+        private int columns;
+
+        /**
+         * The number of text cell rows covered by the canvas.
+         */
+        private int rows;
+
+        /**
+         * The transform from source pixels to canvas pixels.
+         */
+        private AffineTransform transform;
+
+    }
+
+    /**
+     * TileKey identifies one rendered text cell of an image.
+     */
+    private static class TileKey {
+
+        /**
+         * The animation frame number, or -1 for a still image.
+         */
+        private int sourceId;
+
+        /**
+         * The parameters used to render the tile.
+         */
+        private FrameKey key;
+
+        /**
+         * The tile column.
+         */
+        private int x;
+
+        /**
+         * The tile row.
+         */
+        private int y;
+
+        /**
+         * Public constructor.
+         *
+         * @param sourceId the animation frame number, or -1 for a still
+         * image
+         * @param key the parameters used to render the tile
+         * @param x the tile column
+         * @param y the tile row
+         */
+        public TileKey(final int sourceId, final FrameKey key, final int x,
+            final int y) {
+
+            this.sourceId = sourceId;
+            this.key = key;
+            this.x = x;
+            this.y = y;
+        }
+
+        /**
+         * Comparison check.  All fields must match to return true.
+         *
+         * @param rhs another TileKey instance
+         * @return true if all fields are equal
+         */
+        @Override
+        public boolean equals(final Object rhs) {
+            if (!(rhs instanceof TileKey)) {
+                return false;
+            }
+            TileKey that = (TileKey) rhs;
+            return ((sourceId == that.sourceId)
+                && (x == that.x)
+                && (y == that.y)
+                && key.equals(that.key));
+        }
+
+        /**
+         * Hashcode uses all fields in equals().
+         *
+         * @return the hash
+         */
+        @Override
+        public int hashCode() {
+            int A = 13;
+            int B = 23;
+            int hash = A;
+            hash = (B * hash) + sourceId;
+            hash = (B * hash) + x;
+            hash = (B * hash) + y;
+            hash = (B * hash) + key.hashCode();
+            return hash;
+        }
+    }
+
+    /**
+     * TileCache is a least-recently-used cache of rendered tiles.  It is
+     * shared with the preparer thread.
+     */
+    private static class TileCache {
+
+        /**
+         * The tiles.
+         */
+        private Map<TileKey, Cell> tiles;
+
+        /**
+         * The maximum number of tiles to keep.
+         */
+        private int budget = TILE_BUDGET;
+
+        /**
+         * If true, the preparer thread is working on tiles for this cache.
+         */
+        private boolean preparing = false;
+
+        /**
+         * Public constructor.
+         */
+        public TileCache() {
+            tiles = new LinkedHashMap<TileKey, Cell>(16, 0.75f, true) {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(
+                    final Map.Entry<TileKey, Cell> eldest) {
+
+                    return size() > budget;
+                }
+            };
+        }
+
+        /**
+         * Get a rendered tile.
+         *
+         * @param key the tile
+         * @return the tile, or null if it is not in the cache
+         */
+        public synchronized Cell get(final TileKey key) {
+            return tiles.get(key);
+        }
+
+        /**
+         * Save a rendered tile.
+         *
+         * @param key the tile
+         * @param cell the rendered tile
+         */
+        public synchronized void put(final TileKey key, final Cell cell) {
+            tiles.put(key, cell);
+        }
+
+        /**
+         * Set the maximum number of tiles to keep.
+         *
+         * @param budget the number of tiles
+         */
+        public synchronized void setBudget(final int budget) {
+            this.budget = budget;
+        }
+
+        /**
+         * Claim the preparer for this cache.
+         *
+         * @return true if the caller should submit a preparation job
+         */
+        public synchronized boolean startPreparing() {
+            if (preparing) {
+                return false;
+            }
+            preparing = true;
+            return true;
+        }
+
+        /**
+         * Release the preparer for this cache.
+         */
+        public synchronized void stopPreparing() {
+            preparing = false;
+        }
+    }
+
     /**
      * Anti-aliasing support.  It is normally off for performance.
      */
@@ -265,6 +649,7 @@ public class TImage extends TWidget implements EditMenuUser {
         animation.start(getApplication());
         this.animation = animation;
         this.originalImage = animation.getFrame();
+        this.frameNumber = animation.currentFrameNumber();
         this.left = left;
         this.top = top;
         this.clickAction = clickAction;
@@ -300,14 +685,14 @@ public class TImage extends TWidget implements EditMenuUser {
             if (keypress.getKey().getChar() == '+') {
                 // Make the image bigger.
                 scaleFactor *= 1.25;
-                image = null;
+                layout = null;
                 sizeToImage(true);
                 return;
             }
             if (keypress.getKey().getChar() == '-') {
                 // Make the image smaller.
                 scaleFactor *= 0.80;
-                image = null;
+                layout = null;
                 sizeToImage(true);
                 return;
             }
@@ -315,14 +700,14 @@ public class TImage extends TWidget implements EditMenuUser {
         if (keypress.equals(kbAltUp)) {
             // Make the image bigger.
             scaleFactor *= 1.25;
-            image = null;
+            layout = null;
             sizeToImage(true);
             return;
         }
         if (keypress.equals(kbAltDown)) {
             // Make the image smaller.
             scaleFactor *= 0.80;
-            image = null;
+            layout = null;
             sizeToImage(true);
             return;
         }
@@ -330,7 +715,7 @@ public class TImage extends TWidget implements EditMenuUser {
             // Rotate clockwise.
             clockwise++;
             clockwise %= 4;
-            image = null;
+            layout = null;
             sizeToImage(true);
             return;
         }
@@ -340,7 +725,7 @@ public class TImage extends TWidget implements EditMenuUser {
             if (clockwise < 0) {
                 clockwise = 3;
             }
-            image = null;
+            layout = null;
             sizeToImage(true);
             return;
         }
@@ -389,7 +774,7 @@ public class TImage extends TWidget implements EditMenuUser {
         if (scale == Scale.NONE) {
             return;
         }
-        image = null;
+        layout = null;
         resized = true;
     }
 
@@ -402,7 +787,7 @@ public class TImage extends TWidget implements EditMenuUser {
     public void onCommand(final TCommandEvent command) {
         if (command.equals(cmCopy)) {
             // Copy image to clipboard.
-            getClipboard().copyImage(image);
+            getClipboard().copyImage(getVisibleImage());
             return;
         }
     }
@@ -430,32 +815,25 @@ public class TImage extends TWidget implements EditMenuUser {
             BufferedImage newFrame = animation.getFrame();
             if (newFrame != originalImage) {
                 originalImage = newFrame;
-                image = null;
-                sizeToImage(true);
-            } else {
-                sizeToImage(false);
+                frameNumber = animation.currentFrameNumber();
+                layout = null;
             }
-        } else {
-            sizeToImage(false);
         }
+        sizeToImage(false);
 
-        // We have already broken the image up, just draw the previously
-        // created set of cells.
+        // Only the tiles in view are rendered, and they are kept for when
+        // they come back into view.
+        tiles.setBudget(Math.max(TILE_BUDGET,
+                (PREPARE_AHEAD + 2) * getWidth() * getHeight()));
         for (int x = 0; (x < getWidth()) && (x + left < cellColumns); x++) {
-            if ((left + x) * lastTextWidth > image.getWidth()) {
-                continue;
-            }
-
             for (int y = 0; (y < getHeight()) && (y + top < cellRows); y++) {
-                if ((top + y) * lastTextHeight > image.getHeight()) {
-                    continue;
-                }
-                assert (x + left < cellColumns);
-                assert (y + top < cellRows);
-
-                putCharXY(x, y, cells[x + left][y + top]);
+                putCharXY(x, y, getTile(x + left, y + top));
             }
         }
+
+        if (animation != null) {
+            prepareAhead();
+        }
     }
 
     // ------------------------------------------------------------------------
@@ -463,9 +841,9 @@ public class TImage extends TWidget implements EditMenuUser {
     // ------------------------------------------------------------------------
 
     /**
-     * Size cells[][] according to the screen font size.
+     * Lay out the image according to the screen font size.
      *
-     * @param always if true, always resize the cells
+     * @param always if true, always recompute the layout
      */
     private void sizeToImage(final boolean always) {
 
@@ -474,14 +852,9 @@ public class TImage extends TWidget implements EditMenuUser {
         int textWidth = getScreen().getTextWidth();
         int textHeight = getScreen().getTextHeight();
 
-        if (image == null) {
-            image = rotateImage(originalImage, clockwise);
-            image = scaleImage(image, scaleFactor, getWidth(), getHeight(),
-                textWidth, textHeight);
-        }
-
         if ((always == true) ||
             (resized == true) ||
+            (layout == null) ||
             ((textWidth > 0)
                 && (textWidth != lastTextWidth)
                 && (textHeight > 0)
@@ -489,56 +862,10 @@ public class TImage extends TWidget implements EditMenuUser {
         ) {
             resized = false;
 
-            cellColumns = image.getWidth() / textWidth;
-            if (cellColumns * textWidth < image.getWidth()) {
-                cellColumns++;
-            }
-            cellRows = image.getHeight() / textHeight;
-            if (cellRows * textHeight < image.getHeight()) {
-                cellRows++;
-            }
-
-            // Break the image up into an array of cells.
-            cells = new Cell[cellColumns][cellRows];
-
-            int imageId = System.identityHashCode(this);
-            imageId ^= (int) System.currentTimeMillis();
-            for (int x = 0; x < cellColumns; x++) {
-                for (int y = 0; y < cellRows; y++) {
-
-                    int width = textWidth;
-                    if ((x + 1) * textWidth > image.getWidth()) {
-                        width = image.getWidth() - (x * textWidth);
-                    }
-                    int height = textHeight;
-                    if ((y + 1) * textHeight > image.getHeight()) {
-                        height = image.getHeight() - (y * textHeight);
-                    }
-
-                    Cell cell = new Cell();
-                    cell.setTo(getWindow().getBackground());
-
-                    // Render over a full-cell-size image.
-                    BufferedImage newImage = ImageUtils.createImage(image,
-                        textWidth, textHeight);
-                    Graphics gr = newImage.getGraphics();
-                    BufferedImage subImage = image.getSubimage(x * textWidth,
-                        y * textHeight, width, height);
-                    gr.drawImage(subImage, 0, 0, null, null);
-                    gr.dispose();
-
-                    cell.setImage(newImage);
-                    if (!maybeTransparent) {
-                        cell.setOpaqueImage();
-                    } else if (!ImageUtils.isFullyTransparent(newImage)) {
-                        cell.flattenImage(false, getApplication().getBackend());
-                    }
-                    imageId++;
-                    cell.setImageId(imageId & 0x7FFFFFFF);
-                    cells[x][y] = cell;
-                }
-            }
-
+            frameKey = new FrameKey(this, textWidth, textHeight);
+            layout = getLayout(originalImage, frameKey);
+            cellColumns = layout.columns;
+            cellRows = layout.rows;
             lastTextWidth = textWidth;
             lastTextHeight = textHeight;
         }
@@ -557,6 +884,307 @@ public class TImage extends TWidget implements EditMenuUser {
         }
     }
 
+    /**
+     * Get a tile of the image in view, rendering it if it is not already
+     * cached.
+     *
+     * @param x the tile column
+     * @param y the tile row
+     * @return the tile
+     */
+    private Cell getTile(final int x, final int y) {
+        TileKey key = new TileKey(frameNumber, frameKey, x, y);
+        Cell cell = tiles.get(key);
+        if (cell == null) {
+            cell = renderTile(originalImage, layout, frameKey, x, y,
+                getApplication().getBackend());
+            tiles.put(key, cell);
+        }
+        return cell;
+    }
+
+    /**
+     * Figure out where a source image lands once it is rotated and scaled
+     * according to a set of parameters.  Nothing is drawn here.
+     *
+     * @param source the original image
+     * @param key the parameters to use
+     * @return the layout
+     */
+    private static Layout getLayout(final BufferedImage source,
+        final FrameKey key) {
+
+        int textWidth = key.textWidth;
+        int textHeight = key.textHeight;
+        int width = key.width;
+        int height = key.height;
+        double factor = key.scaleFactor;
+
+        // Rotate first.
+        int sourceWidth = source.getWidth();
+        int sourceHeight = source.getHeight();
+        AffineTransform rotation = null;
+        switch (key.clockwise % 4) {
+        case 1:
+            // 90 degrees clockwise
+            rotation = new AffineTransform(0, 1, -1, 0, sourceHeight, 0);
+            sourceWidth = source.getHeight();
+            sourceHeight = source.getWidth();
+            break;
+        case 2:
+            // 180 degrees clockwise
+            rotation = new AffineTransform(-1, 0, 0, -1, sourceWidth,
+                sourceHeight);
+            break;
+        case 3:
+            // 270 degrees clockwise
+            rotation = new AffineTransform(0, -1, 1, 0, 0, sourceWidth);
+            sourceWidth = source.getHeight();
+            sourceHeight = source.getWidth();
+            break;
+        default:
+            rotation = new AffineTransform();
+            break;
+        }
+
+        // Then scale, OR stretch.
+        int canvasWidth = sourceWidth;
+        int canvasHeight = sourceHeight;
+        int destWidth = sourceWidth;
+        int destHeight = sourceHeight;
+        int x = 0;
+        int y = 0;
+
+        switch (key.scale) {
+        case NONE:
+            if (Math.abs(factor - 1.0) < 0.03) {
+                // If we are within 3% of 1.0, just use the original size.
+                break;
+            }
+            destWidth = (int) (sourceWidth * factor);
+            destHeight = (int) (sourceHeight * factor);
+            canvasWidth = Math.max(1, destWidth);
+            canvasHeight = Math.max(1, destHeight);
+            break;
+        case STRETCH:
+            destWidth = Math.max(1, width) * textWidth;
+            destHeight = Math.max(1, height) * textHeight;
+            canvasWidth = destWidth;
+            canvasHeight = destHeight;
+            break;
+        case SCALE:
+            double a = (double) sourceWidth / sourceHeight;
+            double b = (double) (width * textWidth) / (height * textHeight);
+            assert (a > 0);
+            assert (b > 0);
+
+            if (a > b) {
+                // Horizontal letterbox
+                destWidth = Math.max(1, width) * textWidth;
+                destHeight = (int) (destWidth / a);
+                y = ((Math.max(1, height) * textHeight) - destHeight) / 2;
+                assert (y >= 0);
+            } else {
+                // Vertical letterbox
+                destHeight = Math.max(1, height) * textHeight;
+                destWidth = (int) (destHeight * a);
+                x = ((Math.max(1, width) * textWidth) - destWidth) / 2;
+                assert (x >= 0);
+            }
+            canvasWidth = Math.max(1, width) * textWidth;
+            canvasHeight = Math.max(1, height) * textHeight;
+            break;
+        }
+
+        Layout layout = new Layout();
+        layout.canvasWidth = canvasWidth;
+        layout.canvasHeight = canvasHeight;
+        layout.columns = canvasWidth / textWidth;
+        if (layout.columns * textWidth < canvasWidth) {
+            layout.columns++;
+        }
+        layout.rows = canvasHeight / textHeight;
+        if (layout.rows * textHeight < canvasHeight) {
+            layout.rows++;
+        }
+        layout.transform = AffineTransform.getTranslateInstance(x, y);
+        layout.transform.scale((double) destWidth / sourceWidth,
+            (double) destHeight / sourceHeight);
+        layout.transform.concatenate(rotation);
+        return layout;
+    }
+
+    /**
+     * Draw a rotated and scaled source image onto a canvas.
+     *
+     * @param canvas the image to draw on
+     * @param source the original image
+     * @param layout where the source lands on the whole canvas
+     * @param key the parameters to use
+     * @param x the canvas pixel to place at the left edge
+     * @param y the canvas pixel to place at the top edge
+     * @param width the number of pixels to draw across
+     * @param height the number of pixels to draw down
+     */
+    private static void drawSource(final BufferedImage canvas,
+        final BufferedImage source, final Layout layout, final FrameKey key,
+        final int x, final int y, final int width, final int height) {
+
+        Graphics2D gr = canvas.createGraphics();
+        if (key.antiAlias) {
+            gr.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                RenderingHints.VALUE_ANTIALIAS_ON);
+            gr.setRenderingHint(RenderingHints.KEY_RENDERING,
+                RenderingHints.VALUE_RENDER_QUALITY);
+        } else {
+            gr.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                RenderingHints.VALUE_ANTIALIAS_OFF);
+            gr.setRenderingHint(RenderingHints.KEY_RENDERING,
+                RenderingHints.VALUE_RENDER_SPEED);
+        }
+        gr.clipRect(0, 0, width, height);
+        if (key.scale == Scale.SCALE) {
+            gr.setColor(key.backColor);
+            gr.fillRect(0, 0, width, height);
+        }
+        AffineTransform transform = AffineTransform.getTranslateInstance(-x,
+            -y);
+        transform.concatenate(layout.transform);
+        gr.drawImage(source, transform, null);
+        gr.dispose();
+    }
+
+    /**
+     * Render one text cell of the rotated and scaled image.  This does not
+     * touch the widget's layout, so that animation frames can be prepared
+     * on another thread.
+     *
+     * @param source the original image
+     * @param layout where the source lands on the whole canvas
+     * @param key the parameters to use
+     * @param x the tile column
+     * @param y the tile row
+     * @param backend the backend to flatten transparent cells against
+     * @return the tile
+     */
+    private Cell renderTile(final BufferedImage source, final Layout layout,
+        final FrameKey key, final int x, final int y, final Backend backend) {
+
+        int textWidth = key.textWidth;
+        int textHeight = key.textHeight;
+
+        int width = Math.min(textWidth, layout.canvasWidth - (x * textWidth));
+        int height = Math.min(textHeight,
+            layout.canvasHeight - (y * textHeight));
+
+        Cell cell = new Cell();
+        cell.setTo(key.background);
+
+        // Render over a full-cell-size image.
+        BufferedImage newImage = ImageUtils.createImage(source, textWidth,
+            textHeight);
+        drawSource(newImage, source, layout, key, x * textWidth,
+            y * textHeight, width, height);
+
+        cell.setImage(newImage);
+        if (!key.maybeTransparent) {
+            cell.setOpaqueImage();
+        } else if (!ImageUtils.isFullyTransparent(newImage)) {
+            cell.flattenImage(false, backend);
+        }
+        cell.setImageId(nextImageId.getAndIncrement() & 0x7FFFFFFF);
+        return cell;
+    }
+
+    /**
+     * Render the visible tiles of the next few animation frames on the
+     * preparer thread, so that they are ready to draw when the animation
+     * gets to them.
+     */
+    private void prepareAhead() {
+        if ((animation == null)
+            || !animation.isRunning()
+            || (animation.count() < 2)
+            || (frameKey == null)
+        ) {
+            return;
+        }
+
+        final Animation source = animation;
+        final TileCache cache = tiles;
+        final FrameKey key = frameKey;
+        final Backend backend = getApplication().getBackend();
+        final int count = source.count();
+        final int first = source.nextFrameNumber();
+        final int left = this.left;
+        final int top = this.top;
+        final int right = Math.min(cellColumns, left + getWidth());
+        final int bottom = Math.min(cellRows, top + getHeight());
+
+        boolean needed = false;
+        for (int i = 0; (i < PREPARE_AHEAD) && (i < count - 1); i++) {
+            if (cache.get(new TileKey((first + i) % count, key, left,
+                        top)) == null
+            ) {
+                needed = true;
+                break;
+            }
+        }
+        if (!needed || !cache.startPreparing()) {
+            return;
+        }
+
+        getPreparer().execute(new Runnable() {
+            public void run() {
+                try {
+                    for (int i = 0; (i < PREPARE_AHEAD) && (i < count - 1);
+                         i++) {
+
+                        int n = (first + i) % count;
+                        BufferedImage frame = null;
+                        Layout frameLayout = null;
+                        for (int x = left; x < right; x++) {
+                            for (int y = top; y < bottom; y++) {
+                                TileKey tileKey = new TileKey(n, key, x, y);
+                                if (cache.get(tileKey) != null) {
+                                    continue;
+                                }
+                                if (frame == null) {
+                                    frame = source.peekFrame(n);
+                                    frameLayout = getLayout(frame, key);
+                                }
+                                cache.put(tileKey, renderTile(frame,
+                                        frameLayout, key, x, y, backend));
+                            }
+                        }
+                    }
+                } finally {
+                    cache.stopPreparing();
+                }
+            }
+        });
+    }
+
+    /**
+     * Get the preparer thread shared by all images, creating it if needed.
+     *
+     * @return the preparer
+     */
+    private static synchronized ThreadPoolExecutor getPreparer() {
+        if (preparer == null) {
+            preparer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    public Thread newThread(final Runnable r) {
+                        Thread thread = new Thread(r, "TImage preparer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+        return preparer;
+    }
+
     /**
      * Get anti-aliasing value.
      *
@@ -669,14 +1297,16 @@ public class TImage extends TWidget implements EditMenuUser {
     public void setImage(final BufferedImage image,
         final boolean maybeTransparent) {
 
-        this.originalImage = image;
-        this.maybeTransparent = maybeTransparent;
-        this.image = null;
-        sizeToImage(true);
         if (animation != null) {
             animation.stop();
             animation = null;
         }
+        this.originalImage = image;
+        this.maybeTransparent = maybeTransparent;
+        layout = null;
+        frameNumber = -1;
+        tiles = new TileCache();
+        sizeToImage(true);
     }
 
     /**
@@ -692,7 +1322,9 @@ public class TImage extends TWidget implements EditMenuUser {
         }
         this.animation = animation;
         originalImage = animation.getFrame();
-        image = null;
+        frameNumber = animation.currentFrameNumber();
+        tiles = new TileCache();
+        layout = null;
         sizeToImage(true);
     }
 
@@ -702,6 +1334,13 @@ public class TImage extends TWidget implements EditMenuUser {
      * @return the image that is currently on screen
      */
     public BufferedImage getVisibleImage() {
+        if (layout == null) {
+            sizeToImage(true);
+        }
+        BufferedImage image = ImageUtils.createImage(originalImage,
+            layout.canvasWidth, layout.canvasHeight);
+        drawSource(image, originalImage, layout, frameKey, 0, 0,
+            layout.canvasWidth, layout.canvasHeight);
         return image;
     }
 
@@ -721,7 +1360,7 @@ public class TImage extends TWidget implements EditMenuUser {
      */
     public void setScaleType(final Scale scale) {
         this.scale = scale;
-        this.image = null;
+        layout = null;
         sizeToImage(true);
     }
 
@@ -741,7 +1380,7 @@ public class TImage extends TWidget implements EditMenuUser {
      */
     public void setScaleFactor(final double scaleFactor) {
         this.scaleFactor = scaleFactor;
-        image = null;
+        layout = null;
         sizeToImage(true);
     }
 
@@ -763,7 +1402,7 @@ public class TImage extends TWidget implements EditMenuUser {
         default:
             // Don't know how this happened, but fix it.
             clockwise = 0;
-            image = null;
+            layout = null;
             sizeToImage(true);
             return 0;
         }
@@ -794,163 +1433,10 @@ public class TImage extends TWidget implements EditMenuUser {
             break;
         }
 
-        image = null;
+        layout = null;
         sizeToImage(true);
     }
 
-    /**
-     * Scale an image to be scaleFactor size, OR stretch it.
-     *
-     * @param image the image to scale
-     * @param factor the scale to make the new image
-     * @param width the number of text cell columns for the destination image
-     * @param height the number of text cell rows for the destination image
-     * @param textWidth the width in pixels for one text cell
-     * @param textHeight the height in pixels for one text cell
-     */
-    private BufferedImage scaleImage(final BufferedImage image,
-        final double factor, final int width, final int height,
-        final int textWidth, final int textHeight) {
-
-        if ((scale == Scale.NONE) && (Math.abs(factor - 1.0) < 0.03)) {
-            // If we are within 3% of 1.0, just return the original image.
-            return image;
-        }
-
-        int destWidth = 0;
-        int destHeight = 0;
-        int x = 0;
-        int y = 0;
-
-        BufferedImage newImage = null;
-
-        switch (scale) {
-        case NONE:
-            destWidth = (int) (image.getWidth() * factor);
-            destHeight = (int) (image.getHeight() * factor);
-            newImage = ImageUtils.createImage(image,
-                Math.max(1, destWidth), Math.max(1, destHeight));
-            break;
-        case STRETCH:
-            destWidth = Math.max(1, width) * textWidth;
-            destHeight = Math.max(1, height) * textHeight;
-            newImage = ImageUtils.createImage(image, destWidth, destHeight);
-            break;
-        case SCALE:
-            double a = (double) image.getWidth() / image.getHeight();
-            double b = (double) (width * textWidth) / (height * textHeight);
-            assert (a > 0);
-            assert (b > 0);
-
-            /*
-            System.err.println("Scale: original " + image.getWidth() +
-                "x" + image.getHeight());
-            System.err.println("         screen " + (width * textWidth) +
-                "x" + (height * textHeight));
-            System.err.println("A " + a + " B " + b);
-             */
-
-            if (a > b) {
-                // Horizontal letterbox
-                destWidth = Math.max(1, width) * textWidth;
-                destHeight = (int) (destWidth / a);
-                y = ((Math.max(1, height) * textHeight) - destHeight) / 2;
-                assert (y >= 0);
-                /*
-                System.err.println("Horizontal letterbox: " + destWidth +
-                    "x" + destHeight + ", Y offset " + y);
-                 */
-            } else {
-                // Vertical letterbox
-                destHeight = Math.max(1, height) * textHeight;
-                destWidth = (int) (destHeight * a);
-                x = ((Math.max(1, width) * textWidth) - destWidth) / 2;
-                assert (x >= 0);
-                /*
-                System.err.println("Vertical letterbox: " + destWidth +
-                    "x" + destHeight + ", X offset " + x);
-                 */
-            }
-            newImage = ImageUtils.createImage(image,
-                Math.max(1, width) * textWidth,
-                Math.max(1, height) * textHeight);
-            break;
-        }
-
-        Graphics gr = newImage.createGraphics();
-        if (gr instanceof Graphics2D) {
-            if (antiAlias) {
-                ((Graphics2D) gr).setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-                    RenderingHints.VALUE_ANTIALIAS_ON);
-                ((Graphics2D) gr).setRenderingHint(RenderingHints.KEY_RENDERING,
-                    RenderingHints.VALUE_RENDER_QUALITY);
-            } else {
-                ((Graphics2D) gr).setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-                    RenderingHints.VALUE_ANTIALIAS_OFF);
-                ((Graphics2D) gr).setRenderingHint(RenderingHints.KEY_RENDERING,
-                    RenderingHints.VALUE_RENDER_SPEED);
-            }
-        }
-        if (scale == Scale.SCALE) {
-            gr.setColor(scaleBackColor);
-            gr.fillRect(0, 0, width * textWidth, height * textHeight);
-        }
-        gr.drawImage(image, x, y, destWidth, destHeight, null);
-        gr.dispose();
-        return newImage;
-    }
-
-    /**
-     * Rotate an image either clockwise or counterclockwise.
-     *
-     * @param image the image to scale
-     * @param clockwise number of turns clockwise
-     */
-    private BufferedImage rotateImage(final BufferedImage image,
-        final int clockwise) {
-
-        if (clockwise % 4 == 0) {
-            return image;
-        }
-
-        BufferedImage newImage = null;
-
-        if (clockwise % 4 == 1) {
-            // 90 degrees clockwise
-            newImage = ImageUtils.createImage(image,
-                image.getHeight(), image.getWidth());
-            for (int x = 0; x < image.getWidth(); x++) {
-                for (int y = 0; y < image.getHeight(); y++) {
-                    newImage.setRGB(y, x,
-                        image.getRGB(x, image.getHeight() - 1 - y));
-                }
-            }
-        } else if (clockwise % 4 == 2) {
-            // 180 degrees clockwise
-            newImage = ImageUtils.createImage(image,
-                image.getWidth(), image.getHeight());
-            for (int x = 0; x < image.getWidth(); x++) {
-                for (int y = 0; y < image.getHeight(); y++) {
-                    newImage.setRGB(x, y,
-                        image.getRGB(image.getWidth() - 1 - x,
-                            image.getHeight() - 1 - y));
-                }
-            }
-        } else if (clockwise % 4 == 3) {
-            // 270 degrees clockwise
-            newImage = ImageUtils.createImage(image,
-                image.getHeight(), image.getWidth());
-            for (int x = 0; x < image.getWidth(); x++) {
-                for (int y = 0; y < image.getHeight(); y++) {
-                    newImage.setRGB(y, x,
-                        image.getRGB(image.getWidth() - 1 - x, y));
-                }
-            }
-        }
-
-        return newImage;
-    }
-
     // ------------------------------------------------------------------------
     // EditMenuUser -----------------------------------------------------------
     // ------------------------------------------------------------------------
@@ -30,6 +30,8 @@ package jexer;
 
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.Writer;
@@ -38,6 +40,7 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.ResourceBundle;
@@ -55,6 +58,10 @@ import jexer.menu.TMenu;
 import jexer.tterminal.DisplayLine;
 import jexer.tterminal.DisplayListener;
 import jexer.tterminal.ECMA48;
+import jexer.tterminal.PtyProcess;
+import jexer.tterminal.ScrollbackIndex;
+import jexer.tterminal.ScrollbackSearch;
+import jexer.tterminal.SessionRecorder;
 import static jexer.TCommand.*;
 import static jexer.TKeypress.*;
 
@@ -69,6 +76,21 @@ public class TTerminalWidget extends TScrollableWidget
      */
     private static final ResourceBundle i18n = ResourceBundle.getBundle(TTerminalWidget.class.getName());
 
+    // ------------------------------------------------------------------------
+    // Constants --------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * How long a search may run on the UI thread at a time, in
+     * milliseconds.
+     */
+    private static final long SEARCH_MILLIS = 5;
+
+    /**
+     * How often a search still running is continued, in milliseconds.
+     */
+    private static final long SEARCH_INTERVAL = 20;
+
     // ------------------------------------------------------------------------
     // Variables --------------------------------------------------------------
     // ------------------------------------------------------------------------
@@ -90,8 +112,21 @@ public class TTerminalWidget extends TScrollableWidget
 
     /**
      * If true, something called 'ptypipe' is on the PATH and executable.
+     * Null until the PATH has been checked.
      */
-    private static boolean ptypipeOnPath = false;
+    private static Boolean ptypipeOnPath = null;
+
+    /**
+     * If true, new terminals do not start their shell until they are first
+     * focused.
+     */
+    private static volatile boolean spawnOnFocus = false;
+
+    /**
+     * The command line to spawn when this terminal is first focused, or null
+     * if the shell was spawned already.
+     */
+    private String [] pendingCommand = null;
 
     /**
      * If true, we are using the ptypipe utility to support dynamic window
@@ -100,6 +135,12 @@ public class TTerminalWidget extends TScrollableWidget
      */
     private boolean ptypipe = false;
 
+    /**
+     * If true, the shell runs on a pty opened by PtyProcess, and window
+     * resizes are passed on with TIOCSWINSZ.
+     */
+    private boolean pty = false;
+
     /**
      * Double-height font.
      */
@@ -137,6 +178,37 @@ public class TTerminalWidget extends TScrollableWidget
      */
     private List<List<DisplayLine>> dirtyQueue = new ArrayList<List<DisplayLine>>();
 
+    /**
+     * The absolute line number of the top row of the last visible display
+     * read from the emulator.
+     */
+    private volatile long visibleTopLine = 0;
+
+    /**
+     * The results of the last search, or null if there was no search.
+     */
+    private List<ScrollbackIndex.Match> searchMatches = null;
+
+    /**
+     * The search result currently shown.
+     */
+    private int searchMatchIndex = -1;
+
+    /**
+     * The search still running through older lines, or null.
+     */
+    private ScrollbackSearch search = null;
+
+    /**
+     * The timer that continues the search.
+     */
+    private TTimer searchTimer = null;
+
+    /**
+     * The action to call when the search is done.
+     */
+    private TAction searchDoneAction = null;
+
     /**
      * If true, hide the mouse after typing a keystroke.
      */
@@ -167,13 +239,6 @@ public class TTerminalWidget extends TScrollableWidget
     // Constructors -----------------------------------------------------------
     // ------------------------------------------------------------------------
 
-    /**
-     * Static constructor.
-     */
-    static {
-        checkForPtypipe();
-    }
-
     /**
      * Public constructor spawns a custom command line.
      *
@@ -244,7 +309,11 @@ public class TTerminalWidget extends TScrollableWidget
         String [] fullCommand;
 
         // Spawn a shell and pass its I/O to the other constructor.
-        if ((System.getProperty("jexer.TTerminal.ptypipe") != null)
+        if (PtyProcess.isAvailable()) {
+            // The command runs directly on its own pty.
+            pty = true;
+            fullCommand = command;
+        } else if ((System.getProperty("jexer.TTerminal.ptypipe") != null)
             && (System.getProperty("jexer.TTerminal.ptypipe").
                 equals("true"))
         ) {
@@ -254,7 +323,7 @@ public class TTerminalWidget extends TScrollableWidget
             System.arraycopy(command, 0, fullCommand, 1, command.length);
         } else if (System.getProperty("jexer.TTerminal.ptypipe",
                 "auto").equals("auto")
-            && (ptypipeOnPath == true)
+            && isPtypipeOnPath()
         ) {
             ptypipe = true;
             fullCommand = new String[command.length + 1];
@@ -366,8 +435,15 @@ public class TTerminalWidget extends TScrollableWidget
         // ptypipe is another solution that permits dynamic window resizing.
         String cmdShellPtypipe = "ptypipe /bin/bash --login";
 
+        // Best of all is libjexerpty: the shell gets a pty of its own with
+        // no helper process in between.
+        String cmdShellPty = "/bin/bash --login";
+
         // Spawn a shell and pass its I/O to the other constructor.
-        if ((System.getProperty("jexer.TTerminal.ptypipe") != null)
+        if (PtyProcess.isAvailable()) {
+            pty = true;
+            spawnShell(cmdShellPty.split("\\s+"));
+        } else if ((System.getProperty("jexer.TTerminal.ptypipe") != null)
             && (System.getProperty("jexer.TTerminal.ptypipe").
                 equals("true"))
         ) {
@@ -375,7 +451,7 @@ public class TTerminalWidget extends TScrollableWidget
             spawnShell(cmdShellPtypipe.split("\\s+"));
         } else if (System.getProperty("jexer.TTerminal.ptypipe",
                 "auto").equals("auto")
-            && (ptypipeOnPath == true)
+            && isPtypipeOnPath()
         ) {
             ptypipe = true;
             spawnShell(cmdShellPtypipe.split("\\s+"));
@@ -427,6 +503,14 @@ public class TTerminalWidget extends TScrollableWidget
                 // Get out of scrollback
                 setVerticalValue(0);
 
+                // Search results are by line number, which a new width
+                // changes.
+                if (searchMatches != null) {
+                    stopSearch();
+                    searchMatches = null;
+                    searchMatchIndex = -1;
+                }
+
                 if (ptypipe) {
                     emulator.setWidth(getWidth());
                     emulator.setHeight(getHeight());
@@ -434,6 +518,24 @@ public class TTerminalWidget extends TScrollableWidget
                     emulator.writeRemote("\033[8;" + getHeight() + ";" +
                         getWidth() + "t");
                 }
+                if (pty) {
+                    emulator.setWidth(getWidth());
+                    emulator.setHeight(getHeight());
+
+                    // The kernel sends SIGWINCH to the shell.
+                    if (shell instanceof PtyProcess) {
+                        int pixelWidth = 0;
+                        int pixelHeight = 0;
+                        if (getScreen() != null) {
+                            pixelWidth = getWidth() *
+                                getScreen().getTextWidth();
+                            pixelHeight = getHeight() *
+                                getScreen().getTextHeight();
+                        }
+                        ((PtyProcess) shell).setWindowSize(getWidth(),
+                            getHeight(), pixelWidth, pixelHeight);
+                    }
+                }
 
                 // Pass the correct text cell width/height to the emulator
                 if (getScreen() != null) {
@@ -453,6 +555,8 @@ public class TTerminalWidget extends TScrollableWidget
      */
     @Override
     public void onKeypress(final TKeypressEvent keypress) {
+        spawnPendingShell();
+
         if (hideMouseWhenTyping) {
             typingHidMouse = true;
         }
@@ -622,6 +726,16 @@ public class TTerminalWidget extends TScrollableWidget
         }
     }
 
+    /**
+     * Method that subclasses can override to do processing when the UI is
+     * idle.  The terminal uses it to notice when it goes off screen.
+     */
+    @Override
+    public void onIdle() {
+        updateDisplayHidden();
+        super.onIdle();
+    }
+
     // ------------------------------------------------------------------------
     // TScrollableWidget ------------------------------------------------------
     // ------------------------------------------------------------------------
@@ -634,6 +748,9 @@ public class TTerminalWidget extends TScrollableWidget
         if (emulator == null) {
             return;
         }
+        if (isAbsoluteActive()) {
+            spawnPendingShell();
+        }
 
         int width = getDisplayWidth();
 
@@ -642,6 +759,10 @@ public class TTerminalWidget extends TScrollableWidget
             width = readEmulatorDisplay();
         }
 
+        // Coming back on screen queues a fresh display if the emulator
+        // skipped any while hidden.
+        updateDisplayHidden();
+
         // If the emulator notified of an update, sync.
         synchronized (dirtyQueue) {
             if (dirtyQueue.size() > 0) {
@@ -651,6 +772,8 @@ public class TTerminalWidget extends TScrollableWidget
             }
         }
 
+        List<ScrollbackIndex.Match> visibleMatches = getVisibleSearchMatches();
+
         // Draw the emulator screen.
         int row = 0;
         for (DisplayLine line: display) {
@@ -671,6 +794,11 @@ public class TTerminalWidget extends TScrollableWidget
 
                 Cell newCell = new Cell(ch);
                 boolean reverse = line.isReverseColor() ^ ch.isReverse();
+                if ((visibleMatches != null)
+                    && isSearchHighlight(visibleMatches, row, i)
+                ) {
+                    reverse = !reverse;
+                }
                 newCell.setReverse(false);
                 if (reverse) {
                     if (ch.getForeColorRGB() < 0) {
@@ -760,11 +888,17 @@ public class TTerminalWidget extends TScrollableWidget
      */
     @Override
     public void close() {
+        pendingCommand = null;
+        stopSearch();
         if (emulator != null) {
             emulator.close();
+            emulator.clearScrollback();
         }
         if (shell != null) {
-            terminateShellChildProcess();
+            if (!(shell instanceof PtyProcess)) {
+                // PtyProcess.destroy() hangs up the whole process group.
+                terminateShellChildProcess();
+            }
             shell.destroy();
             shell = null;
         }
@@ -813,40 +947,96 @@ public class TTerminalWidget extends TScrollableWidget
     }
 
     /**
-     * Check for 'ptypipe' on the path.  If available, set ptypipeOnPath.
+     * Tell the emulator whether anyone can see this terminal.  Hidden
+     * terminals keep consuming output, but stop building display snapshots
+     * and repainting until they are visible again.
+     */
+    private void updateDisplayHidden() {
+        if (emulator != null) {
+            emulator.setDisplayHidden(!isOnScreen());
+        }
+    }
+
+    /**
+     * See if this terminal can be seen: its window is shown and is either a
+     * regular window or the current desktop, and no single opaque window
+     * above it covers the whole terminal.
+     *
+     * @return true if at least part of the terminal may be on screen
+     */
+    private boolean isOnScreen() {
+        TWindow window = getWindow();
+        TApplication app = getApplication();
+        if ((window == null) || (app == null)) {
+            return true;
+        }
+        if (window.isHidden() || !isVisible()) {
+            return false;
+        }
+        boolean onDesktop = (window instanceof TDesktop);
+        if (onDesktop && (app.getDesktop() != window)) {
+            return false;
+        }
+
+        int left = getAbsoluteX();
+        int top = getAbsoluteY();
+        int right = left + getWidth();
+        int bottom = top + getHeight();
+        for (TWindow w: app.getAllWindows()) {
+            if ((w == window)
+                || w.isHidden()
+                || (w.getAlpha() < 255)
+                || (!onDesktop && (w.getZ() > window.getZ()))
+            ) {
+                continue;
+            }
+            if ((w.getX() <= left)
+                && (w.getY() <= top)
+                && (w.getX() + w.getWidth() >= right)
+                && (w.getY() + w.getHeight() >= bottom)
+            ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * See if 'ptypipe' is on the PATH.  The PATH is only checked the first
+     * time a terminal asks.
+     *
+     * @return true if ptypipe is on the PATH and executable
      */
-    private static void checkForPtypipe() {
+    private static synchronized boolean isPtypipeOnPath() {
+        if (ptypipeOnPath == null) {
+            ptypipeOnPath = checkForPtypipe();
+        }
+        return ptypipeOnPath;
+    }
+
+    /**
+     * Check for 'ptypipe' on the path.
+     *
+     * @return true if ptypipe is on the PATH and executable
+     */
+    private static boolean checkForPtypipe() {
         String systemPath = System.getenv("PATH");
         if (systemPath == null) {
-            return;
+            return false;
         }
 
         String [] paths = systemPath.split(File.pathSeparator);
-        if (paths == null) {
-            return;
-        }
-        if (paths.length == 0) {
-            return;
-        }
         for (int i = 0; i < paths.length; i++) {
-            File path = new File(paths[i]);
-            if (path.exists() && path.isDirectory()) {
-                File [] files = path.listFiles();
-                if (files == null) {
-                    continue;
-                }
-                if (files.length == 0) {
-                    continue;
-                }
-                for (int j = 0; j < files.length; j++) {
-                    File file = files[j];
-                    if (file.canExecute() && file.getName().equals("ptypipe")) {
-                        ptypipeOnPath = true;
-                        return;
-                    }
-                }
+            if (paths[i].length() == 0) {
+                continue;
+            }
+            // Look up the one name rather than listing the directory.
+            File file = new File(paths[i], "ptypipe");
+            if (file.isFile() && file.canExecute()) {
+                return true;
             }
         }
+        return false;
     }
 
     /**
@@ -867,6 +1057,32 @@ public class TTerminalWidget extends TScrollableWidget
         return commandLine;
     }
 
+    /**
+     * Get the amount of output the shell has written so far.  This is cheap
+     * and safe to poll from any thread, even while the terminal is hidden.
+     *
+     * @return the number of bytes (or characters) received
+     */
+    public long getOutputCount() {
+        if (emulator == null) {
+            return 0;
+        }
+        return emulator.getOutputCount();
+    }
+
+    /**
+     * Get the number of bells the shell has rung so far.  This is cheap and
+     * safe to poll from any thread, even while the terminal is hidden.
+     *
+     * @return the number of BEL characters received
+     */
+    public int getBellCount() {
+        if (emulator == null) {
+            return 0;
+        }
+        return emulator.getBellCount();
+    }
+
     /**
      * Returns true if this widget does not want the application-wide mouse
      * cursor drawn over it.
@@ -953,20 +1169,17 @@ public class TTerminalWidget extends TScrollableWidget
 
         title = i18n.getString("windowTitle");
 
-        // Assume XTERM
-        ECMA48.DeviceType deviceType = ECMA48.DeviceType.XTERM;
-
         try {
-            ProcessBuilder pb = new ProcessBuilder(command);
-            Map<String, String> env = pb.environment();
-            env.put("TERM", ECMA48.deviceTypeTerm(deviceType));
-            env.put("LANG", ECMA48.deviceTypeLang(deviceType, "en_US"));
-            env.put("COLUMNS", "80");
-            env.put("LINES", "24");
-            pb.redirectErrorStream(true);
-            shell = pb.start();
-            emulator = new ECMA48(deviceType, shell.getInputStream(),
-                shell.getOutputStream(), this, getApplication().getBackend());
+            if (spawnOnFocus) {
+                // Stand in a detached emulator, which has no reader
+                // thread, so that a saved screen can be shown until the
+                // shell is spawned.
+                pendingCommand = command;
+                emulator = new ECMA48(ECMA48.DeviceType.XTERM, null, null,
+                    this, getApplication().getBackend());
+            } else {
+                startShell(command, null);
+            }
         } catch (IOException e) {
             messageBox(i18n.getString("errorLaunchingShellTitle"),
                 MessageFormat.format(i18n.getString("errorLaunchingShellText"),
@@ -996,6 +1209,128 @@ public class TTerminalWidget extends TScrollableWidget
 
     }
 
+    /**
+     * Start the shell process and its emulator.
+     *
+     * @param command the command line to execute
+     * @param initialState the emulator to copy the screen from, or null to
+     * start with a blank screen
+     * @throws IOException if the process could not be started
+     */
+    private void startShell(final String [] command,
+        final ECMA48 initialState) throws IOException {
+
+        // Assume XTERM
+        ECMA48.DeviceType deviceType = ECMA48.DeviceType.XTERM;
+
+        if (pty) {
+            Map<String, String> env = new HashMap<String, String>(
+                System.getenv());
+            env.put("TERM", ECMA48.deviceTypeTerm(deviceType));
+            env.put("LANG", ECMA48.deviceTypeLang(deviceType, "en_US"));
+            env.put("COLUMNS", Integer.toString(getDisplayWidth()));
+            env.put("LINES", Integer.toString(getDisplayHeight()));
+            shell = PtyProcess.start(command, env, getDisplayWidth(),
+                getDisplayHeight());
+            emulator = new ECMA48(deviceType, shell.getInputStream(),
+                shell.getOutputStream(), this, getApplication().getBackend(),
+                initialState);
+            return;
+        }
+
+        ProcessBuilder pb = new ProcessBuilder(command);
+        Map<String, String> env = pb.environment();
+        env.put("TERM", ECMA48.deviceTypeTerm(deviceType));
+        env.put("LANG", ECMA48.deviceTypeLang(deviceType, "en_US"));
+        env.put("COLUMNS", "80");
+        env.put("LINES", "24");
+        pb.redirectErrorStream(true);
+        shell = pb.start();
+        emulator = new ECMA48(deviceType, shell.getInputStream(),
+            shell.getOutputStream(), this, getApplication().getBackend(),
+            initialState);
+    }
+
+    /**
+     * Spawn the shell of a terminal created while spawnOnFocus was set.  The
+     * new emulator picks up the screen the stand-in emulator was showing.
+     * This does nothing if the shell was spawned already.
+     */
+    private void spawnPendingShell() {
+        if (pendingCommand == null) {
+            return;
+        }
+        String [] command = pendingCommand;
+        pendingCommand = null;
+
+        ECMA48 placeholder = emulator;
+        try {
+            startShell(command, placeholder);
+            emulator.setScrollbackMax(placeholder.getScrollbackMax());
+        } catch (IOException e) {
+            messageBox(i18n.getString("errorLaunchingShellTitle"),
+                MessageFormat.format(i18n.getString("errorLaunchingShellText"),
+                    e.getMessage()));
+        }
+        placeholder.close();
+
+        onResize(new TResizeEvent(null, TResizeEvent.Type.WIDGET, getWidth(),
+                getHeight()));
+    }
+
+    /**
+     * Set whether terminals created from now on spawn their shell right
+     * away, or wait until they are first focused or typed into.  Until then
+     * such a terminal can show a restored screen via readScreenState().
+     *
+     * @param spawnOnFocus if true, defer spawning the shell
+     */
+    public static void setSpawnOnFocus(final boolean spawnOnFocus) {
+        TTerminalWidget.spawnOnFocus = spawnOnFocus;
+    }
+
+    /**
+     * See if this terminal is still waiting to spawn its shell.
+     *
+     * @return true if the shell will be spawned when the terminal is
+     * focused
+     */
+    public boolean isSpawnPending() {
+        return (pendingCommand != null);
+    }
+
+    /**
+     * Write the emulator's screen, scrollback, cursor, and modes.
+     *
+     * @param out the stream to write to
+     * @throws IOException if a java.io operation throws
+     */
+    public void writeScreenState(final DataOutputStream out)
+        throws IOException {
+
+        if (emulator == null) {
+            throw new IOException("Terminal has no emulator");
+        }
+        emulator.writeScreenState(out, true);
+    }
+
+    /**
+     * Restore a screen written by writeScreenState().  This is meant for
+     * terminals still waiting to spawn their shell; a running shell would
+     * draw over the restored screen.
+     *
+     * @param in the stream to read from
+     * @throws IOException if a java.io operation throws, or the data is not
+     * a screen state
+     */
+    public void readScreenState(final DataInputStream in) throws IOException {
+        if (emulator == null) {
+            throw new IOException("Terminal has no emulator");
+        }
+        emulator.readScreenState(in);
+        reflowData();
+    }
+
     /**
      * Terminate the child of the 'script' process used on POSIX.  This may
      * or may not work.
@@ -1160,8 +1495,9 @@ public class TTerminalWidget extends TScrollableWidget
                 setCursorVisible(false);
             }
             if (emulator.getScreenTitle().length() > 0) {
-                // Only update the title if the shell is still alive
-                if (shell != null) {
+                // Only update the title if the shell is still alive, or is
+                // yet to be spawned.
+                if ((shell != null) || (pendingCommand != null)) {
                     title = emulator.getScreenTitle();
                 }
             }
@@ -1373,13 +1709,11 @@ public class TTerminalWidget extends TScrollableWidget
                     new TAction() {
                         public void DO() {
                             blinkState = !blinkState;
-                            TApplication app = getApplication();
-                            if (app != null) {
-                                app.doRepaint();
-                            }
+                            invalidateWindow();
                         }
                     }
                 );
+                blinkTimer.setRepaint(false);
             }
         }
     }
@@ -1419,6 +1753,10 @@ public class TTerminalWidget extends TScrollableWidget
             if (emulator.isReading()) {
                 currentDisplay = emulator.getVisibleDisplay(getHeight(),
                     -getVerticalValue());
+                visibleTopLine = emulator.getScrollbackFirstLine()
+                    + emulator.getScrollbackBuffer().size()
+                    + emulator.getDisplayBuffer().size()
+                    + getVerticalValue() - getHeight();
                 assert (currentDisplay.size() == getHeight());
             }
             width = emulator.getWidth();
@@ -1432,6 +1770,323 @@ public class TTerminalWidget extends TScrollableWidget
         return width;
     }
 
+    /**
+     * Start recording everything the shell writes to a session log, which
+     * can be replayed by SessionPlayer.  Any previous recording is closed.
+     *
+     * @param filename the log file
+     * @throws IOException if a java.io operation throws
+     */
+    public void startRecording(final String filename) throws IOException {
+        if (emulator == null) {
+            return;
+        }
+        emulator.setSessionRecorder(new SessionRecorder(filename,
+                emulator.getWidth(), emulator.getHeight()));
+    }
+
+    /**
+     * Stop recording the session, and close the session log.
+     */
+    public void stopRecording() {
+        if (emulator != null) {
+            emulator.setSessionRecorder(null);
+        }
+    }
+
+    /**
+     * See if the session is being recorded.
+     *
+     * @return true if a session log is open
+     */
+    public boolean isRecording() {
+        if (emulator == null) {
+            return false;
+        }
+        SessionRecorder recorder = emulator.getSessionRecorder();
+        return ((recorder != null) && !recorder.isClosed());
+    }
+
+    /**
+     * Search the scrollback buffer and display for text.  All matches are
+     * highlighted, and the view jumps to the newest match.  See
+     * find(String, boolean, boolean, TAction).
+     *
+     * @param text the text to search for
+     * @param regularExpression if true, text is a regular expression
+     * @param caseSensitive if true, perform a case-sensitive search
+     * @return the number of matches found so far
+     * @throws java.util.regex.PatternSyntaxException if text is not a valid
+     * regular expression
+     */
+    public int find(final String text, final boolean regularExpression,
+        final boolean caseSensitive) {
+
+        return find(text, regularExpression, caseSensitive, null);
+    }
+
+    /**
+     * Search the scrollback buffer and display for text, without blocking
+     * the UI for long.  The display and the newest lines are searched
+     * right away; older lines are searched a little at a time afterwards,
+     * and their matches highlighted as they are found.  The view jumps to
+     * the newest match.
+     *
+     * @param text the text to search for
+     * @param regularExpression if true, text is a regular expression
+     * @param caseSensitive if true, perform a case-sensitive search
+     * @param doneAction action to call when every line has been searched,
+     * or null.  See getSearchMatchCount().
+     * @return the number of matches found so far
+     * @throws java.util.regex.PatternSyntaxException if text is not a valid
+     * regular expression
+     */
+    public int find(final String text, final boolean regularExpression,
+        final boolean caseSensitive, final TAction doneAction) {
+
+        stopSearch();
+        if ((emulator == null) || (text.length() == 0)) {
+            clearSearch();
+            if (doneAction != null) {
+                doneAction.DO(this);
+            }
+            return 0;
+        }
+        ScrollbackSearch newSearch = emulator.search(text, regularExpression,
+            caseSensitive);
+        newSearch.searchSome(SEARCH_MILLIS);
+        searchMatches = newSearch.getMatches();
+        searchMatchIndex = searchMatches.size() - 1;
+        if (searchMatchIndex >= 0) {
+            showSearchMatch();
+        } else {
+            setDirty();
+        }
+        if (newSearch.isDone()) {
+            if (doneAction != null) {
+                doneAction.DO(this);
+            }
+        } else {
+            search = newSearch;
+            searchDoneAction = doneAction;
+            searchTimer = getApplication().addTimer(SEARCH_INTERVAL, true,
+                new TAction() {
+                    public void DO() {
+                        continueSearch();
+                    }
+                }
+            );
+            searchTimer.setRepaint(false);
+        }
+        return searchMatches.size();
+    }
+
+    /**
+     * Search some more older lines, and add their matches.
+     */
+    private void continueSearch() {
+        if (search == null) {
+            return;
+        }
+        boolean done = search.searchSome(SEARCH_MILLIS);
+        int count = search.getMatchCount();
+        if (count < searchMatches.size()) {
+            // The line numbers changed under the search.
+            searchMatches = search.getMatches();
+            searchMatchIndex = -1;
+            setDirty();
+        } else if (count > searchMatches.size()) {
+            // Everything new is older than what was there, so it goes in
+            // front.
+            int added = count - searchMatches.size();
+            searchMatches = search.getMatches();
+            if (searchMatchIndex < 0) {
+                searchMatchIndex = searchMatches.size() - 1;
+                showSearchMatch();
+            } else {
+                searchMatchIndex += added;
+                setDirty();
+            }
+        }
+        if (done) {
+            final TAction doneAction = searchDoneAction;
+            stopSearch();
+            if (doneAction != null) {
+                // Timer actions run with the timers locked; let the action
+                // open dialogs if it wants to.
+                getApplication().invokeLater(new Runnable() {
+                    public void run() {
+                        doneAction.DO(TTerminalWidget.this);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Stop searching older lines.  The matches found so far stay.
+     */
+    private void stopSearch() {
+        if (searchTimer != null) {
+            TApplication app = getApplication();
+            if (app != null) {
+                app.removeTimer(searchTimer);
+            }
+            searchTimer = null;
+        }
+        search = null;
+        searchDoneAction = null;
+    }
+
+    /**
+     * Get the number of search results.
+     *
+     * @return the number of matches found so far, or 0 if there was no
+     * search
+     */
+    public int getSearchMatchCount() {
+        if (searchMatches == null) {
+            return 0;
+        }
+        return searchMatches.size();
+    }
+
+    /**
+     * See if a search is still running through older lines.
+     *
+     * @return true if more matches may be added
+     */
+    public boolean isSearching() {
+        return (search != null);
+    }
+
+    /**
+     * Jump to the next or previous search result.
+     *
+     * @param forward if true, move to the next newer match, otherwise the
+     * next older one
+     * @return false if there are no more matches in that direction
+     */
+    public boolean findAgain(final boolean forward) {
+        if ((searchMatches == null) || (searchMatches.size() == 0)) {
+            return false;
+        }
+        int index = searchMatchIndex + (forward ? 1 : -1);
+        if ((index < 0) || (index >= searchMatches.size())) {
+            return false;
+        }
+        searchMatchIndex = index;
+        showSearchMatch();
+        return true;
+    }
+
+    /**
+     * Get the search result currently shown.
+     *
+     * @return the match, or null if there is none
+     */
+    public ScrollbackIndex.Match getSearchMatch() {
+        if ((searchMatches == null) || (searchMatchIndex < 0)) {
+            return null;
+        }
+        return searchMatches.get(searchMatchIndex);
+    }
+
+    /**
+     * Remove the search highlights.
+     */
+    public void clearSearch() {
+        stopSearch();
+        searchMatches = null;
+        searchMatchIndex = -1;
+        if (emulator != null) {
+            setDirty();
+        }
+    }
+
+    /**
+     * Scroll so that the current search result is in the middle of the
+     * screen.
+     */
+    private void showSearchMatch() {
+        ScrollbackIndex.Match match = searchMatches.get(searchMatchIndex);
+        int scrollBottom;
+        synchronized (emulator) {
+            long row = match.getLine() - emulator.getScrollbackFirstLine();
+            if (row < 0) {
+                // This line has left the scrollback buffer.
+                setDirty();
+                return;
+            }
+            int total = emulator.getScrollbackBuffer().size()
+                + emulator.getDisplayBuffer().size();
+            scrollBottom = (int) (total - row - (getHeight() / 2) - 1);
+            scrollBottom = Math.min(scrollBottom, total - getHeight());
+            scrollBottom = Math.max(scrollBottom, 0);
+        }
+        setVerticalValue(-scrollBottom);
+    }
+
+    /**
+     * Get the search results that fall on the visible display.
+     *
+     * @return the matches, or null if there are none
+     */
+    private List<ScrollbackIndex.Match> getVisibleSearchMatches() {
+        if ((searchMatches == null) || (searchMatches.size() == 0)) {
+            return null;
+        }
+        long top = visibleTopLine;
+        long bottom = top + getHeight();
+
+        // Binary search for the first match at or below the top row.
+        int low = 0;
+        int high = searchMatches.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (searchMatches.get(mid).getLine() < top) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        List<ScrollbackIndex.Match> visible = null;
+        for (int i = low; i < searchMatches.size(); i++) {
+            ScrollbackIndex.Match match = searchMatches.get(i);
+            if (match.getLine() >= bottom) {
+                break;
+            }
+            if (visible == null) {
+                visible = new ArrayList<ScrollbackIndex.Match>();
+            }
+            visible.add(match);
+        }
+        return visible;
+    }
+
+    /**
+     * See if a cell of the visible display is part of a search result.
+     *
+     * @param matches the visible matches
+     * @param row the row of the visible display
+     * @param column the column of the line
+     * @return true if the cell should be highlighted
+     */
+    private boolean isSearchHighlight(final List<ScrollbackIndex.Match> matches,
+        final int row, final int column) {
+
+        long line = visibleTopLine + row;
+        for (ScrollbackIndex.Match match: matches) {
+            if ((match.getLine() == line)
+                && (column >= match.getColumn())
+                && (column < match.getColumn() + match.getLength())
+            ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Write the entire session (scrollback and display buffers) as plain
      * text to a writer.
@@ -1492,10 +2147,7 @@ public class TTerminalWidget extends TScrollableWidget
         synchronized (dirtyQueue) {
             dirtyQueue.add(display);
         }
-        TApplication app = getApplication();
-        if (app != null) {
-            app.doRepaint();
-        }
+        invalidateWindow();
     }
 
     /**
@@ -1505,11 +2157,8 @@ public class TTerminalWidget extends TScrollableWidget
      * may be on a different location.
      */
     public void displayChanged(final boolean cursorOnly) {
-        TApplication app = getApplication();
         if (cursorOnly) {
-            if (app != null) {
-                app.doRepaint();
-            }
+            invalidateWindow();
             return;
         }
 
@@ -1522,8 +2171,18 @@ public class TTerminalWidget extends TScrollableWidget
         if (readDisplay) {
             readEmulatorDisplay();
         }
-        if (app != null) {
-            app.doRepaint();
+        invalidateWindow();
+    }
+
+    /**
+     * Redraw the window holding this terminal on the next update.  The
+     * whole window is invalidated rather than just this widget, since the
+     * title and scrollbars follow the emulator too.
+     */
+    private void invalidateWindow() {
+        TWindow window = getWindow();
+        if (window != null) {
+            window.invalidate();
         }
     }
 
@@ -1543,7 +2202,7 @@ public class TTerminalWidget extends TScrollableWidget
      * @return the number of columns in the display
      */
     public int getDisplayWidth() {
-        if (ptypipe) {
+        if (ptypipe || pty) {
             return getWidth();
         }
         return 80;
@@ -1555,7 +2214,7 @@ public class TTerminalWidget extends TScrollableWidget
      * @return the number of rows in the display
      */
     public int getDisplayHeight() {
-        if (ptypipe) {
+        if (ptypipe || pty) {
             return getHeight();
         }
         return 24;
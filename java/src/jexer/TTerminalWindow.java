@@ -402,6 +402,15 @@ public class TTerminalWindow extends TScrollableWindow {
         return terminal.getCommandLine();
     }
 
+    /**
+     * Get the terminal widget inside this window.
+     *
+     * @return the terminal widget
+     */
+    public TTerminalWidget getTerminal() {
+        return terminal;
+    }
+
     /**
      * Returns true if this window does not want the application-wide mouse
      * pointer drawn over it.
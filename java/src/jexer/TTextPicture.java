@@ -532,13 +532,11 @@ public class TTextPicture extends TScrollableWidget
                     new TAction() {
                         public void DO() {
                             blinkState = !blinkState;
-                            TApplication app = getApplication();
-                            if (app != null) {
-                                app.doRepaint();
-                            }
+                            TTextPicture.this.invalidate();
                         }
                     }
                 );
+                blinkTimer.setRepaint(false);
             }
         }
     }
@@ -45,14 +45,39 @@ public class TTimer {
     boolean recurring = false;
 
     /**
-     * Duration (in millis) between ticks if this is a recurring timer.
+     * If true, a tick forces a full repaint of the screen.  Note package
+     * private access.
+     */
+    boolean repaint = true;
+
+    /**
+     * Duration (in nanos) between ticks if this is a recurring timer.
      */
     private long duration = 0;
 
     /**
-     * The next time this timer needs to be ticked.
+     * The next time this timer needs to be ticked, as a System.nanoTime()
+     * value.  Note package private access.
+     */
+    long deadline;
+
+    /**
+     * Position in the owning TimerQueue heap, or -1 if not queued.  Note
+     * package private access.
+     */
+    int heapIndex = -1;
+
+    /**
+     * Insertion order, used to tick timers with the same deadline in the
+     * order they were added.  Note package private access.
      */
-    private Date nextTick;
+    long sequence;
+
+    /**
+     * If true, this timer was removed and must not be ticked again.  Note
+     * package private access.
+     */
+    boolean cancelled = false;
 
     /**
      * The action to perfom on a tick.
@@ -73,11 +98,10 @@ public class TTimer {
     TTimer(final long duration, final boolean recurring, final TAction action) {
 
         this.recurring = recurring;
-        this.duration  = duration;
+        this.duration  = Math.max(0, duration) * 1000000L;
         this.action    = action;
 
-        Date now = new Date();
-        nextTick = new Date(now.getTime() + duration);
+        deadline = System.nanoTime() + this.duration;
     }
 
     // ------------------------------------------------------------------------
@@ -91,7 +115,8 @@ public class TTimer {
      * @return time at which action should be called
      */
     Date getNextTick() {
-        return nextTick;
+        long remaining = (deadline - System.nanoTime()) / 1000000L;
+        return new Date(System.currentTimeMillis() + remaining);
     }
 
     /**
@@ -103,17 +128,35 @@ public class TTimer {
         this.recurring = recurring;
     }
 
+    /**
+     * Set the repaint flag.  Timers that only change a small part of the
+     * screen can turn this off and call invalidate() on what they change,
+     * so that the application can redraw just that part.
+     *
+     * @param repaint if true, re-draw the entire screen after every tick
+     */
+    public void setRepaint(final boolean repaint) {
+        this.repaint = repaint;
+    }
+
     /**
      * Tick this timer.  Note package private access.
+     *
+     * @param now the System.nanoTime() value the tick was dispatched at
      */
-    void tick() {
+    void tick(final long now) {
         if (action != null) {
             action.DO();
         }
-        // Set next tick
-        Date ticked = new Date();
+        // Set next tick.  Recurring timers run at a fixed rate off their
+        // deadline rather than drifting by the time it took to get here,
+        // but a timer that fell more than a period behind skips the
+        // missed ticks instead of firing them back-to-back.
         if (recurring) {
-            nextTick = new Date(ticked.getTime() + duration);
+            deadline += duration;
+            if (deadline - now <= 0) {
+                deadline = now + duration;
+            }
         }
     }
 
@@ -1569,9 +1569,25 @@ public abstract class TWidget implements Comparable<TWidget> {
      * Repaint the screen on the next update.
      */
     protected final void doRepaint() {
+        window.invalidateLayer();
         window.getApplication().doRepaint();
     }
 
+    /**
+     * Redraw this widget's rectangle on the next update, without repainting
+     * the rest of the screen.  Widgets that change on their own (timers,
+     * background output) can call this instead of doRepaint().
+     */
+    public void invalidate() {
+        if (window != null) {
+            window.invalidateLayer();
+        }
+        TApplication app = getApplication();
+        if (app != null) {
+            app.invalidate(getAbsoluteX(), getAbsoluteY(), width, height);
+        }
+    }
+
     /**
      * Add a child widget to my list of children.  We set its tabOrder to 0
      * and increment the tabOrder of all other children.
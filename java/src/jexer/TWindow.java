@@ -31,6 +31,7 @@ package jexer;
 import java.util.HashSet;
 import java.util.Set;
 
+import jexer.backend.LayerScreen;
 import jexer.backend.Screen;
 import jexer.bits.BorderStyle;
 import jexer.bits.CellAttributes;
@@ -252,6 +253,28 @@ public class TWindow extends TWidget {
      */
     private int alpha = 255;
 
+    /**
+     * The offscreen layer this window was last drawn into, when the
+     * application is compositing window layers.
+     */
+    private LayerScreen layer = null;
+
+    /**
+     * If true, the layer must be redrawn before it is composited again.
+     */
+    private volatile boolean layerDirty = true;
+
+    /**
+     * Whether or not this window was active when the layer was last drawn.
+     */
+    private boolean layerActive = false;
+
+    /**
+     * If true, this window is being drawn into its layer rather than the
+     * application screen.
+     */
+    private boolean drawingLayer = false;
+
     // ------------------------------------------------------------------------
     // Constructors -----------------------------------------------------------
     // ------------------------------------------------------------------------
@@ -988,9 +1011,25 @@ public class TWindow extends TWidget {
      */
     @Override
     public final Screen getScreen() {
+        if (drawingLayer) {
+            return layer;
+        }
         return application.getScreen();
     }
 
+    /**
+     * Redraw this window, including its shadow, on the next update without
+     * repainting the rest of the screen.
+     */
+    @Override
+    public void invalidate() {
+        layerDirty = true;
+        if (application != null) {
+            application.invalidate(getX(), getY(), getWidth() + 2,
+                getHeight() + 1);
+        }
+    }
+
     /**
      * Called by TApplication.drawChildren() to render on screen.
      */
@@ -1851,6 +1890,62 @@ public class TWindow extends TWidget {
         this.alpha = alpha;
     }
 
+    /**
+     * Mark this window's offscreen layer as stale, so that it is redrawn
+     * before it is next composited.  This does not by itself cause the
+     * screen to be updated.
+     */
+    public final void invalidateLayer() {
+        layerDirty = true;
+    }
+
+    /**
+     * Get the offscreen layer this window was last drawn into, without
+     * redrawing it.  The cells may be stale if the window changed since,
+     * which makes this suitable for previews of windows that are not on
+     * screen.
+     *
+     * @return the layer, with cell (0, 0) at this window's top-left corner,
+     * or null if the window has never been drawn into a layer (retained
+     * mode is off)
+     */
+    public final LayerScreen getCachedLayer() {
+        return layer;
+    }
+
+    /**
+     * Get this window's offscreen layer, redrawing it first if the window
+     * was invalidated or resized.  The active window is always redrawn,
+     * since input can change it without anyone calling invalidate().
+     *
+     * @return the layer, with cell (0, 0) at this window's top-left corner
+     */
+    final LayerScreen getLayer() {
+        Screen screen = application.getScreen();
+        boolean active = isActive();
+        if ((layer == null) || (layer.getScreen() != screen)) {
+            layer = new LayerScreen(screen, getWidth(), getHeight());
+            layerDirty = true;
+        }
+        if (layerDirty
+            || active
+            || (active != layerActive)
+            || (layer.getWidth() != getWidth())
+            || (layer.getHeight() != getHeight())
+        ) {
+            layerDirty = false;
+            layerActive = active;
+            layer.setBounds(getX(), getY(), getWidth(), getHeight());
+            drawingLayer = true;
+            try {
+                drawChildren();
+            } finally {
+                drawingLayer = false;
+            }
+        }
+        return layer;
+    }
+
     /**
      * Get the alpha level for this window.
      *
@@ -0,0 +1,272 @@
+/*
+ * Jexer - Java Text User Interface
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2022 Autumn Lamonte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * @author Autumn Lamonte ⚧ Trans Liberation Now
+ * @version 1
+ */
+package jexer;
+
+import java.util.List;
+
+/**
+ * TimerQueue is a binary min-heap of TTimers ordered by their next
+ * deadline.  Adding or removing a timer is O(log n), finding the next
+ * deadline is O(1), and all of the timers that are due can be expired in
+ * one batch.  It also keeps statistics on how late timers are ticked.
+ *
+ * TimerQueue is not thread-safe; TApplication synchronizes on it.
+ */
+final class TimerQueue {
+
+    // ------------------------------------------------------------------------
+    // Variables --------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * The heap.
+     */
+    private TTimer [] heap = new TTimer[16];
+
+    /**
+     * Number of timers in the heap.
+     */
+    private int size = 0;
+
+    /**
+     * Next insertion sequence number.
+     */
+    private long nextSequence = 0;
+
+    /**
+     * Number of ticks measured for jitter.
+     */
+    private long jitterCount = 0;
+
+    /**
+     * Sum of tick lateness in nanos.
+     */
+    private long jitterTotal = 0;
+
+    /**
+     * Largest tick lateness in nanos.
+     */
+    private long jitterMax = 0;
+
+    // ------------------------------------------------------------------------
+    // TimerQueue -------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Get the number of queued timers.
+     *
+     * @return the number of timers
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Add a timer.  A timer that is already queued is left alone.
+     *
+     * @param timer the timer to add
+     */
+    public void add(final TTimer timer) {
+        if (timer.heapIndex >= 0) {
+            return;
+        }
+        if (size == heap.length) {
+            TTimer [] newHeap = new TTimer[size * 2];
+            System.arraycopy(heap, 0, newHeap, 0, size);
+            heap = newHeap;
+        }
+        timer.sequence = nextSequence++;
+        timer.heapIndex = size;
+        heap[size] = timer;
+        size++;
+        siftUp(timer.heapIndex);
+    }
+
+    /**
+     * Remove a timer.
+     *
+     * @param timer the timer to remove
+     * @return true if the timer was queued
+     */
+    public boolean remove(final TTimer timer) {
+        int i = timer.heapIndex;
+        if ((i < 0) || (i >= size) || (heap[i] != timer)) {
+            return false;
+        }
+        timer.heapIndex = -1;
+        size--;
+        if (i == size) {
+            heap[size] = null;
+            return true;
+        }
+        TTimer last = heap[size];
+        heap[size] = null;
+        heap[i] = last;
+        last.heapIndex = i;
+        siftDown(i);
+        if (heap[i] == last) {
+            siftUp(i);
+        }
+        return true;
+    }
+
+    /**
+     * Get the earliest deadline of all queued timers.
+     *
+     * @return the System.nanoTime() value of the next deadline, or
+     * Long.MAX_VALUE if there are no timers
+     */
+    public long getNextDeadline() {
+        if (size == 0) {
+            return Long.MAX_VALUE;
+        }
+        return heap[0].deadline;
+    }
+
+    /**
+     * Remove every timer whose deadline is at or before now, in deadline
+     * order, and record how late each one is.
+     *
+     * @param now the current System.nanoTime()
+     * @param expired list to append the due timers to
+     */
+    public void expire(final long now, final List<TTimer> expired) {
+        while ((size > 0) && (heap[0].deadline - now <= 0)) {
+            TTimer timer = heap[0];
+            remove(timer);
+            long late = now - timer.deadline;
+            jitterCount++;
+            jitterTotal += late;
+            if (late > jitterMax) {
+                jitterMax = late;
+            }
+            expired.add(timer);
+        }
+    }
+
+    /**
+     * Get the number of ticks measured for jitter.
+     *
+     * @return the number of ticks
+     */
+    public long getJitterCount() {
+        return jitterCount;
+    }
+
+    /**
+     * Get the mean lateness of ticks.
+     *
+     * @return the mean lateness in nanos
+     */
+    public long getJitterMean() {
+        if (jitterCount == 0) {
+            return 0;
+        }
+        return jitterTotal / jitterCount;
+    }
+
+    /**
+     * Get the largest lateness of any tick.
+     *
+     * @return the maximum lateness in nanos
+     */
+    public long getJitterMax() {
+        return jitterMax;
+    }
+
+    /**
+     * Reset the jitter statistics.
+     */
+    public void resetJitter() {
+        jitterCount = 0;
+        jitterTotal = 0;
+        jitterMax = 0;
+    }
+
+    /**
+     * Compare two timers by deadline, then by insertion order.
+     *
+     * @param a the first timer
+     * @param b the second timer
+     * @return true if a should tick before b
+     */
+    private boolean before(final TTimer a, final TTimer b) {
+        long diff = a.deadline - b.deadline;
+        if (diff != 0) {
+            return diff < 0;
+        }
+        return a.sequence < b.sequence;
+    }
+
+    /**
+     * Move a timer towards the root until the heap is ordered.
+     *
+     * @param i the heap index
+     */
+    private void siftUp(int i) {
+        TTimer timer = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!before(timer, heap[parent])) {
+                break;
+            }
+            heap[i] = heap[parent];
+            heap[i].heapIndex = i;
+            i = parent;
+        }
+        heap[i] = timer;
+        timer.heapIndex = i;
+    }
+
+    /**
+     * Move a timer towards the leaves until the heap is ordered.
+     *
+     * @param i the heap index
+     */
+    private void siftDown(int i) {
+        TTimer timer = heap[i];
+        int half = size >>> 1;
+        while (i < half) {
+            int child = (i << 1) + 1;
+            int right = child + 1;
+            if ((right < size) && before(heap[right], heap[child])) {
+                child = right;
+            }
+            if (!before(heap[child], timer)) {
+                break;
+            }
+            heap[i] = heap[child];
+            heap[i].heapIndex = i;
+            i = child;
+        }
+        heap[i] = timer;
+        timer.heapIndex = i;
+    }
+
+}
@@ -90,7 +90,9 @@ public interface Backend {
     public void setTitle(final String title);
 
     /**
-     * Set listener to a different Object.
+     * Set listener to a different Object.  If the listener is a
+     * BackendListener, its wakeup() is called on new input; otherwise it
+     * is woken with notifyAll().
      *
      * @param listener the new listening object that run() wakes up on new
      * input
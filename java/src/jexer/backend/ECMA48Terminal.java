@@ -53,6 +53,9 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import javax.imageio.ImageIO;
 
@@ -61,6 +64,7 @@ import jexer.bits.CellAttributes;
 import jexer.bits.Color;
 import jexer.bits.ImageUtils;
 import jexer.bits.StringUtils;
+import jexer.bits.ThreadStrategy;
 import jexer.event.TCommandEvent;
 import jexer.event.TInputEvent;
 import jexer.event.TKeypressEvent;
@@ -105,6 +109,17 @@ public class ECMA48Terminal extends LogicalScreen
         RGB,
     }
 
+    /**
+     * The time in millis after a bare ESC before it is reported as the
+     * Escape key.
+     */
+    private static final int ESCAPE_DELAY = 100;
+
+    /**
+     * The time in millis between checks of the window size.
+     */
+    private static final int WINDOW_SIZE_DELAY = 1000;
+
     // ------------------------------------------------------------------------
     // Variables --------------------------------------------------------------
     // ------------------------------------------------------------------------
@@ -139,13 +154,42 @@ public class ECMA48Terminal extends LogicalScreen
     /**
      * If true, we want the reader thread to exit gracefully.
      */
-    private boolean stopReaderThread;
+    private volatile boolean stopReaderThread;
 
     /**
      * The reader thread.
      */
     private Thread readerThread;
 
+    /**
+     * If true, the reader thread blocks in read() until input arrives.
+     * This is true for every stream except our own stdin, which cannot be
+     * closed to wake up a blocked read.
+     */
+    private boolean blockingRead = true;
+
+    /**
+     * The timer thread shared by all terminals for window size checks and
+     * escape timeouts.
+     */
+    private static ScheduledThreadPoolExecutor idleTimer = null;
+
+    /**
+     * The periodic window size check.
+     */
+    private ScheduledFuture<?> windowSizeCheck = null;
+
+    /**
+     * The pending bare escape timeout, if any.
+     */
+    private ScheduledFuture<?> escapeCheck = null;
+
+    /**
+     * Lock held by the reader thread and the idle timer when they touch
+     * the input parser.
+     */
+    private final Object parserLock = new Object();
+
     /**
      * Parameters being collected.  E.g. if the string is \033[1;3m, then
      * params[0] will be 1 and params[1] will be 3.
@@ -337,6 +381,27 @@ public class ECMA48Terminal extends LogicalScreen
      */
     private boolean hasSynchronizedOutput = false;
 
+    /**
+     * The MultiBackend frame number that the physical screen is known to
+     * match, or -1.
+     */
+    private long syncedFrame = -1;
+
+    /**
+     * The output stream, if it queues bytes for a slow peer.
+     */
+    private OutputBacklog outputBacklog = null;
+
+    /**
+     * If true, a frame was skipped because the output was behind.
+     */
+    private boolean frameSkipped = false;
+
+    /**
+     * The number of frames skipped because the output was behind.
+     */
+    private long framesSkipped = 0;
+
     /**
      * The time we last flushed output in flushPhysical().
      */
@@ -650,6 +715,16 @@ public class ECMA48Terminal extends LogicalScreen
         } else {
             this.output = new PrintWriter(new OutputStreamWriter(output,
                     "UTF-8"));
+            if (output instanceof OutputBacklog) {
+                // This is a TelnetOutputStream that lets a slow client
+                // fall behind rather than block the flush.
+                outputBacklog = (OutputBacklog) output;
+                outputBacklog.setDrainListener(new Runnable() {
+                    public void run() {
+                        flushSkippedFrame();
+                    }
+                });
+            }
         }
 
         // Request xterm version.  Due to the ambiguity between the response
@@ -694,7 +769,15 @@ public class ECMA48Terminal extends LogicalScreen
 
         // Spin up the input reader
         eventQueue = new ArrayList<TInputEvent>();
-        readerThread = new Thread(this);
+        blockingRead = !setRawMode;
+        windowSizeCheck = getIdleTimer().scheduleWithFixedDelay(
+            new Runnable() {
+                public void run() {
+                    checkIdleEvents();
+                }
+            }, WINDOW_SIZE_DELAY, WINDOW_SIZE_DELAY, TimeUnit.MILLISECONDS);
+        readerThread = ThreadStrategy.newThread(this,
+            "ECMA48Terminal reader");
         readerThread.start();
 
         // Clear the screen
@@ -808,7 +891,15 @@ public class ECMA48Terminal extends LogicalScreen
 
         // Spin up the input reader
         eventQueue = new ArrayList<TInputEvent>();
-        readerThread = new Thread(this);
+        blockingRead = !setRawMode;
+        windowSizeCheck = getIdleTimer().scheduleWithFixedDelay(
+            new Runnable() {
+                public void run() {
+                    checkIdleEvents();
+                }
+            }, WINDOW_SIZE_DELAY, WINDOW_SIZE_DELAY, TimeUnit.MILLISECONDS);
+        readerThread = ThreadStrategy.newThread(this,
+            "ECMA48Terminal reader");
         readerThread.start();
 
         // Clear the screen
@@ -857,57 +948,76 @@ public class ECMA48Terminal extends LogicalScreen
      */
     @Override
     public void flushPhysical() {
-        StringBuilder sb = new StringBuilder();
-        if ((cursorVisible)
-            && (cursorY >= 0)
-            && (cursorX >= 0)
-            && (cursorY <= height - 1)
-            && (cursorX <= width - 1)
-        ) {
-            flushString(sb);
-            sb.append(cursor(true));
-            sb.append(gotoXY(cursorX, cursorY));
-        } else {
-            sb.append(cursor(false));
-            flushString(sb);
+        syncedFrame = -1;
+        if (isOutputBehind()) {
+            // The peer has not caught up with what was already sent.
+            // Leave the physical screen as it is: when the output drains,
+            // one diff against it carries everything that changed since.
+            frameSkipped = true;
+            framesSkipped++;
+            return;
         }
-        if (output != null) {
-            if (hasSynchronizedOutput) {
-                if (sb.length() > 0) {
-                    // Begin Synchronized Update (BSU)
-                    output.write("\033[?2026h");
-                    if (debugToStderr) {
-                        System.err.printf("Writing %d bytes to terminal (sync)\n",
-                            sb.length());
-                    }
-                    output.write(sb.toString());
-                    // End Synchronized Update (ESU)
-                    output.write("\033[?2026l");
-                }
-                if (debugToStderr) {
-                    System.err.printf("flushPhysical() \033[?2026h%s\033[?2026l\n",
-                        sb.toString());
-                }
-            } else {
-                if (sb.length() > 0) {
-                    if (debugToStderr) {
-                        System.err.printf("Writing %d bytes to terminal\n",
-                            sb.length());
-                    }
-                    output.write(sb.toString());
-                }
-            }
-            output.flush();
+        frameSkipped = false;
+        writeFrame(encodeFrame());
+    }
 
-            long now = System.currentTimeMillis();
-            if ((int) (now / 1000) == (int) (lastFlushTime / 1000)) {
-                bytesPerSecond += sb.length();
-            } else {
-                lastBytesPerSecond = sb.length();
-                bytesPerSecond = 0;
-            }
-            lastFlushTime = now;
-        }
+    /**
+     * Clear the physical screen.
+     */
+    @Override
+    public synchronized void clearPhysical() {
+        super.clearPhysical();
+        syncedFrame = -1;
+    }
+
+    /**
+     * Change the width and height.  Everything on-screen will be destroyed
+     * and must be redrawn.
+     *
+     * @param width new screen width
+     * @param height new screen height
+     */
+    @Override
+    public void setDimensions(final int width, final int height) {
+        super.setDimensions(width, height);
+        syncedFrame = -1;
+    }
+
+    /**
+     * Change the width.  Everything on-screen will be destroyed and must be
+     * redrawn.
+     *
+     * @param width new screen width
+     */
+    @Override
+    public synchronized void setWidth(final int width) {
+        super.setWidth(width);
+        syncedFrame = -1;
+    }
+
+    /**
+     * Change the height.  Everything on-screen will be destroyed and must be
+     * redrawn.
+     *
+     * @param height new screen height
+     */
+    @Override
+    public synchronized void setHeight(final int height) {
+        super.setHeight(height);
+        syncedFrame = -1;
+    }
+
+    /**
+     * Put the cursor at (x,y).
+     *
+     * @param visible if true, the cursor should be visible
+     * @param x column coordinate to put the cursor on
+     * @param y row coordinate to put the cursor on
+     */
+    @Override
+    public void putCursor(final boolean visible, final int x, final int y) {
+        super.putCursor(visible, x, y);
+        syncedFrame = -1;
     }
 
     /**
@@ -980,13 +1090,17 @@ public class ECMA48Terminal extends LogicalScreen
 
         // System.err.println("=== closeTerminal() ==="); System.err.flush();
 
-        // Tell the reader thread to stop looking at input
+        // Tell the reader thread to stop looking at input.  A reader
+        // blocked in read() is woken up when input is closed below.
         stopReaderThread = true;
-        try {
-            readerThread.join();
-        } catch (InterruptedException e) {
-            if (debugToStderr) {
-                e.printStackTrace();
+        cancelIdleChecks();
+        if (!blockingRead) {
+            try {
+                readerThread.join();
+            } catch (InterruptedException e) {
+                if (debugToStderr) {
+                    e.printStackTrace();
+                }
             }
         }
 
@@ -1010,6 +1124,12 @@ public class ECMA48Terminal extends LogicalScreen
             // and make it exit.
             if (input != null) {
                 try {
+                    if (blockingRead && (inputStream != null)) {
+                        // The reader thread holds the Reader's lock while
+                        // it is blocked, so close the stream under it
+                        // first.
+                        inputStream.close();
+                    }
                     input.close();
                 } catch (IOException e) {
                     // SQUASH
@@ -1017,6 +1137,9 @@ public class ECMA48Terminal extends LogicalScreen
                 input = null;
             }
             if (output != null) {
+                if (outputBacklog != null) {
+                    outputBacklog.setDrainListener(null);
+                }
                 output.close();
                 output = null;
             }
@@ -1161,24 +1284,37 @@ public class ECMA48Terminal extends LogicalScreen
 
         while (!done && !stopReaderThread) {
             try {
-                // We assume that if inputStream has bytes available, then
-                // input won't block on read().
-                if (debugToStderr) {
-                    System.err.printf("Looking for input...");
-                }
+                if (!blockingRead) {
+                    // We assume that if inputStream has bytes available,
+                    // then input won't block on read().
+                    if (debugToStderr) {
+                        System.err.printf("Looking for input...");
+                    }
 
-                int n = inputStream.available();
+                    int n = inputStream.available();
 
-                if (debugToStderr) {
-                    if (n == 0) {
-                        System.err.println("none.");
+                    if (debugToStderr) {
+                        if (n == 0) {
+                            System.err.println("none.");
+                        }
+                        if (n < 0) {
+                            System.err.printf("WHAT?!  n = %d\n", n);
+                        }
                     }
-                    if (n < 0) {
-                        System.err.printf("WHAT?!  n = %d\n", n);
+
+                    if (n <= 0) {
+                        if (output != null) {
+                            if (output.checkError()) {
+                                // This is EOF.
+                                done = true;
+                            }
+                        }
+
+                        // Wait 20 millis for more data
+                        Thread.sleep(20);
+                        continue;
                     }
-                }
 
-                if (n > 0) {
                     if (debugToStderr) {
                         System.err.printf("%d bytes to read.\n", n);
                     }
@@ -1187,131 +1323,78 @@ public class ECMA48Terminal extends LogicalScreen
                         // The buffer wasn't big enough, make it huger
                         readBuffer = new char[readBuffer.length * 2];
                     }
+                }
 
-                    if (debugToStderr) {
-                        System.err.printf("B4 read(): readBuffer.length = %d\n",
-                            readBuffer.length);
-                    }
+                if (debugToStderr) {
+                    System.err.printf("B4 read(): readBuffer.length = %d\n",
+                        readBuffer.length);
+                }
+
+                // In blocking mode this waits until the remote side sends
+                // something or the stream is closed.  Escape timeouts and
+                // window size checks are run by the idle timer meanwhile.
+                int rc = input.read(readBuffer, 0, readBuffer.length);
 
-                    int rc = input.read(readBuffer, 0, readBuffer.length);
+                /*
+                System.err.printf("AFTER read() %d\n", rc);
+                System.err.flush();
+                */
 
-                    /*
-                    System.err.printf("AFTER read() %d\n", rc);
-                    System.err.flush();
-                    */
+                if (stopReaderThread) {
+                    break;
+                }
 
-                    if (rc == -1) {
-                        if (debugToStderr) {
-                            System.err.println(" ---- EOF ----");
-                        }
+                if (rc == -1) {
+                    if (debugToStderr) {
+                        System.err.println(" ---- EOF ----");
+                    }
 
-                        // This is EOF
-                        done = true;
-                    } else {
-                        if (debugToStderr) {
-                            StringBuilder sb = new StringBuilder();
-                            for (int i = 0; i < rc; i++) {
-                                sb.append(readBuffer[i]);
-                            }
-                            System.err.printf("%d rc = %d INPUT: ",
-                                System.currentTimeMillis(), rc);
-                            System.err.println(sb.toString());
+                    // This is EOF
+                    done = true;
+                } else {
+                    if (debugToStderr) {
+                        StringBuilder sb = new StringBuilder();
+                        for (int i = 0; i < rc; i++) {
+                            sb.append(readBuffer[i]);
                         }
+                        System.err.printf("%d rc = %d INPUT: ",
+                            System.currentTimeMillis(), rc);
+                        System.err.println(sb.toString());
+                    }
+                    synchronized (parserLock) {
                         for (int i = 0; i < rc; i++) {
                             int ch = readBuffer[i];
                             processChar(events, (char)ch);
                         }
                         getIdleEvents(events);
-                        if (events.size() > 0) {
-                            // Add to the queue for the backend thread to
-                            // be able to obtain.
-                            if (debugToStderr) {
-                                System.err.printf("Checking eventQueue...");
-                            }
-
-                            synchronized (eventQueue) {
-                                eventQueue.addAll(events);
-                            }
-                            if (debugToStderr) {
-                                System.err.printf("done.\n");
-                            }
-
-                            if (listener != null) {
-                                if (debugToStderr) {
-                                    System.err.printf("Waking up listener...");
-                                }
-
-                                synchronized (listener) {
-                                    listener.notifyAll();
-                                }
-                                if (debugToStderr) {
-                                    System.err.printf("done.\n");
-                                }
-
-                            }
-                            events.clear();
-                        }
-                    }
-                } else {
-                    if (debugToStderr) {
-                        System.err.println("Looking for idle events");
-                    }
-                    getIdleEvents(events);
-                    if (events.size() > 0) {
-                        if (debugToStderr) {
-                            System.err.printf("Checking eventQueue...");
-                        }
-
-                        synchronized (eventQueue) {
-                            eventQueue.addAll(events);
-                        }
-                        if (debugToStderr) {
-                            System.err.printf("done.\n");
-                        }
-
-                        if (listener != null) {
-                            if (debugToStderr) {
-                                System.err.printf("Waking up listener...");
-                            }
-
-                            synchronized (listener) {
-                                listener.notifyAll();
-                            }
-                            if (debugToStderr) {
-                                System.err.printf("done.\n");
-                            }
-
-                        }
-                        events.clear();
+                        scheduleEscapeCheck();
                     }
-
-                    if (output != null) {
-                        if (output.checkError()) {
-                            // This is EOF.
-                            done = true;
-                        }
+                    if (blockingRead && (rc == readBuffer.length)) {
+                        // Input is coming in faster than we take it, grow
+                        // the buffer.
+                        readBuffer = new char[readBuffer.length * 2];
                     }
-
-                    // Wait 20 millis for more data
-                    Thread.sleep(20);
+                    queueEvents(events);
                 }
                 // System.err.println("end while loop"); System.err.flush();
             } catch (InterruptedException e) {
                 // SQUASH
             } catch (IOException e) {
-                e.printStackTrace();
+                if (!stopReaderThread) {
+                    e.printStackTrace();
+                }
                 done = true;
             }
         } // while ((done == false) && (stopReaderThread == false))
 
+        cancelIdleChecks();
+
         // Pass an event up to TApplication to tell it this Backend is done.
         synchronized (eventQueue) {
             eventQueue.add(new TCommandEvent(backend, cmBackendDisconnect));
         }
         if (listener != null) {
-            synchronized (listener) {
-                listener.notifyAll();
-            }
+            wakeListener();
         }
 
         // System.err.println("*** run() exiting..."); System.err.flush();
@@ -1321,6 +1404,197 @@ public class ECMA48Terminal extends LogicalScreen
     // ECMA48Terminal ---------------------------------------------------------
     // ------------------------------------------------------------------------
 
+    /**
+     * Render the changes between the logical and physical screens to the
+     * escape sequences that will update the terminal, and mark the physical
+     * screen as updated.  Nothing is written.
+     *
+     * @return the escape sequences, which may be empty
+     */
+    String encodeFrame() {
+        StringBuilder sb = new StringBuilder();
+        if ((cursorVisible)
+            && (cursorY >= 0)
+            && (cursorX >= 0)
+            && (cursorY <= height - 1)
+            && (cursorX <= width - 1)
+        ) {
+            flushString(sb);
+            sb.append(cursor(true));
+            sb.append(gotoXY(cursorX, cursorY));
+        } else {
+            sb.append(cursor(false));
+            flushString(sb);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Write the escape sequences for one frame to the terminal.
+     *
+     * @param frame the output of encodeFrame(), from this terminal or from
+     * another one that was in the same state
+     */
+    void writeFrame(final String frame) {
+        if (output != null) {
+            if (hasSynchronizedOutput) {
+                if (frame.length() > 0) {
+                    // Begin Synchronized Update (BSU)
+                    output.write("\033[?2026h");
+                    if (debugToStderr) {
+                        System.err.printf("Writing %d bytes to terminal (sync)\n",
+                            frame.length());
+                    }
+                    output.write(frame);
+                    // End Synchronized Update (ESU)
+                    output.write("\033[?2026l");
+                }
+                if (debugToStderr) {
+                    System.err.printf("flushPhysical() \033[?2026h%s\033[?2026l\n",
+                        frame);
+                }
+            } else {
+                if (frame.length() > 0) {
+                    if (debugToStderr) {
+                        System.err.printf("Writing %d bytes to terminal\n",
+                            frame.length());
+                    }
+                    output.write(frame);
+                }
+            }
+            output.flush();
+
+            long now = System.currentTimeMillis();
+            if ((int) (now / 1000) == (int) (lastFlushTime / 1000)) {
+                bytesPerSecond += frame.length();
+            } else {
+                lastBytesPerSecond = frame.length();
+                bytesPerSecond = 0;
+            }
+            lastFlushTime = now;
+        }
+    }
+
+    /**
+     * See if the output has more queued than its budget allows.
+     *
+     * @return true if frames should be skipped until the output drains
+     */
+    boolean isOutputBehind() {
+        return ((outputBacklog != null) && outputBacklog.isBehind());
+    }
+
+    /**
+     * Get the number of frames that were skipped because the output was
+     * behind.
+     *
+     * @return the number of skipped frames
+     */
+    public synchronized long getFramesSkipped() {
+        return framesSkipped;
+    }
+
+    /**
+     * Send the newest frame after the output drains, if one was skipped
+     * while it was behind.  This is called on the output's writer thread.
+     */
+    private void flushSkippedFrame() {
+        synchronized (this) {
+            if (frameSkipped && (output != null)) {
+                flushPhysical();
+            }
+        }
+    }
+
+    /**
+     * Get the frame this terminal is known to be showing.
+     *
+     * @return the frame number passed to setSyncedFrame(), or -1 if the
+     * physical screen has changed since then
+     */
+    long getSyncedFrame() {
+        return syncedFrame;
+    }
+
+    /**
+     * Record that the physical screen now holds a particular frame.  Two
+     * terminals with the same synced frame are showing exactly the same
+     * thing, and so the same escape sequences will update both of them.
+     *
+     * @param frame the frame number, or -1 for unknown
+     */
+    void setSyncedFrame(final long frame) {
+        syncedFrame = frame;
+    }
+
+    /**
+     * Take on the physical screen of another terminal that was in the same
+     * state and has just encoded a frame, as if this terminal had encoded
+     * it too.  The caller must write the same frame to this terminal.
+     *
+     * @param other the terminal that encoded the frame
+     */
+    void adoptFrame(final ECMA48Terminal other) {
+        assert (other.width == width);
+        assert (other.height == height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                physical[x][y].setTo(other.physical[x][y]);
+            }
+        }
+        cursorOn = other.cursorOn;
+        reallyCleared = false;
+        syncedFrame = other.syncedFrame;
+    }
+
+    /**
+     * Get a string describing every option that affects how frames are
+     * encoded.  Terminals with the same fingerprint and synced frame will
+     * produce the same output for the same screen.
+     *
+     * @return the fingerprint, or null if this terminal keeps encoder state
+     * between frames and cannot share output
+     */
+    String getEncoderFingerprint() {
+        if (sixel && (sixelEncoder != null)
+            && sixelEncoder.hasSharedPalette()
+        ) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(width).append('x').append(height);
+        sb.append(' ').append(getTextWidth()).append('x');
+        sb.append(getTextHeight());
+        sb.append(doRgbColor ? " rgb" : " ansi");
+        sb.append(hasSynchronizedOutput ? " sync" : "");
+        sb.append(wideCharImages ? " wide" : "");
+        sb.append(imagesOverText ? " over" : "");
+        if (sixel) {
+            sb.append(" sixel");
+            sb.append(sixelFastAndDirty ? "-fast " : " ");
+            if (sixelEncoder != null) {
+                sb.append(sixelEncoder.getPaletteSize());
+            }
+        }
+        if (iterm2Images) {
+            sb.append(iterm2BottomRow ? " iterm2-bottom" : " iterm2");
+        }
+        sb.append(' ').append(jexerImageOption);
+        java.awt.Color [] colors = {
+            MYBLACK, MYRED, MYGREEN, MYYELLOW,
+            MYBLUE, MYMAGENTA, MYCYAN, MYWHITE,
+            MYBOLD_BLACK, MYBOLD_RED, MYBOLD_GREEN, MYBOLD_YELLOW,
+            MYBOLD_BLUE, MYBOLD_MAGENTA, MYBOLD_CYAN, MYBOLD_WHITE
+        };
+        for (java.awt.Color color: colors) {
+            sb.append(' ');
+            if (color != null) {
+                sb.append(Integer.toHexString(color.getRGB()));
+            }
+        }
+        return sb.toString();
+    }
+
     /**
      * Get the bytes per second from the last second.
      *
@@ -2339,6 +2613,109 @@ public class ECMA48Terminal extends LogicalScreen
             eventAlt, eventCtrl, eventShift);
     }
 
+    /**
+     * Get the timer thread shared by all terminals, creating it if needed.
+     *
+     * @return the timer
+     */
+    private static synchronized ScheduledThreadPoolExecutor getIdleTimer() {
+        if (idleTimer == null) {
+            idleTimer = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactory() {
+                    public Thread newThread(final Runnable r) {
+                        Thread thread = new Thread(r, "ECMA48Terminal timer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            idleTimer.setRemoveOnCancelPolicy(true);
+        }
+        return idleTimer;
+    }
+
+    /**
+     * Schedule a check for a bare escape, if the parser is waiting to see
+     * what follows an ESC.  The caller must hold parserLock.
+     */
+    private void scheduleEscapeCheck() {
+        if (escapeCheck != null) {
+            escapeCheck.cancel(false);
+            escapeCheck = null;
+        }
+        if ((state != ParseState.ESCAPE) || stopReaderThread) {
+            return;
+        }
+        long delay = escapeTime + ESCAPE_DELAY + 1 - System.currentTimeMillis();
+        escapeCheck = getIdleTimer().schedule(new Runnable() {
+                public void run() {
+                    checkIdleEvents();
+                }
+            }, Math.max(delay, 0), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the window size check and any pending escape timeout.
+     */
+    private void cancelIdleChecks() {
+        synchronized (parserLock) {
+            if (windowSizeCheck != null) {
+                windowSizeCheck.cancel(false);
+                windowSizeCheck = null;
+            }
+            if (escapeCheck != null) {
+                escapeCheck.cancel(false);
+                escapeCheck = null;
+            }
+        }
+    }
+
+    /**
+     * Run getIdleEvents() from the idle timer, and pass anything it finds
+     * on to the backend.
+     */
+    private void checkIdleEvents() {
+        if (stopReaderThread) {
+            return;
+        }
+        List<TInputEvent> events = new ArrayList<TInputEvent>();
+        synchronized (parserLock) {
+            getIdleEvents(events);
+            scheduleEscapeCheck();
+        }
+        queueEvents(events);
+    }
+
+    /**
+     * Add events to the queue for the backend thread to obtain, and wake
+     * up the listener.
+     *
+     * @param events the new events.  This list is cleared.
+     */
+    private void queueEvents(final List<TInputEvent> events) {
+        if (events.size() == 0) {
+            return;
+        }
+        if (debugToStderr) {
+            System.err.printf("Checking eventQueue...");
+        }
+        synchronized (eventQueue) {
+            eventQueue.addAll(events);
+        }
+        if (debugToStderr) {
+            System.err.printf("done.\n");
+        }
+        if (listener != null) {
+            if (debugToStderr) {
+                System.err.printf("Waking up listener...");
+            }
+            wakeListener();
+            if (debugToStderr) {
+                System.err.printf("done.\n");
+            }
+        }
+        events.clear();
+    }
+
     /**
      * Return any events in the IO queue due to timeout.
      *
@@ -2349,7 +2726,7 @@ public class ECMA48Terminal extends LogicalScreen
 
         // Check for new window size
         long windowSizeDelay = nowTime - windowSizeTime;
-        if (windowSizeDelay > 1000) {
+        if (windowSizeDelay >= WINDOW_SIZE_DELAY) {
             int oldTextWidth = getTextWidth();
             int oldTextHeight = getTextHeight();
 
@@ -2396,7 +2773,7 @@ public class ECMA48Terminal extends LogicalScreen
         // ESCDELAY type timeout
         if (state == ParseState.ESCAPE) {
             long escDelay = nowTime - escapeTime;
-            if (escDelay > 100) {
+            if (escDelay > ESCAPE_DELAY) {
                 // After 0.1 seconds, assume a true escape character
                 queue.add(controlChar((char)0x1B, false));
                 resetParser();
@@ -4914,4 +5291,17 @@ public class ECMA48Terminal extends LogicalScreen
         return sb.toString();
     }
 
+    /**
+     * Wake the listener so that it picks up new events.
+     */
+    private void wakeListener() {
+        if (listener instanceof BackendListener) {
+            ((BackendListener) listener).wakeup();
+        } else {
+            synchronized (listener) {
+                listener.notifyAll();
+            }
+        }
+    }
+
 }
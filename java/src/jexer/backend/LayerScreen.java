@@ -0,0 +1,177 @@
+/*
+ * Jexer - Java Text User Interface
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2022 Autumn Lamonte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * @author Autumn Lamonte ⚧ Trans Liberation Now
+ * @version 1
+ */
+package jexer.backend;
+
+/**
+ * LayerScreen is an offscreen cell buffer covering one rectangle of another
+ * screen.  A window can be drawn into it with its usual absolute offsets,
+ * and the result composited onto the real screen later.
+ */
+public class LayerScreen extends LogicalScreen {
+
+    // ------------------------------------------------------------------------
+    // Variables --------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * The screen this layer will be composited onto.
+     */
+    private Screen screen;
+
+    /**
+     * The absolute column of this layer's left edge.
+     */
+    private int layerX = 0;
+
+    /**
+     * The absolute row of this layer's top edge.
+     */
+    private int layerY = 0;
+
+    // ------------------------------------------------------------------------
+    // Constructors -----------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Public constructor.
+     *
+     * @param screen the screen this layer will be composited onto
+     * @param width width in cells
+     * @param height height in cells
+     */
+    public LayerScreen(final Screen screen, final int width,
+        final int height) {
+
+        super(width, height);
+        this.screen = screen;
+        setBackend(screen.getBackend());
+    }
+
+    // ------------------------------------------------------------------------
+    // LogicalScreen ----------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Get the width of a character cell in pixels.
+     *
+     * @return the width in pixels of a character cell
+     */
+    @Override
+    public int getTextWidth() {
+        return screen.getTextWidth();
+    }
+
+    /**
+     * Get the height of a character cell in pixels.
+     *
+     * @return the height in pixels of a character cell
+     */
+    @Override
+    public int getTextHeight() {
+        return screen.getTextHeight();
+    }
+
+    // ------------------------------------------------------------------------
+    // LayerScreen ------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Get the screen this layer will be composited onto.
+     *
+     * @return the screen
+     */
+    public final Screen getScreen() {
+        return screen;
+    }
+
+    /**
+     * Move this layer over a new rectangle of the screen, and clear it.  The
+     * cells are only reallocated if the layer has to grow, so one layer can
+     * be reused for windows of different sizes.
+     *
+     * @param x the absolute column of the layer's left edge
+     * @param y the absolute row of the layer's top edge
+     * @param width width in cells
+     * @param height height in cells
+     */
+    public final void setBounds(final int x, final int y, final int width,
+        final int height) {
+
+        synchronized (this) {
+            int capacityWidth = logical.length;
+            int capacityHeight = (capacityWidth > 0 ? logical[0].length : 0);
+            if ((width > capacityWidth) || (height > capacityHeight)) {
+                setDimensions(Math.max(width, capacityWidth),
+                    Math.max(height, capacityHeight));
+            }
+            this.width = width;
+            this.height = height;
+        }
+        setBackend(screen.getBackend());
+        reset();
+        setOrigin(x, y);
+        layerX = x;
+        layerY = y;
+    }
+
+    /**
+     * Copy the cells of the screen under this layer into it.  Cells that
+     * are off the screen are left blank.
+     */
+    public final void capture() {
+        LogicalScreen other = null;
+        if (screen instanceof LogicalScreen) {
+            other = (LogicalScreen) screen;
+        }
+        synchronized (screen) {
+            int screenWidth = screen.getWidth();
+            int screenHeight = screen.getHeight();
+            for (int row = 0; row < height; row++) {
+                int screenY = layerY + row;
+                if ((screenY < 0) || (screenY >= screenHeight)) {
+                    continue;
+                }
+                for (int col = 0; col < width; col++) {
+                    int screenX = layerX + col;
+                    if ((screenX < 0) || (screenX >= screenWidth)) {
+                        continue;
+                    }
+                    if (other != null) {
+                        logical[col][row].setTo(
+                            other.logical[screenX][screenY]);
+                    } else {
+                        logical[col][row].setTo(screen.getCharXY(screenX,
+                                screenY));
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -45,6 +45,15 @@ import jexer.bits.StringUtils;
  */
 public class LogicalScreen implements Screen {
 
+    // ------------------------------------------------------------------------
+    // Constants --------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * The cell read from outside another screen's bounds.  Never modified.
+     */
+    private static final Cell BLANK_CELL = new Cell();
+
     // ------------------------------------------------------------------------
     // Variables --------------------------------------------------------------
     // ------------------------------------------------------------------------
@@ -94,6 +103,39 @@ public class LogicalScreen implements Screen {
      */
     private int clipTop;
 
+    /**
+     * Left edge of the drawing region, in absolute coordinates.
+     */
+    private int regionLeft = 0;
+
+    /**
+     * Top edge of the drawing region, in absolute coordinates.
+     */
+    private int regionTop = 0;
+
+    /**
+     * Ignore anything drawn at or right of regionRight, in absolute
+     * coordinates.
+     */
+    private int regionRight = Integer.MAX_VALUE;
+
+    /**
+     * Ignore anything drawn at or below regionBottom, in absolute
+     * coordinates.
+     */
+    private int regionBottom = Integer.MAX_VALUE;
+
+    /**
+     * The absolute column that cell 0 of this screen represents.  Only
+     * offscreen layers use a non-zero origin.
+     */
+    private int originX = 0;
+
+    /**
+     * The absolute row that cell 0 of this screen represents.
+     */
+    private int originY = 0;
+
     /**
      * The physical screen last sent out on flush().
      */
@@ -126,6 +168,19 @@ public class LogicalScreen implements Screen {
      */
     protected int cursorY;
 
+    /**
+     * For each row, the left-most column that has been written to since the
+     * last call to clearDamage().  A row with damageLeft greater than
+     * damageRight has not been touched.
+     */
+    protected int [] damageLeft;
+
+    /**
+     * For each row, the right-most column that has been written to since
+     * the last call to clearDamage().
+     */
+    protected int [] damageRight;
+
     /**
      * The last used height of a character cell in pixels, only used for
      * full-width chars.
@@ -194,7 +249,7 @@ public class LogicalScreen implements Screen {
      * @param offsetX new drawing offset
      */
     public final void setOffsetX(final int offsetX) {
-        this.offsetX = offsetX;
+        this.offsetX = offsetX - originX;
     }
 
     /**
@@ -203,7 +258,7 @@ public class LogicalScreen implements Screen {
      * @return the drawing offset
      */
     public int getOffsetX() {
-        return offsetX;
+        return offsetX + originX;
     }
 
     /**
@@ -212,7 +267,7 @@ public class LogicalScreen implements Screen {
      * @param offsetY new drawing offset
      */
     public final void setOffsetY(final int offsetY) {
-        this.offsetY = offsetY;
+        this.offsetY = offsetY - originY;
     }
 
     /**
@@ -221,7 +276,7 @@ public class LogicalScreen implements Screen {
      * @return the drawing offset
      */
     public int getOffsetY() {
-        return offsetY;
+        return offsetY + originY;
     }
 
     /**
@@ -425,8 +480,11 @@ public class LogicalScreen implements Screen {
             Y += offsetY;
         }
 
-        if ((X >= 0) && (X < width) && (Y >= 0) && (Y < height)) {
+        if ((X >= 0) && (X < width) && (Y >= 0) && (Y < height)
+            && isInRegion(X, Y)
+        ) {
             logical[X][Y].setAttr(attr, true);
+            damageCell(X, Y);
 
             // If this happens to be the cursor position, make the position
             // dirty.
@@ -480,7 +538,9 @@ public class LogicalScreen implements Screen {
 
         // System.err.printf("putCharXY: %d, %d, %c\n", X, Y, ch);
 
-        if ((X >= 0) && (X < width) && (Y >= 0) && (Y < height)) {
+        if ((X >= 0) && (X < width) && (Y >= 0) && (Y < height)
+            && isInRegion(X, Y)
+        ) {
 
             // Do not put control characters on the display
             if (!ch.isImage()) {
@@ -488,6 +548,7 @@ public class LogicalScreen implements Screen {
                 assert (ch.getChar() != 0x7F);
             }
             logical[X][Y].setTo(ch);
+            damageCell(X, Y);
 
             // If this happens to be the cursor position, make the position
             // dirty.
@@ -529,7 +590,9 @@ public class LogicalScreen implements Screen {
 
         // System.err.printf("putCharXY: %d, %d, %c\n", X, Y, ch);
 
-        if ((X >= 0) && (X < width) && (Y >= 0) && (Y < height)) {
+        if ((X >= 0) && (X < width) && (Y >= 0) && (Y < height)
+            && isInRegion(X, Y)
+        ) {
 
             // Do not put control characters on the display
             assert (ch >= 0x20);
@@ -537,6 +600,7 @@ public class LogicalScreen implements Screen {
 
             logical[X][Y].setTo(attr);
             logical[X][Y].setChar(ch);
+            damageCell(X, Y);
 
             // If this happens to be the cursor position, make the position
             // dirty.
@@ -575,8 +639,11 @@ public class LogicalScreen implements Screen {
 
         // System.err.printf("putCharXY: %d, %d, %c\n", X, Y, ch);
 
-        if ((X >= 0) && (X < width) && (Y >= 0) && (Y < height)) {
+        if ((X >= 0) && (X < width) && (Y >= 0) && (Y < height)
+            && isInRegion(X, Y)
+        ) {
             logical[X][Y].setChar(ch);
+            damageCell(X, Y);
 
             // If this happens to be the cursor position, make the position
             // dirty.
@@ -767,6 +834,7 @@ public class LogicalScreen implements Screen {
                 logical[col][row].reset();
             }
         }
+        damageAll();
         resetClipping();
     }
 
@@ -774,12 +842,27 @@ public class LogicalScreen implements Screen {
      * Flush the offset and clip variables.
      */
     public final void resetClipping() {
-        offsetX    = 0;
-        offsetY    = 0;
+        offsetX    = -originX;
+        offsetY    = -originY;
         clipLeft   = 0;
         clipTop    = 0;
-        clipRight  = width;
-        clipBottom = height;
+        clipRight  = width + originX;
+        clipBottom = height + originY;
+    }
+
+    /**
+     * Set the absolute screen position that cell (0, 0) of this screen
+     * represents.  Widgets drawing with offsets set from absolute
+     * coordinates will then land in the right cells of a screen that is
+     * smaller than the real one.
+     *
+     * @param originX the absolute column of cell (0, 0)
+     * @param originY the absolute row of cell (0, 0)
+     */
+    protected final void setOrigin(final int originX, final int originY) {
+        this.originX = originX;
+        this.originY = originY;
+        resetClipping();
     }
 
     /**
@@ -789,6 +872,89 @@ public class LogicalScreen implements Screen {
         reset();
     }
 
+    /**
+     * Clear a rectangular portion of the logical screen.  Any cells outside
+     * this screen's dimensions will be ignored.
+     *
+     * @param x left column of rectangle.  0 is the left-most column.
+     * @param y top row of the rectangle.  0 is the top-most row.
+     * @param width number of columns to clear
+     * @param height number of rows to clear
+     */
+    public final synchronized void clear(final int x, final int y,
+        final int width, final int height) {
+
+        int left = Math.max(0, x);
+        int top = Math.max(0, y);
+        int right = Math.min(this.width, x + width);
+        int bottom = Math.min(this.height, y + height);
+        for (int row = top; row < bottom; row++) {
+            for (int col = left; col < right; col++) {
+                logical[col][row].reset();
+                damageCell(col, row);
+            }
+        }
+    }
+
+    /**
+     * Restrict all drawing to a rectangle in absolute screen coordinates,
+     * in addition to the offset and clip variables.  resetClipping() does
+     * not undo this.
+     *
+     * @param x left column of the region.  0 is the left-most column.
+     * @param y top row of the region.  0 is the top-most row.
+     * @param width number of columns in the region
+     * @param height number of rows in the region
+     */
+    public final void setDrawingRegion(final int x, final int y,
+        final int width, final int height) {
+
+        regionLeft   = x;
+        regionTop    = y;
+        regionRight  = x + width;
+        regionBottom = y + height;
+    }
+
+    /**
+     * Allow drawing anywhere on the screen again.
+     */
+    public final void resetDrawingRegion() {
+        regionLeft   = 0;
+        regionTop    = 0;
+        regionRight  = Integer.MAX_VALUE;
+        regionBottom = Integer.MAX_VALUE;
+    }
+
+    /**
+     * See if any cell on the logical screen pulses.  Backends compute the
+     * pulse colors when they flush, so such a screen needs flushing even
+     * when nothing was drawn.
+     *
+     * @return true if at least one cell has a pulse animation
+     */
+    public final synchronized boolean hasPulse() {
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (logical[x][y].isPulse()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * See if a cell is inside the drawing region.
+     *
+     * @param x column coordinate, absolute
+     * @param y row coordinate, absolute
+     * @return true if drawing at (x, y) is permitted
+     */
+    protected final boolean isInRegion(final int x, final int y) {
+        return ((x >= regionLeft) && (x < regionRight)
+            && (y >= regionTop) && (y < regionBottom));
+    }
+
     /**
      * Draw a box with a border and empty background.
      *
@@ -934,6 +1100,7 @@ public class LogicalScreen implements Screen {
             // Make the current cursor position dirty
             synchronized (this) {
                 physical[cursorX][cursorY].unset();
+                damageCell(cursorX, cursorY);
                 unsetImageRow(cursorY);
             }
         }
@@ -1013,6 +1180,8 @@ public class LogicalScreen implements Screen {
             physical = null;
         }
         physical = new Cell[width][height];
+        damageLeft = new int[height];
+        damageRight = new int[height];
 
         for (int row = 0; row < height; row++) {
             for (int col = 0; col < width; col++) {
@@ -1030,6 +1199,68 @@ public class LogicalScreen implements Screen {
         clipBottom = height;
 
         reallyCleared = true;
+        damageAll();
+    }
+
+    /**
+     * Mark one cell as written to since the last flush.
+     *
+     * @param x column coordinate.  0 is the left-most column.
+     * @param y row coordinate.  0 is the top-most row.
+     */
+    protected final void damageCell(final int x, final int y) {
+        if (x < damageLeft[y]) {
+            damageLeft[y] = x;
+        }
+        if (x > damageRight[y]) {
+            damageRight[y] = x;
+        }
+    }
+
+    /**
+     * Mark a rectangle as written to since the last flush.  Any cells
+     * outside this screen's dimensions will be ignored.
+     *
+     * @param x left column of rectangle.  0 is the left-most column.
+     * @param y top row of the rectangle.  0 is the top-most row.
+     * @param width number of columns
+     * @param height number of rows
+     */
+    protected final void damageRectangle(final int x, final int y,
+        final int width, final int height) {
+
+        int left = Math.max(x, 0);
+        int right = Math.min(x + width, this.width) - 1;
+        if (left > right) {
+            return;
+        }
+        for (int row = Math.max(y, 0);
+             (row < y + height) && (row < this.height); row++) {
+
+            damageCell(left, row);
+            damageCell(right, row);
+        }
+    }
+
+    /**
+     * Mark the entire screen as written to since the last flush.
+     */
+    protected final void damageAll() {
+        for (int row = 0; row < height; row++) {
+            damageLeft[row] = 0;
+            damageRight[row] = width - 1;
+        }
+    }
+
+    /**
+     * Forget all damage.  Subclasses call this after they have pushed the
+     * damaged regions to the physical device.
+     */
+    protected final void clearDamage() {
+        for (int row = 0; row < height; row++) {
+            damageLeft[row] = width;
+            damageRight[row] = -1;
+        }
     }
 
     /**
@@ -1041,6 +1272,7 @@ public class LogicalScreen implements Screen {
                 physical[col][row].unset();
             }
         }
+        damageAll();
     }
 
     /**
@@ -1056,6 +1288,7 @@ public class LogicalScreen implements Screen {
         for (int x = 0; x < width; x++) {
             if (logical[x][y].isImage()) {
                 physical[x][y].unset();
+                damageCell(x, y);
             }
         }
     }
@@ -1366,7 +1599,11 @@ public class LogicalScreen implements Screen {
             }
             for (int row = 0; row < height; row++) {
                 for (int col = 0; col < width; col++) {
-                    logical[col][row] = new Cell(other.getCharXY(col, row));
+                    Cell cell = getCellOf(other, col, row);
+                    if (!logical[col][row].equals(cell)) {
+                        logical[col][row].setTo(cell);
+                        damageCell(col, row);
+                    }
                 }
             }
         }
@@ -1394,7 +1631,14 @@ public class LogicalScreen implements Screen {
                     if (col < 0) {
                         continue;
                     }
-                    logical[col][row] = new Cell(other.getCharXY(col - x, row - y));
+                    if (!isInRegion(col, row)) {
+                        continue;
+                    }
+                    Cell cell = getCellOf(other, col - x, row - y);
+                    if (!logical[col][row].equals(cell)) {
+                        logical[col][row].setTo(cell);
+                        damageCell(col, row);
+                    }
                 }
             }
         }
@@ -1433,15 +1677,38 @@ public class LogicalScreen implements Screen {
     public void blendRectangle(final int x, final int y,
         final int width, final int height, final int color, final int alpha) {
 
-        // We just create a new blank screen and blend it.
-        LogicalScreen rectangle = new LogicalScreen(width, height);
-        for (int row = 0; row < height; row++) {
-            for (int col = 0; col < width; col++) {
-                rectangle.logical[col][row].setBackColorRGB(color);
+        final int OPAQUE = 0xFF000000;
+        final int overBg = color | OPAQUE;
+
+        // The rectangle is blank cells of color, so it is blended in place
+        // without building another screen.
+        synchronized (this) {
+            for (int row = Math.max(0, y); (row < y + height)
+                     && (row < this.height); row++) {
+
+                for (int col = Math.max(0, x); (col < x + width)
+                         && (col < this.width); col++) {
+
+                    if (!isInRegion(col, row)) {
+                        continue;
+                    }
+                    Cell thisCell = logical[col][row];
+                    if (alpha == 255) {
+                        // This is a raw copy of a blank cell.
+                        thisCell.reset();
+                        thisCell.setBackColorRGB(color);
+                        continue;
+                    }
+                    int thisFg = blendRGB(overBg, getForegroundRGB(thisCell),
+                        alpha) | OPAQUE;
+                    int thisBg = blendRGB(overBg, getBackgroundRGB(thisCell),
+                        alpha) | OPAQUE;
+                    blendUnder(thisCell, col, row, thisFg, thisBg, overBg,
+                        alpha, false);
+                }
             }
+            damageRectangle(x, y, width, height);
         }
-
-        blendScreen(rectangle, x, y, width, height, alpha, false);
     }
 
     /**
@@ -1468,168 +1735,45 @@ public class LogicalScreen implements Screen {
             return;
         }
 
+        final int OPAQUE = 0xFF000000;
+        final float fAlpha = (float) (alpha / 255.0);
+        Graphics2D g2d = null;
+
         /*
          * We need to blend the background colors of other's cells over the
          * cells of this screen (foreground and background), honoring our
-         * alpha.  We will create a bitmap of one pixel per cell, blend that
-         * via AWT, and then set the cell RGBs and char's.
+         * alpha, and then set the cell chars/images.  Each cell only
+         * depends on itself, so this is done in one pass with integer
+         * math on packed RGB values.
          */
         synchronized (this) {
+            for (int row = Math.max(0, y); (row < y + height)
+                     && (row < this.height); row++) {
 
-            BufferedImage thisForeground = new BufferedImage(width, height,
-                BufferedImage.TYPE_INT_ARGB);
-            BufferedImage thisBackground = new BufferedImage(width, height,
-                BufferedImage.TYPE_INT_ARGB);
-            BufferedImage overBackground = new BufferedImage(width, height,
-                BufferedImage.TYPE_INT_ARGB);
-            BufferedImage thisOldBackground = new BufferedImage(width, height,
-                BufferedImage.TYPE_INT_ARGB);
-
-            final int OPAQUE = 0xFF000000;
+                for (int col = Math.max(0, x); (col < x + width)
+                         && (col < this.width); col++) {
 
-            for (int row = y; (row < y + height) && (row < this.height); row++) {
-                if (row < 0) {
-                    continue;
-                }
-                for (int col = x; (col < x + width) && (col < this.width); col++) {
-                    if (col < 0) {
-                        continue;
-                    }
-
-                    Cell cell = logical[col][row];
-                    int thisBg = cell.getBackColorRGB();
-                    if (thisBg < 0) {
-                        if (backend != null) {
-                            thisBg = backend.attrToBackgroundColor(cell).getRGB();
-                        } else {
-                            thisBg = SwingTerminal.attrToBackgroundColor(cell).getRGB();
-                        }
-                    }
-                    int thisFg = cell.getForeColorRGB();
-                    if (thisFg < 0) {
-                        if (backend != null) {
-                            thisFg = backend.attrToForegroundColor(cell).getRGB();
-                        } else {
-                            thisFg = SwingTerminal.attrToForegroundColor(cell).getRGB();
-                        }
-                    }
-
-                    Cell over = otherScreen.getCharXY(col - x, row - y);
-                    int overBg = over.getBackColorRGB();
-                    if (overBg < 0) {
-                        if (backend != null) {
-                            overBg = backend.attrToBackgroundColor(over).getRGB();
-                        } else {
-                            overBg = SwingTerminal.attrToBackgroundColor(over).getRGB();
-                        }
-                    }
-                    thisFg |= OPAQUE;
-                    thisBg |= OPAQUE;
-                    overBg |= OPAQUE;
-
-                    thisForeground.setRGB(col - x, row - y, thisFg);
-                    thisBackground.setRGB(col - x, row - y, thisBg);
-                    thisOldBackground.setRGB(col - x, row - y, thisBg);
-                    overBackground.setRGB(col - x, row - y, overBg);
-                }
-            }
-
-            // The three bitmaps are ready.  We have skipped over
-            // cells/pixels that cannot overlap.  Now blit overBackground
-            // over both thisForeground and thisBackground, and then assign
-            // cell colors and cell chars/images.
-            float fAlpha = (float) (alpha / 255.0);
-            Graphics2D g2d = thisForeground.createGraphics();
-            g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER,
-                    fAlpha));
-            g2d.drawImage(overBackground, 0, 0, null);
-            g2d.dispose();
-
-            g2d = thisBackground.createGraphics();
-            g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER,
-                    fAlpha));
-            g2d.drawImage(overBackground, 0, 0, null);
-            g2d.dispose();
-
-            for (int row = y; (row < y + height) && (row < this.height); row++) {
-                if (row < 0) {
-                    continue;
-                }
-                for (int col = x; (col < x + width) && (col < this.width); col++) {
-                    if (col < 0) {
+                    if (!isInRegion(col, row)) {
                         continue;
                     }
                     Cell thisCell = logical[col][row];
-                    Cell overCell = otherScreen.getCharXY(col - x, row - y);
-                    int thisFg = thisForeground.getRGB(col - x, row - y);
-                    int thisBg = thisBackground.getRGB(col - x, row - y);
-                    int thisOldBg = thisOldBackground.getRGB(col - x, row - y);
-                    int overBg = overBackground.getRGB(col - x, row - y);
-
-                    thisCell.setBackColorRGB(thisBg | OPAQUE);
-                    thisCell.setForeColorRGB(thisFg | OPAQUE);
+                    Cell overCell = getCellOf(otherScreen, col - x, row - y);
+                    int thisOldBg = getBackgroundRGB(thisCell) | OPAQUE;
+                    int overBg = getBackgroundRGB(overCell) | OPAQUE;
+                    int thisFg = blendRGB(overBg, getForegroundRGB(thisCell),
+                        alpha) | OPAQUE;
+                    int thisBg = blendRGB(overBg, thisOldBg, alpha) | OPAQUE;
 
                     if (!overCell.isImage() && (overCell.getChar() == ' ')) {
                         // The overlaying cell is invisible.
-
-                        if (thisCell.isImage()) {
-                            // Our image will show through.  We need to blend
-                            // otherBg at alpha < 255 over this image.
-                            Cell thisCopy = new Cell(thisCell);
-                            thisCopy.flattenImage(false, backend);
-                            BufferedImage image = thisCopy.getImage();
-                            BufferedImage newImage;
-                            newImage = new BufferedImage(image.getWidth(),
-                                image.getHeight(), BufferedImage.TYPE_INT_ARGB);
-                            g2d = newImage.createGraphics();
-                            g2d.drawImage(image, 0, 0, null);
-
-                            g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER,
-                                    fAlpha));
-                            g2d.setColor(new java.awt.Color(overBg));
-                            g2d.fillRect(0, 0, image.getWidth(),
-                                image.getHeight());
-                            g2d.dispose();
-                            // Retain imageId mixed with overBg
-                            int imageId = thisCell.getImageId();
-                            if (imageId > 0) {
-                                thisCell.setImage(newImage, imageId);
-                                thisCell.mixImageId(overBg);
-                            } else {
-                                thisCell.setImage(newImage);
-                            }
-                            thisCell.setOpaqueImage();
-                        } else {
-                            // Our character will show through.  If the
-                            // contrast between our foreground and background
-                            // is small, then drop the character.
-                            if (ImageUtils.rgbDistance(thisFg, thisBg) < 5) {
-                                thisCell.setChar(' ');
-                            }
-
-                            if (filterHatch) {
-                                // Special case: the hatch characters are not
-                                // allowed to show through.
-                                int ch = thisCell.getChar();
-                                if ((ch == 0x2591)
-                                    || (ch == 0x2592)
-                                    || (ch == 0x2593)
-                                ) {
-                                    thisCell.setChar(' ');
-                                }
-                            }
-                            if (cursorVisible &&
-                                (col == cursorX) &&
-                                (row == cursorY)
-                            ) {
-                                // Don't surface the character behind the
-                                // cursor.
-                                thisCell.setChar(' ');
-                            }
-                        }
+                        blendUnder(thisCell, col, row, thisFg, thisBg, overBg,
+                            alpha, filterHatch);
                         continue;
                     }
 
+                    thisCell.setBackColorRGB(thisBg);
+                    thisCell.setForeColorRGB(thisFg);
+
                     // The overlaying cell has a character, use it.
                     thisCell.setChar(overCell.getChar());
                     int fg = overCell.getForeColorRGB();
@@ -1794,8 +1938,160 @@ public class LogicalScreen implements Screen {
                     // for each case.
                 }
             }
+            damageRectangle(x, y, width, height);
+        }
+    }
+
+    /**
+     * Get a cell of another screen without copying it if possible.  The
+     * returned cell must not be modified.
+     *
+     * @param screen the other screen
+     * @param x column coordinate, absolute
+     * @param y row coordinate, absolute
+     * @return the cell, or a blank cell if (x, y) is outside the screen
+     */
+    private Cell getCellOf(final Screen screen, final int x, final int y) {
+        if (screen instanceof LogicalScreen) {
+            LogicalScreen other = (LogicalScreen) screen;
+            if ((x >= 0) && (x < other.width)
+                && (y >= 0) && (y < other.height)
+            ) {
+                return other.logical[x][y];
+            }
+            return BLANK_CELL;
+        }
+        return screen.getCharXY(x, y);
+    }
+
+    /**
+     * Get the RGB value a cell's foreground color will be drawn with.
+     *
+     * @param cell the cell
+     * @return the RGB color, with alpha 0
+     */
+    private int getForegroundRGB(final Cell cell) {
+        int rgb = cell.getForeColorRGB();
+        if (rgb < 0) {
+            if (backend != null) {
+                rgb = backend.attrToForegroundColor(cell).getRGB();
+            } else {
+                rgb = SwingTerminal.attrToForegroundColor(cell).getRGB();
+            }
+        }
+        return rgb & 0xFFFFFF;
+    }
+
+    /**
+     * Get the RGB value a cell's background color will be drawn with.
+     *
+     * @param cell the cell
+     * @return the RGB color, with alpha 0
+     */
+    private int getBackgroundRGB(final Cell cell) {
+        int rgb = cell.getBackColorRGB();
+        if (rgb < 0) {
+            if (backend != null) {
+                rgb = backend.attrToBackgroundColor(cell).getRGB();
+            } else {
+                rgb = SwingTerminal.attrToBackgroundColor(cell).getRGB();
+            }
         }
+        return rgb & 0xFFFFFF;
+    }
+
+    /**
+     * Blend one RGB color over another, the same as AlphaComposite.SRC_OVER
+     * onto an opaque destination.
+     *
+     * @param over the RGB color on top
+     * @param under the RGB color underneath
+     * @param alpha the alpha level (0 - 255) of the color on top
+     * @return the blended RGB color, with alpha 0
+     */
+    private static int blendRGB(final int over, final int under,
+        final int alpha) {
+
+        // Each term is rounded on its own, the way AWT's 8-bit
+        // multiplication tables do it, so that the results match.
+        int beta = 255 - alpha;
+        int red = (((over >>> 16) & 0xFF) * alpha + 127) / 255
+            + (((under >>> 16) & 0xFF) * beta + 127) / 255;
+        int green = (((over >>> 8) & 0xFF) * alpha + 127) / 255
+            + (((under >>> 8) & 0xFF) * beta + 127) / 255;
+        int blue = ((over & 0xFF) * alpha + 127) / 255
+            + ((under & 0xFF) * beta + 127) / 255;
+        return (red << 16) | (green << 8) | blue;
     }
 
+    /**
+     * Finish blending a blank cell over one of ours, letting our character
+     * or image show through.
+     *
+     * @param thisCell the cell of this screen
+     * @param col column coordinate of thisCell
+     * @param row row coordinate of thisCell
+     * @param thisFg the blended foreground color
+     * @param thisBg the blended background color
+     * @param overBg the background color of the blank cell
+     * @param alpha the alpha level (0 - 255) of the blank cell
+     * @param filterHatch if true, prevent hatch-like characters from
+     * showing through
+     */
+    private void blendUnder(final Cell thisCell, final int col, final int row,
+        final int thisFg, final int thisBg, final int overBg, final int alpha,
+        final boolean filterHatch) {
+
+        thisCell.setBackColorRGB(thisBg);
+        thisCell.setForeColorRGB(thisFg);
+
+        if (thisCell.isImage()) {
+            // Our image will show through.  We need to blend otherBg at
+            // alpha < 255 over this image.
+            Cell thisCopy = new Cell(thisCell);
+            thisCopy.flattenImage(false, backend);
+            BufferedImage image = thisCopy.getImage();
+            BufferedImage newImage;
+            newImage = new BufferedImage(image.getWidth(),
+                image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g2d = newImage.createGraphics();
+            g2d.drawImage(image, 0, 0, null);
+
+            g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER,
+                    (float) (alpha / 255.0)));
+            g2d.setColor(new java.awt.Color(overBg));
+            g2d.fillRect(0, 0, image.getWidth(), image.getHeight());
+            g2d.dispose();
+            // Retain imageId mixed with overBg
+            int imageId = thisCell.getImageId();
+            if (imageId > 0) {
+                thisCell.setImage(newImage, imageId);
+                thisCell.mixImageId(overBg);
+            } else {
+                thisCell.setImage(newImage);
+            }
+            thisCell.setOpaqueImage();
+            return;
+        }
+
+        // Our character will show through.  If the contrast between our
+        // foreground and background is small, then drop the character.
+        if (ImageUtils.rgbDistance(thisFg, thisBg) < 5) {
+            thisCell.setChar(' ');
+        }
+
+        if (filterHatch) {
+            // Special case: the hatch characters are not allowed to show
+            // through.
+            int ch = thisCell.getChar();
+            if ((ch == 0x2591) || (ch == 0x2592) || (ch == 0x2593)) {
+                thisCell.setChar(' ');
+            }
+        }
+        if (cursorVisible && (col == cursorX) && (row == cursorY)) {
+            // Don't surface the character behind the cursor.
+            thisCell.setChar(' ');
+        }
+    }
 
 }
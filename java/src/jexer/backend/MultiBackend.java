@@ -29,7 +29,9 @@
 package jexer.backend;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import jexer.bits.CellAttributes;
 import jexer.event.TCommandEvent;
@@ -60,6 +62,378 @@ public class MultiBackend implements Backend {
      */
     private SessionInfo sessionInfo;
 
+    /**
+     * The flush worker for each backend.
+     */
+    private Map<Backend, FlushWorker> flushWorkers;
+
+    /**
+     * The copy of the screen that flush workers take their frames from.
+     */
+    private LogicalScreen frame;
+
+    /**
+     * The number of the frame in the frame screen.  Guarded by frame.
+     */
+    private long frameNumber = 0;
+
+    /**
+     * FlushWorker pushes the latest frame to one backend on its own thread,
+     * so that a slow backend neither holds up the others nor queues up
+     * frames.  Frames requested while a flush is in progress are collapsed
+     * into one, and that one copies whatever the screen looks like when it
+     * starts.
+     *
+     * <p>ECMA48 terminals that are showing the same frame with the same
+     * encoder options are flushed as a group: one of them encodes the
+     * update, and the others take its physical screen and write the same
+     * bytes.</p>
+     */
+    private class FlushWorker implements Runnable {
+
+        /**
+         * The backend to flush.
+         */
+        private final Backend backend;
+
+        /**
+         * The backend's screen that MultiScreen mirrors into.
+         */
+        private final Screen screen;
+
+        /**
+         * The backend's screen, if this backend can share encoded frames
+         * with others.
+         */
+        private final ECMA48Terminal terminal;
+
+        /**
+         * If true, a frame is waiting to be flushed.
+         */
+        private boolean pending = false;
+
+        /**
+         * If true, a frame is being flushed or written.
+         */
+        private boolean busy = false;
+
+        /**
+         * If true, another worker will encode the next frame for this one.
+         */
+        private boolean claimed = false;
+
+        /**
+         * The workers to encode the pending frame for, or null.
+         */
+        private List<FlushWorker> group = null;
+
+        /**
+         * The synced frame that the workers in group had when the group was
+         * made.
+         */
+        private long groupFrame = -1;
+
+        /**
+         * A frame that another worker encoded for this one, waiting to be
+         * written.
+         */
+        private String encoded = null;
+
+        /**
+         * If false, the worker thread exits.
+         */
+        private boolean running = true;
+
+        /**
+         * The time in nanos when the oldest frame not yet flushed was
+         * requested.
+         */
+        private long requestTime = 0;
+
+        /**
+         * The number of flushes completed.
+         */
+        private long framesFlushed = 0;
+
+        /**
+         * The number of frames dropped because a newer one replaced them
+         * before they were flushed.
+         */
+        private long framesSkipped = 0;
+
+        /**
+         * The number of frames that were encoded by another worker.
+         */
+        private long framesShared = 0;
+
+        /**
+         * The time in nanos between requesting and finishing the last
+         * flush.
+         */
+        private long lastLag = 0;
+
+        /**
+         * The largest lastLag seen.
+         */
+        private long maxLag = 0;
+
+        /**
+         * Public constructor.
+         *
+         * @param backend the backend to flush
+         * @param screen the backend's screen that MultiScreen mirrors into
+         */
+        public FlushWorker(final Backend backend, final Screen screen) {
+            this.backend = backend;
+            this.screen = screen;
+            if ((backend instanceof ECMA48Backend)
+                && (screen instanceof ECMA48Terminal)
+            ) {
+                terminal = (ECMA48Terminal) screen;
+            } else {
+                terminal = null;
+            }
+        }
+
+        /**
+         * Start the worker thread.
+         */
+        public void start() {
+            Thread thread = new Thread(this, "MultiBackend flush "
+                + backend.getClass().getSimpleName());
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Ask for the current frame to be flushed.  If the previous
+         * request has not been picked up yet, it is dropped in favor of
+         * this one.
+         */
+        public synchronized void requestFlush() {
+            if (pending) {
+                framesSkipped++;
+            } else {
+                pending = true;
+                requestTime = System.nanoTime();
+            }
+            notify();
+        }
+
+        /**
+         * Ask for the current frame to be flushed, and encoded for other
+         * workers too.
+         *
+         * @param members the workers to share the encoded frame with
+         * @param syncedFrame the synced frame of every member
+         */
+        public synchronized void requestGroupFlush(
+            final List<FlushWorker> members, final long syncedFrame) {
+
+            group = members;
+            groupFrame = syncedFrame;
+            requestFlush();
+        }
+
+        /**
+         * Get the key to group this worker by for the next frame.
+         *
+         * @return a key that is equal for workers that can share one
+         * encoded frame, or null if this worker must flush on its own
+         */
+        public synchronized String getGroupKey() {
+            if ((terminal == null)
+                || terminal.isOutputBehind()
+                || busy
+                || pending
+                || claimed
+                || (encoded != null)
+            ) {
+                return null;
+            }
+            synchronized (screen) {
+                long syncedFrame = terminal.getSyncedFrame();
+                if (syncedFrame < 0) {
+                    return null;
+                }
+                String fingerprint = terminal.getEncoderFingerprint();
+                if (fingerprint == null) {
+                    return null;
+                }
+                return fingerprint + " @" + syncedFrame;
+            }
+        }
+
+        /**
+         * Reserve this worker for a group flush.
+         */
+        public synchronized void claim() {
+            claimed = true;
+        }
+
+        /**
+         * Hand this worker a frame that was encoded for it.  The caller
+         * has already updated the terminal's physical screen.
+         *
+         * @param frame the encoded frame
+         */
+        public synchronized void deliver(final String frame) {
+            claimed = false;
+            encoded = frame;
+            requestTime = System.nanoTime();
+            notify();
+        }
+
+        /**
+         * Give up on a group flush for this worker, and flush it on its
+         * own instead.
+         */
+        public void release() {
+            synchronized (this) {
+                claimed = false;
+            }
+            requestFlush();
+        }
+
+        /**
+         * Stop the worker thread once the current flush is done.
+         */
+        public synchronized void shutdown() {
+            running = false;
+            notify();
+        }
+
+        /**
+         * Wait for frames and flush them.
+         */
+        public void run() {
+            for (;;) {
+                long requested;
+                String toWrite;
+                List<FlushWorker> members;
+                long membersFrame;
+                synchronized (this) {
+                    while (running && !pending && (encoded == null)) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            // SQUASH
+                        }
+                    }
+                    if (!running) {
+                        return;
+                    }
+                    busy = true;
+                    requested = requestTime;
+                    toWrite = encoded;
+                    encoded = null;
+                    members = null;
+                    membersFrame = -1;
+                    if (toWrite == null) {
+                        pending = false;
+                        members = group;
+                        membersFrame = groupFrame;
+                        group = null;
+                    }
+                }
+
+                try {
+                    if (toWrite != null) {
+                        synchronized (screen) {
+                            terminal.writeFrame(toWrite);
+                        }
+                    } else {
+                        flushFrame(members, membersFrame);
+                        members = null;
+                    }
+                } catch (RuntimeException e) {
+                    // SQUASH.  A backend that is going away can throw
+                    // here; getEvents() will see it disconnect.
+                    if (terminal != null) {
+                        terminal.setSyncedFrame(-1);
+                    }
+                }
+                if (members != null) {
+                    for (FlushWorker member: members) {
+                        member.release();
+                    }
+                }
+
+                long lag = System.nanoTime() - requested;
+                synchronized (this) {
+                    busy = false;
+                    framesFlushed++;
+                    if (toWrite != null) {
+                        framesShared++;
+                    }
+                    lastLag = lag;
+                    maxLag = Math.max(maxLag, lag);
+                }
+            }
+        }
+
+        /**
+         * Copy the newest frame to the backend and flush it.
+         *
+         * @param members workers to encode the frame for too, or null
+         * @param membersFrame the synced frame the members must still have
+         */
+        private void flushFrame(final List<FlushWorker> members,
+            final long membersFrame) {
+
+            long number;
+            synchronized (frame) {
+                synchronized (screen) {
+                    screen.copyScreen(frame);
+                }
+                number = frameNumber;
+            }
+
+            if ((terminal == null) || terminal.isOutputBehind()) {
+                // A terminal that is behind skips this frame in
+                // flushPhysical(), so there is nothing to share.
+                synchronized (screen) {
+                    backend.flushScreen();
+                }
+                if (members != null) {
+                    for (FlushWorker member: members) {
+                        member.release();
+                    }
+                }
+                return;
+            }
+
+            synchronized (screen) {
+                String bytes = terminal.encodeFrame();
+                terminal.setSyncedFrame(number);
+                if (members != null) {
+                    for (FlushWorker member: members) {
+                        boolean adopted = false;
+                        synchronized (member.screen) {
+                            if ((member.terminal.getSyncedFrame()
+                                    == membersFrame)
+                                && (member.screen.getWidth()
+                                    == screen.getWidth())
+                                && (member.screen.getHeight()
+                                    == screen.getHeight())
+                            ) {
+                                member.terminal.adoptFrame(terminal);
+                                adopted = true;
+                            }
+                        }
+                        if (adopted) {
+                            member.deliver(bytes);
+                        } else {
+                            member.release();
+                        }
+                    }
+                }
+                terminal.writeFrame(bytes);
+            }
+        }
+
+    }
+
     // ------------------------------------------------------------------------
     // Constructors -----------------------------------------------------------
     // ------------------------------------------------------------------------
@@ -82,6 +456,10 @@ public class MultiBackend implements Backend {
             ((GenericBackend) backend).abortOnDisconnect = false;
         }
         sessionInfo = backend.getSessionInfo();
+        frame = new LogicalScreen(multiScreen.getWidth(),
+            multiScreen.getHeight());
+        flushWorkers = new HashMap<Backend, FlushWorker>();
+        startFlushWorker(backend);
     }
 
     // ------------------------------------------------------------------------
@@ -111,18 +489,53 @@ public class MultiBackend implements Backend {
      * screen to the physical device.
      */
     public void flushScreen() {
-        multiScreen.flushPhysical();
-        int n = backends.size();
-        for (int i = 0; i < n; i++) {
-            final Backend backend = backends.get(Math.min(i, backends.size()));
-            // Flush to the physical device on another thread.
-            (new Thread(new Runnable() {
-                public void run() {
-                    synchronized (backend.getScreen()) {
-                        backend.flushScreen();
-                    }
+        synchronized (multiScreen) {
+            synchronized (frame) {
+                frame.copyScreen(multiScreen);
+                frameNumber++;
+            }
+        }
+
+        // Terminals that are showing the same thing with the same options
+        // get one encoder between them.
+        Map<String, List<FlushWorker>> groups = null;
+        synchronized (flushWorkers) {
+            for (FlushWorker worker: flushWorkers.values()) {
+                String key = worker.getGroupKey();
+                if (key == null) {
+                    worker.requestFlush();
+                    continue;
+                }
+                if (groups == null) {
+                    groups = new HashMap<String, List<FlushWorker>>();
+                }
+                List<FlushWorker> group = groups.get(key);
+                if (group == null) {
+                    group = new ArrayList<FlushWorker>();
+                    groups.put(key, group);
                 }
-            })).start();
+                group.add(worker);
+            }
+        }
+        if (groups == null) {
+            return;
+        }
+        for (List<FlushWorker> group: groups.values()) {
+            FlushWorker leader = group.get(0);
+            if (group.size() == 1) {
+                leader.requestFlush();
+                continue;
+            }
+            List<FlushWorker> members = new ArrayList<FlushWorker>(
+                group.subList(1, group.size()));
+            for (FlushWorker member: members) {
+                member.claim();
+            }
+            long syncedFrame;
+            synchronized (leader.screen) {
+                syncedFrame = leader.terminal.getSyncedFrame();
+            }
+            leader.requestGroupFlush(members, syncedFrame);
         }
     }
 
@@ -176,6 +589,7 @@ public class MultiBackend implements Backend {
             for (Backend backend: backendsToRemove) {
                 multiScreen.removeScreen(backend.getScreen());
                 backends.remove(backend);
+                stopFlushWorker(backend);
                 backend.shutdown();
             }
         }
@@ -190,6 +604,7 @@ public class MultiBackend implements Backend {
      */
     public void shutdown() {
         for (Backend backend: backends) {
+            stopFlushWorker(backend);
             backend.shutdown();
         }
     }
@@ -272,6 +687,7 @@ public class MultiBackend implements Backend {
         if (backend instanceof GenericBackend) {
             ((GenericBackend) backend).abortOnDisconnect = false;
         }
+        startFlushWorker(backend);
 
         boolean allReadOnly = true;
         for (Backend b: backends) {
@@ -308,6 +724,141 @@ public class MultiBackend implements Backend {
                 multiScreen.removeScreen(backend.getScreen());
             }
             backends.remove(backend);
+            stopFlushWorker(backend);
+        }
+    }
+
+    /**
+     * Start flushing frames to a backend.
+     *
+     * @param backend the backend
+     */
+    private void startFlushWorker(final Backend backend) {
+        Screen screen = backend.getScreen();
+        if (backend instanceof TWindowBackend) {
+            screen = ((TWindowBackend) backend).getOtherScreen();
+        }
+        FlushWorker worker = new FlushWorker(backend, screen);
+        synchronized (flushWorkers) {
+            flushWorkers.put(backend, worker);
+        }
+        worker.start();
+    }
+
+    /**
+     * Stop flushing frames to a backend.
+     *
+     * @param backend the backend
+     */
+    private void stopFlushWorker(final Backend backend) {
+        FlushWorker worker;
+        synchronized (flushWorkers) {
+            worker = flushWorkers.remove(backend);
+        }
+        if (worker != null) {
+            worker.shutdown();
+        }
+    }
+
+    /**
+     * Get the number of frames that were dropped for a backend because it
+     * was still flushing an earlier one.
+     *
+     * @param backend the backend
+     * @return the number of skipped frames, or 0 if the backend is not
+     * attached
+     */
+    public long getFramesSkipped(final Backend backend) {
+        FlushWorker worker;
+        synchronized (flushWorkers) {
+            worker = flushWorkers.get(backend);
+        }
+        if (worker == null) {
+            return 0;
+        }
+        synchronized (worker) {
+            return worker.framesSkipped;
+        }
+    }
+
+    /**
+     * Get the number of frames that were flushed to a backend.
+     *
+     * @param backend the backend
+     * @return the number of flushed frames, or 0 if the backend is not
+     * attached
+     */
+    public long getFramesFlushed(final Backend backend) {
+        FlushWorker worker;
+        synchronized (flushWorkers) {
+            worker = flushWorkers.get(backend);
+        }
+        if (worker == null) {
+            return 0;
+        }
+        synchronized (worker) {
+            return worker.framesFlushed;
+        }
+    }
+
+    /**
+     * Get the number of frames that were encoded once for a group of
+     * identical terminals and then written to a backend.
+     *
+     * @param backend the backend
+     * @return the number of shared frames, or 0 if the backend is not
+     * attached
+     */
+    public long getFramesShared(final Backend backend) {
+        FlushWorker worker;
+        synchronized (flushWorkers) {
+            worker = flushWorkers.get(backend);
+        }
+        if (worker == null) {
+            return 0;
+        }
+        synchronized (worker) {
+            return worker.framesShared;
+        }
+    }
+
+    /**
+     * Get the time between a frame being ready and it being written to a
+     * backend, for the most recent frame.
+     *
+     * @param backend the backend
+     * @return the lag in millis, or 0 if the backend is not attached
+     */
+    public long getFlushLag(final Backend backend) {
+        FlushWorker worker;
+        synchronized (flushWorkers) {
+            worker = flushWorkers.get(backend);
+        }
+        if (worker == null) {
+            return 0;
+        }
+        synchronized (worker) {
+            return worker.lastLag / 1000000;
+        }
+    }
+
+    /**
+     * Get the largest time between a frame being ready and it being
+     * written to a backend.
+     *
+     * @param backend the backend
+     * @return the lag in millis, or 0 if the backend is not attached
+     */
+    public long getMaxFlushLag(final Backend backend) {
+        FlushWorker worker;
+        synchronized (flushWorkers) {
+            worker = flushWorkers.get(backend);
+        }
+        if (worker == null) {
+            return 0;
+        }
+        synchronized (worker) {
+            return worker.maxLag / 1000000;
         }
     }
 
@@ -0,0 +1,62 @@
+/*
+ * Jexer - Java Text User Interface
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2022 Autumn Lamonte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * @author Autumn Lamonte ⚧ Trans Liberation Now
+ * @version 1
+ */
+package jexer.backend;
+
+/**
+ * OutputBacklog is implemented by output streams that queue bytes for a
+ * slow peer instead of blocking the writer.  A backend that sees the
+ * stream fall behind can skip frames until it catches up.
+ */
+public interface OutputBacklog {
+
+    /**
+     * Get the number of bytes written to the stream but not yet delivered
+     * to the peer.
+     *
+     * @return the number of queued bytes
+     */
+    public int getBacklog();
+
+    /**
+     * See if the stream has queued more than its budget and has not
+     * drained since.
+     *
+     * @return true if the stream is behind
+     */
+    public boolean isBehind();
+
+    /**
+     * Set the code to run when a stream that was behind has delivered
+     * everything queued.  It is run on the thread that writes to the peer.
+     *
+     * @param listener the code to run, or null
+     */
+    public void setDrainListener(final Runnable listener);
+
+}
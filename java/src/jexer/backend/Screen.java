@@ -341,6 +341,45 @@ public interface Screen {
      */
     public void clear();
 
+    /**
+     * Clear a rectangular portion of the logical screen.  Any cells outside
+     * this screen's dimensions will be ignored.
+     *
+     * @param x left column of rectangle.  0 is the left-most column.
+     * @param y top row of the rectangle.  0 is the top-most row.
+     * @param width number of columns to clear
+     * @param height number of rows to clear
+     */
+    public void clear(final int x, final int y, final int width,
+        final int height);
+
+    /**
+     * Restrict all drawing to a rectangle in absolute screen coordinates,
+     * in addition to the offset and clip variables.  resetClipping() does
+     * not undo this.
+     *
+     * @param x left column of the region.  0 is the left-most column.
+     * @param y top row of the region.  0 is the top-most row.
+     * @param width number of columns in the region
+     * @param height number of rows in the region
+     */
+    public void setDrawingRegion(final int x, final int y, final int width,
+        final int height);
+
+    /**
+     * Allow drawing anywhere on the screen again.
+     */
+    public void resetDrawingRegion();
+
+    /**
+     * See if any cell on the logical screen pulses.  Backends compute the
+     * pulse colors when they flush, so such a screen needs flushing even
+     * when nothing was drawn.
+     *
+     * @return true if at least one cell has a pulse animation
+     */
+    public boolean hasPulse();
+
     /**
      * Draw a box with a border and empty background.
      *
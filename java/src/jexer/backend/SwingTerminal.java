@@ -372,6 +372,46 @@ public class SwingTerminal extends LogicalScreen
      */
     private boolean pixelMouse = false;
 
+    /**
+     * The persistent back buffer that damaged cells are rendered into.
+     * Swing paints are satisfied by copying from it, so an expose or a
+     * cursor blink never has to redraw glyphs.
+     */
+    private BufferedImage backBuffer = null;
+
+    /**
+     * Rows that contained pulsing cells when they were last rendered.
+     * These are re-rendered on every flush.
+     */
+    private boolean [] pulseRows = null;
+
+    /**
+     * The value of cursorBlinkVisible when the back buffer was last
+     * rendered.
+     */
+    private boolean lastBlinkVisible = true;
+
+    /**
+     * If true, the cursor was drawn on the last flush.
+     */
+    private boolean lastCursorShown = false;
+
+    /**
+     * The cursor column drawn on the last flush.
+     */
+    private int lastCursorX = -1;
+
+    /**
+     * The cursor row drawn on the last flush.
+     */
+    private int lastCursorY = -1;
+
+    /**
+     * The number of cells rendered into the back buffer since this terminal
+     * was created.
+     */
+    private long cellsPainted = 0;
+
     // ------------------------------------------------------------------------
     // Constructors -----------------------------------------------------------
     // ------------------------------------------------------------------------
@@ -668,18 +708,34 @@ public class SwingTerminal extends LogicalScreen
             // System.err.println("New lastBlinkTime: " + lastBlinkTime);
         }
 
+        List<Rectangle> damage;
+        synchronized (this) {
+            damage = renderDamage();
+        }
+        if (damage.size() == 0) {
+            // Nothing changed, including the cursor.
+            return;
+        }
+
         if ((swing.getFrame() != null)
             && (swing.getBufferStrategy() != null)
         ) {
+            boolean restored = false;
             do {
                 do {
-                    drawToSwing();
+                    drawToSwing(damage, restored);
+                    // If we come around again the buffer contents were
+                    // lost, so everything has to be copied over.
+                    restored = true;
                 } while (swing.getBufferStrategy().contentsRestored());
                 syncSwingBuffer();
             } while (swing.getBufferStrategy().contentsLost());
         } else {
-            // Non-triple-buffered, call drawToSwing() once
-            drawToSwing();
+            // Repaint on the Swing thread, but only the damaged areas.
+            for (Rectangle rect: damage) {
+                swing.repaint(rect.x + left, rect.y + top, rect.width,
+                    rect.height);
+            }
         }
     }
 
@@ -1658,7 +1714,8 @@ public class SwingTerminal extends LogicalScreen
     }
 
     /**
-     * Paint redraws the whole screen.
+     * Paint copies the back buffer to the screen and draws the cursor over
+     * it.
      *
      * @param gr the Swing Graphics context
      */
@@ -1682,85 +1739,18 @@ public class SwingTerminal extends LogicalScreen
             return;
         }
 
-        int xCellMin = 0;
-        int xCellMax = width;
-        int yCellMin = 0;
-        int yCellMax = height;
-
-        Rectangle bounds = gr.getClipBounds();
-        if (bounds != null) {
-            // Only update what is in the bounds
-            xCellMin = textColumn(bounds.x);
-            xCellMax = textColumn(bounds.x + bounds.width) + 1;
-            if (xCellMax > width) {
-                xCellMax = width;
-            }
-            if (xCellMin >= xCellMax) {
-                xCellMin = xCellMax - 2;
-            }
-            if (xCellMin < 0) {
-                xCellMin = 0;
-            }
-            yCellMin = textRow(bounds.y);
-            yCellMax = textRow(bounds.y + bounds.height) + 1;
-            if (yCellMax > height) {
-                yCellMax = height;
-            }
-            if (yCellMin >= yCellMax) {
-                yCellMin = yCellMax - 2;
-            }
-            if (yCellMin < 0) {
-                yCellMin = 0;
-            }
-        } else {
-            // We need a total repaint
-            reallyCleared = true;
-        }
-
         // Prevent updates to the screen's data from the TApplication
         // threads.
         synchronized (this) {
-
-            /*
-            System.err.printf("bounds %s X %d %d Y %d %d\n",
-                 bounds, xCellMin, xCellMax, yCellMin, yCellMax);
-             */
-
-            for (int y = yCellMin; y < yCellMax; y++) {
-                for (int x = xCellMin; x < xCellMax; x++) {
-
-                    int xPixel = x * textWidth + left;
-                    int yPixel = y * textHeight + top;
-
-                    Cell lCell = logical[x][y];
-                    Cell pCell = physical[x][y];
-
-                    if (!lCell.equals(pCell)
-                        || lCell.isBlink()
-                        || lCell.isPulse()
-                        || reallyCleared
-                        || (swing.getFrame() == null)) {
-
-                        if (lCell.isImage()) {
-                            if (imagesOverText) {
-                                if (lCell.isTransparentImage()) {
-                                    // Draw the glyph underneath the image.
-                                    drawGlyph(gr, lCell, xPixel, yPixel);
-                                }
-                            }
-                            drawImage(gr, lCell, xPixel, yPixel);
-                        } else {
-                            drawGlyph(gr, lCell, xPixel, yPixel);
-                        }
-
-                        // Physical is always updated
-                        physical[x][y].setTo(lCell);
-                    }
-                }
+            if (!isBackBufferValid()) {
+                // We have not flushed at this size yet, render everything
+                // now.
+                renderDamage();
             }
-            drawCursor(gr);
 
-            reallyCleared = false;
+            // The Graphics clip limits the copy to what Swing asked for.
+            gr.drawImage(backBuffer, left, top, null);
+            drawCursor(gr);
         } // synchronized (this)
     }
 
@@ -1772,146 +1762,210 @@ public class SwingTerminal extends LogicalScreen
     }
 
     /**
-     * Push the logical screen to the physical device.
+     * Get the number of cells rendered into the back buffer since this
+     * terminal was created.  Cells that did not change between flushes are
+     * not counted.
+     *
+     * @return the number of cells rendered
      */
-    private void drawToSwing() {
+    public long getCellsPainted() {
+        return cellsPainted;
+    }
 
-        /*
-        System.err.printf("drawToSwing(): reallyCleared %s dirty %s\n",
-            reallyCleared, dirty);
-        */
+    /**
+     * Check that the back buffer exists and matches the current screen and
+     * font dimensions.
+     *
+     * @return true if the back buffer can be used as-is
+     */
+    private boolean isBackBufferValid() {
+        return ((backBuffer != null)
+            && (backBuffer.getWidth() == width * textWidth)
+            && (backBuffer.getHeight() == height * textHeight)
+            && (pulseRows.length == height));
+    }
 
-        // If reallyCleared is set, we have to draw everything.
-        if ((swing.getFrame() != null)
-            && (swing.getBufferStrategy() != null)
-            && (reallyCleared == true)
-        ) {
-            // Triple-buffering: we have to redraw everything on this thread.
-            Graphics gr = swing.getBufferStrategy().getDrawGraphics();
-            swing.paint(gr);
-            gr.dispose();
-            syncSwingBuffer();
-            return;
-        } else if (((swing.getFrame() != null)
-                && (swing.getBufferStrategy() == null))
-            || (reallyCleared == true)
-        ) {
-            // Repaint everything on the Swing thread.
-            // System.err.println("REPAINT ALL");
-            swing.repaint();
-            return;
+    /**
+     * Get the pixel rectangle (relative to the back buffer) that the cursor
+     * can cover.  This includes the neighboring cells, so that both halves
+     * of a fullwidth character are covered.
+     *
+     * @param x cursor column
+     * @param y cursor row
+     * @return the rectangle
+     */
+    private Rectangle getCursorRectangle(final int x, final int y) {
+        int x0 = Math.max(x - 1, 0);
+        int x1 = Math.min(x + 1, width - 1);
+        return new Rectangle(x0 * textWidth, y * textHeight,
+            (x1 - x0 + 1) * textWidth, textHeight);
+    }
+
+    /**
+     * Render the damaged regions of the logical screen into the back
+     * buffer.  The caller must hold the lock on this screen.
+     *
+     * @return the pixel rectangles (relative to the back buffer) that need
+     * to be copied to the screen, including the old and new cursor
+     * positions if the cursor changed
+     */
+    private List<Rectangle> renderDamage() {
+        List<Rectangle> damage = new ArrayList<Rectangle>();
+
+        if ((width <= 0) || (height <= 0)) {
+            return damage;
         }
 
-        if ((swing.getFrame() != null) && (swing.getBufferStrategy() != null)) {
-            Graphics gr = swing.getBufferStrategy().getDrawGraphics();
+        boolean repaintAll = reallyCleared;
+        if (!isBackBufferValid()) {
+            backBuffer = new BufferedImage(width * textWidth,
+                height * textHeight, BufferedImage.TYPE_INT_ARGB);
+            pulseRows = new boolean[height];
+            repaintAll = true;
+        }
+        if (repaintAll) {
+            damageAll();
+        }
 
-            synchronized (this) {
-                for (int y = 0; y < height; y++) {
-                    for (int x = 0; x < width; x++) {
-                        Cell lCell = logical[x][y];
-                        Cell pCell = physical[x][y];
-
-                        int xPixel = x * textWidth + left;
-                        int yPixel = y * textHeight + top;
-
-                        if (!lCell.equals(pCell)
-                            || ((x == cursorX)
-                                && (y == cursorY)
-                                && cursorVisible)
-                            || lCell.isBlink()
-                            || lCell.isPulse()
-                        ) {
-                            if (lCell.isImage()) {
-                                if (imagesOverText) {
-                                    if (lCell.isTransparentImage()) {
-                                        // Draw the glyph underneath the image.
-                                        drawGlyph(gr, lCell, xPixel, yPixel);
-                                    }
-                                }
-                                drawImage(gr, lCell, xPixel, yPixel);
-                            } else {
-                                drawGlyph(gr, lCell, xPixel, yPixel);
-                            }
-                            physical[x][y].setTo(lCell);
-                        }
+        boolean blinkFlipped = (lastBlinkVisible != cursorBlinkVisible);
+        lastBlinkVisible = cursorBlinkVisible;
+        if (blinkFlipped) {
+            // Only the blinking cells change with the blink state.
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    if (logical[x][y].isBlink()) {
+                        damageCell(x, y);
                     }
                 }
-                drawCursor(gr);
-            } // synchronized (this)
-
-            gr.dispose();
-            syncSwingBuffer();
-            return;
+            }
         }
 
-        // Swing thread version: request a repaint, but limit it to the area
-        // that has changed.
+        Graphics2D gr = backBuffer.createGraphics();
+        gr.setFont(swing.getFont());
+
+        for (int y = 0; y < height; y++) {
+            int xMin = damageLeft[y];
+            int xMax = damageRight[y];
+            if (pulseRows[y]) {
+                // Pulsing cells are animated, redraw the whole row.
+                xMin = 0;
+                xMax = width - 1;
+            }
+            if (xMin > xMax) {
+                continue;
+            }
+            if ((xMin == 0) && (xMax == width - 1)) {
+                // We will see every cell on this row.
+                pulseRows[y] = false;
+            }
+
+            int paintLeft = width;
+            int paintRight = -1;
+            for (int x = xMin; x <= xMax; x++) {
+                Cell lCell = logical[x][y];
+                Cell pCell = physical[x][y];
 
-        // Find the minimum-size damaged region.
-        int xMin = swing.getWidth();
-        int xMax = 0;
-        int yMin = swing.getHeight();
-        int yMax = 0;
+                if (lCell.isPulse()) {
+                    pulseRows[y] = true;
+                }
 
-        synchronized (this) {
-            for (int y = 0; y < height; y++) {
-                for (int x = 0; x < width; x++) {
-                    Cell lCell = logical[x][y];
-                    Cell pCell = physical[x][y];
-
-                    int xPixel = x * textWidth + left;
-                    int yPixel = y * textHeight + top;
-
-                    if (!lCell.equals(pCell)
-                        || ((x == cursorX)
-                            && (y == cursorY)
-                            && cursorVisible)
-                        || lCell.isBlink()
-                        || lCell.isPulse()
-                    ) {
-                        if (xPixel < xMin) {
-                            xMin = xPixel;
-                        }
-                        if (xPixel + textWidth > xMax) {
-                            xMax = xPixel + textWidth;
-                        }
-                        if (yPixel < yMin) {
-                            yMin = yPixel;
-                        }
-                        if (yPixel + textHeight > yMax) {
-                            yMax = yPixel + textHeight;
+                if (!repaintAll
+                    && lCell.equals(pCell)
+                    && !lCell.isPulse()
+                    && !(blinkFlipped && lCell.isBlink())
+                ) {
+                    continue;
+                }
+
+                int xPixel = x * textWidth;
+                int yPixel = y * textHeight;
+                if (lCell.isImage()) {
+                    if (imagesOverText) {
+                        if (lCell.isTransparentImage()) {
+                            // Draw the glyph underneath the image.
+                            drawGlyph(gr, lCell, xPixel, yPixel);
                         }
                     }
+                    drawImage(gr, lCell, xPixel, yPixel);
+                } else {
+                    drawGlyph(gr, lCell, xPixel, yPixel);
                 }
+
+                // Physical is always updated
+                physical[x][y].setTo(lCell);
+                cellsPainted++;
+
+                paintLeft = Math.min(paintLeft, x);
+                paintRight = Math.max(paintRight, x);
+            }
+            if (paintLeft <= paintRight) {
+                damage.add(new Rectangle(paintLeft * textWidth, y * textHeight,
+                        (paintRight - paintLeft + 1) * textWidth, textHeight));
             }
         }
-        if (xMin + textWidth >= xMax) {
-            xMax += textWidth;
-        }
-        if (yMin + textHeight >= yMax) {
-            yMax += textHeight;
+        gr.dispose();
+        clearDamage();
+        reallyCleared = false;
+
+        // The cursor is drawn over the back buffer, so moving or blinking
+        // it only needs the old and new cursor cells copied again.
+        boolean cursorShown = cursorVisible
+            && (cursorY >= 0)
+            && (cursorX >= 0)
+            && (cursorY <= height - 1)
+            && (cursorX <= width - 1)
+            && cursorBlinkVisible;
+        if ((cursorShown != lastCursorShown)
+            || (cursorShown
+                && ((cursorX != lastCursorX) || (cursorY != lastCursorY)))
+        ) {
+            if (lastCursorShown
+                && (lastCursorX < width)
+                && (lastCursorY < height)
+            ) {
+                damage.add(getCursorRectangle(lastCursorX, lastCursorY));
+            }
+            if (cursorShown) {
+                damage.add(getCursorRectangle(cursorX, cursorY));
+            }
+        } else if (cursorShown && (damage.size() > 0)) {
+            // Something else changed, make sure the cursor is drawn back
+            // over it.
+            damage.add(getCursorRectangle(cursorX, cursorY));
         }
+        lastCursorShown = cursorShown;
+        lastCursorX = cursorX;
+        lastCursorY = cursorY;
 
-        // Repaint the desired area
-        /*
-        System.err.printf("REPAINT X %d %d Y %d %d\n", xMin, xMax,
-            yMin, yMax);
-        */
+        return damage;
+    }
 
-        if ((swing.getFrame() != null) && (swing.getBufferStrategy() != null)) {
-            // This path should never be taken, but is left here for
-            // completeness.
-            Graphics gr = swing.getBufferStrategy().getDrawGraphics();
-            Rectangle bounds = new Rectangle(xMin, yMin, xMax - xMin,
-                yMax - yMin);
-            gr.setClip(bounds);
-            swing.paint(gr);
-            gr.dispose();
-            syncSwingBuffer();
-        } else {
-            // Repaint on the Swing thread.
-            swing.repaint(xMin, yMin, xMax - xMin, yMax - yMin);
-        }
+    /**
+     * Copy damaged regions of the back buffer to the triple-buffer buffer.
+     *
+     * @param damage the pixel rectangles (relative to the back buffer) to
+     * copy
+     * @param everything if true, copy the entire back buffer
+     */
+    private void drawToSwing(final List<Rectangle> damage,
+        final boolean everything) {
+
+        Graphics gr = swing.getBufferStrategy().getDrawGraphics();
+        synchronized (this) {
+            if (everything) {
+                gr.drawImage(backBuffer, left, top, null);
+            } else {
+                for (Rectangle rect: damage) {
+                    gr.drawImage(backBuffer, rect.x + left, rect.y + top,
+                        rect.x + left + rect.width,
+                        rect.y + top + rect.height,
+                        rect.x, rect.y, rect.x + rect.width,
+                        rect.y + rect.height, null);
+                }
+            }
+            drawCursor(gr);
+        } // synchronized (this)
+        gr.dispose();
     }
 
     /**
@@ -2276,9 +2330,7 @@ public class SwingTerminal extends LogicalScreen
             resetBlinkTimer();
         }
         if (listener != null) {
-            synchronized (listener) {
-                listener.notifyAll();
-            }
+            wakeListener();
         }
     }
 
@@ -2319,9 +2371,7 @@ public class SwingTerminal extends LogicalScreen
             resetBlinkTimer();
         }
         if (listener != null) {
-            synchronized (listener) {
-                listener.notifyAll();
-            }
+            wakeListener();
         }
     }
 
@@ -2425,9 +2475,7 @@ public class SwingTerminal extends LogicalScreen
              */
         }
         if (listener != null) {
-            synchronized (listener) {
-                listener.notifyAll();
-            }
+            wakeListener();
         }
     }
 
@@ -2492,9 +2540,7 @@ public class SwingTerminal extends LogicalScreen
             resetBlinkTimer();
         }
         if (listener != null) {
-            synchronized (listener) {
-                listener.notifyAll();
-            }
+            wakeListener();
         }
     }
 
@@ -2540,9 +2586,7 @@ public class SwingTerminal extends LogicalScreen
             resetBlinkTimer();
         }
         if (listener != null) {
-            synchronized (listener) {
-                listener.notifyAll();
-            }
+            wakeListener();
         }
     }
 
@@ -2628,9 +2672,7 @@ public class SwingTerminal extends LogicalScreen
             resetBlinkTimer();
         }
         if (listener != null) {
-            synchronized (listener) {
-                listener.notifyAll();
-            }
+            wakeListener();
         }
     }
 
@@ -2694,9 +2736,7 @@ public class SwingTerminal extends LogicalScreen
             resetBlinkTimer();
         }
         if (listener != null) {
-            synchronized (listener) {
-                listener.notifyAll();
-            }
+            wakeListener();
         }
     }
 
@@ -2763,6 +2803,17 @@ public class SwingTerminal extends LogicalScreen
             resetBlinkTimer();
         }
         if (listener != null) {
+            wakeListener();
+        }
+    }
+
+    /**
+     * Wake the listener so that it picks up new events.
+     */
+    private void wakeListener() {
+        if (listener instanceof BackendListener) {
+            ((BackendListener) listener).wakeup();
+        } else {
             synchronized (listener) {
                 listener.notifyAll();
             }
@@ -280,9 +280,7 @@ public class TWindowBackend extends TWindow implements Backend {
                     eventQueue.add(new TResizeEvent(this,
                             TResizeEvent.Type.SCREEN, newWidth, newHeight));
                 }
-                synchronized (listener) {
-                    listener.notifyAll();
-                }
+                wakeListener();
             }
             return;
         } else {
@@ -323,9 +321,7 @@ public class TWindowBackend extends TWindow implements Backend {
             synchronized (eventQueue) {
                 eventQueue.add(event);
             }
-            synchronized (listener) {
-                listener.notifyAll();
-            }
+            wakeListener();
         }
         super.onMouseDown(mouse);
     }
@@ -346,9 +342,7 @@ public class TWindowBackend extends TWindow implements Backend {
             synchronized (eventQueue) {
                 eventQueue.add(event);
             }
-            synchronized (listener) {
-                listener.notifyAll();
-            }
+            wakeListener();
         }
         super.onMouseUp(mouse);
     }
@@ -369,9 +363,7 @@ public class TWindowBackend extends TWindow implements Backend {
             synchronized (eventQueue) {
                 eventQueue.add(event);
             }
-            synchronized (listener) {
-                listener.notifyAll();
-            }
+            wakeListener();
         }
         super.onMouseMotion(mouse);
     }
@@ -387,9 +379,7 @@ public class TWindowBackend extends TWindow implements Backend {
         synchronized (eventQueue) {
             eventQueue.add(event);
         }
-        synchronized (listener) {
-            listener.notifyAll();
-        }
+        wakeListener();
     }
 
     // ------------------------------------------------------------------------
@@ -629,4 +619,17 @@ public class TWindowBackend extends TWindow implements Backend {
         return getApplication().getBackend().attrToBackgroundColor(attr);
     }
 
+    /**
+     * Wake the listener so that it picks up new events.
+     */
+    private void wakeListener() {
+        if (listener instanceof BackendListener) {
+            ((BackendListener) listener).wakeup();
+        } else {
+            synchronized (listener) {
+                listener.notifyAll();
+            }
+        }
+    }
+
 }
@@ -41,9 +41,9 @@ import jexer.TTimer;
 public class Animation {
 
     /**
-     * List of images for an animation.
+     * The source of images for an animation.
      */
-    private List<BufferedImage> frames;
+    private AnimationFrames frames;
 
     /**
      * The index of the frame that is currently visible.
@@ -93,8 +93,23 @@ public class Animation {
     public Animation(final List<BufferedImage> frames, final int frameDelay,
         final int frameLoops) {
 
+        this(new FrameList(frames), frameDelay, frameLoops);
+    }
+
+    /**
+     * Public constructor.
+     *
+     * @param frames the source of frames, which may decode them on demand
+     * @param frameDelay the number of millis to wait until next animation
+     * frame
+     * @param frameLoops the number of times to loop the animation.  0 means
+     * play it once.  -1 means to play it forever.
+     */
+    public Animation(final AnimationFrames frames, final int frameDelay,
+        final int frameLoops) {
+
         assert (frames != null);
-        assert (frames.size() > 0);
+        assert (frames.count() > 0);
 
         this.frames = frames;
         this.frameDelay = frameDelay;
@@ -125,10 +140,10 @@ public class Animation {
 
         /*
         System.err.printf("start() %d frames loops %d delay %d\n",
-            frames.size(), frameLoops, frameDelay);
+            frames.count(), frameLoops, frameDelay);
          */
 
-        if (frames.size() > 1) {
+        if (frames.count() > 1) {
             timer = application.addTimer(frameDelay, true,
                 new TAction() {
                     public void DO() {
@@ -137,7 +152,7 @@ public class Animation {
                                 currentFrame++;
                                 gotFrame = false;
                             }
-                            if (currentFrame >= frames.size()) {
+                            if (currentFrame >= frames.count()) {
                                 currentFrame = 0;
                             }
                             loopCount++;
@@ -177,7 +192,7 @@ public class Animation {
      * @return the number of frames
      */
     public int count() {
-        return frames.size();
+        return frames.count();
     }
 
     /**
@@ -189,6 +204,16 @@ public class Animation {
         return currentFrame;
     }
 
+    /**
+     * Get the number of the frame that will be in view after the current
+     * one.
+     *
+     * @return the frame number
+     */
+    public int nextFrameNumber() {
+        return (currentFrame + 1) % frames.count();
+    }
+
     /**
      * Get a frame by number.
      *
@@ -197,7 +222,7 @@ public class Animation {
      */
     public BufferedImage getFrame(final int frameNumber) {
         gotFrame = true;
-        return frames.get(frameNumber);
+        return frames.getFrame(frameNumber);
     }
 
     /**
@@ -207,7 +232,62 @@ public class Animation {
      */
     public BufferedImage getFrame() {
         gotFrame = true;
-        return frames.get(currentFrame);
+        return frames.getFrame(currentFrame);
+    }
+
+    /**
+     * Get a frame by number without marking the current frame as seen.
+     * This may be called from another thread to prepare frames ahead of
+     * playback.
+     *
+     * @param frameNumber the frame number
+     * @return the frame
+     */
+    public BufferedImage peekFrame(final int frameNumber) {
+        return frames.getFrame(frameNumber);
+    }
+
+    /**
+     * FrameList holds every frame of an animation in memory.
+     */
+    private static class FrameList implements AnimationFrames {
+
+        /**
+         * List of images for an animation.
+         */
+        private List<BufferedImage> frames;
+
+        /**
+         * Public constructor.
+         *
+         * @param frames the frames
+         */
+        public FrameList(final List<BufferedImage> frames) {
+            assert (frames != null);
+            assert (frames.size() > 0);
+
+            this.frames = frames;
+        }
+
+        /**
+         * Get the number of frames.
+         *
+         * @return the number of frames
+         */
+        public int count() {
+            return frames.size();
+        }
+
+        /**
+         * Get a frame by number.
+         *
+         * @param frameNumber the frame number
+         * @return the frame
+         */
+        public BufferedImage getFrame(final int frameNumber) {
+            return frames.get(frameNumber);
+        }
+
     }
 
 }
@@ -0,0 +1,57 @@
+/*
+ * Jexer - Java Text User Interface
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2022 Autumn Lamonte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * @author Autumn Lamonte ⚧ Trans Liberation Now
+ * @version 1
+ */
+package jexer.bits;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * AnimationFrames supplies the frames of an Animation.  Implementations
+ * may hold every frame in memory, or decode frames on demand from a
+ * stream.
+ */
+public interface AnimationFrames {
+
+    /**
+     * Get the number of frames.
+     *
+     * @return the number of frames
+     */
+    public int count();
+
+    /**
+     * Get a frame by number.  Frames are usually requested in order, and
+     * implementations that decode on demand may be slower to seek
+     * backwards.
+     *
+     * @param frameNumber the frame number, from 0 to count() - 1
+     * @return the frame
+     */
+    public BufferedImage getFrame(final int frameNumber);
+
+}
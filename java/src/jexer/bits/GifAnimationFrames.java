@@ -0,0 +1,383 @@
+/*
+ * Jexer - Java Text User Interface
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2022 Autumn Lamonte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * @author Autumn Lamonte ⚧ Trans Liberation Now
+ * @version 1
+ */
+package jexer.bits;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import org.w3c.dom.NodeList;
+
+/**
+ * GifAnimationFrames decodes the frames of an animated GIF on demand from
+ * an ImageInputStream.  Only the frame metadata is read up front.  Frames
+ * are composited onto a single canvas in order, applying each frame's
+ * disposal method before the next frame is drawn, and the last few full
+ * frames are kept in a small LRU cache.
+ */
+final class GifAnimationFrames implements AnimationFrames {
+
+    // ------------------------------------------------------------------------
+    // Constants --------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * The number of composited frames to keep.
+     */
+    private static final int DECODED_FRAMES = 4;
+
+    /**
+     * The GIF image metadata format.
+     */
+    private static final String GIF_IMAGE_METADATA =
+        "javax_imageio_gif_image_1.0";
+
+    // ------------------------------------------------------------------------
+    // Variables --------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * The reader that decodes frames.
+     */
+    private ImageReader reader;
+
+    /**
+     * The stream the reader is reading from.
+     */
+    private ImageInputStream stream;
+
+    /**
+     * The width of the logical screen.
+     */
+    private int width;
+
+    /**
+     * The height of the logical screen.
+     */
+    private int height;
+
+    /**
+     * The number of frames.
+     */
+    private int count;
+
+    /**
+     * The left position of each frame on the logical screen.
+     */
+    private int [] frameX;
+
+    /**
+     * The top position of each frame on the logical screen.
+     */
+    private int [] frameY;
+
+    /**
+     * The width of each frame.
+     */
+    private int [] frameWidth;
+
+    /**
+     * The height of each frame.
+     */
+    private int [] frameHeight;
+
+    /**
+     * The delay after each frame, in hundredths of a second.
+     */
+    private int [] delays;
+
+    /**
+     * The disposal method of each frame.
+     */
+    private String [] disposals;
+
+    /**
+     * The canvas that frames are composited onto.
+     */
+    private BufferedImage canvas;
+
+    /**
+     * The canvas as it was before the last frame was drawn, kept only when
+     * that frame is to be disposed with restoreToPrevious.
+     */
+    private BufferedImage previous;
+
+    /**
+     * The number of the last frame drawn onto canvas, or -1 if canvas is
+     * empty.  That frame's disposal has not been applied yet.
+     */
+    private int canvasFrame = -1;
+
+    /**
+     * The most recently composited frames, by frame number.
+     */
+    private Map<Integer, BufferedImage> decoded;
+
+    /**
+     * The last frame successfully returned, used if the stream fails.
+     */
+    private BufferedImage lastFrame;
+
+    // ------------------------------------------------------------------------
+    // Constructors -----------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Package private constructor.  The frame metadata is read here, but no
+     * frame is decoded.
+     *
+     * @param reader the reader, already set to read from stream
+     * @param stream the stream to decode frames from
+     * @throws IOException if the stream cannot be read
+     */
+    GifAnimationFrames(final ImageReader reader,
+        final ImageInputStream stream) throws IOException {
+
+        this.reader = reader;
+        this.stream = stream;
+
+        width = -1;
+        height = -1;
+        IIOMetadata metadata = reader.getStreamMetadata();
+        if (metadata != null) {
+            try {
+                IIOMetadataNode root;
+                root = (IIOMetadataNode) metadata.getAsTree(metadata.
+                    getNativeMetadataFormatName());
+                NodeList screenDesc = root.getElementsByTagName(
+                        "LogicalScreenDescriptor");
+                if (screenDesc.getLength() > 0) {
+                    IIOMetadataNode node;
+                    node = (IIOMetadataNode) screenDesc.item(0);
+                    width = Integer.parseInt(node.getAttribute(
+                        "logicalScreenWidth"));
+                    height = Integer.parseInt(node.getAttribute(
+                        "logicalScreenHeight"));
+                }
+            } catch (IllegalArgumentException e) {
+                // SQUASH
+            }
+        }
+
+        count = reader.getNumImages(true);
+        frameX = new int[count];
+        frameY = new int[count];
+        frameWidth = new int[count];
+        frameHeight = new int[count];
+        delays = new int[count];
+        disposals = new String[count];
+
+        for (int i = 0; i < count; i++) {
+            frameWidth[i] = reader.getWidth(i);
+            frameHeight[i] = reader.getHeight(i);
+            disposals[i] = "none";
+
+            IIOMetadataNode root;
+            try {
+                root = (IIOMetadataNode) reader.getImageMetadata(i).
+                        getAsTree(GIF_IMAGE_METADATA);
+            } catch (IllegalArgumentException e) {
+                // Not a GIF: every frame covers the whole image.
+                continue;
+            }
+            NodeList nodes = root.getElementsByTagName(
+                "GraphicControlExtension");
+            if (nodes.getLength() > 0) {
+                IIOMetadataNode gce = (IIOMetadataNode) nodes.item(0);
+                delays[i] = Integer.parseInt(gce.getAttribute("delayTime"));
+                disposals[i] = gce.getAttribute("disposalMethod");
+            }
+            nodes = root.getElementsByTagName("ImageDescriptor");
+            if (nodes.getLength() > 0) {
+                IIOMetadataNode desc = (IIOMetadataNode) nodes.item(0);
+                frameX[i] = Integer.parseInt(desc.getAttribute(
+                    "imageLeftPosition"));
+                frameY[i] = Integer.parseInt(desc.getAttribute(
+                    "imageTopPosition"));
+            }
+        }
+
+        if ((count > 0) && ((width <= 0) || (height <= 0))) {
+            width = frameWidth[0];
+            height = frameHeight[0];
+        }
+
+        decoded = new LinkedHashMap<Integer, BufferedImage>(DECODED_FRAMES,
+            0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                final Map.Entry<Integer, BufferedImage> eldest) {
+
+                return size() > DECODED_FRAMES;
+            }
+        };
+    }
+
+    // ------------------------------------------------------------------------
+    // AnimationFrames --------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Get the number of frames.
+     *
+     * @return the number of frames
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Get a frame by number, decoding it if necessary.  Moving forward
+     * decodes only the frames in between; moving backward starts over from
+     * the first frame.
+     *
+     * @param frameNumber the frame number, from 0 to count() - 1
+     * @return the frame
+     */
+    public synchronized BufferedImage getFrame(final int frameNumber) {
+        BufferedImage frame = decoded.get(frameNumber);
+        if (frame != null) {
+            lastFrame = frame;
+            return frame;
+        }
+
+        try {
+            if ((canvas == null) || (frameNumber < canvasFrame)) {
+                canvas = new BufferedImage(width, height,
+                    BufferedImage.TYPE_INT_ARGB);
+                previous = null;
+                canvasFrame = -1;
+            }
+            while (canvasFrame < frameNumber) {
+                drawFrame(canvasFrame + 1);
+            }
+            frame = copy(canvas);
+            decoded.put(frameNumber, frame);
+            lastFrame = frame;
+            return frame;
+        } catch (IOException e) {
+            // SQUASH
+        } catch (IndexOutOfBoundsException e) {
+            // SQUASH
+        }
+
+        // The stream has failed.  Keep showing what we have.
+        canvas = null;
+        if (lastFrame == null) {
+            lastFrame = new BufferedImage(Math.max(1, width),
+                Math.max(1, height), BufferedImage.TYPE_INT_ARGB);
+        }
+        return lastFrame;
+    }
+
+    // ------------------------------------------------------------------------
+    // GifAnimationFrames -----------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Get the delay after a frame.
+     *
+     * @param frameNumber the frame number
+     * @return the delay in hundredths of a second
+     */
+    int getDelay(final int frameNumber) {
+        return delays[frameNumber];
+    }
+
+    /**
+     * Dispose of the previous frame and draw the next frame onto canvas.
+     *
+     * @param frameNumber the frame to draw, which must be canvasFrame + 1
+     * @throws IOException if the stream cannot be read
+     */
+    private void drawFrame(final int frameNumber) throws IOException {
+        assert (frameNumber == canvasFrame + 1);
+
+        if (canvasFrame >= 0) {
+            String disposal = disposals[canvasFrame];
+            if (disposal.equals("restoreToPrevious") && (previous != null)) {
+                canvas = previous;
+            } else if (disposal.equals("restoreToBackgroundColor")) {
+                Graphics2D gr = canvas.createGraphics();
+                gr.setBackground(new java.awt.Color(0, 0, 0, 0));
+                gr.clearRect(frameX[canvasFrame], frameY[canvasFrame],
+                    frameWidth[canvasFrame], frameHeight[canvasFrame]);
+                gr.dispose();
+            }
+        }
+        previous = null;
+        if (disposals[frameNumber].equals("restoreToPrevious")) {
+            previous = copy(canvas);
+        }
+
+        BufferedImage image = reader.read(frameNumber);
+        Graphics2D gr = canvas.createGraphics();
+        gr.drawImage(image, frameX[frameNumber], frameY[frameNumber], null);
+        gr.dispose();
+        canvasFrame = frameNumber;
+    }
+
+    /**
+     * Copy an image.
+     *
+     * @param image the image to copy
+     * @return a new image with the same pixels
+     */
+    private BufferedImage copy(final BufferedImage image) {
+        return new BufferedImage(image.getColorModel(),
+            image.copyData(null), image.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * Stop decoding and release the stream.
+     */
+    synchronized void close() {
+        if (reader != null) {
+            reader.dispose();
+            reader = null;
+        }
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // SQUASH
+            }
+            stream = null;
+        }
+    }
+
+}
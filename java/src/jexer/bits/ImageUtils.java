@@ -28,14 +28,12 @@
  */
 package jexer.bits;
 
-import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
 // import java.awt.image.DataBuffer;
 import java.awt.image.IndexColorModel;
 // import java.awt.image.Raster;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.net.URL;
@@ -44,12 +42,7 @@ import java.util.LinkedList;
 import java.util.List;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
-import javax.imageio.metadata.IIOMetadata;
-import javax.imageio.metadata.IIOMetadataNode;
 import javax.imageio.stream.ImageInputStream;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 /**
  * ImageUtils contains methods to:
@@ -215,23 +208,19 @@ public class ImageUtils {
      * @return the animation, or null on error
      */
     public static Animation getAnimation(final String filename) {
-        try {
-            return getAnimation(new FileInputStream(filename));
-        } catch (IOException e) {
-            // SQUASH
-            return null;
-        }
+        return getAnimation(new File(filename));
     }
 
     /**
-     * Open an image as an Animation.
+     * Open an image as an Animation.  Frames are read from the file as they
+     * are needed.
      *
      * @param file the file that contains an animation
      * @return the animation, or null on error
      */
     public static Animation getAnimation(final File file) {
         try {
-            return getAnimation(new FileInputStream(file));
+            return getAnimation(ImageIO.createImageInputStream(file));
         } catch (IOException e) {
             // SQUASH
             return null;
@@ -261,197 +250,77 @@ public class ImageUtils {
      */
     public static Animation getAnimation(final InputStream inputStream) {
         try {
-            List<BufferedImage> frames = new LinkedList<BufferedImage>();
-            List<String> disposals = new LinkedList<String>();
-            int delays = 0;
+            return getAnimation(ImageIO.createImageInputStream(inputStream));
+        } catch (IOException e) {
+            // SQUASH
+            return null;
+        }
+    }
 
-            /*
-             * Assume infinite loop.  Finite-count looping in GIFs is an
-             * Application Extension made popular by Netscape 2.0: see
-             * http://giflib.sourceforge.net/whatsinagif/bits_and_bytes.html
-             * .
-             *
-             * Unfortunately the Sun GIF decoder did not read and expose
-             * this.
-             */
-            int loopCount = 0;
-
-            ImageReader reader = null;
-            ImageInputStream stream;
-            stream = ImageIO.createImageInputStream(inputStream);
-            Iterator<ImageReader> iter = ImageIO.getImageReaders(stream);
-            while (iter.hasNext()) {
-                reader = iter.next();
-                break;
-            }
-            if (reader == null) {
-                return null;
-            }
-            reader.setInput(stream);
-
-            int width = -1;
-            int height = -1;
-            java.awt.Color backgroundColor = null;
-
-            IIOMetadata metadata = reader.getStreamMetadata();
-            if (metadata != null) {
-                IIOMetadataNode gblRoot;
-                gblRoot = (IIOMetadataNode) metadata.getAsTree(metadata.
-                    getNativeMetadataFormatName());
-                NodeList gblScreenDesc;
-                gblScreenDesc = gblRoot.getElementsByTagName(
-                        "LogicalScreenDescriptor");
-                if ((gblScreenDesc != null)
-                    && (gblScreenDesc.getLength() > 0)
-                ) {
-                    IIOMetadataNode screenDescriptor;
-                    screenDescriptor = (IIOMetadataNode) gblScreenDesc.item(0);
-
-                    if (screenDescriptor != null) {
-                        width = Integer.parseInt(screenDescriptor.
-                            getAttribute("logicalScreenWidth"));
-                        height = Integer.parseInt(screenDescriptor.
-                            getAttribute("logicalScreenHeight"));
-                    }
-                }
-                NodeList gblColorTable = gblRoot.getElementsByTagName(
-                        "GlobalColorTable");
-
-                if ((gblColorTable != null)
-                    && (gblColorTable.getLength() > 0)
-                ) {
-                    IIOMetadataNode colorTable = (IIOMetadataNode) gblColorTable.item(0);
-
-                    if (colorTable != null) {
-                        String bgIndex = colorTable.getAttribute(
-                                "backgroundColorIndex");
-
-                        IIOMetadataNode color;
-                        color = (IIOMetadataNode) colorTable.getFirstChild();
-                        while (color != null) {
-                            if (color.getAttribute("index").equals(bgIndex)) {
-                                int red = Integer.parseInt(
-                                        color.getAttribute("red"));
-                                int green = Integer.parseInt(
-                                        color.getAttribute("green"));
-                                int blue = Integer.parseInt(
-                                        color.getAttribute("blue"));
-                                backgroundColor = new java.awt.Color(red,
-                                    green, blue);
-                                break;
-                            }
-
-                            color = (IIOMetadataNode) color.getNextSibling();
-                        }
-                    }
-                }
+    /**
+     * Open an image as an Animation.  Only the frame metadata is read
+     * here.  Frames are decoded from the stream as the animation asks for
+     * them, so the stream stays open for as long as the animation is in
+     * use.
+     *
+     * @param stream the stream that contains an animation
+     * @return the animation, or null on error
+     */
+    public static Animation getAnimation(final ImageInputStream stream) {
+        if (stream == null) {
+            return null;
+        }
 
+        /*
+         * Assume infinite loop.  Finite-count looping in GIFs is an
+         * Application Extension made popular by Netscape 2.0: see
+         * http://giflib.sourceforge.net/whatsinagif/bits_and_bytes.html .
+         *
+         * Unfortunately the Sun GIF decoder did not read and expose this.
+         */
+        int loopCount = 0;
+
+        ImageReader reader = null;
+        Iterator<ImageReader> iter = ImageIO.getImageReaders(stream);
+        while (iter.hasNext()) {
+            reader = iter.next();
+            break;
+        }
+        if (reader == null) {
+            return null;
+        }
+        reader.setInput(stream);
+
+        GifAnimationFrames frames = null;
+        try {
+            frames = new GifAnimationFrames(reader, stream);
+            if (frames.count() == 0) {
+                frames.close();
+                return null;
             }
-            BufferedImage master = null;
-            Graphics2D masterGraphics = null;
-            int lastx = 0;
-            int lasty = 0;
-            boolean hasBackround = false;
-
-            for (int frameIndex = 0; ; frameIndex++) {
-                BufferedImage image;
-                try {
-                    image = reader.read(frameIndex);
-                } catch (IndexOutOfBoundsException io) {
-                    break;
-                }
-                assert (image != null);
-
-                if (width == -1 || height == -1) {
-                    width = image.getWidth();
-                    height = image.getHeight();
-                }
-                IIOMetadataNode root;
-                root = (IIOMetadataNode) reader.getImageMetadata(frameIndex).
-                        getAsTree("javax_imageio_gif_image_1.0");
-                IIOMetadataNode gce;
-                gce = (IIOMetadataNode) root.getElementsByTagName(
-                        "GraphicControlExtension").item(0);
-                int delay = Integer.valueOf(gce.getAttribute("delayTime"));
-                String disposal = gce.getAttribute("disposalMethod");
-
-                int x = 0;
-                int y = 0;
-
-                if (master == null) {
-                    master = new BufferedImage(width, height,
-                        BufferedImage.TYPE_INT_ARGB);
-                    masterGraphics = master.createGraphics();
-                    masterGraphics.setBackground(new java.awt.Color(0, 0, 0, 0));
-                    if ((image.getWidth() == width)
-                        && (image.getHeight() == height)
-                    ) {
-                        hasBackround = true;
-                    }
-                } else {
-                    NodeList children = root.getChildNodes();
-                    for (int nodeIndex = 0; nodeIndex < children.getLength();
-                         nodeIndex++) {
-
-                        Node nodeItem = children.item(nodeIndex);
-                        if (nodeItem.getNodeName().equals("ImageDescriptor")) {
-                            NamedNodeMap map = nodeItem.getAttributes();
-                            x = Integer.valueOf(map.getNamedItem(
-                                "imageLeftPosition").getNodeValue());
-                            y = Integer.valueOf(map.getNamedItem(
-                                "imageTopPosition").getNodeValue());
-                        }
-                    }
-                }
-                masterGraphics.drawImage(image, x, y, null);
-                lastx = x;
-                lasty = y;
-
-                BufferedImage copy = new BufferedImage(master.getColorModel(),
-                    master.copyData(null), master.isAlphaPremultiplied(), null);
-                frames.add(copy);
-                disposals.add(disposal);
-                delays += delay;
-
-                if (disposal.equals("restoreToPrevious")) {
-                    BufferedImage from = null;
-                    for (int i = frameIndex - 1; i >= 0; i--) {
-                        if (!disposals.get(i).equals("restoreToPrevious")
-                            || (frameIndex == 0)
-                        ) {
-                            from = frames.get(i);
-                            break;
-                        }
-                    }
-
-                    master = new BufferedImage(from.getColorModel(),
-                        from.copyData(null), from.isAlphaPremultiplied(), null);
-                    masterGraphics = master.createGraphics();
-                    masterGraphics.setBackground(new java.awt.Color(0, 0, 0, 0));
-                } else if (disposal.equals("restoreToBackgroundColor")
-                    && (backgroundColor != null)) {
-
-                    if (!hasBackround || (frameIndex > 1)) {
-                        master.createGraphics().fillRect(lastx, lasty,
-                            frames.get(frameIndex - 1).getWidth(),
-                            frames.get(frameIndex - 1).getHeight());
-                    }
-                }
-            }
-            reader.dispose();
 
-            if (frames.size() == 1) {
-                loopCount = 1;
+            int delays = 0;
+            for (int i = 0; i < frames.count(); i++) {
+                delays += frames.getDelay(i);
             }
-            if (frames.size() == 0) {
-                return null;
+            int frameDelay = delays * 10 / frames.count();
+
+            if (frames.count() == 1) {
+                // Nothing to stream, release the file now.
+                List<BufferedImage> images = new LinkedList<BufferedImage>();
+                images.add(frames.getFrame(0));
+                frames.close();
+                return new Animation(images, frameDelay, 1);
             }
-            Animation animation = new Animation(frames,
-                (delays * 10 / frames.size()), loopCount);
-            return animation;
+            return new Animation(frames, frameDelay, loopCount);
 
         } catch (IOException e) {
             // SQUASH
+            if (frames != null) {
+                frames.close();
+            } else {
+                reader.dispose();
+            }
             return null;
         }
     }
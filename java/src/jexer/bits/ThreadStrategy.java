@@ -0,0 +1,160 @@
+/*
+ * Jexer - Java Text User Interface
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2022 Autumn Lamonte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * @author Autumn Lamonte ⚧ Trans Liberation Now
+ * @version 1
+ */
+package jexer.bits;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ThreadStrategy decides what kind of thread runs the loops that spend
+ * most of their life blocked on input, such as terminal readers.  On JDK
+ * 21 and later these are virtual threads, which cost a few hundred bytes
+ * of heap while parked instead of a platform thread and its stack.  On
+ * older JDKs, or when the jexer.ThreadStrategy.virtual property is
+ * "false", they are ordinary platform threads.
+ *
+ * <p>Code run this way should block rather than sleep-poll, and should not
+ * hold a monitor while it blocks, so that a virtual thread can unmount
+ * from its carrier.</p>
+ */
+public class ThreadStrategy {
+
+    // ------------------------------------------------------------------------
+    // Variables --------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * The virtual thread factory, or null if virtual threads are not used.
+     */
+    private static ThreadFactory virtualFactory = null;
+
+    /**
+     * The pool that runs short tasks on platform threads.
+     */
+    private static ExecutorService platformTasks = null;
+
+    /**
+     * Pick the strategy once, when the class is loaded.  Virtual threads
+     * are reached by reflection so that this builds and runs on JDK 8.
+     */
+    static {
+        String virtual = System.getProperty("jexer.ThreadStrategy.virtual",
+            "auto");
+        if (!virtual.equals("false")) {
+            try {
+                Method ofVirtual = Thread.class.getMethod("ofVirtual");
+                Object builder = ofVirtual.invoke(null);
+                Class<?> builderClass = Class.forName(
+                    "java.lang.Thread$Builder");
+                Method factory = builderClass.getMethod("factory");
+                virtualFactory = (ThreadFactory) factory.invoke(builder);
+            } catch (Exception e) {
+                // SQUASH: this JDK does not have virtual threads.
+                virtualFactory = null;
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // ThreadStrategy ---------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * See if blocking loops run on virtual threads.
+     *
+     * @return true if newThread() and execute() use virtual threads
+     */
+    public static boolean isVirtual() {
+        return (virtualFactory != null);
+    }
+
+    /**
+     * Create a thread for a loop that blocks on input.  The thread is not
+     * started.  Platform threads keep the default daemon setting of the
+     * creating thread; virtual threads are always daemon threads.
+     *
+     * @param runnable the loop to run
+     * @param name the thread name
+     * @return the new thread
+     */
+    public static Thread newThread(final Runnable runnable,
+        final String name) {
+
+        if (virtualFactory != null) {
+            Thread thread = virtualFactory.newThread(runnable);
+            thread.setName(name);
+            return thread;
+        }
+        return new Thread(runnable, name);
+    }
+
+    /**
+     * Run a short task that may block briefly, such as writing to a
+     * child process.  Virtual threads get one thread per task; platform
+     * threads come from a shared pool of daemon threads that exit when
+     * idle.
+     *
+     * @param task the task to run
+     */
+    public static void execute(final Runnable task) {
+        if (virtualFactory != null) {
+            virtualFactory.newThread(task).start();
+            return;
+        }
+        getPlatformTasks().execute(task);
+    }
+
+    /**
+     * Get the pool for short tasks on platform threads, creating it if
+     * needed.
+     *
+     * @return the pool
+     */
+    private static synchronized ExecutorService getPlatformTasks() {
+        if (platformTasks == null) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(0,
+                Integer.MAX_VALUE, 10, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+                    public Thread newThread(final Runnable r) {
+                        Thread thread = new Thread(r, "ThreadStrategy task");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            platformTasks = pool;
+        }
+        return platformTasks;
+    }
+
+}
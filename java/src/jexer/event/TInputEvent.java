@@ -46,6 +46,12 @@ public abstract class TInputEvent {
      */
     private Date time;
 
+    /**
+     * System.nanoTime() at which event was generated, used to measure
+     * dispatch latency.
+     */
+    private long nanoTime;
+
     /**
      * The backend that generated this event.
      */
@@ -65,6 +71,7 @@ public abstract class TInputEvent {
 
         // Save the current time
         time = new Date();
+        nanoTime = System.nanoTime();
     }
 
     // ------------------------------------------------------------------------
@@ -80,6 +87,16 @@ public abstract class TInputEvent {
         return time;
     }
 
+    /**
+     * Get the monotonic time this event was generated.  Note package
+     * private access.
+     *
+     * @return the System.nanoTime() value when this event was generated
+     */
+    final long getNanoTime() {
+        return nanoTime;
+    }
+
     /**
      * Get the backend that generated this event.
      *
@@ -0,0 +1,441 @@
+/*
+ * Jexer - Java Text User Interface
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2022 Autumn Lamonte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * @author Autumn Lamonte ⚧ Trans Liberation Now
+ * @version 1
+ */
+package jexer.event;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import jexer.backend.Backend;
+
+/**
+ * TInputEventQueue is a bounded multi-producer single-consumer queue of
+ * input events.  Any number of threads may offer events without locking;
+ * one thread at a time polls them.  The consumer sleeps in await() and is
+ * woken by signal() via park/unpark, so that producers never contend on a
+ * shared monitor.
+ *
+ * <p>
+ * The ring never drops events: if it fills up, further events are spilled
+ * to a locked overflow list until the consumer catches up.
+ *
+ * <p>
+ * The queue also keeps a histogram of dispatch latency, measured from
+ * when each event was generated to when it was polled.
+ */
+public class TInputEventQueue {
+
+    // ------------------------------------------------------------------------
+    // Constants --------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Number of latency histogram buckets.  Bucket i counts events that
+     * waited less than 2^(i+1) microseconds; the last bucket counts
+     * everything slower.
+     */
+    public static final int LATENCY_BUCKETS = 24;
+
+    // ------------------------------------------------------------------------
+    // Variables --------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * The ring of events.
+     */
+    private final TInputEvent [] ring;
+
+    /**
+     * Per-slot sequence numbers, used to hand slots between producers and
+     * the consumer.
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * ring.length - 1.
+     */
+    private final int mask;
+
+    /**
+     * Next position producers will claim.
+     */
+    private final AtomicLong tail = new AtomicLong(0);
+
+    /**
+     * Next position the consumer will read.
+     */
+    private final AtomicLong head = new AtomicLong(0);
+
+    /**
+     * Events that did not fit in the ring, in order.
+     */
+    private final ArrayDeque<TInputEvent> overflow =
+        new ArrayDeque<TInputEvent>();
+
+    /**
+     * If true, producers must append to overflow to preserve ordering.
+     */
+    private volatile boolean overflowing = false;
+
+    /**
+     * The consumer thread, if it is parked in await().
+     */
+    private volatile Thread waiter = null;
+
+    /**
+     * Set by signal(), cleared by await().
+     */
+    private final AtomicBoolean signalled = new AtomicBoolean(false);
+
+    /**
+     * Dispatch latency histogram.
+     */
+    private final AtomicLongArray latencies;
+
+    // ------------------------------------------------------------------------
+    // Constructors -----------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Public constructor.
+     *
+     * @param capacity the number of events the ring can hold, rounded up to
+     * a power of two
+     */
+    public TInputEventQueue(final int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        ring = new TInputEvent[size];
+        mask = size - 1;
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        latencies = new AtomicLongArray(LATENCY_BUCKETS);
+    }
+
+    // ------------------------------------------------------------------------
+    // TInputEventQueue -------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Add an event.  This may be called from any thread, and never blocks
+     * on the consumer.  It does not wake the consumer; call signal() after
+     * adding a batch.
+     *
+     * @param event the event to add
+     */
+    public void add(final TInputEvent event) {
+        if (overflowing) {
+            synchronized (overflow) {
+                if (overflowing) {
+                    overflow.add(event);
+                    return;
+                }
+            }
+        }
+        if (offer(event)) {
+            return;
+        }
+        synchronized (overflow) {
+            overflowing = true;
+            overflow.add(event);
+        }
+    }
+
+    /**
+     * Try to add an event to the ring.
+     *
+     * @param event the event to add
+     * @return false if the ring is full
+     */
+    private boolean offer(final TInputEvent event) {
+        long pos = tail.get();
+        for (;;) {
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    ring[index] = event;
+                    // Publish the slot.
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                // The consumer has not freed this slot yet: full.
+                return false;
+            } else {
+                // Another producer claimed this slot.
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Remove the next event.  Only the consumer thread may call this.
+     *
+     * @return the next event, or null if the queue is empty
+     */
+    public TInputEvent poll() {
+        long pos = head.get();
+        int index = (int) (pos & mask);
+        TInputEvent event = null;
+        if (sequences.get(index) - (pos + 1) == 0) {
+            event = ring[index];
+            ring[index] = null;
+            sequences.set(index, pos + mask + 1);
+            head.lazySet(pos + 1);
+        } else if (overflowing) {
+            // The ring is drained; everything else is in overflow.
+            synchronized (overflow) {
+                if ((head.get() == tail.get()) && (overflow.size() > 0)) {
+                    event = overflow.poll();
+                    if (overflow.size() == 0) {
+                        overflowing = false;
+                    }
+                }
+            }
+        }
+        if (event != null) {
+            recordLatency(event);
+        }
+        return event;
+    }
+
+    /**
+     * Remove every queued event.  Only the consumer thread may call this.
+     *
+     * @param events list to append the events to
+     * @return the number of events removed
+     */
+    public int drainTo(final List<TInputEvent> events) {
+        int count = 0;
+        for (;;) {
+            TInputEvent event = poll();
+            if (event == null) {
+                return count;
+            }
+            events.add(event);
+            count++;
+        }
+    }
+
+    /**
+     * See if there are no events waiting.
+     *
+     * @return true if the queue is empty
+     */
+    public boolean isEmpty() {
+        return (head.get() == tail.get()) && !overflowing;
+    }
+
+    /**
+     * Wake the consumer if it is sleeping in await(), or make its next
+     * await() return immediately.  This may be called from any thread.
+     */
+    public void signal() {
+        signalled.set(true);
+        Thread thread = waiter;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Discard a pending signal() that the consumer has not yet seen.  Only
+     * the consumer thread should call this.
+     */
+    public void clearSignal() {
+        signalled.set(false);
+    }
+
+    /**
+     * Sleep until signal() is called, the timeout passes, or the thread is
+     * unparked for some other reason.  Returns immediately if there are
+     * events waiting or a signal is pending.
+     *
+     * @param timeout the longest time to sleep in millis, or 0 to sleep
+     * until signalled
+     */
+    public void await(final long timeout) {
+        if (signalled.getAndSet(false)) {
+            return;
+        }
+        waiter = Thread.currentThread();
+        try {
+            // Check again after publishing waiter, so that a producer that
+            // signalled in between is not missed.
+            if (!isEmpty() || signalled.get()) {
+                return;
+            }
+            if (timeout > 0) {
+                LockSupport.parkNanos(this, timeout * 1000000L);
+            } else {
+                LockSupport.park(this);
+            }
+        } finally {
+            waiter = null;
+            signalled.set(false);
+        }
+    }
+
+    /**
+     * Record how long an event waited before being polled.
+     *
+     * @param event the event
+     */
+    private void recordLatency(final TInputEvent event) {
+        long micros = (System.nanoTime() - event.getNanoTime()) / 1000;
+        int bucket = 0;
+        if (micros > 1) {
+            bucket = Math.min(LATENCY_BUCKETS - 1,
+                63 - Long.numberOfLeadingZeros(micros));
+        }
+        latencies.incrementAndGet(bucket);
+    }
+
+    /**
+     * Get the dispatch latency histogram.  Bucket i counts the events that
+     * were polled less than 2^(i+1) microseconds after they were
+     * generated.
+     *
+     * @return a copy of the histogram
+     */
+    public long [] getLatencyHistogram() {
+        long [] result = new long[LATENCY_BUCKETS];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = latencies.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Reset the dispatch latency histogram.
+     */
+    public void resetLatencyHistogram() {
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            latencies.set(i, 0);
+        }
+    }
+
+    /**
+     * Collapse redundant events in place.  A mouse motion event replaces
+     * the previous event from the same backend if that was also a motion
+     * with the same buttons and modifiers, and a screen resize replaces
+     * the previous event from the same backend if that was also a screen
+     * resize.  Events from other backends do not break a run, so that
+     * several clients dragging at once each collapse to their latest
+     * position.
+     *
+     * @param events the events to coalesce
+     * @return the number of events removed
+     */
+    public static int coalesce(final List<TInputEvent> events) {
+        int n = events.size();
+        if (n < 2) {
+            return 0;
+        }
+        int out = 0;
+        for (int i = 0; i < n; i++) {
+            TInputEvent event = events.get(i);
+            if (isCoalescable(event)) {
+                Backend backend = event.getBackend();
+                int j = out - 1;
+                while ((j >= 0) && (events.get(j).getBackend() != backend)) {
+                    j--;
+                }
+                if ((j >= 0) && supersedes(event, events.get(j))) {
+                    // Move the newer event into the older one's slot.
+                    events.set(j, event);
+                    continue;
+                }
+            }
+            events.set(out, event);
+            out++;
+        }
+        for (int i = n - 1; i >= out; i--) {
+            events.remove(i);
+        }
+        return n - out;
+    }
+
+    /**
+     * See if an event is a candidate for coalescing.
+     *
+     * @param event the event
+     * @return true if event is a mouse motion or screen resize
+     */
+    private static boolean isCoalescable(final TInputEvent event) {
+        if (event instanceof TMouseEvent) {
+            return (((TMouseEvent) event).getType()
+                == TMouseEvent.Type.MOUSE_MOTION);
+        }
+        if (event instanceof TResizeEvent) {
+            return (((TResizeEvent) event).getType()
+                == TResizeEvent.Type.SCREEN);
+        }
+        return false;
+    }
+
+    /**
+     * See if a newer event makes an older one redundant.
+     *
+     * @param newer the newer event
+     * @param older the older event
+     * @return true if older can be dropped in favor of newer
+     */
+    private static boolean supersedes(final TInputEvent newer,
+        final TInputEvent older) {
+
+        if ((newer instanceof TResizeEvent)
+            && (older instanceof TResizeEvent)
+        ) {
+            return (((TResizeEvent) newer).getType()
+                == ((TResizeEvent) older).getType());
+        }
+        if ((newer instanceof TMouseEvent)
+            && (older instanceof TMouseEvent)
+        ) {
+            TMouseEvent a = (TMouseEvent) newer;
+            TMouseEvent b = (TMouseEvent) older;
+            return ((b.getType() == TMouseEvent.Type.MOUSE_MOTION)
+                && (a.isMouse1() == b.isMouse1())
+                && (a.isMouse2() == b.isMouse2())
+                && (a.isMouse3() == b.isMouse3())
+                && (a.isAlt() == b.isAlt())
+                && (a.isCtrl() == b.isCtrl())
+                && (a.isShift() == b.isShift()));
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,258 @@
+/*
+ * Jexer - Java Text User Interface
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2022 Autumn Lamonte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * @author Autumn Lamonte ⚧ Trans Liberation Now
+ * @version 1
+ */
+package jexer.net;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * TelnetConnection is one client of a TelnetServer.  It offers the same
+ * telnet-aware streams as TelnetSocket, but the bytes are moved by the
+ * server's selector thread rather than by threads blocked on the socket.
+ */
+public class TelnetConnection {
+
+    // ------------------------------------------------------------------------
+    // Variables --------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * The server that accepted this connection.
+     */
+    private final TelnetServer server;
+
+    /**
+     * The non-blocking channel to the client.
+     */
+    private final SocketChannel channel;
+
+    /**
+     * The channel's registration with the server's selector.
+     */
+    private SelectionKey key;
+
+    /**
+     * The telnet protocol state.
+     */
+    private final TelnetState state = new TelnetState();
+
+    /**
+     * The telnet-aware InputStream.
+     */
+    private final TelnetInputStream input;
+
+    /**
+     * The telnet-aware OutputStream.
+     */
+    private final TelnetOutputStream output;
+
+    // ------------------------------------------------------------------------
+    // Constructors -----------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Package private constructor, used by TelnetServer.
+     *
+     * @param server the server that accepted this connection
+     * @param channel the non-blocking channel to the client
+     */
+    TelnetConnection(final TelnetServer server, final SocketChannel channel) {
+        this.server = server;
+        this.channel = channel;
+        output = new TelnetOutputStream(state, this);
+        input = new TelnetInputStream(state, this, output);
+    }
+
+    // ------------------------------------------------------------------------
+    // TelnetConnection -------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Returns an input stream for this connection.
+     *
+     * @return the input stream
+     */
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    /**
+     * Returns an output stream for this connection.
+     *
+     * @return the output stream
+     */
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    /**
+     * Get the address of the client.
+     *
+     * @return the remote address, or null if it is not known
+     */
+    public SocketAddress getRemoteAddress() {
+        try {
+            return channel.getRemoteAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * See if telnet server/client is in ASCII mode.
+     *
+     * @return if true, this connection is in ASCII mode
+     */
+    public boolean isAscii() {
+        return (!state.binaryMode);
+    }
+
+    /**
+     * See if this connection is closed.
+     *
+     * @return true if the connection is closed
+     */
+    public boolean isClosed() {
+        return !channel.isOpen();
+    }
+
+    /**
+     * Close the connection.  Output that is already queued is given a
+     * moment to reach the client first.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void close() throws IOException {
+        output.close();
+    }
+
+    /**
+     * Close the channel right away.  This is called by the output stream
+     * once it is done.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    void closeChannel() throws IOException {
+        input.receiveEof();
+        output.fail(new IOException("Connection is closed"));
+        channel.close();
+        server.wakeup();
+    }
+
+    /**
+     * Register with the selector and send the options we want to
+     * negotiate on.  This runs on the selector thread.
+     *
+     * @param key the channel's registration with the selector
+     * @throws IOException if an I/O error occurs
+     */
+    void start(final SelectionKey key) throws IOException {
+        this.key = key;
+        input.telnetSendOptions();
+    }
+
+    /**
+     * Get the channel's registration with the selector.
+     *
+     * @return the key
+     */
+    SelectionKey getKey() {
+        return key;
+    }
+
+    /**
+     * Ask the selector to write queued output.
+     */
+    void wantWrite() {
+        server.wantWrite(this);
+    }
+
+    /**
+     * Run code off the selector thread.
+     *
+     * @param task the code to run
+     */
+    void runLater(final Runnable task) {
+        server.runLater(task);
+    }
+
+    /**
+     * Read what the client sent.  This runs on the selector thread.
+     *
+     * @param buffer scratch buffer to read into
+     * @return false if the client closed the connection
+     * @throws IOException if an I/O error occurs
+     */
+    boolean doRead(final ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        int rc = channel.read(buffer);
+        if (rc < 0) {
+            return false;
+        }
+        buffer.flip();
+        input.receive(buffer);
+        return true;
+    }
+
+    /**
+     * Write what the socket will take.  This runs on the selector thread.
+     *
+     * @return true if all queued output was written
+     * @throws IOException if an I/O error occurs
+     */
+    boolean doWrite() throws IOException {
+        return output.deliverTo(channel);
+    }
+
+    /**
+     * Tear down after the client went away or the channel failed.  This
+     * runs on the selector thread.
+     *
+     * @param e the error, or null if the client closed the connection
+     */
+    void disconnect(final IOException e) {
+        input.receiveEof();
+        output.fail((e != null) ? e :
+            new IOException("Connection closed by peer"));
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e2) {
+            // SQUASH
+        }
+    }
+
+}
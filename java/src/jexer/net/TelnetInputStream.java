@@ -30,15 +30,25 @@ package jexer.net;
 
 import java.io.InputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import jexer.backend.SessionInfo;
 import static jexer.net.TelnetSocket.*;
 
 /**
- * TelnetInputStream works with TelnetSocket to perform the telnet protocol.
+ * TelnetInputStream works with TelnetSocket or TelnetConnection to perform
+ * the telnet protocol.
+ *
+ * <p>Bytes from the wire go through the protocol decoder into a buffer
+ * that read() returns from.  For a TelnetSocket, read() pulls from the
+ * socket when the buffer is empty.  For a TelnetConnection, the
+ * TelnetServer's selector pushes bytes in as they arrive and read() waits
+ * for them.</p>
  */
 public class TelnetInputStream extends InputStream implements SessionInfo {
 
@@ -51,14 +61,48 @@ public class TelnetInputStream extends InputStream implements SessionInfo {
     // ------------------------------------------------------------------------
 
     /**
-     * The root TelnetSocket that has my telnet protocol state.
+     * The telnet protocol state.
+     */
+    private final TelnetState master;
+
+    /**
+     * The TelnetSocket this stream reads from, or null.
+     */
+    private final TelnetSocket socket;
+
+    /**
+     * The TelnetConnection this stream reads from, or null.
+     */
+    private final TelnetConnection connection;
+
+    /**
+     * The raw socket's InputStream, or null if the selector pushes bytes
+     * in.
+     */
+    private final InputStream input;
+
+    /**
+     * Scratch buffer for bytes read off the wire.
      */
-    private TelnetSocket master;
+    private byte [] wireBuffer = new byte[1024];
 
     /**
-     * The raw socket's InputStream.
+     * If true, the other side has closed the connection.
      */
-    private InputStream input;
+    private boolean eof = false;
+
+    /**
+     * Lock protecting the decoder and readBuffer.  This is a lock rather
+     * than a monitor so that a reader waiting on a virtual thread does not
+     * pin its carrier.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Signalled when decoded bytes arrive, the other side closes, or this
+     * stream is closed.
+     */
+    private final Condition arrived = lock.newCondition();
 
     /**
      * The telnet-aware OutputStream.
@@ -66,14 +110,13 @@ public class TelnetInputStream extends InputStream implements SessionInfo {
     private TelnetOutputStream output;
 
     /**
-     * Persistent read buffer.  In practice this will only be used if the
-     * single-byte read() is called sometime.
+     * Decoded bytes waiting to be read.  This is null after close().
      */
     private byte [] readBuffer;
 
     /**
-     * Current writing position in readBuffer - what is passed into
-     * input.read().
+     * Current writing position in readBuffer - where the decoder puts the
+     * next byte.
      */
     private int readBufferEnd;
 
@@ -150,18 +193,44 @@ public class TelnetInputStream extends InputStream implements SessionInfo {
     // ------------------------------------------------------------------------
 
     /**
-     * Package private constructor.
+     * Package private constructor, used by TelnetSocket.
      *
-     * @param master the master TelnetSocket
+     * @param master the telnet protocol state
+     * @param socket the TelnetSocket
      * @param input the underlying socket's InputStream
      * @param output the telnet-aware OutputStream
      */
-    TelnetInputStream(final TelnetSocket master, final InputStream input,
-        final TelnetOutputStream output) {
+    TelnetInputStream(final TelnetState master, final TelnetSocket socket,
+        final InputStream input, final TelnetOutputStream output) {
+
+        this.master     = master;
+        this.socket     = socket;
+        this.connection = null;
+        this.input      = input;
+        this.output     = output;
+
+        // Setup new read buffer
+        readBuffer      = new byte[1024];
+        readBufferStart = 0;
+        readBufferEnd   = 0;
+        subnegBuffer    = new ArrayList<Byte>();
+    }
+
+    /**
+     * Package private constructor, used by TelnetConnection.
+     *
+     * @param master the telnet protocol state
+     * @param connection the TelnetConnection
+     * @param output the telnet-aware OutputStream
+     */
+    TelnetInputStream(final TelnetState master,
+        final TelnetConnection connection, final TelnetOutputStream output) {
 
-        this.master = master;
-        this.input  = input;
-        this.output = output;
+        this.master     = master;
+        this.socket     = null;
+        this.connection = connection;
+        this.input      = null;
+        this.output     = output;
 
         // Setup new read buffer
         readBuffer      = new byte[1024];
@@ -289,13 +358,21 @@ public class TelnetInputStream extends InputStream implements SessionInfo {
      */
     @Override
     public int available() throws IOException {
-        if (readBuffer == null) {
-            throw new IOException("InputStream is closed");
+        lock.lock();
+        try {
+            if (readBuffer == null) {
+                throw new IOException("InputStream is closed");
+            }
+            if (readBufferEnd - readBufferStart > 0) {
+                return (readBufferEnd - readBufferStart);
+            }
+        } finally {
+            lock.unlock();
         }
-        if (readBufferEnd - readBufferStart > 0) {
-            return (readBufferEnd - readBufferStart);
+        if (input != null) {
+            return input.available();
         }
-        return input.available();
+        return 0;
     }
 
     /**
@@ -306,9 +383,20 @@ public class TelnetInputStream extends InputStream implements SessionInfo {
      */
     @Override
     public void close() throws IOException {
-        if (readBuffer != null) {
+        lock.lock();
+        try {
+            if (readBuffer == null) {
+                return;
+            }
             readBuffer = null;
+            arrived.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (input != null) {
             input.close();
+        } else {
+            connection.close();
         }
     }
 
@@ -343,31 +431,11 @@ public class TelnetInputStream extends InputStream implements SessionInfo {
      */
     @Override
     public int read() throws IOException {
-
-        // If the post-processed buffer has bytes, use that.
-        if (readBufferEnd - readBufferStart > 0) {
-            readBufferStart++;
-            return readBuffer[readBufferStart - 1];
-        }
-
-        // The buffer is empty, so reset the indexes to 0.
-        readBufferStart = 0;
-        readBufferEnd   = 0;
-
-        // Read some fresh data and run it through the telnet protocol.
-        int rc = readImpl(readBuffer, readBufferEnd,
-            readBuffer.length - readBufferEnd);
-
-        // If we got something, return it.
+        byte [] b = new byte[1];
+        int rc = read(b, 0, 1);
         if (rc > 0) {
-            readBufferEnd += rc;
-            readBufferStart++;
-            return readBuffer[readBufferStart - 1];
+            return (b[0] & 0xFF);
         }
-        // If we read 0, I screwed up big time.
-        assert (rc != 0);
-
-        // We read -1 (EOF).
         return rc;
     }
 
@@ -387,7 +455,7 @@ public class TelnetInputStream extends InputStream implements SessionInfo {
 
     /**
      * Reads up to len bytes of data from the input stream into an array of
-     * bytes.
+     * bytes.  This blocks until at least one byte is available.
      *
      * @param b the buffer into which the data is read.
      * @param off the start offset in array b at which the data is written.
@@ -406,35 +474,49 @@ public class TelnetInputStream extends InputStream implements SessionInfo {
             return 0;
         }
 
-        // If the post-processed buffer has bytes, use that.
-        if (readBufferEnd - readBufferStart > 0) {
-            int n = Math.min(len, readBufferEnd - readBufferStart);
-            System.arraycopy(b, off, readBuffer, readBufferStart, n);
-            readBufferStart += n;
-            return n;
-        }
-
-        // The buffer is empty, so reset the indexes to 0.
-        readBufferStart = 0;
-        readBufferEnd   = 0;
-
-        // The maximum number of bytes we will ask for will definitely be
-        // within the bounds of what we can return in a single call.
-        int n = Math.min(len, readBuffer.length);
+        for (;;) {
+            lock.lock();
+            try {
+                if (readBuffer == null) {
+                    throw new IOException("InputStream is closed");
+                }
 
-        // Read some fresh data and run it through the telnet protocol.
-        int rc = readImpl(readBuffer, readBufferEnd, n);
+                // If the post-processed buffer has bytes, use that.
+                int n = Math.min(len, readBufferEnd - readBufferStart);
+                if (n > 0) {
+                    System.arraycopy(readBuffer, readBufferStart, b, off, n);
+                    readBufferStart += n;
+                    if (readBufferStart == readBufferEnd) {
+                        readBufferStart = 0;
+                        readBufferEnd   = 0;
+                    }
+                    return n;
+                }
+                if (eof) {
+                    return -1;
+                }
+                if (input == null) {
+                    // The selector will push bytes in and wake us up.
+                    arrived.awaitUninterruptibly();
+                    continue;
+                }
+            } finally {
+                lock.unlock();
+            }
 
-        // If we got something, return it.
-        if (rc > 0) {
-            System.arraycopy(readBuffer, 0, b, off, rc);
-            return rc;
+            // Read some fresh data and run it through the telnet protocol.
+            int rc = input.read(wireBuffer);
+            lock.lock();
+            try {
+                if (rc < 0) {
+                    eof = true;
+                } else {
+                    decode(wireBuffer, 0, rc);
+                }
+            } finally {
+                lock.unlock();
+            }
         }
-        // If we read 0, I screwed up big time.
-        assert (rc != 0);
-
-        // We read -1 (EOF).
-        return rc;
     }
 
     /**
@@ -477,7 +559,78 @@ public class TelnetInputStream extends InputStream implements SessionInfo {
      * @return the socket
      */
     public TelnetSocket getSocket() {
-        return master;
+        return socket;
+    }
+
+    /**
+     * Get the connection associated with this input stream.
+     *
+     * @return the connection, or null if this stream reads from a
+     * TelnetSocket
+     */
+    public TelnetConnection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Decode bytes that arrived on the wire, and wake up the reader.  This
+     * is called by the TelnetServer's selector thread and does not block.
+     *
+     * @param buffer the bytes read from the channel
+     * @throws IOException if a protocol response cannot be queued
+     */
+    void receive(final ByteBuffer buffer) throws IOException {
+        lock.lock();
+        try {
+            if (readBuffer == null) {
+                buffer.position(buffer.limit());
+                return;
+            }
+            while (buffer.hasRemaining()) {
+                int n = Math.min(buffer.remaining(), wireBuffer.length);
+                buffer.get(wireBuffer, 0, n);
+                decode(wireBuffer, 0, n);
+            }
+            arrived.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Note that the other side closed the connection, and wake up the
+     * reader.
+     */
+    void receiveEof() {
+        lock.lock();
+        try {
+            eof = true;
+            arrived.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Add one decoded byte to the read buffer.  The caller must hold the
+     * lock.
+     *
+     * @param b the byte
+     */
+    private void append(final byte b) {
+        if (readBufferEnd == readBuffer.length) {
+            if (readBufferStart > 0) {
+                System.arraycopy(readBuffer, readBufferStart, readBuffer, 0,
+                    readBufferEnd - readBufferStart);
+                readBufferEnd -= readBufferStart;
+                readBufferStart = 0;
+            } else {
+                byte [] newBuffer = new byte[readBuffer.length * 2];
+                System.arraycopy(readBuffer, 0, newBuffer, 0, readBufferEnd);
+                readBuffer = newBuffer;
+            }
+        }
+        readBuffer[readBufferEnd++] = b;
     }
 
     /**
@@ -1035,414 +1188,373 @@ public class TelnetInputStream extends InputStream implements SessionInfo {
     }
 
     /**
-     * Reads up to len bytes of data from the input stream into an array of
-     * bytes.
+     * Run bytes from the wire through the telnet protocol, responding to
+     * negotiations and appending data bytes to the read buffer.  All of the
+     * protocol state is kept between calls, so the bytes can be split
+     * anywhere.  The caller must hold the lock.
      *
-     * @param buf the buffer into which the data is read.
-     * @param off the start offset in array b at which the data is written.
-     * @param len the maximum number of bytes to read.
-     * @return the total number of bytes read into the buffer, or -1 if there
-     * is no more data because the end of the stream has been reached.
-     * @throws IOException if an I/O error occurs
+     * @param buffer the bytes read from the wire
+     * @param off the start offset in buffer
+     * @param len the number of bytes to decode
+     * @throws IOException if a protocol response cannot be queued
      */
-    private int readImpl(final byte[] buf, final int off,
+    private void decode(final byte[] buffer, final int off,
         final int len) throws IOException {
 
-        assert (len > 0);
+        // Loop through the read bytes
+        for (int i = off; i < off + len; i++) {
+            byte b = buffer[i];
 
-        // The current writing position in buf.
-        int bufN = off;
-
-        // We will keep trying to read() until we have something to return.
-        do {
-
-            byte [] buffer = null;
-            if (master.binaryMode) {
-                // Binary mode: read up to len bytes.  There will never be
-                // more bytes to pass upstream than there are bytes on the
-                // wire.
-                buffer = new byte[len];
-            } else {
-                // ASCII mode: read up to len - 2 bytes.  There may have been
-                // some combination of IAC, CR, and NUL from a previous
-                // readImpl() that could result in more bytes to pass up than
-                // are on the wire.
-                buffer = new byte[len - 2];
-            }
-
-            int bufferN = 0;
-
-            // Read some data from the other end
-            int rc = input.read(buffer);
-
-            // Check for EOF or error
-            if (rc > 0) {
-                // More data came in
-                bufferN = rc;
-            } else {
-                // EOF, just return it.
-                return rc;
+            if (subnegEnd == true) {
+                // Looking for IAC SE to end this subnegotiation
+                if (b == (byte) TELNET_SE) {
+                    if (iac == true) {
+                        iac = false;
+                        subnegEnd = false;
+                        handleSubneg();
+                    }
+                } else if (b == (byte) TELNET_IAC) {
+                    if (iac == true) {
+                        // An argument to the subnegotiation option
+                        subnegBuffer.add((byte) TELNET_IAC);
+                    } else {
+                        iac = true;
+                    }
+                } else {
+                    // An argument to the subnegotiation option
+                    subnegBuffer.add(b);
+                }
+                continue;
             }
 
-            // Loop through the read bytes
-            for (int i = 0; i < bufferN; i++) {
-                byte b = buffer[i];
-
-                if (subnegEnd == true) {
-                    // Looking for IAC SE to end this subnegotiation
-                    if (b == (byte) TELNET_SE) {
-                        if (iac == true) {
-                            iac = false;
-                            subnegEnd = false;
-                            handleSubneg();
+            // Look for DO/DON'T/WILL/WON'T option
+            if (dowill == true) {
+
+                // Look for option/
+                switch (b) {
+
+                case 0:
+                    // Binary Transmission
+                    if (dowillType == (byte) TELNET_WILL) {
+                        // Server will use binary transmission, yay.
+                        master.binaryMode = true;
+                    } else if (dowillType == (byte) TELNET_DO) {
+                        // Server asks for binary transmission.
+                        WILL(b);
+                        master.binaryMode = true;
+                    } else if (dowillType == (byte) TELNET_WONT) {
+                        // We're screwed, server won't do binary
+                        // transmission.
+                        master.binaryMode = false;
+                    } else {
+                        // Server demands NVT ASCII mode.
+                        master.binaryMode = false;
+                    }
+                    break;
+
+                case 1:
+                    // Echo
+                    if (dowillType == (byte) TELNET_WILL) {
+                        // Server will use echo, yay.
+                        master.echoMode = true;
+                    } else if (dowillType == (byte) TELNET_DO) {
+                        // Server asks for echo.
+                        WILL(b);
+                        master.echoMode = true;
+                    } else if (dowillType == (byte) TELNET_WONT) {
+                        // We're screwed, server won't do echo.
+                        master.echoMode = false;
+                    } else {
+                        // Server demands no echo.
+                        master.echoMode = false;
+                    }
+                    break;
+
+                case 3:
+                    // Suppress Go Ahead
+                    if (dowillType == (byte) TELNET_WILL) {
+                        // Server will use suppress go-ahead, yay.
+                        master.goAhead = false;
+                    } else if (dowillType == (byte) TELNET_DO) {
+                        // Server asks for suppress go-ahead.
+                        WILL(b);
+                        master.goAhead = false;
+                    } else if (dowillType == (byte) TELNET_WONT) {
+                        // We're screwed, server won't do suppress
+                        // go-ahead.
+                        master.goAhead = true;
+                    } else {
+                        // Server demands Go-Ahead mode.
+                        master.goAhead = true;
+                    }
+                    break;
+
+                case 24:
+                    // Terminal Type - send what's in TERM
+                    if (dowillType == (byte) TELNET_WILL) {
+                        // Server will use terminal type, yay.
+                        if (master.isServer
+                            && master.doTermType
+                        ) {
+                            requestTerminalType();
+                            master.doTermType = false;
+                        } else if (!master.isServer) {
+                            master.doTermType = true;
                         }
-                    } else if (b == (byte) TELNET_IAC) {
-                        if (iac == true) {
-                            // An argument to the subnegotiation option
-                            subnegBuffer.add((byte) TELNET_IAC);
-                        } else {
-                            iac = true;
+                    } else if (dowillType == (byte) TELNET_DO) {
+                        // Server asks for terminal type.
+                        WILL(b);
+                        master.doTermType = true;
+                    } else if (dowillType == (byte) TELNET_WONT) {
+                        // We're screwed, server won't do terminal type.
+                        master.doTermType = false;
+                    } else {
+                        // Server will not listen to terminal type.
+                        master.doTermType = false;
+                    }
+                    break;
+
+                case 31:
+                    // NAWS
+                    if (dowillType == (byte) TELNET_WILL) {
+                        // Server will use NAWS, yay.
+                        master.doNAWS = true;
+                        // NAWS cannot be requested by the server, it is
+                        // only sent by the client.
+                    } else if (dowillType == (byte) TELNET_DO) {
+                        // Server asks for NAWS.
+                        WILL(b);
+                        master.doNAWS = true;
+                    } else if (dowillType == (byte) TELNET_WONT) {
+                        // Server won't do NAWS.
+                        master.doNAWS = false;
+                    } else {
+                        // Server will not listen to NAWS.
+                        master.doNAWS = false;
+                    }
+                    break;
+
+                case 32:
+                    // Terminal Speed
+                    if (dowillType == (byte) TELNET_WILL) {
+                        // Server will use terminal speed, yay.
+                        if (master.isServer
+                            && master.doTermSpeed
+                        ) {
+                            requestTerminalSpeed();
+                            master.doTermSpeed = false;
+                        } else if (!master.isServer) {
+                            master.doTermSpeed = true;
                         }
+                    } else if (dowillType == (byte) TELNET_DO) {
+                        // Server asks for terminal speed.
+                        WILL(b);
+                        master.doTermSpeed = true;
+                    } else if (dowillType == (byte) TELNET_WONT) {
+                        // We're screwed, server won't do terminal speed.
+                        master.doTermSpeed = false;
                     } else {
-                        // An argument to the subnegotiation option
-                        subnegBuffer.add(b);
+                        // Server will not listen to terminal speed.
+                        master.doTermSpeed = false;
                     }
-                    continue;
+                    break;
+
+                case 39:
+                    // New Environment
+                    if (dowillType == (byte) TELNET_WILL) {
+                        // Server will use NewEnvironment, yay.
+                        if (master.isServer
+                            && master.doEnvironment
+                        ) {
+                            requestEnvironment();
+                            master.doEnvironment = false;
+                        } else if (!master.isServer) {
+                            master.doEnvironment = true;
+                        }
+                    } else if (dowillType == (byte) TELNET_DO) {
+                        // Server asks for NewEnvironment.
+                        WILL(b);
+                        master.doEnvironment = true;
+                    } else if (dowillType == (byte) TELNET_WONT) {
+                        // Server won't do NewEnvironment.
+                        master.doEnvironment = false;
+                    } else {
+                        // Server will not listen to New Environment.
+                        master.doEnvironment = false;
+                    }
+                    break;
+
+
+                default:
+                    // Other side asked for something we don't
+                    // understand.  Tell them we will not do this option.
+                    refuse(dowillType, b);
+                    break;
                 }
 
-                // Look for DO/DON'T/WILL/WON'T option
-                if (dowill == true) {
+                dowill = false;
+                continue;
+            } // if (dowill == true)
+
+            // Perform read processing
+            if (b == (byte) TELNET_IAC) {
+
+                // Telnet command
+                if (iac == true) {
+                    // IAC IAC -> IAC
+                    append((byte) TELNET_IAC);
+                    iac = false;
+                } else {
+                    iac = true;
+                }
+                continue;
+            } else {
+                if (iac == true) {
 
-                    // Look for option/
                     switch (b) {
 
-                    case 0:
-                        // Binary Transmission
-                        if (dowillType == (byte) TELNET_WILL) {
-                            // Server will use binary transmission, yay.
-                            master.binaryMode = true;
-                        } else if (dowillType == (byte) TELNET_DO) {
-                            // Server asks for binary transmission.
-                            WILL(b);
-                            master.binaryMode = true;
-                        } else if (dowillType == (byte) TELNET_WONT) {
-                            // We're screwed, server won't do binary
-                            // transmission.
-                            master.binaryMode = false;
-                        } else {
-                            // Server demands NVT ASCII mode.
-                            master.binaryMode = false;
-                        }
+                    case (byte) TELNET_SE:
+                        // END Sub-Negotiation
                         break;
-
-                    case 1:
-                        // Echo
-                        if (dowillType == (byte) TELNET_WILL) {
-                            // Server will use echo, yay.
-                            master.echoMode = true;
-                        } else if (dowillType == (byte) TELNET_DO) {
-                            // Server asks for echo.
-                            WILL(b);
-                            master.echoMode = true;
-                        } else if (dowillType == (byte) TELNET_WONT) {
-                            // We're screwed, server won't do echo.
-                            master.echoMode = false;
-                        } else {
-                            // Server demands no echo.
-                            master.echoMode = false;
-                        }
+                    case (byte) TELNET_NOP:
+                        // NOP
                         break;
-
-                    case 3:
-                        // Suppress Go Ahead
-                        if (dowillType == (byte) TELNET_WILL) {
-                            // Server will use suppress go-ahead, yay.
-                            master.goAhead = false;
-                        } else if (dowillType == (byte) TELNET_DO) {
-                            // Server asks for suppress go-ahead.
-                            WILL(b);
-                            master.goAhead = false;
-                        } else if (dowillType == (byte) TELNET_WONT) {
-                            // We're screwed, server won't do suppress
-                            // go-ahead.
-                            master.goAhead = true;
-                        } else {
-                            // Server demands Go-Ahead mode.
-                            master.goAhead = true;
-                        }
+                    case (byte) TELNET_DM:
+                        // Data Mark
                         break;
-
-                    case 24:
-                        // Terminal Type - send what's in TERM
-                        if (dowillType == (byte) TELNET_WILL) {
-                            // Server will use terminal type, yay.
-                            if (master.isServer
-                                && master.doTermType
-                            ) {
-                                requestTerminalType();
-                                master.doTermType = false;
-                            } else if (!master.isServer) {
-                                master.doTermType = true;
-                            }
-                        } else if (dowillType == (byte) TELNET_DO) {
-                            // Server asks for terminal type.
-                            WILL(b);
-                            master.doTermType = true;
-                        } else if (dowillType == (byte) TELNET_WONT) {
-                            // We're screwed, server won't do terminal type.
-                            master.doTermType = false;
-                        } else {
-                            // Server will not listen to terminal type.
-                            master.doTermType = false;
-                        }
+                    case (byte) TELNET_BRK:
+                        // Break
                         break;
-
-                    case 31:
-                        // NAWS
-                        if (dowillType == (byte) TELNET_WILL) {
-                            // Server will use NAWS, yay.
-                            master.doNAWS = true;
-                            // NAWS cannot be requested by the server, it is
-                            // only sent by the client.
-                        } else if (dowillType == (byte) TELNET_DO) {
-                            // Server asks for NAWS.
-                            WILL(b);
-                            master.doNAWS = true;
-                        } else if (dowillType == (byte) TELNET_WONT) {
-                            // Server won't do NAWS.
-                            master.doNAWS = false;
-                        } else {
-                            // Server will not listen to NAWS.
-                            master.doNAWS = false;
-                        }
+                    case (byte) TELNET_IP:
+                        // Interrupt Process
                         break;
-
-                    case 32:
-                        // Terminal Speed
-                        if (dowillType == (byte) TELNET_WILL) {
-                            // Server will use terminal speed, yay.
-                            if (master.isServer
-                                && master.doTermSpeed
-                            ) {
-                                requestTerminalSpeed();
-                                master.doTermSpeed = false;
-                            } else if (!master.isServer) {
-                                master.doTermSpeed = true;
-                            }
-                        } else if (dowillType == (byte) TELNET_DO) {
-                            // Server asks for terminal speed.
-                            WILL(b);
-                            master.doTermSpeed = true;
-                        } else if (dowillType == (byte) TELNET_WONT) {
-                            // We're screwed, server won't do terminal speed.
-                            master.doTermSpeed = false;
-                        } else {
-                            // Server will not listen to terminal speed.
-                            master.doTermSpeed = false;
-                        }
+                    case (byte) TELNET_AO:
+                        // Abort Output
                         break;
-
-                    case 39:
-                        // New Environment
-                        if (dowillType == (byte) TELNET_WILL) {
-                            // Server will use NewEnvironment, yay.
-                            if (master.isServer
-                                && master.doEnvironment
-                            ) {
-                                requestEnvironment();
-                                master.doEnvironment = false;
-                            } else if (!master.isServer) {
-                                master.doEnvironment = true;
-                            }
-                        } else if (dowillType == (byte) TELNET_DO) {
-                            // Server asks for NewEnvironment.
-                            WILL(b);
-                            master.doEnvironment = true;
-                        } else if (dowillType == (byte) TELNET_WONT) {
-                            // Server won't do NewEnvironment.
-                            master.doEnvironment = false;
-                        } else {
-                            // Server will not listen to New Environment.
-                            master.doEnvironment = false;
-                        }
+                    case (byte) TELNET_AYT:
+                        // Are You There?
+                        break;
+                    case (byte) TELNET_EC:
+                        // Erase Character
+                        break;
+                    case (byte) TELNET_EL:
+                        // Erase Line
+                        break;
+                    case (byte) TELNET_GA:
+                        // Go Ahead
+                        break;
+                    case (byte) TELNET_SB:
+                        // START Sub-Negotiation
+                        // From here we wait for the IAC SE
+                        subnegEnd = true;
+                        subnegBuffer.clear();
+                        break;
+                    case (byte) TELNET_WILL:
+                        // WILL
+                        dowill = true;
+                        dowillType = b;
+                        break;
+                    case (byte) TELNET_WONT:
+                        // WON'T
+                        dowill = true;
+                        dowillType = b;
+                        break;
+                    case (byte) TELNET_DO:
+                        // DO
+                        dowill = true;
+                        dowillType = b;
+                        break;
+                    case (byte) TELNET_DONT:
+                        // DON'T
+                        dowill = true;
+                        dowillType = b;
                         break;
-
-
                     default:
-                        // Other side asked for something we don't
-                        // understand.  Tell them we will not do this option.
-                        refuse(dowillType, b);
+                        // This should be equivalent to IAC NOP
                         break;
                     }
-
-                    dowill = false;
+                    iac = false;
                     continue;
-                } // if (dowill == true)
 
-                // Perform read processing
-                if (b == (byte) TELNET_IAC) {
+                } // if (iac == true)
 
-                    // Telnet command
-                    if (iac == true) {
-                        // IAC IAC -> IAC
-                        buf[bufN++] = (byte) TELNET_IAC;
-                        iac = false;
-                    } else {
-                        iac = true;
-                    }
-                    continue;
-                } else {
-                    if (iac == true) {
-
-                        switch (b) {
-
-                        case (byte) TELNET_SE:
-                            // END Sub-Negotiation
-                            break;
-                        case (byte) TELNET_NOP:
-                            // NOP
-                            break;
-                        case (byte) TELNET_DM:
-                            // Data Mark
-                            break;
-                        case (byte) TELNET_BRK:
-                            // Break
-                            break;
-                        case (byte) TELNET_IP:
-                            // Interrupt Process
-                            break;
-                        case (byte) TELNET_AO:
-                            // Abort Output
-                            break;
-                        case (byte) TELNET_AYT:
-                            // Are You There?
-                            break;
-                        case (byte) TELNET_EC:
-                            // Erase Character
-                            break;
-                        case (byte) TELNET_EL:
-                            // Erase Line
-                            break;
-                        case (byte) TELNET_GA:
-                            // Go Ahead
-                            break;
-                        case (byte) TELNET_SB:
-                            // START Sub-Negotiation
-                            // From here we wait for the IAC SE
-                            subnegEnd = true;
-                            subnegBuffer.clear();
-                            break;
-                        case (byte) TELNET_WILL:
-                            // WILL
-                            dowill = true;
-                            dowillType = b;
-                            break;
-                        case (byte) TELNET_WONT:
-                            // WON'T
-                            dowill = true;
-                            dowillType = b;
-                            break;
-                        case (byte) TELNET_DO:
-                            // DO
-                            dowill = true;
-                            dowillType = b;
-                            break;
-                        case (byte) TELNET_DONT:
-                            // DON'T
-                            dowill = true;
-                            dowillType = b;
-                            break;
-                        default:
-                            // This should be equivalent to IAC NOP
-                            break;
-                        }
-                        iac = false;
-                        continue;
-
-                    } // if (iac == true)
-
-                    /*
-                     * All of the regular IAC processing is completed at this
-                     * point.  Now we need to handle the CR and CR LF cases.
-                     *
-                     * According to RFC 854, in NVT ASCII mode:
-                     *     Bare CR -> CR NUL
-                     *     CR LF -> CR LF
-                     *
-                     */
-                    if (master.binaryMode == false) {
-
-                        if (b == C_LF) {
-                            if (readCR == true) {
-                                // This is CR LF.  Send CR LF and turn the cr
-                                // flag off.
-                                buf[bufN++] = C_CR;
-                                buf[bufN++] = C_LF;
-                                readCR = false;
-                                continue;
-                            }
-                            // This is bare LF.  Send LF.
-                            buf[bufN++] = C_LF;
-                            continue;
-                        }
+                /*
+                 * All of the regular IAC processing is completed at this
+                 * point.  Now we need to handle the CR and CR LF cases.
+                 *
+                 * According to RFC 854, in NVT ASCII mode:
+                 *     Bare CR -> CR NUL
+                 *     CR LF -> CR LF
+                 *
+                 */
+                if (master.binaryMode == false) {
 
-                        if (b == C_NUL) {
-                            if (readCR == true) {
-                                // This is CR NUL.  Send CR and turn the cr
-                                // flag off.
-                                buf[bufN++] = C_CR;
-                                readCR = false;
-                                continue;
-                            }
-                            // This is bare NUL.  Send NUL.
-                            buf[bufN++] = C_NUL;
+                    if (b == C_LF) {
+                        if (readCR == true) {
+                            // This is CR LF.  Send CR LF and turn the cr
+                            // flag off.
+                            append((byte) C_CR);
+                            append((byte) C_LF);
+                            readCR = false;
                             continue;
                         }
+                        // This is bare LF.  Send LF.
+                        append((byte) C_LF);
+                        continue;
+                    }
 
-                        if (b == C_CR) {
-                            if (readCR == true) {
-                                // This is CR CR.  Send a CR NUL and leave
-                                // the cr flag on.
-                                buf[bufN++] = C_CR;
-                                buf[bufN++] = C_NUL;
-                                continue;
-                            }
-                            // This is the first CR.  Set the cr flag.
-                            readCR = true;
+                    if (b == C_NUL) {
+                        if (readCR == true) {
+                            // This is CR NUL.  Send CR and turn the cr
+                            // flag off.
+                            append((byte) C_CR);
+                            readCR = false;
                             continue;
                         }
+                        // This is bare NUL.  Send NUL.
+                        append((byte) C_NUL);
+                        continue;
+                    }
 
+                    if (b == C_CR) {
                         if (readCR == true) {
-                            // This was a bare CR in the stream.
-                            buf[bufN++] = C_CR;
-                            readCR = false;
+                            // This is CR CR.  Send a CR NUL and leave
+                            // the cr flag on.
+                            append((byte) C_CR);
+                            append((byte) C_NUL);
+                            continue;
                         }
-
-                        // This is a regular character.  Pass it on.
-                        buf[bufN++] = b;
+                        // This is the first CR.  Set the cr flag.
+                        readCR = true;
                         continue;
                     }
 
-                    /*
-                     * This is the case for any of:
-                     *
-                     *     1) A NVT ASCII character that isn't CR, LF, or
-                     *        NUL.
-                     *
-                     *     2) A NVT binary character.
-                     *
-                     * For all of these cases, we just pass the character on.
-                     */
-                    buf[bufN++] = b;
+                    if (readCR == true) {
+                        // This was a bare CR in the stream.
+                        append((byte) C_CR);
+                        readCR = false;
+                    }
 
-                } // if (b == TELNET_IAC)
+                    // This is a regular character.  Pass it on.
+                    append(b);
+                    continue;
+                }
 
-            } // for (int i = 0; i < bufferN; i++)
+                /*
+                 * This is the case for any of:
+                 *
+                 *     1) A NVT ASCII character that isn't CR, LF, or
+                 *        NUL.
+                 *
+                 *     2) A NVT binary character.
+                 *
+                 * For all of these cases, we just pass the character on.
+                 */
+                append(b);
 
-        } while (bufN == 0);
+            } // if (b == TELNET_IAC)
 
-        // Return bytes read
-        return bufN;
+        } // for (int i = off; i < off + len; i++)
     }
 
 }
@@ -30,46 +30,163 @@ package jexer.net;
 
 import java.io.OutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
+import jexer.backend.OutputBacklog;
 import static jexer.net.TelnetSocket.*;
 
 /**
- * TelnetOutputStream works with TelnetSocket to perform the telnet protocol.
+ * TelnetOutputStream works with TelnetSocket or TelnetConnection to perform
+ * the telnet protocol.
+ *
+ * <p>Bytes written here are queued and delivered to the peer by a
+ * separate thread (for a TelnetSocket) or the TelnetServer's selector (for
+ * a TelnetConnection), so a slow peer does not block the writer.  Once more
+ * than the output budget is queued the stream reports that it is behind,
+ * and stays behind until the queue drains.  A writer that ignores that
+ * and keeps going is blocked once the queue reaches four times the
+ * budget.</p>
  */
-public class TelnetOutputStream extends OutputStream {
+public class TelnetOutputStream extends OutputStream implements OutputBacklog {
+
+    // ------------------------------------------------------------------------
+    // Constants --------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * The default number of bytes that can be queued before the stream is
+     * behind.
+     */
+    public static final int DEFAULT_BUDGET = 65536;
+
+    /**
+     * The time in millis that close() will wait for queued bytes to be
+     * delivered.
+     */
+    private static final int CLOSE_TIMEOUT = 1000;
 
     // ------------------------------------------------------------------------
     // Variables --------------------------------------------------------------
     // ------------------------------------------------------------------------
 
     /**
-     * The root TelnetSocket that has my telnet protocol state.
+     * The telnet protocol state.
      */
-    private TelnetSocket master;
+    private final TelnetState master;
 
     /**
-     * The raw socket's OutputStream.
+     * The raw socket's OutputStream, or null if the selector delivers the
+     * bytes.
      */
-    private OutputStream output;
+    private final OutputStream output;
+
+    /**
+     * The connection whose selector delivers the bytes, or null if there
+     * is a writer thread.
+     */
+    private final TelnetConnection connection;
 
     /**
      * When true, the last byte the caller passed to write() was a CR.
      */
     private boolean writeCR = false;
 
+    /**
+     * Bytes waiting to be delivered.
+     */
+    private byte [] queue = new byte[1024];
+
+    /**
+     * The number of bytes in queue.
+     */
+    private int queueLength = 0;
+
+    /**
+     * Bytes being delivered.  Only the delivering thread touches this.
+     */
+    private byte [] sending = new byte[1024];
+
+    /**
+     * The number of bytes in sending.
+     */
+    private int sendingLength = 0;
+
+    /**
+     * The number of bytes of sending that have been delivered.
+     */
+    private int sendingStart = 0;
+
+    /**
+     * The number of bytes in queue and sending.
+     */
+    private int backlog = 0;
+
+    /**
+     * The number of bytes that can be queued before the stream is behind.
+     */
+    private int budget = DEFAULT_BUDGET;
+
+    /**
+     * If true, more than budget was queued and has not yet drained.
+     */
+    private boolean behind = false;
+
+    /**
+     * The code to run when the stream catches up.
+     */
+    private Runnable drainListener = null;
+
+    /**
+     * If true, close() was called.
+     */
+    private boolean closed = false;
+
+    /**
+     * The error that stopped the writer thread, if any.
+     */
+    private IOException error = null;
+
     // ------------------------------------------------------------------------
     // Constructors -----------------------------------------------------------
     // ------------------------------------------------------------------------
 
     /**
-     * Package private constructor.
+     * Package private constructor, used by TelnetSocket.  Bytes are
+     * delivered by a writer thread.
      *
-     * @param master the master TelnetSocket
+     * @param master the telnet protocol state
      * @param output the underlying socket's OutputStream
      */
-    TelnetOutputStream(final TelnetSocket master, final OutputStream output) {
+    TelnetOutputStream(final TelnetState master, final OutputStream output) {
         this.master = master;
         this.output = output;
+        this.connection = null;
+        budget = getDefaultBudget();
+
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                deliverToStream();
+            }
+        }, "TelnetOutputStream writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Package private constructor, used by TelnetConnection.  Bytes are
+     * delivered by the server's selector.
+     *
+     * @param master the telnet protocol state
+     * @param connection the connection to deliver to
+     */
+    TelnetOutputStream(final TelnetState master,
+        final TelnetConnection connection) {
+
+        this.master = master;
+        this.output = null;
+        this.connection = connection;
+        budget = getDefaultBudget();
     }
 
     // ------------------------------------------------------------------------
@@ -84,9 +201,33 @@ public class TelnetOutputStream extends OutputStream {
      */
     @Override
     public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+
+            // Give the writer thread a moment to deliver what is left,
+            // e.g. the sequences that restore the peer's terminal.
+            long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+            while ((backlog > 0) && (error == null)) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    break;
+                }
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    // SQUASH
+                    break;
+                }
+            }
+        }
         if (output != null) {
             output.close();
-            output = null;
+        } else {
+            connection.closeChannel();
         }
     }
 
@@ -102,11 +243,11 @@ public class TelnetOutputStream extends OutputStream {
             // The last byte sent to this.write() was a CR, which was never
             // actually sent.  So send the CR in ascii mode, then flush.
             // CR <anything> -> CR NULL
-            output.write(C_CR);
-            output.write(C_NUL);
+            byte [] crNul = { (byte) C_CR, (byte) C_NUL };
+            enqueue(crNul, 0, crNul.length, false);
             writeCR = false;
         }
-        output.flush();
+        // The writer thread sends everything as soon as it is queued.
     }
 
     /**
@@ -150,10 +291,66 @@ public class TelnetOutputStream extends OutputStream {
         writeImpl(bytes, 0, 1);
     }
 
+    // ------------------------------------------------------------------------
+    // OutputBacklog ----------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Get the number of bytes written to the stream but not yet delivered
+     * to the peer.
+     *
+     * @return the number of queued bytes
+     */
+    public synchronized int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * See if the stream has queued more than its budget and has not
+     * drained since.
+     *
+     * @return true if the stream is behind
+     */
+    public synchronized boolean isBehind() {
+        return behind;
+    }
+
+    /**
+     * Set the code to run when a stream that was behind has delivered
+     * everything queued.  It is run on the writer thread, or on the
+     * TelnetServer's callback thread.
+     *
+     * @param listener the code to run, or null
+     */
+    public synchronized void setDrainListener(final Runnable listener) {
+        drainListener = listener;
+    }
+
     // ------------------------------------------------------------------------
     // TelnetOutputStrem ------------------------------------------------------
     // ------------------------------------------------------------------------
 
+    /**
+     * Set the number of bytes that can be queued before the stream is
+     * behind.
+     *
+     * @param budget the budget in bytes
+     */
+    public synchronized void setBudget(final int budget) {
+        this.budget = Math.max(budget, 1);
+        notifyAll();
+    }
+
+    /**
+     * Get the number of bytes that can be queued before the stream is
+     * behind.
+     *
+     * @return the budget in bytes
+     */
+    public synchronized int getBudget() {
+        return budget;
+    }
+
     /**
      * Writes b.length bytes from the specified byte array to this output
      * stream.  Note package private access.
@@ -162,7 +359,191 @@ public class TelnetOutputStream extends OutputStream {
      * @throws IOException if an I/O error occurs
      */
     void rawWrite(final byte[] b) throws IOException {
-        output.write(b, 0, b.length);
+        enqueue(b, 0, b.length, false);
+    }
+
+    /**
+     * Get the budget from the jexer.Telnet.outputBudget property.
+     *
+     * @return the budget in bytes
+     */
+    private static int getDefaultBudget() {
+        try {
+            return Math.max(Integer.parseInt(System.getProperty(
+                "jexer.Telnet.outputBudget",
+                Integer.toString(DEFAULT_BUDGET))), 1);
+        } catch (NumberFormatException e) {
+            return DEFAULT_BUDGET;
+        }
+    }
+
+    /**
+     * Queue bytes for delivery.
+     *
+     * @param b the data.
+     * @param off the start offset in the data.
+     * @param len the number of bytes to write.
+     * @param block if true, wait while the peer is very far behind.  This
+     * is false for protocol responses, which may be sent from the selector
+     * thread that does the delivering.
+     * @throws IOException if the stream is closed or the peer is gone
+     */
+    private void enqueue(final byte[] b, final int off, final int len,
+        final boolean block) throws IOException {
+
+        synchronized (this) {
+            while (block
+                && (backlog > budget * 4)
+                && !closed
+                && (error == null)
+            ) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // SQUASH
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+            if (closed) {
+                throw new IOException("Stream is closed");
+            }
+            if (queueLength + len > queue.length) {
+                byte [] newQueue = new byte[Math.max(queue.length * 2,
+                        queueLength + len)];
+                System.arraycopy(queue, 0, newQueue, 0, queueLength);
+                queue = newQueue;
+            }
+            System.arraycopy(b, off, queue, queueLength, len);
+            queueLength += len;
+            backlog += len;
+            if (backlog > budget) {
+                behind = true;
+            }
+            notifyAll();
+        }
+        if (connection != null) {
+            connection.wantWrite();
+        }
+    }
+
+    /**
+     * Move the queued bytes to the sending buffer, if the sending buffer
+     * is empty.  The caller must hold the lock.
+     *
+     * @return true if there is something to send
+     */
+    private boolean takeQueue() {
+        if (sendingStart < sendingLength) {
+            return true;
+        }
+        if (queueLength == 0) {
+            return false;
+        }
+        byte [] swap = sending;
+        sending = queue;
+        sendingLength = queueLength;
+        sendingStart = 0;
+        queue = swap;
+        queueLength = 0;
+        return true;
+    }
+
+    /**
+     * Account for bytes that reached the peer.
+     *
+     * @param sent the number of bytes delivered
+     * @return the drain listener to run, or null
+     */
+    private synchronized Runnable sent(final int sent) {
+        sendingStart += sent;
+        backlog -= sent;
+        notifyAll();
+        if ((backlog == 0) && behind) {
+            behind = false;
+            return drainListener;
+        }
+        return null;
+    }
+
+    /**
+     * Deliver queued bytes to the socket until the stream is closed or the
+     * socket fails.  This runs on the writer thread.
+     */
+    private void deliverToStream() {
+        for (;;) {
+            synchronized (this) {
+                while (!takeQueue() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // SQUASH
+                    }
+                }
+                if (sendingStart == sendingLength) {
+                    return;
+                }
+            }
+
+            int n = sendingLength - sendingStart;
+            try {
+                output.write(sending, sendingStart, n);
+                output.flush();
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+
+            Runnable listener = sent(n);
+            if (listener != null) {
+                listener.run();
+            }
+        }
+    }
+
+    /**
+     * Write as much as the channel will take without blocking.  This runs
+     * on the TelnetServer's selector thread.
+     *
+     * @param channel the non-blocking channel to write to
+     * @return true if everything queued has been delivered
+     * @throws IOException if the channel fails
+     */
+    boolean deliverTo(final WritableByteChannel channel) throws IOException {
+        for (;;) {
+            synchronized (this) {
+                if (!takeQueue()) {
+                    return true;
+                }
+            }
+            int n = channel.write(ByteBuffer.wrap(sending, sendingStart,
+                    sendingLength - sendingStart));
+            Runnable listener = sent(n);
+            if (listener != null) {
+                connection.runLater(listener);
+            }
+            if (n == 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Stop delivering because the peer is gone.  Writers see the error
+     * from then on.
+     *
+     * @param e the error
+     */
+    synchronized void fail(final IOException e) {
+        if (error == null) {
+            error = e;
+        }
+        queueLength = 0;
+        sendingStart = sendingLength;
+        backlog = 0;
+        behind = false;
+        notifyAll();
     }
 
     /**
@@ -185,7 +566,7 @@ public class TelnetOutputStream extends OutputStream {
                 // Flush what we have generated so far and reset the buffer,
                 // because the next byte could generate up to 4 output bytes
                 // (CR <something> <IAC> <IAC>).
-                output.write(writeBuffer, 0, writeBufferI);
+                enqueue(writeBuffer, 0, writeBufferI, true);
                 writeBufferI = 0;
             }
 
@@ -253,7 +634,7 @@ public class TelnetOutputStream extends OutputStream {
 
         if (writeBufferI > 0) {
             // Flush what we have generated so far and reset the buffer.
-            output.write(writeBuffer, 0, writeBufferI);
+            enqueue(writeBuffer, 0, writeBufferI, true);
         }
     }
 
@@ -0,0 +1,392 @@
+/*
+ * Jexer - Java Text User Interface
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2022 Autumn Lamonte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * @author Autumn Lamonte ⚧ Trans Liberation Now
+ * @version 1
+ */
+package jexer.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * TelnetServer accepts telnet clients and moves their bytes on a single
+ * selector thread.  Protocol negotiation is decoded as the bytes arrive,
+ * and output is written as fast as each client's socket takes it, so idle
+ * or slow clients do not tie up a thread each.
+ *
+ * <p>Use accept() the same way as TelnetServerSocket.accept(): it waits
+ * for the next client and returns a TelnetConnection with the
+ * telnet-aware streams.</p>
+ */
+public class TelnetServer {
+
+    // ------------------------------------------------------------------------
+    // Constants --------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * The size of the buffer that the selector reads into.
+     */
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    // ------------------------------------------------------------------------
+    // Variables --------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * The listening channel.
+     */
+    private final ServerSocketChannel serverChannel;
+
+    /**
+     * The selector for the listening channel and all connections.
+     */
+    private final Selector selector;
+
+    /**
+     * Connections that have been accepted but not yet returned by
+     * accept().
+     */
+    private final LinkedList<TelnetConnection> accepted;
+
+    /**
+     * Connections with output to write.  The selector thread picks these
+     * up after a wakeup().
+     */
+    private final List<TelnetConnection> writers;
+
+    /**
+     * Code to run off the selector thread.
+     */
+    private final LinkedList<Runnable> tasks;
+
+    /**
+     * If true, close() was called.
+     */
+    private volatile boolean closed = false;
+
+    // ------------------------------------------------------------------------
+    // Constructors -----------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Creates a server bound to the specified port on all interfaces.
+     *
+     * @param port the port number, or 0 to use a port number that is
+     * automatically allocated.
+     * @throws IOException if an I/O error occurs
+     */
+    public TelnetServer(final int port) throws IOException {
+        this(port, 0, null);
+    }
+
+    /**
+     * Create a server with the specified port, listen backlog, and local IP
+     * address to bind to.
+     *
+     * @param port the port number, or 0 to use a port number that is
+     * automatically allocated.
+     * @param backlog requested maximum length of the queue of incoming
+     * connections.
+     * @param bindAddr the local InetAddress the server will bind to, or
+     * null for all interfaces
+     * @throws IOException if an I/O error occurs
+     */
+    public TelnetServer(final int port, final int backlog,
+        final InetAddress bindAddr) throws IOException {
+
+        accepted = new LinkedList<TelnetConnection>();
+        writers = new ArrayList<TelnetConnection>();
+        tasks = new LinkedList<Runnable>();
+
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(bindAddr, port), backlog);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+
+        Thread selectorThread = new Thread(new Runnable() {
+            public void run() {
+                runSelector();
+            }
+        }, "TelnetServer selector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+
+        Thread taskThread = new Thread(new Runnable() {
+            public void run() {
+                runTasks();
+            }
+        }, "TelnetServer callbacks");
+        taskThread.setDaemon(true);
+        taskThread.start();
+    }
+
+    // ------------------------------------------------------------------------
+    // TelnetServer -----------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Get the port this server is listening on.
+     *
+     * @return the port number
+     */
+    public int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Wait for the next client to connect.
+     *
+     * @return the new connection
+     * @throws IOException if the server is closed
+     */
+    public TelnetConnection accept() throws IOException {
+        synchronized (accepted) {
+            while (accepted.size() == 0) {
+                if (closed) {
+                    throw new SocketException("Server is closed");
+                }
+                try {
+                    accepted.wait();
+                } catch (InterruptedException e) {
+                    // SQUASH
+                }
+            }
+            return accepted.removeFirst();
+        }
+    }
+
+    /**
+     * See if this server is closed.
+     *
+     * @return true if close() was called
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stop listening and close every connection.
+     */
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        synchronized (accepted) {
+            accepted.notifyAll();
+        }
+        synchronized (tasks) {
+            tasks.notifyAll();
+        }
+    }
+
+    /**
+     * Wake up the selector thread.
+     */
+    void wakeup() {
+        selector.wakeup();
+    }
+
+    /**
+     * Ask the selector thread to write a connection's queued output.
+     *
+     * @param connection the connection
+     */
+    void wantWrite(final TelnetConnection connection) {
+        synchronized (writers) {
+            writers.add(connection);
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * Run code on the callback thread, so that it can take locks and
+     * block without holding up the selector.
+     *
+     * @param task the code to run
+     */
+    void runLater(final Runnable task) {
+        synchronized (tasks) {
+            tasks.add(task);
+            tasks.notifyAll();
+        }
+    }
+
+    /**
+     * Run the code passed to runLater().
+     */
+    private void runTasks() {
+        for (;;) {
+            Runnable task;
+            synchronized (tasks) {
+                while (tasks.size() == 0) {
+                    if (closed) {
+                        return;
+                    }
+                    try {
+                        tasks.wait();
+                    } catch (InterruptedException e) {
+                        // SQUASH
+                    }
+                }
+                task = tasks.removeFirst();
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // SQUASH.  One client's callback must not stop the
+                // others.
+            }
+        }
+    }
+
+    /**
+     * Accept, read, and write for all clients until the server is closed.
+     */
+    private void runSelector() {
+        ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        List<TelnetConnection> newWriters = new ArrayList<TelnetConnection>();
+
+        while (!closed) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                // SQUASH
+                break;
+            }
+
+            // Pick up connections that have new output.
+            synchronized (writers) {
+                newWriters.addAll(writers);
+                writers.clear();
+            }
+            for (TelnetConnection connection: newWriters) {
+                SelectionKey key = connection.getKey();
+                if ((key != null) && key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            }
+            newWriters.clear();
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    acceptConnection();
+                    continue;
+                }
+
+                TelnetConnection connection;
+                connection = (TelnetConnection) key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        if (!connection.doRead(readBuffer)) {
+                            connection.disconnect(null);
+                            continue;
+                        }
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        if (connection.doWrite()) {
+                            key.interestOps(SelectionKey.OP_READ);
+                        }
+                    }
+                } catch (IOException e) {
+                    connection.disconnect(e);
+                }
+            }
+        }
+
+        // Shut everything down.
+        for (SelectionKey key: selector.keys()) {
+            if (key.attachment() instanceof TelnetConnection) {
+                ((TelnetConnection) key.attachment()).disconnect(null);
+            }
+        }
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            // SQUASH
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // SQUASH
+        }
+    }
+
+    /**
+     * Accept a pending client and hand it to accept().
+     */
+    private void acceptConnection() {
+        SocketChannel channel = null;
+        try {
+            channel = serverChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            TelnetConnection connection = new TelnetConnection(this, channel);
+            SelectionKey key = channel.register(selector,
+                SelectionKey.OP_READ, connection);
+            connection.start(key);
+            synchronized (accepted) {
+                accepted.add(connection);
+                accepted.notifyAll();
+            }
+        } catch (IOException e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e2) {
+                    // SQUASH
+                }
+            }
+        }
+    }
+
+}
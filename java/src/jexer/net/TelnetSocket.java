@@ -79,61 +79,10 @@ public class TelnetSocket extends Socket {
      */
     private TelnetOutputStream output;
 
-
-    /**
-     * If true, this is a server socket (i.e. created by accept()).
-     */
-    boolean isServer = true;
-
-    /**
-     * If true, telnet ECHO mode is set such that local echo is off and
-     * remote echo is on.  This is appropriate for server sockets.
-     */
-    boolean echoMode = false;
-
-    /**
-     * If true, telnet BINARY mode is enabled.  We always want this to
-     * ensure a Unicode-safe stream.
-     */
-    boolean binaryMode = false;
-
-    /**
-     * If true, the SUPPRESS-GO-AHEAD option is enabled.  We always want
-     * this.
-     */
-    boolean goAhead = true;
-
-    /**
-     * If true, request the client terminal type.
-     */
-    boolean doTermType = true;
-
-    /**
-     * If true, request the client terminal speed.
-     */
-    boolean doTermSpeed = true;
-
-    /**
-     * If true, request the Negotiate About Window Size option to
-     * determine the client text width/height.
-     */
-    boolean doNAWS = true;
-
-    /**
-     * If true, request the New Environment option to obtain the client
-     * LOGNAME, USER, and LANG variables.
-     */
-    boolean doEnvironment = true;
-
-    /**
-     * The terminal type reported by the client.
-     */
-    String terminalType = "";
-
     /**
-     * The terminal speed reported by the client.
+     * The telnet protocol state.
      */
-    String terminalSpeed = "";
+    private final TelnetState state = new TelnetState();
 
     // ------------------------------------------------------------------------
     // Constructors -----------------------------------------------------------
@@ -163,8 +112,9 @@ public class TelnetSocket extends Socket {
     public InputStream getInputStream() throws IOException {
         if (input == null) {
             assert (output == null);
-            output = new TelnetOutputStream(this, super.getOutputStream());
-            input = new TelnetInputStream(this, super.getInputStream(), output);
+            output = new TelnetOutputStream(state, super.getOutputStream());
+            input = new TelnetInputStream(state, this, super.getInputStream(),
+                output);
             input.telnetSendOptions();
         }
         return input;
@@ -180,8 +130,9 @@ public class TelnetSocket extends Socket {
     public OutputStream getOutputStream() throws IOException {
         if (output == null) {
             assert (input == null);
-            output = new TelnetOutputStream(this, super.getOutputStream());
-            input = new TelnetInputStream(this, super.getInputStream(), output);
+            output = new TelnetOutputStream(state, super.getOutputStream());
+            input = new TelnetInputStream(state, this, super.getInputStream(),
+                output);
             input.telnetSendOptions();
         }
         return output;
@@ -197,7 +148,7 @@ public class TelnetSocket extends Socket {
      * @return if true, this connection is in ASCII mode
      */
     public boolean isAscii() {
-        return (!binaryMode);
+        return (!state.binaryMode);
     }
 
 }
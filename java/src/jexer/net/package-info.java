@@ -28,6 +28,8 @@
  */
 
 /**
- * A Telnet-aware ServerSocket that establishes an 8-bit clean data channel.
+ * A Telnet-aware ServerSocket that establishes an 8-bit clean data channel,
+ * and a selector-based TelnetServer that does the same for many clients
+ * on one thread.
  */
 package jexer.net;
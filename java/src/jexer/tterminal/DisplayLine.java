@@ -28,10 +28,15 @@
  */
 package jexer.tterminal;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 
 import jexer.bits.Cell;
 import jexer.bits.CellAttributes;
+import jexer.bits.Color;
 
 /**
  * This represents a single line of the display buffer.
@@ -73,6 +78,12 @@ public class DisplayLine {
      */
     private boolean reverseColor = false;
 
+    /**
+     * If non-zero, this line was soft-wrapped: the text continues on the
+     * next line, and only this many cells belong to it.
+     */
+    private int wrapColumn = 0;
+
     /**
      * The initial attributes for this line.
      */
@@ -95,6 +106,7 @@ public class DisplayLine {
         doubleWidth = line.doubleWidth;
         doubleHeight = line.doubleHeight;
         reverseColor = line.reverseColor;
+        wrapColumn = line.wrapColumn;
     }
 
     /**
@@ -106,10 +118,153 @@ public class DisplayLine {
         this.attr = new CellAttributes(attr);
     }
 
+    /**
+     * Public constructor reads a line that was saved by writeTo().
+     *
+     * @param in the stream to read from
+     * @throws IOException if a java.io operation throws
+     */
+    public DisplayLine(final DataInput in) throws IOException {
+        attr = new CellAttributes();
+        readAttributes(in, attr);
+        int lineFlags = in.readUnsignedByte();
+        doubleWidth = ((lineFlags & 0x01) != 0);
+        reverseColor = ((lineFlags & 0x02) != 0);
+        doubleHeight = in.readUnsignedByte();
+        if ((lineFlags & 0x04) != 0) {
+            wrapColumn = in.readUnsignedShort();
+        }
+
+        int runs = in.readInt();
+        CellAttributes runAttr = new CellAttributes();
+        Cell.Width [] widths = Cell.Width.values();
+        for (int i = 0; i < runs; i++) {
+            readAttributes(in, runAttr);
+            Cell.Width width = widths[in.readUnsignedByte()];
+            String text = in.readUTF();
+            for (int j = 0; j < text.length();) {
+                int ch = text.codePointAt(j);
+                j += Character.charCount(ch);
+                Cell cell = new Cell(ch, runAttr);
+                cell.setWidth(width);
+                chars.add(cell);
+            }
+        }
+    }
+
     // ------------------------------------------------------------------------
     // DisplayLine ------------------------------------------------------------
     // ------------------------------------------------------------------------
 
+    /**
+     * Write this line in a compact form: the characters of each run of cells
+     * that share the same attributes are written together.  Image data is
+     * not saved, image cells come back as their underlying character.
+     *
+     * @param out the stream to write to
+     * @throws IOException if a java.io operation throws
+     */
+    public void writeTo(final DataOutput out) throws IOException {
+        writeAttributes(out, attr);
+        out.writeByte((doubleWidth ? 0x01 : 0) | (reverseColor ? 0x02 : 0)
+            | (wrapColumn > 0 ? 0x04 : 0));
+        out.writeByte(doubleHeight);
+        if (wrapColumn > 0) {
+            out.writeShort(wrapColumn);
+        }
+
+        // Count the runs first so that the reader knows when to stop.
+        int runs = 0;
+        for (int i = 0; i < chars.size(); i++) {
+            if ((i == 0) || !isSameRun(chars.get(i - 1), chars.get(i))) {
+                runs++;
+            }
+        }
+        out.writeInt(runs);
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < chars.size(); i++) {
+            Cell cell = chars.get(i);
+            text.appendCodePoint(cell.getChar());
+            if ((i == chars.size() - 1)
+                || !isSameRun(cell, chars.get(i + 1))
+            ) {
+                writeAttributes(out, cell);
+                out.writeByte(cell.getWidth().ordinal());
+                out.writeUTF(text.toString());
+                text.setLength(0);
+            }
+        }
+    }
+
+    /**
+     * Check if two cells can be written in the same run.
+     *
+     * @param a the first cell
+     * @param b the second cell
+     * @return true if both cells have the same attributes and width
+     */
+    private static boolean isSameRun(final Cell a, final Cell b) {
+        return ((a.getWidth() == b.getWidth())
+            && a.isBold() == b.isBold()
+            && a.isBlink() == b.isBlink()
+            && a.isReverse() == b.isReverse()
+            && a.isUnderline() == b.isUnderline()
+            && a.isProtect() == b.isProtect()
+            && a.getAnimations() == b.getAnimations()
+            && a.getForeColor().equals(b.getForeColor())
+            && a.getBackColor().equals(b.getBackColor())
+            && a.getForeColorRGB() == b.getForeColorRGB()
+            && a.getBackColorRGB() == b.getBackColorRGB());
+    }
+
+    /**
+     * Write a set of attributes to a stream.
+     *
+     * @param out the stream to write to
+     * @param attr the attributes
+     * @throws IOException if a java.io operation throws
+     */
+    static void writeAttributes(final DataOutput out,
+        final CellAttributes attr) throws IOException {
+
+        int flags = attr.getAnimations();
+        flags |= (attr.isBold() ? 0x01 : 0);
+        flags |= (attr.isBlink() ? 0x02 : 0);
+        flags |= (attr.isReverse() ? 0x04 : 0);
+        flags |= (attr.isUnderline() ? 0x08 : 0);
+        flags |= (attr.isProtect() ? 0x10 : 0);
+        out.writeInt(flags);
+        out.writeByte(attr.getForeColor().getValue());
+        out.writeByte(attr.getBackColor().getValue());
+        out.writeInt(attr.getForeColorRGB());
+        out.writeInt(attr.getBackColorRGB());
+    }
+
+    /**
+     * Read a set of attributes written by writeAttributes().
+     *
+     * @param in the stream to read from
+     * @param attr the attributes to set
+     * @throws IOException if a java.io operation throws
+     */
+    static void readAttributes(final DataInput in,
+        final CellAttributes attr) throws IOException {
+
+        int flags = in.readInt();
+        attr.reset();
+        attr.setAnimations(flags & 0xFFFFF000);
+        attr.setBold((flags & 0x01) != 0);
+        attr.setBlink((flags & 0x02) != 0);
+        attr.setReverse((flags & 0x04) != 0);
+        attr.setUnderline((flags & 0x08) != 0);
+        attr.setProtect((flags & 0x10) != 0);
+        attr.setForeColor(Color.getSgrColor(in.readUnsignedByte()));
+        attr.setBackColor(Color.getSgrColor(in.readUnsignedByte()));
+        attr.setForeColorRGB(in.readInt());
+        attr.setBackColorRGB(in.readInt());
+    }
+
     /**
      * Get the Cell at a specific column.
      *
@@ -123,6 +278,17 @@ public class DisplayLine {
         return new Cell(chars.get(idx));
     }
 
+    /**
+     * Get the Cell at a specific column without copying it or extending the
+     * line.  Note package private access.
+     *
+     * @param idx the character index, less than length()
+     * @return the Cell itself
+     */
+    Cell getCell(final int idx) {
+        return chars.get(idx);
+    }
+
     /**
      * Get the length of this line.
      *
@@ -186,6 +352,35 @@ public class DisplayLine {
         this.reverseColor = reverseColor;
     }
 
+    /**
+     * Get soft-wrap flag.
+     *
+     * @return true if the text of this line continues on the next line
+     */
+    public boolean isWrapped() {
+        return (wrapColumn > 0);
+    }
+
+    /**
+     * Get the number of cells that belong to this line when it is
+     * soft-wrapped.
+     *
+     * @return the column the line wrapped at, or 0 if it did not wrap
+     */
+    public int getWrapColumn() {
+        return wrapColumn;
+    }
+
+    /**
+     * Set soft-wrap flag.
+     *
+     * @param wrapColumn the column the line wrapped at (usually the screen
+     * width), or 0 if the line ends here
+     */
+    public void setWrapColumn(final int wrapColumn) {
+        this.wrapColumn = Math.max(wrapColumn, 0);
+    }
+
     /**
      * Insert a character at the specified position.
      *
@@ -291,4 +486,93 @@ public class DisplayLine {
         }
     }
 
+    /**
+     * Check if a cell is a blank that only pads out a line.
+     *
+     * @param cell the cell
+     * @return true if the cell shows nothing different from the line's
+     * background
+     */
+    private boolean isPadding(final Cell cell) {
+        return ((cell.getChar() == ' ')
+            && !cell.isImage()
+            && !cell.isReverse()
+            && !cell.isUnderline()
+            && (cell.getWidth() == Cell.Width.SINGLE)
+            && cell.getBackColor().equals(attr.getBackColor())
+            && (cell.getBackColorRGB() == attr.getBackColorRGB()));
+    }
+
+    /**
+     * Wrap a logical line again at a new width.  Note package private
+     * access.
+     *
+     * @param lines the lines of one logical line: every line but the last
+     * is soft-wrapped
+     * @param width the new width
+     * @return the new lines
+     */
+    static List<DisplayLine> rewrap(final List<DisplayLine> lines,
+        final int width) {
+
+        DisplayLine first = lines.get(0);
+        DisplayLine last = lines.get(lines.size() - 1);
+        List<DisplayLine> result = new ArrayList<DisplayLine>();
+        if ((width < 2) || first.doubleWidth || (first.doubleHeight != 0)) {
+            // Double-size lines are left as they were.
+            result.addAll(lines);
+            return result;
+        }
+
+        // Gather the text of the logical line.
+        ArrayList<Cell> cells = new ArrayList<Cell>();
+        for (DisplayLine line: lines) {
+            int end = line.chars.size();
+            if (line.wrapColumn > 0) {
+                end = line.wrapColumn;
+            } else {
+                while ((end > 0) && line.isPadding(line.chars.get(end - 1))) {
+                    end--;
+                }
+            }
+            for (int i = 0; i < end; i++) {
+                if (i < line.chars.size()) {
+                    cells.add(line.chars.get(i));
+                } else {
+                    cells.add(new Cell(line.attr));
+                }
+            }
+        }
+
+        // Cut it into rows.
+        DisplayLine row = null;
+        for (int i = 0; i < cells.size(); i++) {
+            Cell cell = cells.get(i);
+            if ((row != null)
+                && ((row.chars.size() == width)
+                    || ((cell.getWidth() == Cell.Width.LEFT)
+                        && (row.chars.size() == width - 1)))
+            ) {
+                row.wrapColumn = row.chars.size();
+                row = null;
+            }
+            if (row == null) {
+                row = new DisplayLine(first.attr);
+                row.reverseColor = first.reverseColor;
+                result.add(row);
+            }
+            row.chars.add(cell);
+        }
+        if (row == null) {
+            row = new DisplayLine(first.attr);
+            row.reverseColor = first.reverseColor;
+            result.add(row);
+        }
+        if (last.wrapColumn > 0) {
+            // The logical line goes on past these lines.
+            row.wrapColumn = Math.max(row.chars.size(), 1);
+        }
+        return result;
+    }
+
 }
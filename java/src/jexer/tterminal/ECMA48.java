@@ -33,21 +33,27 @@ import java.awt.image.BufferedImage;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.CharArrayWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
-import java.io.FileInputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 import javax.imageio.ImageIO;
 
 import jexer.TKeypress;
@@ -58,6 +64,7 @@ import jexer.bits.Cell;
 import jexer.bits.CellAttributes;
 import jexer.bits.ImageUtils;
 import jexer.bits.StringUtils;
+import jexer.bits.ThreadStrategy;
 import jexer.event.TInputEvent;
 import jexer.event.TKeypressEvent;
 import jexer.event.TMouseEvent;
@@ -247,6 +254,11 @@ public class ECMA48 implements Runnable {
      */
     private final String VERSION = "1.6.1";
 
+    /**
+     * The largest the reader thread's buffer will grow to.
+     */
+    private static final int MAX_READ_BUFFER = 65536;
+
     // ------------------------------------------------------------------------
     // Variables --------------------------------------------------------------
     // ------------------------------------------------------------------------
@@ -272,6 +284,31 @@ public class ECMA48 implements Runnable {
      */
     private boolean doNotUpdateDisplay = false;
 
+    /**
+     * When true, the enclosing UI cannot currently see this terminal, so
+     * the reader thread keeps parsing but does not build display snapshots
+     * or ask for repaints.
+     */
+    private volatile boolean displayHidden = false;
+
+    /**
+     * When true, data came in while the display was hidden, and a fresh
+     * snapshot is owed to the listener when it becomes visible again.
+     */
+    private boolean hiddenUpdatePending = false;
+
+    /**
+     * The number of bytes (or characters for UTF-8 devices) read from the
+     * remote side.  This is updated once per read, whether the display is
+     * hidden or not, so that other threads can poll it for activity.
+     */
+    private final AtomicLong outputCount = new AtomicLong();
+
+    /**
+     * The number of BEL characters received.
+     */
+    private final AtomicInteger bellCount = new AtomicInteger();
+
     /**
      * When true, the reader thread is expected to exit.
      */
@@ -290,7 +327,7 @@ public class ECMA48 implements Runnable {
     /**
      * The scrollback buffer characters + attributes.
      */
-    private volatile ArrayList<DisplayLine> scrollback;
+    private volatile Scrollback scrollback;
 
     /**
      * The raw display buffer characters + attributes.
@@ -433,7 +470,7 @@ public class ECMA48 implements Runnable {
      * Screen title as set by the xterm OSC sequence.  Lots of applications
      * send a screenTitle regardless of whether it is an xterm client or not.
      */
-    private String screenTitle = "";
+    private volatile String screenTitle = "";
 
     /**
      * Parameter characters being collected.
@@ -562,11 +599,48 @@ public class ECMA48 implements Runnable {
      */
     private ArrayList<TInputEvent> userQueue = new ArrayList<TInputEvent>();
 
+    /**
+     * If true, a task is sending the events in userQueue.
+     */
+    private boolean userQueueBusy = false;
+
     /**
      * Number of bytes/characters passed to consume().
      */
     private long readCount = 0;
 
+    /**
+     * If set, everything read from the remote side is also written to this
+     * session log.
+     */
+    private volatile SessionRecorder recorder = null;
+
+    /**
+     * The absolute line number of the first line in the scrollback buffer.
+     * It grows by one every time a line is dropped off the top, and is used
+     * to identify lines across scrolling.
+     */
+    private long scrollbackFirstLine = 0;
+
+    /**
+     * The search index over the scrollback buffer.  Lines are added to it
+     * as they scroll off the display.  It is null until the first search,
+     * and after the width changes until a background task has wrapped the
+     * scrollback to the new width.
+     */
+    private volatile ScrollbackIndex scrollbackIndex = null;
+
+    /**
+     * If true, this emulator has been searched, and keeps a search index.
+     */
+    private boolean scrollbackIndexWanted = false;
+
+    /**
+     * Incremented every time scrollbackIndex is replaced, so that an
+     * outdated rebuild task knows to stop.
+     */
+    private long scrollbackIndexGeneration = 0;
+
     /**
      * DECSC/DECRC save/restore a subset of the total state.  This class
      * encapsulates those specific flags/modes.
@@ -689,12 +763,12 @@ public class ECMA48 implements Runnable {
      *
      * @param type one of the DeviceType constants to select VT100, VT102,
      * VT220, or XTERM
-     * @param inputStream an InputStream connected to the remote side.  For
-     * type == XTERM, inputStream is converted to a Reader with UTF-8
-     * encoding.
-     * @param outputStream an OutputStream connected to the remote user.  For
-     * type == XTERM, outputStream is converted to a Writer with UTF-8
-     * encoding.
+     * @param inputStream an InputStream connected to the remote side, or
+     * null for a detached emulator that starts no reader thread.  For type
+     * == XTERM, inputStream is converted to a Reader with UTF-8 encoding.
+     * @param outputStream an OutputStream connected to the remote user, or
+     * null for a detached emulator.  For type == XTERM, outputStream is
+     * converted to a Writer with UTF-8 encoding.
      * @param displayListener a callback to the outer display, or null for
      * default VT100 behavior
      * @param backend the backend that can obtain the correct background
@@ -706,31 +780,69 @@ public class ECMA48 implements Runnable {
         final OutputStream outputStream, final DisplayListener displayListener,
         final Backend backend) throws UnsupportedEncodingException {
 
-        assert (inputStream != null);
-        assert (outputStream != null);
+        this(type, inputStream, outputStream, displayListener, backend, null);
+    }
+
+    /**
+     * Public constructor that starts from another emulator's screen.  The
+     * screen state is copied before the reader thread starts, so that
+     * nothing read from inputStream can land on the screen before it.
+     *
+     * <p>If inputStream is null, the emulator is detached: no reader thread
+     * is started and nothing is sent anywhere, but the screen can still be
+     * set with readScreenState() and drawn.  It reports isReading() until
+     * it is closed.
+     *
+     * @param type one of the DeviceType constants to select VT100, VT102,
+     * VT220, or XTERM
+     * @param inputStream an InputStream connected to the remote side, or
+     * null for a detached emulator.  For type == XTERM, inputStream is
+     * converted to a Reader with UTF-8 encoding.
+     * @param outputStream an OutputStream connected to the remote user, or
+     * null for a detached emulator.  For type == XTERM, outputStream is
+     * converted to a Writer with UTF-8 encoding.
+     * @param displayListener a callback to the outer display, or null for
+     * default VT100 behavior
+     * @param backend the backend that can obtain the correct background
+     * color
+     * @param initialState the emulator to copy the screen, scrollback,
+     * cursor, and modes from, or null to start with a blank screen
+     * @throws UnsupportedEncodingException if an exception is thrown when
+     * creating the InputStreamReader
+     */
+    public ECMA48(final DeviceType type, final InputStream inputStream,
+        final OutputStream outputStream, final DisplayListener displayListener,
+        final Backend backend,
+        final ECMA48 initialState) throws UnsupportedEncodingException {
+
+        assert ((inputStream == null) == (outputStream == null));
         assert (backend != null);
 
         csiParams         = new ArrayList<Integer>();
         tabStops          = new ArrayList<Integer>();
-        scrollback        = new ArrayList<DisplayLine>();
+        scrollback        = new Scrollback();
         display           = new ArrayList<DisplayLine>();
 
         this.type         = type;
-        if (inputStream instanceof TimeoutInputStream) {
-            this.inputStream  = (TimeoutInputStream) inputStream;
-        } else {
-            this.inputStream  = new TimeoutInputStream(inputStream,
-                ((inputStream instanceof FileInputStream) ? 0 : 2000));
-        }
-        if (type == DeviceType.XTERM) {
-            this.input    = new InputStreamReader(new BufferedInputStream(
-                this.inputStream, 1024 * 128), "UTF-8");
-            this.output   = new OutputStreamWriter(new
-                BufferedOutputStream(outputStream), "UTF-8");
-            this.outputStream = null;
-        } else {
-            this.output       = null;
-            this.outputStream = new BufferedOutputStream(outputStream);
+        // A detached emulator leaves input, inputStream, output, and
+        // outputStream null.
+        if (inputStream != null) {
+            if (inputStream instanceof TimeoutInputStream) {
+                this.inputStream  = (TimeoutInputStream) inputStream;
+            } else {
+                // The reader thread blocks on read(), so no timeout.
+                this.inputStream  = new TimeoutInputStream(inputStream, 0);
+            }
+            if (type == DeviceType.XTERM) {
+                this.input    = new InputStreamReader(new BufferedInputStream(
+                    this.inputStream, 1024 * 128), "UTF-8");
+                this.output   = new OutputStreamWriter(new
+                    BufferedOutputStream(outputStream), "UTF-8");
+                this.outputStream = null;
+            } else {
+                this.output       = null;
+                this.outputStream = new BufferedOutputStream(outputStream);
+            }
         }
         this.displayListener  = displayListener;
         this.backend = backend;
@@ -741,10 +853,27 @@ public class ECMA48 implements Runnable {
         }
         assert (currentState.cursorY < height);
         assert (currentState.cursorX < width);
+        syncScrollbackWidth();
+
+        if (initialState != null) {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                initialState.writeScreenState(new DataOutputStream(bytes),
+                    true);
+                readScreenState(new DataInputStream(
+                    new ByteArrayInputStream(bytes.toByteArray())));
+            } catch (IOException e) {
+                // The streams are in memory and the format is our own, so
+                // this cannot happen.
+                throw new IllegalStateException(e);
+            }
+        }
 
         // Spin up the input reader
-        readerThread = new Thread(this);
-        readerThread.start();
+        if (this.inputStream != null) {
+            readerThread = ThreadStrategy.newThread(this, "ECMA48 reader");
+            readerThread.start();
+        }
     }
 
     // ------------------------------------------------------------------------
@@ -762,8 +891,8 @@ public class ECMA48 implements Runnable {
             utf8 = true;
         }
 
-        // available() will often return > 1, so we need to read in chunks to
-        // stay caught up.
+        // Read in chunks to stay caught up.  If a read fills the buffer,
+        // the buffer is grown for next time.
         char [] readBufferUTF8 = null;
         byte [] readBuffer = null;
         if (utf8) {
@@ -773,45 +902,10 @@ public class ECMA48 implements Runnable {
         }
 
         while (!done && !stopReaderThread) {
-            synchronized (userQueue) {
-                while (userQueue.size() > 0) {
-                    handleUserEvent(userQueue.remove(0));
-                }
-            }
-
             try {
-                int n = inputStream.available();
-
-                // System.err.printf("available() %d\n", n); System.err.flush();
-                if (utf8) {
-                    if (readBufferUTF8.length < n) {
-                        // The buffer wasn't big enough, make it huger
-                        int newSizeHalf = Math.max(readBufferUTF8.length, n);
-                        readBufferUTF8 = new char[newSizeHalf * 2];
-                    }
-                } else {
-                    if (readBuffer.length < n) {
-                        // The buffer wasn't big enough, make it huger
-                        int newSizeHalf = Math.max(readBuffer.length, n);
-                        readBuffer = new byte[newSizeHalf * 2];
-                    }
-                }
-                if (n == 0) {
-                    try {
-                        Thread.sleep(10);
-                    } catch (InterruptedException e) {
-                        // SQUASH
-                    }
-
-                    if (inputStream.getStream() instanceof FileInputStream) {
-                        // Special case: force a read of files in order
-                        // to see the EOF.
-                    } else {
-                        // Go back to waiting.
-                        continue;
-                    }
-                }
-
+                // This blocks until the remote side sends something or
+                // closes.  User input is written by addUserEvent() on its
+                // own, so it does not wait on this.
                 int rc = -1;
                 try {
                     if (utf8) {
@@ -825,39 +919,40 @@ public class ECMA48 implements Runnable {
                     // System.err.println("ReadTimeoutException");
                     rc = 0;
                 }
-
                 // System.err.printf("read() %d\n", rc); System.err.flush();
                 if (rc == -1) {
                     // This is EOF
                     done = true;
                 } else {
-                    if (utf8) {
-                        for (int i = 0; i < rc;) {
-                            int ch = Character.codePointAt(readBufferUTF8, i);
-                            i += Character.charCount(ch);
-
-                            // Don't step on UI events
-                            synchronized (this) {
-                                // Special case for VT10x: 7-bit characters
-                                // only.
-                                if ((type == DeviceType.VT100)
-                                    || (type == DeviceType.VT102)
-                                ) {
+                    SessionRecorder sessionRecorder = recorder;
+                    if ((sessionRecorder != null) && (rc > 0)) {
+                        if (utf8) {
+                            sessionRecorder.recordOutput(readBufferUTF8, 0, rc);
+                        } else {
+                            sessionRecorder.recordOutput(readBuffer, 0, rc);
+                        }
+                    }
+                    // Special case for VT10x: 7-bit characters only.
+                    boolean sevenBit = ((type == DeviceType.VT100)
+                        || (type == DeviceType.VT102));
+
+                    // Don't step on UI events.  The lock is taken once for
+                    // the whole chunk rather than once per character.
+                    synchronized (this) {
+                        if (utf8) {
+                            for (int i = 0; i < rc;) {
+                                int ch = Character.codePointAt(readBufferUTF8,
+                                    i);
+                                i += Character.charCount(ch);
+                                if (sevenBit) {
                                     consume(ch & 0x7F);
                                 } else {
                                     consume(ch);
                                 }
                             }
-                        }
-                    } else {
-                        for (int i = 0; i < rc; i++) {
-                            // Don't step on UI events
-                            synchronized (this) {
-                                // Special case for VT10x: 7-bit characters
-                                // only.
-                                if ((type == DeviceType.VT100)
-                                    || (type == DeviceType.VT102)
-                                ) {
+                        } else {
+                            for (int i = 0; i < rc; i++) {
+                                if (sevenBit) {
                                     consume(readBuffer[i] & 0x7F);
                                 } else {
                                     consume(readBuffer[i]);
@@ -865,18 +960,41 @@ public class ECMA48 implements Runnable {
                             }
                         }
                     }
+                    if (sessionRecorder != null) {
+                        synchronized (this) {
+                            // Keyframes can only be taken between sequences.
+                            if ((scanState == ScanState.GROUND)
+                                && sessionRecorder.isKeyframeDue()
+                            ) {
+                                sessionRecorder.recordKeyframe(this);
+                            }
+                        }
+                    }
+
+                    if (rc > 0) {
+                        outputCount.addAndGet(rc);
+                    }
+
                     // Permit my enclosing UI to know that I updated.
-                    if ((displayListener != null) && !doNotUpdateDisplay) {
-                        if (screenIsDirty) {
-                            displayListener.updateDisplay(getVisibleDisplay(
-                                height, displayListener.getScrollBottom()));
-                            screenIsDirty = false;
-                        } else {
-                            displayListener.displayChanged(true);
-                            screenIsDirty = false;
+                    updateDisplayListener();
+
+                    // If the read filled the buffer, more is probably
+                    // waiting: read it in bigger pieces next time.
+                    if (utf8) {
+                        if ((rc == readBufferUTF8.length)
+                            && (rc < MAX_READ_BUFFER)
+                        ) {
+                            // The buffer wasn't big enough, make it huger
+                            readBufferUTF8 = new char[rc * 2];
+                        }
+                    } else {
+                        if ((rc == readBuffer.length)
+                            && (rc < MAX_READ_BUFFER)
+                        ) {
+                            // The buffer wasn't big enough, make it huger
+                            readBuffer = new byte[rc * 2];
                         }
                     }
-                    doNotUpdateDisplay = false;
                 }
                 // System.err.println("end while loop"); System.err.flush();
             } catch (IOException e) {
@@ -911,6 +1029,11 @@ public class ECMA48 implements Runnable {
         // Let the rest of the world know that I am done.
         stopReaderThread = true;
 
+        // Finish the session log, nothing more will be read.
+        if (recorder != null) {
+            recorder.close();
+        }
+
         try {
             inputStream.cancelRead();
             inputStream.close();
@@ -937,6 +1060,321 @@ public class ECMA48 implements Runnable {
     // ECMA48 -----------------------------------------------------------------
     // ------------------------------------------------------------------------
 
+    /**
+     * Let the enclosing UI know that new data was consumed.
+     */
+    private void updateDisplayListener() {
+        if (displayHidden) {
+            synchronized (this) {
+                // Check again under the lock, setDisplayHidden() may have
+                // just made the display visible.
+                if (displayHidden) {
+                    hiddenUpdatePending = true;
+                    doNotUpdateDisplay = false;
+                    return;
+                }
+            }
+        }
+        if ((displayListener != null) && !doNotUpdateDisplay) {
+            if (screenIsDirty) {
+                displayListener.updateDisplay(getVisibleDisplay(
+                    height, displayListener.getScrollBottom()));
+                screenIsDirty = false;
+            } else {
+                displayListener.displayChanged(true);
+                screenIsDirty = false;
+            }
+        }
+        doNotUpdateDisplay = false;
+    }
+
+    /**
+     * Set the display hidden flag.  While hidden, remote data is still
+     * consumed but the listener is not sent display snapshots or change
+     * notifications.  When the display is made visible again, one snapshot
+     * of the current screen is sent if anything changed in the meantime.
+     *
+     * @param hidden if true, the enclosing UI cannot see this terminal
+     */
+    public final void setDisplayHidden(final boolean hidden) {
+        if (displayHidden == hidden) {
+            return;
+        }
+        List<DisplayLine> snapshot = null;
+        synchronized (this) {
+            displayHidden = hidden;
+            if (!hidden && hiddenUpdatePending) {
+                hiddenUpdatePending = false;
+                if (displayListener != null) {
+                    snapshot = getVisibleDisplay(height,
+                        displayListener.getScrollBottom());
+                    screenIsDirty = false;
+                }
+            }
+        }
+        if (snapshot != null) {
+            displayListener.updateDisplay(snapshot);
+        }
+    }
+
+    /**
+     * Get the display hidden flag.
+     *
+     * @return true if the enclosing UI cannot currently see this terminal
+     */
+    public final boolean isDisplayHidden() {
+        return displayHidden;
+    }
+
+    /**
+     * Start recording everything read from the remote side to a session
+     * log.  A keyframe of the current screen is written immediately.
+     *
+     * @param recorder the recorder, or null to stop recording.  The
+     * previous recorder (if any) is closed.
+     */
+    public final void setSessionRecorder(final SessionRecorder recorder) {
+        SessionRecorder oldRecorder;
+        synchronized (this) {
+            oldRecorder = this.recorder;
+            this.recorder = recorder;
+            if ((recorder != null) && (scanState == ScanState.GROUND)) {
+                recorder.recordKeyframe(this);
+            }
+        }
+        if ((oldRecorder != null) && (oldRecorder != recorder)) {
+            oldRecorder.close();
+        }
+    }
+
+    /**
+     * Get the session recorder.
+     *
+     * @return the recorder, or null if this session is not being recorded
+     */
+    public final SessionRecorder getSessionRecorder() {
+        return recorder;
+    }
+
+    /**
+     * Consume data as though it had been read from the remote side.  This
+     * is used to replay recorded sessions.  For type == XTERM the data is
+     * UTF-8, and must not split a character.
+     *
+     * @param data the data
+     * @param offset the offset into data
+     * @param length the number of bytes to consume
+     */
+    public final void consumeRecorded(final byte [] data, final int offset,
+        final int length) {
+
+        synchronized (this) {
+            if (type == DeviceType.XTERM) {
+                String str = new String(data, offset, length,
+                    StandardCharsets.UTF_8);
+                for (int i = 0; i < str.length();) {
+                    int ch = str.codePointAt(i);
+                    i += Character.charCount(ch);
+                    consume(ch);
+                }
+            } else {
+                for (int i = offset; i < offset + length; i++) {
+                    // Special case for VT10x: 7-bit characters only.
+                    if ((type == DeviceType.VT100)
+                        || (type == DeviceType.VT102)
+                    ) {
+                        consume(data[i] & 0x7F);
+                    } else {
+                        consume(data[i]);
+                    }
+                }
+            }
+        }
+        updateDisplayListener();
+    }
+
+    /**
+     * Write the screen state: dimensions, cursor, modes, title, the display
+     * buffer, and optionally the scrollback buffer.  Image data and an
+     * in-progress escape sequence are not saved.
+     *
+     * @param out the stream to write to
+     * @param includeScrollback if true, also write the scrollback buffer
+     * @throws IOException if a java.io operation throws
+     */
+    public final synchronized void writeScreenState(final DataOutputStream out,
+        final boolean includeScrollback) throws IOException {
+
+        out.writeInt(1);
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeInt(rightMargin);
+        out.writeInt(scrollRegionTop);
+        out.writeInt(scrollRegionBottom);
+        writeSaveableState(out, currentState);
+        writeSaveableState(out, savedState);
+
+        boolean [] modes = {
+            cursorVisible, reverseVideo, wrapLineFlag, insertMode,
+            newLineMode, columns132, vt52Mode, shiftOut, fullDuplex,
+            s8c1t, pixelMouse, hideMousePointer
+        };
+        out.writeInt(modes.length);
+        for (int i = 0; i < modes.length; i++) {
+            out.writeBoolean(modes[i]);
+        }
+        out.writeByte(mouseProtocol.ordinal());
+        out.writeByte(mouseEncoding.ordinal());
+        out.writeByte(arrowKeyMode.ordinal());
+        out.writeUTF(screenTitle);
+
+        out.writeInt(display.size());
+        for (DisplayLine line: display) {
+            line.writeTo(out);
+        }
+        if (includeScrollback) {
+            out.writeInt(scrollback.size());
+            for (DisplayLine line: scrollback) {
+                line.writeTo(out);
+            }
+        } else {
+            out.writeInt(0);
+        }
+    }
+
+    /**
+     * Restore the screen state written by writeScreenState().  The
+     * scrollback buffer is replaced by the saved one, or cleared if the
+     * saved state has no scrollback.
+     *
+     * @param in the stream to read from
+     * @throws IOException if a java.io operation throws, or the data is not
+     * a screen state
+     */
+    public final void readScreenState(final DataInputStream in)
+        throws IOException {
+
+        synchronized (this) {
+            int version = in.readInt();
+            if (version != 1) {
+                throw new IOException("Unknown screen state version " +
+                    version);
+            }
+            width = in.readInt();
+            height = in.readInt();
+            rightMargin = in.readInt();
+            scrollRegionTop = in.readInt();
+            scrollRegionBottom = in.readInt();
+            readSaveableState(in, currentState);
+            readSaveableState(in, savedState);
+
+            boolean [] modes = new boolean[12];
+            int modeCount = in.readInt();
+            for (int i = 0; i < modeCount; i++) {
+                boolean mode = in.readBoolean();
+                if (i < modes.length) {
+                    modes[i] = mode;
+                }
+            }
+            cursorVisible       = modes[0];
+            reverseVideo        = modes[1];
+            wrapLineFlag        = modes[2];
+            insertMode          = modes[3];
+            newLineMode         = modes[4];
+            columns132          = modes[5];
+            vt52Mode            = modes[6];
+            shiftOut            = modes[7];
+            fullDuplex          = modes[8];
+            s8c1t               = modes[9];
+            pixelMouse          = modes[10];
+            hideMousePointer    = modes[11];
+            mouseProtocol = MouseProtocol.values()[in.readUnsignedByte()];
+            mouseEncoding = MouseEncoding.values()[in.readUnsignedByte()];
+            arrowKeyMode = ArrowKeyMode.values()[in.readUnsignedByte()];
+            screenTitle = in.readUTF();
+
+            ArrayList<DisplayLine> newDisplay = new ArrayList<DisplayLine>();
+            int lines = in.readInt();
+            for (int i = 0; i < lines; i++) {
+                newDisplay.add(new DisplayLine(in));
+            }
+            lines = in.readInt();
+            if (lines > 0) {
+                Scrollback newScrollback = new Scrollback();
+                newScrollback.setWidth(width);
+                for (int i = 0; i < lines; i++) {
+                    newScrollback.add(new DisplayLine(in));
+                }
+                scrollbackFirstLine += scrollback.size() + display.size();
+                scrollback.close();
+                scrollback = newScrollback;
+                resetScrollbackIndex();
+            } else {
+                // The scrollback belongs to whatever screen we are
+                // replacing, not to the restored one.
+                scrollbackFirstLine += scrollback.size();
+                scrollback.clear();
+                resetScrollbackIndex();
+            }
+            display = newDisplay;
+
+            toGround();
+            screenIsDirty = true;
+        }
+        updateDisplayListener();
+    }
+
+    /**
+     * Write one SaveableState.
+     *
+     * @param out the stream to write to
+     * @param state the state to write
+     * @throws IOException if a java.io operation throws
+     */
+    private void writeSaveableState(final DataOutputStream out,
+        final SaveableState state) throws IOException {
+
+        out.writeInt(state.cursorX);
+        out.writeInt(state.cursorY);
+        out.writeBoolean(state.originMode);
+        out.writeBoolean(state.lineWrap);
+        out.writeByte(state.g0Charset.ordinal());
+        out.writeByte(state.g1Charset.ordinal());
+        out.writeByte(state.g2Charset.ordinal());
+        out.writeByte(state.g3Charset.ordinal());
+        out.writeByte(state.grCharset.ordinal());
+        out.writeByte(state.glLockshift.ordinal());
+        out.writeByte(state.grLockshift.ordinal());
+        DisplayLine.writeAttributes(out, state.attr);
+    }
+
+    /**
+     * Read one SaveableState written by writeSaveableState().
+     *
+     * @param in the stream to read from
+     * @param state the state to set
+     * @throws IOException if a java.io operation throws
+     */
+    private void readSaveableState(final DataInputStream in,
+        final SaveableState state) throws IOException {
+
+        CharacterSet [] charsets = CharacterSet.values();
+        LockshiftMode [] lockshifts = LockshiftMode.values();
+        state.cursorX       = in.readInt();
+        state.cursorY       = in.readInt();
+        state.originMode    = in.readBoolean();
+        state.lineWrap      = in.readBoolean();
+        state.g0Charset     = charsets[in.readUnsignedByte()];
+        state.g1Charset     = charsets[in.readUnsignedByte()];
+        state.g2Charset     = charsets[in.readUnsignedByte()];
+        state.g3Charset     = charsets[in.readUnsignedByte()];
+        state.grCharset     = charsets[in.readUnsignedByte()];
+        state.glLockshift   = lockshifts[in.readUnsignedByte()];
+        state.grLockshift   = lockshifts[in.readUnsignedByte()];
+        state.attr          = new CellAttributes();
+        DisplayLine.readAttributes(in, state.attr);
+    }
+
     /**
      * Wait for a period of time to get output from the launched process.
      *
@@ -987,7 +1425,30 @@ public class ECMA48 implements Runnable {
     public void addUserEvent(final TInputEvent event) {
         synchronized (userQueue) {
             userQueue.add(event);
+            if (userQueueBusy) {
+                return;
+            }
+            userQueueBusy = true;
         }
+
+        // Writing to the remote side can block, so it is done on another
+        // thread.  One task at a time drains the queue, which keeps the
+        // events in order.
+        ThreadStrategy.execute(new Runnable() {
+            public void run() {
+                for (;;) {
+                    TInputEvent next;
+                    synchronized (userQueue) {
+                        if (userQueue.size() == 0) {
+                            userQueueBusy = false;
+                            return;
+                        }
+                        next = userQueue.remove(0);
+                    }
+                    handleUserEvent(next);
+                }
+            }
+        });
     }
 
     /**
@@ -1240,6 +1701,11 @@ public class ECMA48 implements Runnable {
             return lastVisibleDisplay;
         }
 
+        // Wrap just enough of the scrollback to the current width to fill
+        // the screen.
+        syncScrollbackWidth();
+        scrollback.rewrap(scrollBottom + visibleHeight - display.size());
+
         int visibleBottom = scrollback.size() + display.size() - scrollBottom;
 
         List<DisplayLine> preceedingBlankLines = new ArrayList<DisplayLine>();
@@ -1252,13 +1718,18 @@ public class ECMA48 implements Runnable {
         }
         assert (visibleTop >= 0);
 
-        List<DisplayLine> displayLines = new ArrayList<DisplayLine>();
-        displayLines.addAll(scrollback);
-        displayLines.addAll(display);
-
+        // Only touch the scrollback lines that are visible, older ones may
+        // have to be paged in.
         List<DisplayLine> visibleLines = new ArrayList<DisplayLine>();
         visibleLines.addAll(preceedingBlankLines);
-        visibleLines.addAll(displayLines.subList(visibleTop, visibleBottom));
+        int scrollbackSize = scrollback.size();
+        for (int i = visibleTop; i < visibleBottom; i++) {
+            if (i < scrollbackSize) {
+                visibleLines.add(scrollback.get(i));
+            } else {
+                visibleLines.add(display.get(i - scrollbackSize));
+            }
+        }
 
         // Fill in the blank lines on bottom
         int bottomBlankLines = visibleHeight - visibleLines.size();
@@ -1306,6 +1777,10 @@ public class ECMA48 implements Runnable {
         screenIsDirty = true;
         this.width = width;
         rightMargin = width - 1;
+        syncScrollbackWidth();
+        if (recorder != null) {
+            recorder.recordResize(width, height);
+        }
         if (currentState.cursorX >= width) {
             currentState.cursorX = width - 1;
         }
@@ -1336,6 +1811,9 @@ public class ECMA48 implements Runnable {
         screenIsDirty = true;
         int delta = height - this.height;
         this.height = height;
+        if (recorder != null) {
+            recorder.recordResize(width, height);
+        }
         scrollRegionBottom += delta;
         if ((scrollRegionBottom < 0) || (scrollRegionTop > height - 1)) {
             scrollRegionBottom = height - 1;
@@ -1362,6 +1840,9 @@ public class ECMA48 implements Runnable {
                 DisplayLine line = new DisplayLine(currentState.attr);
                 line.setReverseColor(reverseVideo);
                 scrollback.add(0, line);
+            } else if (scrollbackIndex != null) {
+                scrollbackIndex.truncate(scrollbackFirstLine
+                    + scrollback.size() - 1);
             }
             display.add(0, scrollback.remove(scrollback.size() - 1));
         }
@@ -1389,6 +1870,194 @@ public class ECMA48 implements Runnable {
         this.scrollbackMax = scrollbackMax;
     }
 
+    /**
+     * Tell the scrollback buffer about a change in width.  Lines already
+     * in it will be wrapped again, which changes line numbers, so the
+     * search index is dropped and rebuilt by a background task.
+     */
+    private void syncScrollbackWidth() {
+        if (scrollback.getWidth() != width) {
+            scrollback.setWidth(width);
+            if (scrollback.isRewrapPending()) {
+                resetScrollbackIndex();
+            }
+        }
+    }
+
+    /**
+     * Drop the search index, because the scrollback lines have been
+     * replaced or renumbered.  Any rebuild in progress is abandoned, and
+     * if this emulator has been searched a new one is started.  The caller
+     * must hold the lock on this emulator.
+     */
+    private void resetScrollbackIndex() {
+        scrollbackIndexGeneration++;
+        scrollbackIndex = null;
+        if (scrollbackIndexWanted) {
+            startScrollbackIndex();
+        }
+    }
+
+    /**
+     * Build the search index in the background.  The caller must hold the
+     * lock on this emulator.
+     */
+    private void startScrollbackIndex() {
+        final long generation = scrollbackIndexGeneration;
+        ThreadStrategy.execute(new Runnable() {
+            public void run() {
+                rebuildScrollbackIndex(generation);
+            }
+        });
+    }
+
+    /**
+     * Wrap the scrollback to the current width and index it, after the
+     * first search or a width change.  The emulator lock is only held for one batch of
+     * lines at a time, so output keeps flowing while this runs.
+     *
+     * @param generation the value of scrollbackIndexGeneration when this
+     * rebuild was started
+     */
+    private void rebuildScrollbackIndex(final long generation) {
+        // Line numbers only hold still once everything has been wrapped to
+        // the current width.
+        ScrollbackIndex index = null;
+        long line = 0;
+        long end = 0;
+        while (index == null) {
+            synchronized (this) {
+                if (generation != scrollbackIndexGeneration) {
+                    return;
+                }
+                if (!scrollback.rewrapSome()) {
+                    // Only the newest lines are indexed.
+                    end = scrollbackFirstLine + scrollback.size();
+                    line = Math.max(scrollbackFirstLine,
+                        end - ScrollbackIndex.MAX_LINES);
+                    index = new ScrollbackIndex();
+                    index.evict(line);
+                    index.startBackfill();
+                    // Lines scrolling off from now on are queued behind
+                    // the backfill.
+                    scrollbackIndex = index;
+                }
+            }
+        }
+
+        while (line < end) {
+            synchronized (this) {
+                if (generation != scrollbackIndexGeneration) {
+                    return;
+                }
+                line = Math.max(line, scrollbackFirstLine);
+                long stop = Math.min(end, Math.min(line + 1024,
+                    scrollbackFirstLine + scrollback.size()));
+                if (line >= stop) {
+                    // The rest went back to the display, and will be
+                    // queued again if it scrolls off.
+                    break;
+                }
+                for (; line < stop; line++) {
+                    index.backfillLine(line,
+                        scrollback.get((int) (line - scrollbackFirstLine)));
+                }
+            }
+        }
+        index.finishBackfill();
+    }
+
+    /**
+     * Discard the scrollback buffer, releasing its memory and spill file.
+     */
+    public final void clearScrollback() {
+        synchronized (this) {
+            scrollbackFirstLine += scrollback.size();
+            scrollback.clear();
+            resetScrollbackIndex();
+        }
+    }
+
+    /**
+     * Get the absolute line number of the first line in the scrollback
+     * buffer.  The line at row i of scrollback + display is line number
+     * getScrollbackFirstLine() + i.
+     *
+     * @return the absolute line number
+     */
+    public final long getScrollbackFirstLine() {
+        return scrollbackFirstLine;
+    }
+
+    /**
+     * Start a search of the scrollback buffer and display for text.  The
+     * display is searched right away, the scrollback by calling
+     * searchSome() on the result.  The newest scrollback lines are found
+     * through an index that is kept up to date in the background as lines
+     * scroll off the display, and the rest are checked one by one.  The
+     * index is built by the first search, and until it is ready every line
+     * is checked.  After a width change the scrollback lines are missing
+     * from the results until the background task has wrapped them again.
+     *
+     * @param text the text to search for
+     * @param regularExpression if true, text is a regular expression
+     * @param caseSensitive if true, perform a case-sensitive search
+     * @return the search
+     * @throws java.util.regex.PatternSyntaxException if text is not a valid
+     * regular expression
+     */
+    public final ScrollbackSearch search(final String text,
+        final boolean regularExpression, final boolean caseSensitive) {
+
+        Pattern pattern = ScrollbackIndex.compile(text, regularExpression,
+            caseSensitive);
+        String literal = text;
+        if (regularExpression) {
+            literal = ScrollbackIndex.getRequiredLiteral(text);
+        }
+
+        List<Long> candidates = new ArrayList<Long>();
+        List<ScrollbackIndex.Match> matches;
+        matches = new ArrayList<ScrollbackIndex.Match>();
+        synchronized (this) {
+            if (!scrollbackIndexWanted) {
+                scrollbackIndexWanted = true;
+                if (scrollbackIndex == null) {
+                    startScrollbackIndex();
+                }
+            }
+            long displayFirstLine = scrollbackFirstLine + scrollback.size();
+            long indexFirstLine = displayFirstLine;
+            ScrollbackIndex index = scrollbackIndex;
+            if (scrollback.isRewrapPending()) {
+                // The line numbers only hold still once the scrollback is
+                // wrapped to the new width.
+                indexFirstLine = scrollbackFirstLine;
+            } else if (index != null) {
+                indexFirstLine = Math.min(indexFirstLine,
+                    index.search(literal, candidates));
+            }
+            for (int i = 0; i < display.size(); i++) {
+                ScrollbackIndex.searchLine(pattern, displayFirstLine + i,
+                    display.get(i), matches);
+            }
+            return new ScrollbackSearch(this, pattern,
+                scrollbackIndexGeneration, scrollbackFirstLine,
+                indexFirstLine, candidates, matches);
+        }
+    }
+
+    /**
+     * Get the line numbering of the scrollback buffer.  This changes
+     * whenever the scrollback is cleared, replaced, or wrapped to a new
+     * width.  Note package private access.
+     *
+     * @return a number that changes with the line numbering
+     */
+    long getScrollbackGeneration() {
+        return scrollbackIndexGeneration;
+    }
+
     /**
      * Get visible cursor flag.
      *
@@ -1409,6 +2078,27 @@ public class ECMA48 implements Runnable {
         return screenTitle;
     }
 
+    /**
+     * Get the number of bytes (or characters for UTF-8 devices) read from
+     * the remote side so far.  This is safe to call from any thread, and is
+     * kept up to date even while the display is hidden.
+     *
+     * @return the output count
+     */
+    public final long getOutputCount() {
+        return outputCount.get();
+    }
+
+    /**
+     * Get the number of bells (BEL characters) received so far.  This is
+     * safe to call from any thread.
+     *
+     * @return the bell count
+     */
+    public final int getBellCount() {
+        return bellCount.get();
+    }
+
     /**
      * Get 132 columns value.
      *
@@ -1847,6 +2537,10 @@ public class ECMA48 implements Runnable {
      */
     private void appendScrollbackLine(DisplayLine line) {
         scrollback.add(line);
+        if (scrollbackIndex != null) {
+            scrollbackIndex.addLine(scrollbackFirstLine + scrollback.size() - 1,
+                line);
+        }
         if (scrollback.size() > height * 3) {
             scrollback.get(scrollback.size() - (height * 3)).clearImages();
         }
@@ -1859,9 +2553,13 @@ public class ECMA48 implements Runnable {
     private void newDisplayLine() {
         // Scroll the top line off into the scrollback buffer
         appendScrollbackLine(display.get(0));
-        while (scrollback.size() > scrollbackMax) {
-            scrollback.remove(0);
-            scrollback.trimToSize();
+        if (scrollback.size() > scrollbackMax) {
+            int count = scrollback.size() - scrollbackMax;
+            scrollback.removeFirst(count);
+            scrollbackFirstLine += count;
+            if (scrollbackIndex != null) {
+                scrollbackIndex.evict(scrollbackFirstLine);
+            }
         }
         display.remove(0);
         display.trimToSize();
@@ -1875,6 +2573,10 @@ public class ECMA48 implements Runnable {
      * Wraps the current line.
      */
     private void wrapCurrentLine() {
+        // Remember that the text goes on, so that the line can be wrapped
+        // again if the width changes.
+        display.get(currentState.cursorY).setWrapColumn(rightMargin + 1);
+
         if (currentState.cursorY == height - 1) {
             newDisplayLine();
         }
@@ -2285,20 +2987,32 @@ public class ECMA48 implements Runnable {
     private String keypressToString(final TKeypress keypress) {
 
         if ((fullDuplex == false) && (!keypress.isFnKey())) {
-            /*
-             * If this is a control character, process it like it came from
-             * the remote side.
-             */
-            if (keypress.getChar() < 0x20) {
-                handleControlChar((char) keypress.getChar());
-            } else {
-                // Local echo for everything else
-                printCharacter(keypress.getChar());
+            // This runs on a user event task, not the reader thread: hold
+            // the lock while changing the screen so that consume() does
+            // not run at the same time, but call the listener outside it
+            // the same as setDisplayHidden().
+            List<DisplayLine> snapshot = null;
+            synchronized (this) {
+                /*
+                 * If this is a control character, process it like it came
+                 * from the remote side.
+                 */
+                if (keypress.getChar() < 0x20) {
+                    handleControlChar((char) keypress.getChar());
+                } else {
+                    // Local echo for everything else
+                    printCharacter(keypress.getChar());
+                }
+                if (displayHidden) {
+                    hiddenUpdatePending = true;
+                } else if (displayListener != null) {
+                    snapshot = getVisibleDisplay(height,
+                        displayListener.getScrollBottom());
+                    screenIsDirty = false;
+                }
             }
-            if (displayListener != null) {
-                displayListener.updateDisplay(getVisibleDisplay(
-                    height, displayListener.getScrollBottom()));
-                screenIsDirty = false;
+            if (snapshot != null) {
+                displayListener.updateDisplay(snapshot);
             }
         }
 
@@ -3194,7 +3908,7 @@ public class ECMA48 implements Runnable {
 
         case 0x07:
             // BEL
-            // Not supported
+            bellCount.incrementAndGet();
             break;
 
         case 0x08:
@@ -5202,6 +5916,10 @@ public class ECMA48 implements Runnable {
         if (start < 0) {
             start = 0;
         }
+        if (end == width - 1) {
+            // Erasing to the end of line breaks a soft wrap.
+            display.get(currentState.cursorY).setWrapColumn(0);
+        }
 
         for (int i = start; i <= end; i++) {
             DisplayLine line = display.get(currentState.cursorY);
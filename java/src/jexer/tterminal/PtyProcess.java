@@ -0,0 +1,561 @@
+/*
+ * Jexer - Java Text User Interface
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2022 Autumn Lamonte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * @author Autumn Lamonte ⚧ Trans Liberation Now
+ * @version 1
+ */
+package jexer.tterminal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import jexer.bits.ThreadStrategy;
+
+/**
+ * PtyProcess is a Process running on a pseudo-terminal opened in this JVM.
+ * The terminal reads and writes the pty master directly, and can set the
+ * window size with TIOCSWINSZ, so neither 'script' nor 'ptypipe' is needed
+ * between the emulator and the shell.
+ *
+ * <p>
+ * The native side is libjexerpty, built from lib/ptypipe/jexerpty.c by the
+ * same configure/make step that builds ptypipe.  It is found with the
+ * jexer.TTerminal.ptyLibrary property (a full path) or else on
+ * java.library.path.  When it is missing, isAvailable() returns false and
+ * TTerminalWidget falls back to ptypipe or script.
+ */
+public class PtyProcess extends Process {
+
+    // ------------------------------------------------------------------------
+    // Constants --------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * SIGHUP, the same number on every POSIX system.
+     */
+    private static final int SIGHUP = 1;
+
+    /**
+     * SIGKILL, the same number on every POSIX system.
+     */
+    private static final int SIGKILL = 9;
+
+    /**
+     * How long a virtual reader thread sleeps between polls of the pty.
+     */
+    private static final int POLL_MILLIS = 5;
+
+    // ------------------------------------------------------------------------
+    // Variables --------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * If true, libjexerpty loaded.  Null until the first check.
+     */
+    private static Boolean available = null;
+
+    /**
+     * The child process ID.
+     */
+    private final int pid;
+
+    /**
+     * The pty master file descriptor, or -1 once closed.
+     */
+    private int fd;
+
+    /**
+     * The child's exit value, valid once exited is true.
+     */
+    private int exitValue = -1;
+
+    /**
+     * If true, the child has exited and was reaped.
+     */
+    private boolean exited = false;
+
+    /**
+     * Reads from the pty master.
+     */
+    private final InputStream input;
+
+    /**
+     * Writes to the pty master.
+     */
+    private final OutputStream output;
+
+    /**
+     * Stands in for stderr, which the pty merges into the input stream.
+     */
+    private final InputStream error;
+
+    // ------------------------------------------------------------------------
+    // Constructors -----------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Private constructor, use start().
+     *
+     * @param pid the child process ID
+     * @param fd the pty master file descriptor
+     */
+    private PtyProcess(final int pid, final int fd) {
+        this.pid = pid;
+        this.fd = fd;
+
+        input = new InputStream() {
+            private final ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
+
+            @Override
+            public int read() throws IOException {
+                byte [] one = new byte[1];
+                if (read(one, 0, 1) < 0) {
+                    return -1;
+                }
+                return one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(final byte [] b, final int off,
+                final int len) throws IOException {
+
+                if (len == 0) {
+                    return 0;
+                }
+                int masterFd = getFd();
+                if (masterFd < 0) {
+                    return -1;
+                }
+                if (ThreadStrategy.isVirtual()) {
+                    // A native read would pin the carrier thread until the
+                    // shell writes something.
+                    while (!poll(masterFd)) {
+                        try {
+                            Thread.sleep(POLL_MILLIS);
+                        } catch (InterruptedException e) {
+                            // SQUASH
+                        }
+                        masterFd = getFd();
+                        if (masterFd < 0) {
+                            return -1;
+                        }
+                    }
+                }
+                synchronized (buffer) {
+                    int rc = PtyProcess.read(masterFd, buffer,
+                        Math.min(len, buffer.capacity()));
+                    if (rc > 0) {
+                        buffer.clear();
+                        buffer.get(b, off, rc);
+                    }
+                    return rc;
+                }
+            }
+
+            @Override
+            public int available() throws IOException {
+                int masterFd = getFd();
+                if (masterFd < 0) {
+                    return 0;
+                }
+                return PtyProcess.available(masterFd);
+            }
+        };
+
+        output = new OutputStream() {
+            @Override
+            public void write(final int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(final byte [] b, final int off,
+                final int len) throws IOException {
+
+                int masterFd = getFd();
+                if (masterFd < 0) {
+                    throw new IOException("pty is closed");
+                }
+                PtyProcess.write(masterFd, b, off, len);
+            }
+        };
+
+        error = new InputStream() {
+            @Override
+            public int read() {
+                return -1;
+            }
+        };
+
+        // waitpid() blocks in native code for the life of the child, so
+        // this is always a platform thread.
+        Thread reaper = new Thread(new Runnable() {
+            public void run() {
+                int rc = waitFor(PtyProcess.this.pid);
+                synchronized (PtyProcess.this) {
+                    exitValue = rc;
+                    exited = true;
+                    PtyProcess.this.notifyAll();
+                }
+            }
+        }, "PtyProcess reaper " + pid);
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    // ------------------------------------------------------------------------
+    // Process ----------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Get the stream that writes to the child's terminal.
+     *
+     * @return the output stream
+     */
+    @Override
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    /**
+     * Get the stream that reads the child's terminal.
+     *
+     * @return the input stream
+     */
+    @Override
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    /**
+     * Get the child's error stream.  The pty merges stderr into the input
+     * stream, so this stream is always at end of file.
+     *
+     * @return an empty input stream
+     */
+    @Override
+    public InputStream getErrorStream() {
+        return error;
+    }
+
+    /**
+     * Wait for the child to exit.
+     *
+     * @return the exit value, 128 + the signal number if it was killed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Override
+    public synchronized int waitFor() throws InterruptedException {
+        while (!exited) {
+            wait();
+        }
+        return exitValue;
+    }
+
+    /**
+     * Get the child's exit value.
+     *
+     * @return the exit value, 128 + the signal number if it was killed
+     * @throws IllegalThreadStateException if the child has not exited
+     */
+    @Override
+    public synchronized int exitValue() {
+        if (!exited) {
+            throw new IllegalThreadStateException("process has not exited");
+        }
+        return exitValue;
+    }
+
+    /**
+     * Hang up the child's terminal: SIGHUP its process group and close the
+     * pty master.
+     */
+    @Override
+    public void destroy() {
+        synchronized (this) {
+            if (!exited) {
+                kill(pid, SIGHUP);
+            }
+        }
+        closeFd();
+    }
+
+    /**
+     * Kill the child's process group with SIGKILL and close the pty master.
+     *
+     * @return this process
+     */
+    @Override
+    public Process destroyForcibly() {
+        synchronized (this) {
+            if (!exited) {
+                kill(pid, SIGKILL);
+            }
+        }
+        closeFd();
+        return this;
+    }
+
+    /**
+     * Get the child process ID.  This overrides Process.pid() on Java 9
+     * and later.
+     *
+     * @return the pid
+     */
+    public long pid() {
+        return pid;
+    }
+
+    // ------------------------------------------------------------------------
+    // PtyProcess -------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * See if libjexerpty can be used.  The jexer.TTerminal.pty property may
+     * be "true", "false", or "auto" (the default); the library is only
+     * loaded the first time a terminal asks.
+     *
+     * @return true if PtyProcess.start() can be called
+     */
+    public static synchronized boolean isAvailable() {
+        if (System.getProperty("jexer.TTerminal.pty",
+                "auto").equals("false")
+        ) {
+            return false;
+        }
+        if (available == null) {
+            available = loadLibrary();
+        }
+        return available;
+    }
+
+    /**
+     * Load libjexerpty.
+     *
+     * @return true if the library loaded
+     */
+    private static boolean loadLibrary() {
+        if (System.getProperty("os.name").startsWith("Windows")) {
+            return false;
+        }
+        try {
+            String path = System.getProperty("jexer.TTerminal.ptyLibrary");
+            if ((path != null) && (path.length() > 0)) {
+                System.load(path);
+            } else {
+                System.loadLibrary("jexerpty");
+            }
+            return true;
+        } catch (UnsatisfiedLinkError e) {
+            // SQUASH, use ptypipe or script instead.
+            return false;
+        } catch (SecurityException e) {
+            // SQUASH, use ptypipe or script instead.
+            return false;
+        }
+    }
+
+    /**
+     * Start a command on a new pty.
+     *
+     * @param command the command line to execute
+     * @param environment the child's environment
+     * @param columns the window width in columns
+     * @param rows the window height in rows
+     * @return the new process
+     * @throws IOException if the pty could not be opened or forked
+     */
+    public static PtyProcess start(final String [] command,
+        final Map<String, String> environment, final int columns,
+        final int rows) throws IOException {
+
+        if (!isAvailable()) {
+            throw new IOException("libjexerpty is not available");
+        }
+
+        String [] env = new String[environment.size()];
+        int i = 0;
+        for (Map.Entry<String, String> entry: environment.entrySet()) {
+            env[i] = entry.getKey() + "=" + entry.getValue();
+            i++;
+        }
+        int [] result = spawn(command, env, columns, rows);
+        if (result == null) {
+            throw new IOException("Unable to start " + command[0]);
+        }
+        return new PtyProcess(result[0], result[1]);
+    }
+
+    /**
+     * Set the window size of the pty.  The kernel sends SIGWINCH to the
+     * child's foreground process group.
+     *
+     * @param columns the window width in columns
+     * @param rows the window height in rows
+     * @param pixelWidth the window width in pixels, or 0 if not known
+     * @param pixelHeight the window height in pixels, or 0 if not known
+     */
+    public void setWindowSize(final int columns, final int rows,
+        final int pixelWidth, final int pixelHeight) {
+
+        int masterFd = getFd();
+        if (masterFd < 0) {
+            return;
+        }
+        try {
+            setWindowSize(masterFd, columns, rows, pixelWidth, pixelHeight);
+        } catch (IOException e) {
+            // SQUASH, the child will keep the old size.
+        }
+    }
+
+    /**
+     * Send a signal to the child's process group.
+     *
+     * @param signal the signal number
+     */
+    public synchronized void signal(final int signal) {
+        if (!exited) {
+            kill(pid, signal);
+        }
+    }
+
+    /**
+     * Get the pty master file descriptor.
+     *
+     * @return the descriptor, or -1 if it was closed
+     */
+    private synchronized int getFd() {
+        return fd;
+    }
+
+    /**
+     * Close the pty master, once.
+     */
+    private synchronized void closeFd() {
+        if (fd >= 0) {
+            close(fd);
+            fd = -1;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Native methods ---------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * forkpty() and exec a command.
+     *
+     * @param command the command line
+     * @param environment the environment as NAME=value strings
+     * @param columns the window width in columns
+     * @param rows the window height in rows
+     * @return { child pid, pty master fd }
+     * @throws IOException if forkpty() failed
+     */
+    private static native int [] spawn(String [] command,
+        String [] environment, int columns, int rows) throws IOException;
+
+    /**
+     * Read from a pty master into the start of a direct buffer.
+     *
+     * @param fd the pty master
+     * @param buffer a direct buffer
+     * @param length the maximum number of bytes to read
+     * @return the number of bytes read, or -1 once the child side closed
+     * @throws IOException if read() failed
+     */
+    private static native int read(int fd, ByteBuffer buffer,
+        int length) throws IOException;
+
+    /**
+     * Write all of a byte range to a pty master.
+     *
+     * @param fd the pty master
+     * @param bytes the bytes
+     * @param offset the first byte to write
+     * @param length the number of bytes to write
+     * @throws IOException if write() failed
+     */
+    private static native void write(int fd, byte [] bytes, int offset,
+        int length) throws IOException;
+
+    /**
+     * See if a read of the pty master would not block.
+     *
+     * @param fd the pty master
+     * @return true if there is data, or the child side closed
+     */
+    private static native boolean poll(int fd);
+
+    /**
+     * Get the number of bytes that can be read without blocking.
+     *
+     * @param fd the pty master
+     * @return the number of bytes
+     */
+    private static native int available(int fd);
+
+    /**
+     * Set the window size with TIOCSWINSZ.
+     *
+     * @param fd the pty master
+     * @param columns the window width in columns
+     * @param rows the window height in rows
+     * @param pixelWidth the window width in pixels
+     * @param pixelHeight the window height in pixels
+     * @throws IOException if ioctl() failed
+     */
+    private static native void setWindowSize(int fd, int columns, int rows,
+        int pixelWidth, int pixelHeight) throws IOException;
+
+    /**
+     * Wait for a child to exit.
+     *
+     * @param pid the child pid
+     * @return the exit value, 128 + the signal number if it was killed, or
+     * -1 if waitpid() failed
+     */
+    private static native int waitFor(int pid);
+
+    /**
+     * Send a signal to a child's process group.
+     *
+     * @param pid the child pid
+     * @param signal the signal number
+     */
+    private static native void kill(int pid, int signal);
+
+    /**
+     * Close a pty master.
+     *
+     * @param fd the pty master
+     */
+    private static native void close(int fd);
+
+}
@@ -0,0 +1,1109 @@
+/*
+ * Jexer - Java Text User Interface
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2022 Autumn Lamonte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * @author Autumn Lamonte ⚧ Trans Liberation Now
+ * @version 1
+ */
+package jexer.tterminal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import jexer.bits.CellAttributes;
+
+/**
+ * Scrollback holds the lines that have scrolled off the top of an ECMA48
+ * display, in three tiers:
+ *
+ * <p><ul>
+ * <li>Hot: the newest lines, kept as DisplayLine objects.</li>
+ * <li>Warm: older lines, encoded with DisplayLine.writeTo() (text plus
+ * attribute runs) into byte arrays of BLOCK_LINES lines each.</li>
+ * <li>Cold: when the warm blocks exceed their byte budget, the oldest are
+ * spilled to a memory-mapped temporary file.</li>
+ * </ul>
+ *
+ * <p>Lines below the hot tier are decoded again on demand, and a few
+ * decoded blocks are cached for scrolling.  The heap cost is fixed by the
+ * hot line count and warm byte budget, plus a small object per block.
+ * Encoding drops image data, just as ECMA48 does for lines more than three
+ * screens back.
+ *
+ * <p>Besides appending, the only edits supported are removing the first
+ * lines and removing the last line.
+ *
+ * <p>When the terminal width changes, the lines stored so far are set aside
+ * and wrapped again to the new width lazily, one logical line at a time
+ * from the newest, as rewrap() is asked for them.  A logical line is a run
+ * of lines marked soft-wrapped by DisplayLine.getWrapColumn().  The lines
+ * set aside keep using the same spill file.
+ */
+public class Scrollback extends AbstractList<DisplayLine>
+                        implements RandomAccess {
+
+    // ------------------------------------------------------------------------
+    // Constants --------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * The number of lines encoded together.
+     */
+    private static final int BLOCK_LINES = 64;
+
+    /**
+     * The default number of hot lines.
+     */
+    private static final int DEFAULT_HOT_LINES = 512;
+
+    /**
+     * The default byte budget for warm blocks.
+     */
+    private static final int DEFAULT_WARM_BYTES = 1024 * 1024;
+
+    /**
+     * The size of each mapped region of the spill file.
+     */
+    private static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * The number of decoded blocks to keep.
+     */
+    private static final int CACHED_BLOCKS = 4;
+
+    /**
+     * The deepest nesting of lines waiting to be rewrapped.  Beyond this,
+     * lines are merged into a single set instead.
+     */
+    private static final int MAX_UNWRAPPED_DEPTH = 8;
+
+    /**
+     * The smallest number of lines rewrapped at a time.
+     */
+    private static final int REWRAP_BATCH_LINES = 256;
+
+    // ------------------------------------------------------------------------
+    // Variables --------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * The number of lines to keep as objects before encoding them.
+     */
+    private final int hotLines;
+
+    /**
+     * The number of encoded bytes to keep on the heap before spilling.
+     */
+    private final int warmBytes;
+
+    /**
+     * The newest lines.
+     */
+    private ArrayList<DisplayLine> hot = new ArrayList<DisplayLine>();
+
+    /**
+     * Ring of encoded blocks, oldest first.
+     */
+    private Block [] blocks = new Block[16];
+
+    /**
+     * The ring index of the oldest block.
+     */
+    private int blocksStart = 0;
+
+    /**
+     * The number of blocks.
+     */
+    private int blockCount = 0;
+
+    /**
+     * The number of lines already removed from the oldest block.
+     */
+    private int headSkip = 0;
+
+    /**
+     * The number of blocks that are still on the heap.
+     */
+    private int warmBlockCount = 0;
+
+    /**
+     * The encoded bytes held by warm blocks.
+     */
+    private long warmBytesUsed = 0;
+
+    /**
+     * The spill file, shared with the lines waiting to be rewrapped.
+     */
+    private final SpillFile spillFile;
+
+    /**
+     * The segment new cold blocks are written to.
+     */
+    private Segment currentSegment = null;
+
+    /**
+     * If true, spilling failed once and blocks stay on the heap.
+     */
+    private boolean spillFailed = false;
+
+    /**
+     * Lines from before the last width change that have not been wrapped
+     * to the new width yet.  They come before all of this object's own
+     * lines.
+     */
+    private Scrollback unwrapped = null;
+
+    /**
+     * The width to wrap lines to, or 0 if the width was never set.
+     */
+    private int rewrapWidth = 0;
+
+    /**
+     * Recently decoded blocks.
+     */
+    private LinkedHashMap<Block, DisplayLine []> decoded;
+
+    /**
+     * A block of encoded lines.
+     */
+    private static class Block {
+
+        /**
+         * The encoded lines, or null if the block is in the spill file.
+         */
+        private byte [] data;
+
+        /**
+         * The spill file region holding this block.
+         */
+        private Segment segment = null;
+
+        /**
+         * The position of this block in the segment.
+         */
+        private int position = 0;
+
+        /**
+         * The encoded length.
+         */
+        private final int length;
+
+        /**
+         * Public constructor.
+         *
+         * @param data the encoded lines
+         */
+        public Block(final byte [] data) {
+            this.data = data;
+            this.length = data.length;
+        }
+
+    }
+
+    /**
+     * A memory-mapped region of the spill file.
+     */
+    private static class Segment {
+
+        /**
+         * The position of this region in the file.
+         */
+        private final long filePosition;
+
+        /**
+         * The mapping.
+         */
+        private MappedByteBuffer buffer;
+
+        /**
+         * The number of bytes written.
+         */
+        private int used = 0;
+
+        /**
+         * The number of blocks still stored here.
+         */
+        private int liveBlocks = 0;
+
+        /**
+         * Public constructor.
+         *
+         * @param filePosition the position of this region in the file
+         * @param buffer the mapping
+         */
+        public Segment(final long filePosition,
+            final MappedByteBuffer buffer) {
+
+            this.filePosition = filePosition;
+            this.buffer = buffer;
+        }
+
+    }
+
+    /**
+     * A temporary file that cold blocks are written to, in SEGMENT_SIZE
+     * regions.  One file is shared by a Scrollback and all of its nested
+     * sets of lines waiting to be rewrapped.  The file is created when the
+     * first region is mapped, and deleted when the last one is given back.
+     */
+    private static class SpillFile {
+
+        /**
+         * The file, or null if no region is in use.
+         */
+        private File file = null;
+
+        /**
+         * The file channel.
+         */
+        private FileChannel channel = null;
+
+        /**
+         * The length of the file.
+         */
+        private long length = 0;
+
+        /**
+         * Positions of regions that are not in use.
+         */
+        private ArrayList<Long> freeSegments = new ArrayList<Long>();
+
+        /**
+         * The number of regions in use.
+         */
+        private int liveSegments = 0;
+
+        /**
+         * Map a region, creating the file if needed.
+         *
+         * @return the new segment
+         * @throws IOException if a java.io operation throws
+         */
+        public synchronized Segment map() throws IOException {
+            if (channel == null) {
+                file = File.createTempFile("jexer-scrollback", ".tmp");
+                file.deleteOnExit();
+                channel = new RandomAccessFile(file, "rw").getChannel();
+                length = 0;
+                freeSegments.clear();
+            }
+            long position;
+            if (freeSegments.size() > 0) {
+                position = freeSegments.remove(freeSegments.size() - 1);
+            } else {
+                position = length;
+                length += SEGMENT_SIZE;
+            }
+            MappedByteBuffer buffer = channel.map(
+                FileChannel.MapMode.READ_WRITE, position, SEGMENT_SIZE);
+            liveSegments++;
+            return new Segment(position, buffer);
+        }
+
+        /**
+         * Give back a region.  When no regions are left in use, the file is
+         * closed and deleted.
+         *
+         * @param segment a segment returned by map()
+         */
+        public synchronized void free(final Segment segment) {
+            segment.buffer = null;
+            liveSegments--;
+            if (liveSegments > 0) {
+                freeSegments.add(segment.filePosition);
+                return;
+            }
+            freeSegments.clear();
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // SQUASH
+                }
+                channel = null;
+            }
+            if (file != null) {
+                file.delete();
+                file = null;
+            }
+        }
+
+    }
+
+    // ------------------------------------------------------------------------
+    // Constructors -----------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Public constructor.
+     */
+    public Scrollback() {
+        this(DEFAULT_HOT_LINES, DEFAULT_WARM_BYTES);
+    }
+
+    /**
+     * Public constructor.
+     *
+     * @param hotLines the number of lines to keep as DisplayLine objects
+     * @param warmBytes the number of encoded bytes to keep on the heap
+     * before spilling to disk
+     */
+    public Scrollback(final int hotLines, final int warmBytes) {
+        this(hotLines, warmBytes, new SpillFile());
+    }
+
+    /**
+     * Private constructor used for the lines set aside by setWidth().
+     *
+     * @param hotLines the number of lines to keep as DisplayLine objects
+     * @param warmBytes the number of encoded bytes to keep on the heap
+     * before spilling to disk
+     * @param spillFile the spill file to share
+     */
+    private Scrollback(final int hotLines, final int warmBytes,
+        final SpillFile spillFile) {
+
+        this.spillFile = spillFile;
+        this.hotLines = Math.max(hotLines, 0);
+        this.warmBytes = Math.max(warmBytes, 0);
+        decoded = new LinkedHashMap<Block, DisplayLine []>(CACHED_BLOCKS * 2,
+            0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Block,
+                DisplayLine []> eldest) {
+
+                return size() > CACHED_BLOCKS;
+            }
+        };
+    }
+
+    // ------------------------------------------------------------------------
+    // AbstractList -----------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Get the number of lines.
+     *
+     * @return the number of lines
+     */
+    @Override
+    public synchronized int size() {
+        int size = getOwnSize();
+        if (unwrapped != null) {
+            size += unwrapped.size();
+        }
+        return size;
+    }
+
+    /**
+     * Get a line.  Lines outside the hot tier are decoded copies, so
+     * changes to them are not kept.
+     *
+     * @param index the line index, 0 is the oldest
+     * @return the line
+     */
+    @Override
+    public synchronized DisplayLine get(final int index) {
+        int ownIndex = index;
+        if (unwrapped != null) {
+            int unwrappedSize = unwrapped.size();
+            if ((index < unwrappedSize) && (index >= 0)) {
+                return unwrapped.get(index);
+            }
+            ownIndex -= unwrappedSize;
+        }
+        int encodedLines = getEncodedLines();
+        if (ownIndex >= encodedLines) {
+            return hot.get(ownIndex - encodedLines);
+        }
+        if (index < 0) {
+            throw new IndexOutOfBoundsException("Index " + index +
+                " out of bounds for length " + size());
+        }
+        int line = ownIndex + headSkip;
+        return decode(getBlock(line / BLOCK_LINES))[line % BLOCK_LINES];
+    }
+
+    /**
+     * Append a line.
+     *
+     * @param line the line
+     * @return true
+     */
+    @Override
+    public synchronized boolean add(final DisplayLine line) {
+        hot.add(line);
+        if (hot.size() >= hotLines + BLOCK_LINES) {
+            encodeHotBlock();
+        }
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Insert a line.  Only appending, or inserting at the front while
+     * nothing has been encoded yet, is supported.
+     *
+     * @param index the position
+     * @param line the line
+     */
+    @Override
+    public synchronized void add(final int index, final DisplayLine line) {
+        if (index == size()) {
+            add(line);
+            return;
+        }
+        if ((index == 0) && (blockCount == 0) && (unwrapped == null)) {
+            hot.add(0, line);
+            modCount++;
+            return;
+        }
+        throw new UnsupportedOperationException("Scrollback only " +
+            "supports appending lines");
+    }
+
+    /**
+     * Remove a line.  Only the first and last lines can be removed.
+     *
+     * @param index either 0 or size() - 1
+     * @return the line
+     */
+    @Override
+    public synchronized DisplayLine remove(final int index) {
+        if ((index == size() - 1) && (index >= 0)) {
+            modCount++;
+            if (getOwnSize() == 0) {
+                DisplayLine line = unwrapped.remove(index);
+                if (unwrapped.size() == 0) {
+                    unwrapped.close();
+                    unwrapped = null;
+                }
+                return line;
+            }
+            if (hot.size() == 0) {
+                unpackLastBlock();
+            }
+            return hot.remove(hot.size() - 1);
+        }
+        if (index == 0) {
+            DisplayLine line = get(0);
+            removeFirst(1);
+            return line;
+        }
+        throw new UnsupportedOperationException("Scrollback only " +
+            "supports removing the first or last line");
+    }
+
+    /**
+     * Remove all lines and the spill file.
+     */
+    @Override
+    public synchronized void clear() {
+        hot.clear();
+        for (int i = 0; i < blockCount; i++) {
+            releaseBlock(blocks[(blocksStart + i) % blocks.length]);
+            blocks[(blocksStart + i) % blocks.length] = null;
+        }
+        blocksStart = 0;
+        blockCount = 0;
+        headSkip = 0;
+        warmBlockCount = 0;
+        warmBytesUsed = 0;
+        decoded.clear();
+        if (currentSegment != null) {
+            spillFile.free(currentSegment);
+            currentSegment = null;
+        }
+        spillFailed = false;
+        if (unwrapped != null) {
+            unwrapped.close();
+            unwrapped = null;
+        }
+        modCount++;
+    }
+
+    // ------------------------------------------------------------------------
+    // Scrollback -------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Remove lines from the front without decoding them.
+     *
+     * @param count the number of lines to remove
+     */
+    public synchronized void removeFirst(final int count) {
+        int remaining = count;
+        if (unwrapped != null) {
+            int n = Math.min(remaining, unwrapped.size());
+            unwrapped.removeFirst(n);
+            remaining -= n;
+            if (unwrapped.size() == 0) {
+                unwrapped.close();
+                unwrapped = null;
+            }
+        }
+        for (int i = 0; i < remaining; i++) {
+            if (blockCount == 0) {
+                if (hot.size() == 0) {
+                    break;
+                }
+                hot.remove(0);
+                continue;
+            }
+            headSkip++;
+            if (headSkip == BLOCK_LINES) {
+                releaseBlock(removeBlock(true));
+                headSkip = 0;
+            }
+        }
+        modCount++;
+    }
+
+    /**
+     * Set the width to wrap lines to.  Every line stored so far is set
+     * aside to be rewrapped by rewrap(), so this is cheap no matter how
+     * many lines there are.
+     *
+     * @param width the new width
+     */
+    public synchronized void setWidth(final int width) {
+        if (width == rewrapWidth) {
+            return;
+        }
+        rewrapWidth = width;
+        if (getOwnSize() == 0) {
+            // Nothing has been rewrapped yet, it will all go to the new
+            // width.
+            return;
+        }
+
+        Scrollback older = new Scrollback(hotLines, warmBytes, spillFile);
+        transferTo(older);
+        if (unwrapped != null) {
+            if ((older.size() <= hotLines)
+                || (unwrapped.getDepth() >= MAX_UNWRAPPED_DEPTH)
+            ) {
+                // Fold the newer lines into the older set rather than
+                // nesting another level.
+                for (DisplayLine line: older) {
+                    unwrapped.add(line);
+                }
+                older.close();
+                modCount++;
+                return;
+            }
+            older.unwrapped = unwrapped;
+        }
+        unwrapped = older;
+        modCount++;
+    }
+
+    /**
+     * Get the width lines are wrapped to.
+     *
+     * @return the width, or 0 if it was never set
+     */
+    public synchronized int getWidth() {
+        return rewrapWidth;
+    }
+
+    /**
+     * Wrap lines set aside by setWidth() to the current width, newest
+     * first, until at least this many lines at the end are wrapped or
+     * nothing is left to wrap.  This may change size(), but only by adding
+     * or removing lines before the last rows lines.
+     *
+     * @param rows the number of lines at the end that should be wrapped to
+     * the current width
+     */
+    public synchronized void rewrap(final int rows) {
+        if ((unwrapped == null) || (getOwnSize() >= rows)) {
+            return;
+        }
+
+        // Work in batches of at least a few blocks, so that scrolling up a
+        // line at a time does not re-encode the oldest block every time.
+        long target = Math.max((long) rows, (long) getOwnSize()
+            + REWRAP_BATCH_LINES);
+        // The batch is collected newest line first.
+        ArrayList<DisplayLine> batch = new ArrayList<DisplayLine>();
+        while ((unwrapped != null) && (getOwnSize() + batch.size() < target)) {
+            List<DisplayLine> lines = rewrapLastLine();
+            for (int i = lines.size() - 1; i >= 0; i--) {
+                batch.add(lines.get(i));
+            }
+            if (batch.size() >= REWRAP_BATCH_LINES * 16) {
+                Collections.reverse(batch);
+                addFirst(batch);
+                batch.clear();
+            }
+        }
+        if (batch.size() > 0) {
+            Collections.reverse(batch);
+            addFirst(batch);
+        }
+        modCount++;
+    }
+
+    /**
+     * Wrap every line to the current width.
+     */
+    public synchronized void rewrapAll() {
+        rewrap(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Wrap one batch of the lines set aside by setWidth() to the current
+     * width.  Calling this until it returns false does the same work as
+     * rewrapAll(), but in short steps.
+     *
+     * @return true if rewrap() still has work left to do
+     */
+    public synchronized boolean rewrapSome() {
+        if (unwrapped != null) {
+            rewrap(getOwnSize() + REWRAP_BATCH_LINES);
+        }
+        return (unwrapped != null);
+    }
+
+    /**
+     * See if some lines still have to be wrapped to the current width.
+     *
+     * @return true if rewrap() has work left to do
+     */
+    public synchronized boolean isRewrapPending() {
+        return (unwrapped != null);
+    }
+
+    /**
+     * Release the memory and spill file, dropping every line.
+     */
+    public synchronized void close() {
+        clear();
+    }
+
+    /**
+     * Get the number of lines kept as DisplayLine objects.
+     *
+     * @return the number of hot lines
+     */
+    public synchronized int getHotLineCount() {
+        return hot.size();
+    }
+
+    /**
+     * Get the number of encoded bytes on the heap.
+     *
+     * @return the number of bytes
+     */
+    public synchronized long getWarmBytes() {
+        return warmBytesUsed;
+    }
+
+    /**
+     * Get the number of encoded bytes in the spill file.
+     *
+     * @return the number of bytes
+     */
+    public synchronized long getColdBytes() {
+        long bytes = 0;
+        for (int i = 0; i < blockCount; i++) {
+            if (getBlock(i).data == null) {
+                bytes += getBlock(i).length;
+            }
+        }
+        if (unwrapped != null) {
+            bytes += unwrapped.getColdBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Get the number of lines that are not waiting to be rewrapped.
+     *
+     * @return the number of lines
+     */
+    private int getOwnSize() {
+        return getEncodedLines() + hot.size();
+    }
+
+    /**
+     * Get the number of nested sets of lines waiting to be rewrapped.
+     *
+     * @return the depth, 1 if no lines are waiting
+     */
+    private int getDepth() {
+        int depth = 1;
+        for (Scrollback s = unwrapped; s != null; s = s.unwrapped) {
+            depth++;
+        }
+        return depth;
+    }
+
+    /**
+     * Move all of this object's own lines to another, empty, Scrollback
+     * that shares the same spill file.
+     *
+     * @param other the Scrollback to receive the lines
+     */
+    private void transferTo(final Scrollback other) {
+        other.hot = hot;
+        other.blocks = blocks;
+        other.blocksStart = blocksStart;
+        other.blockCount = blockCount;
+        other.headSkip = headSkip;
+        other.warmBlockCount = warmBlockCount;
+        other.warmBytesUsed = warmBytesUsed;
+        other.currentSegment = currentSegment;
+        other.spillFailed = spillFailed;
+        other.decoded.putAll(decoded);
+
+        hot = new ArrayList<DisplayLine>();
+        blocks = new Block[16];
+        blocksStart = 0;
+        blockCount = 0;
+        headSkip = 0;
+        warmBlockCount = 0;
+        warmBytesUsed = 0;
+        currentSegment = null;
+        spillFailed = false;
+        decoded.clear();
+    }
+
+    /**
+     * Take the newest logical line from the lines waiting to be rewrapped,
+     * and wrap it to the current width.
+     *
+     * @return the lines at the current width
+     */
+    private List<DisplayLine> rewrapLastLine() {
+        ArrayList<DisplayLine> lines = new ArrayList<DisplayLine>();
+        lines.add(unwrapped.remove(unwrapped.size() - 1));
+        while ((unwrapped.size() > 0)
+            && unwrapped.get(unwrapped.size() - 1).isWrapped()
+        ) {
+            lines.add(unwrapped.remove(unwrapped.size() - 1));
+        }
+        if (unwrapped.size() == 0) {
+            unwrapped.close();
+            unwrapped = null;
+        }
+        Collections.reverse(lines);
+        return DisplayLine.rewrap(lines, rewrapWidth);
+    }
+
+    /**
+     * Insert lines in front of this object's own lines.
+     *
+     * @param lines the lines
+     */
+    private void addFirst(final List<DisplayLine> lines) {
+        if (blockCount == 0) {
+            hot.addAll(0, lines);
+            while (hot.size() >= hotLines + BLOCK_LINES) {
+                encodeHotBlock();
+            }
+            return;
+        }
+
+        // Merge with what is left of the oldest block, then encode from the
+        // end backwards so that only the new oldest block is partial.
+        ArrayList<DisplayLine> merged = new ArrayList<DisplayLine>(lines);
+        Block head = getBlock(0);
+        DisplayLine [] headLines = decode(head);
+        for (int i = headSkip; i < BLOCK_LINES; i++) {
+            merged.add(headLines[i]);
+        }
+        releaseBlock(removeBlock(true));
+        headSkip = 0;
+
+        int end = merged.size();
+        while (end > 0) {
+            int start = Math.max(0, end - BLOCK_LINES);
+            List<DisplayLine> chunk = merged.subList(start, end);
+            if (chunk.size() < BLOCK_LINES) {
+                // Pad the front, the padding is skipped by headSkip.
+                ArrayList<DisplayLine> padded = new ArrayList<DisplayLine>();
+                headSkip = BLOCK_LINES - chunk.size();
+                for (int i = 0; i < headSkip; i++) {
+                    padded.add(new DisplayLine(new CellAttributes()));
+                }
+                padded.addAll(chunk);
+                chunk = padded;
+            }
+            if (blockCount == blocks.length) {
+                growBlocks();
+            }
+            blocksStart = (blocksStart + blocks.length - 1) % blocks.length;
+            blocks[blocksStart] = new Block(encode(chunk));
+            blockCount++;
+            warmBlockCount++;
+            warmBytesUsed += blocks[blocksStart].length;
+            end = start;
+        }
+        spillWarmBlocks();
+    }
+
+    /**
+     * Double the size of the block ring.
+     */
+    private void growBlocks() {
+        Block [] newBlocks = new Block[blocks.length * 2];
+        for (int i = 0; i < blockCount; i++) {
+            newBlocks[i] = getBlock(i);
+        }
+        blocks = newBlocks;
+        blocksStart = 0;
+    }
+
+    /**
+     * Encode lines.
+     *
+     * @param lines the lines
+     * @return the encoded bytes
+     */
+    private byte [] encode(final List<DisplayLine> lines) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            for (DisplayLine line: lines) {
+                line.writeTo(out);
+            }
+            out.flush();
+        } catch (IOException e) {
+            // ByteArrayOutputStream does not throw.
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Spill the oldest warm blocks until the warm tier is within budget.
+     */
+    private void spillWarmBlocks() {
+        int i = 0;
+        while ((warmBytesUsed > warmBytes) && (warmBlockCount > 1)
+            && !spillFailed
+        ) {
+            while (getBlock(i).data == null) {
+                i++;
+            }
+            spill(getBlock(i));
+        }
+    }
+
+    /**
+     * Get the number of lines held in encoded blocks.
+     *
+     * @return the number of lines
+     */
+    private int getEncodedLines() {
+        return (blockCount * BLOCK_LINES) - headSkip;
+    }
+
+    /**
+     * Get a block.
+     *
+     * @param index the block index, 0 is the oldest
+     * @return the block
+     */
+    private Block getBlock(final int index) {
+        return blocks[(blocksStart + index) % blocks.length];
+    }
+
+    /**
+     * Remove the oldest or newest block from the ring.
+     *
+     * @param oldest if true, remove the oldest block
+     * @return the block
+     */
+    private Block removeBlock(final boolean oldest) {
+        Block block;
+        if (oldest) {
+            block = blocks[blocksStart];
+            blocks[blocksStart] = null;
+            blocksStart = (blocksStart + 1) % blocks.length;
+        } else {
+            int index = (blocksStart + blockCount - 1) % blocks.length;
+            block = blocks[index];
+            blocks[index] = null;
+        }
+        blockCount--;
+        if (block.data != null) {
+            warmBlockCount--;
+            warmBytesUsed -= block.length;
+        }
+        decoded.remove(block);
+        return block;
+    }
+
+    /**
+     * Free the spill file space used by a block.
+     *
+     * @param block a block already removed from the ring
+     */
+    private void releaseBlock(final Block block) {
+        Segment segment = block.segment;
+        if (segment == null) {
+            return;
+        }
+        block.segment = null;
+        segment.liveBlocks--;
+        if (segment.liveBlocks == 0) {
+            if (segment == currentSegment) {
+                // Start over at the beginning of this region.
+                segment.used = 0;
+            } else {
+                spillFile.free(segment);
+            }
+        }
+    }
+
+    /**
+     * Encode the oldest BLOCK_LINES hot lines into a warm block.
+     */
+    private void encodeHotBlock() {
+        List<DisplayLine> lines = hot.subList(0, BLOCK_LINES);
+        Block block = new Block(encode(lines));
+        lines.clear();
+
+        if (blockCount == blocks.length) {
+            growBlocks();
+        }
+        blocks[(blocksStart + blockCount) % blocks.length] = block;
+        blockCount++;
+        warmBlockCount++;
+        warmBytesUsed += block.length;
+        spillWarmBlocks();
+    }
+
+    /**
+     * Move the newest block back into the hot tier.
+     */
+    private void unpackLastBlock() {
+        Block block = getBlock(blockCount - 1);
+        DisplayLine [] lines = decode(block);
+        int first = 0;
+        if (blockCount == 1) {
+            first = headSkip;
+            headSkip = 0;
+        }
+        removeBlock(false);
+        releaseBlock(block);
+        for (int i = lines.length - 1; i >= first; i--) {
+            hot.add(0, lines[i]);
+        }
+    }
+
+    /**
+     * Decode a block, or get it from the cache.
+     *
+     * @param block the block
+     * @return its lines
+     */
+    private DisplayLine [] decode(final Block block) {
+        DisplayLine [] lines = decoded.get(block);
+        if (lines != null) {
+            return lines;
+        }
+        byte [] data = block.data;
+        if (data == null) {
+            data = new byte[block.length];
+            ByteBuffer buffer = block.segment.buffer.duplicate();
+            buffer.position(block.position);
+            buffer.get(data);
+        }
+        lines = new DisplayLine[BLOCK_LINES];
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            for (int i = 0; i < lines.length; i++) {
+                lines[i] = new DisplayLine(in);
+            }
+        } catch (IOException e) {
+            // The block was written by us, so this is a bug.
+            throw new IllegalStateException(e);
+        }
+        decoded.put(block, lines);
+        return lines;
+    }
+
+    /**
+     * Move a warm block to the spill file.
+     *
+     * @param block the oldest warm block
+     */
+    private void spill(final Block block) {
+        try {
+            if ((currentSegment == null)
+                || (currentSegment.used + block.length > SEGMENT_SIZE)
+            ) {
+                if (block.length > SEGMENT_SIZE) {
+                    // Too big to spill, leave it on the heap.
+                    spillFailed = true;
+                    return;
+                }
+                Segment oldSegment = currentSegment;
+                currentSegment = spillFile.map();
+                if ((oldSegment != null) && (oldSegment.liveBlocks == 0)) {
+                    spillFile.free(oldSegment);
+                }
+            }
+        } catch (IOException e) {
+            // Keep going with everything on the heap.
+            e.printStackTrace();
+            spillFailed = true;
+            return;
+        }
+        Segment segment = currentSegment;
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(segment.used);
+        buffer.put(block.data);
+        block.segment = segment;
+        block.position = segment.used;
+        block.data = null;
+        segment.used += block.length;
+        segment.liveBlocks++;
+        warmBlockCount--;
+        warmBytesUsed -= block.length;
+    }
+
+}
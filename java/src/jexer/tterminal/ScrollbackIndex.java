@@ -0,0 +1,1055 @@
+/*
+ * Jexer - Java Text User Interface
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2022 Autumn Lamonte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * @author Autumn Lamonte ⚧ Trans Liberation Now
+ * @version 1
+ */
+package jexer.tterminal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import jexer.bits.Cell;
+
+/**
+ * ScrollbackIndex is a trigram index over the text of an ECMA48 scrollback
+ * buffer.  Lines are identified by their absolute line number, which grows
+ * by one for every line that scrolls off the top of the display and never
+ * goes backwards, so search results stay valid while more output arrives.
+ *
+ * <p>The index only keeps posting lists, and only for the newest MAX_LINES
+ * lines.  It does not keep the text: search() returns candidate lines,
+ * which the emulator checks against the scrollback buffer itself.
+ *
+ * <p>The emulator's reader thread copies the text of each line as it is
+ * queued (addLine()), queues removals (truncate()), and advances the
+ * eviction point (evict()).  Indexing happens on a single shared background
+ * thread.  A search does not wait for that thread: lines still in the queue
+ * are returned as candidates.
+ *
+ * <p>A new index over a scrollback buffer that already has lines is filled
+ * by backfillLine(), between startBackfill() and finishBackfill().  Lines
+ * added meanwhile wait until the backfill is done, so that every posting
+ * list stays in ascending order.
+ */
+public class ScrollbackIndex {
+
+    // ------------------------------------------------------------------------
+    // Constants --------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * The number of lines indexed between sweeps of evicted lines out of
+     * the posting lists.
+     */
+    private static final int COMPACT_INTERVAL = 4096;
+
+    /**
+     * The number of newest lines indexed.  Older lines are left for the
+     * caller to check one by one.
+     */
+    public static final int MAX_LINES = 16384;
+
+    // ------------------------------------------------------------------------
+    // Variables --------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * The background thread that indexes lines for every emulator.
+     */
+    private static ExecutorService indexer = null;
+
+    /**
+     * Updates from the emulator that have not been applied yet.
+     */
+    private final ConcurrentLinkedQueue<Update> pending;
+
+    /**
+     * Lines older than everything in pending, queued by backfillLine().
+     */
+    private final ConcurrentLinkedQueue<Update> backfill;
+
+    /**
+     * If true, the lines in pending are held back until finishBackfill().
+     */
+    private volatile boolean backfilling = false;
+
+    /**
+     * If true, a drain of the pending queue is waiting on the indexer.
+     */
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+
+    /**
+     * Lines numbered before this have left the scrollback buffer.
+     */
+    private volatile long firstLine = 0;
+
+    /**
+     * Lines numbered before this have been dropped to stay within
+     * MAX_LINES.
+     */
+    private long capFirstLine = 0;
+
+    /**
+     * The line number after the newest indexed line.
+     */
+    private long nextLine = 0;
+
+    /**
+     * The lines containing each trigram.
+     */
+    private HashMap<Integer, Postings> postings;
+
+    /**
+     * The number of lines indexed since the last sweep.
+     */
+    private int linesSinceCompact = 0;
+
+    /**
+     * A single search result.
+     */
+    public static class Match {
+
+        /**
+         * The absolute line number.
+         */
+        private final long line;
+
+        /**
+         * The first cell of the match.
+         */
+        private final int column;
+
+        /**
+         * The number of cells in the match.
+         */
+        private final int length;
+
+        /**
+         * Public constructor.
+         *
+         * @param line the absolute line number
+         * @param column the first cell of the match
+         * @param length the number of cells in the match
+         */
+        public Match(final long line, final int column, final int length) {
+            this.line = line;
+            this.column = column;
+            this.length = length;
+        }
+
+        /**
+         * Get the absolute line number of this match.
+         *
+         * @return the line number
+         */
+        public long getLine() {
+            return line;
+        }
+
+        /**
+         * Get the first cell of this match.
+         *
+         * @return the column
+         */
+        public int getColumn() {
+            return column;
+        }
+
+        /**
+         * Get the number of cells this match covers.
+         *
+         * @return the length in cells
+         */
+        public int getLength() {
+            return length;
+        }
+
+    }
+
+    /**
+     * A line added or lines removed by the emulator.
+     */
+    private static class Update {
+
+        /**
+         * The absolute line number.
+         */
+        private final long line;
+
+        /**
+         * The lowercased text to index, or null to remove this line and
+         * everything after it.
+         */
+        private final String text;
+
+        /**
+         * Public constructor.
+         *
+         * @param line the absolute line number
+         * @param text the text, or null for a truncation
+         */
+        public Update(final long line, final String text) {
+            this.line = line;
+            this.text = text;
+        }
+
+    }
+
+    /**
+     * The searchable text of one line.
+     */
+    private static class LineText {
+
+        /**
+         * The line text, one code point per character cell, without
+         * trailing blanks.
+         */
+        private final String text;
+
+        /**
+         * The cell column of each char of text, or null if char i is in
+         * cell i.
+         */
+        private final int [] columns;
+
+        /**
+         * The cell column after the last char of text.
+         */
+        private final int endColumn;
+
+        /**
+         * Public constructor.
+         *
+         * @param line the line to extract text from
+         */
+        public LineText(final DisplayLine line) {
+            int length = line.length();
+            StringBuilder sb = new StringBuilder(length);
+            int [] cellColumns = new int[length * 2];
+            boolean identity = true;
+            int trimmedLength = 0;
+            int trimmedEnd = 0;
+
+            for (int i = 0; i < length; i++) {
+                Cell cell = line.getCell(i);
+                if (cell.getWidth() == Cell.Width.RIGHT) {
+                    // The left half already supplied the character.
+                    identity = false;
+                    if ((sb.length() > 0) && (trimmedLength == sb.length())) {
+                        trimmedEnd = i + 1;
+                    }
+                    continue;
+                }
+                int ch = cell.getChar();
+                if (Character.isSupplementaryCodePoint(ch)) {
+                    identity = false;
+                }
+                int j = sb.length();
+                sb.appendCodePoint(ch);
+                for (; j < sb.length(); j++) {
+                    cellColumns[j] = i;
+                }
+                if (ch != ' ') {
+                    trimmedLength = sb.length();
+                    trimmedEnd = i + 1;
+                }
+            }
+            text = sb.substring(0, trimmedLength);
+            endColumn = trimmedEnd;
+            if (identity) {
+                columns = null;
+            } else {
+                columns = Arrays.copyOf(cellColumns, trimmedLength);
+            }
+        }
+
+        /**
+         * Find every match of a pattern in this line.
+         *
+         * @param pattern the pattern to look for
+         * @param line the absolute line number of this line
+         * @param matches the list to add matches to
+         */
+        public void match(final Pattern pattern, final long line,
+            final List<Match> matches) {
+
+            Matcher matcher = pattern.matcher(text);
+            while (matcher.find()) {
+                int start = matcher.start();
+                int end = matcher.end();
+                if (start == end) {
+                    // Empty matches cannot be shown.
+                    continue;
+                }
+                int startColumn = (columns == null ? start : columns[start]);
+                int endCell = endColumn;
+                if (end < text.length()) {
+                    endCell = (columns == null ? end : columns[end]);
+                }
+                matches.add(new Match(line, startColumn, endCell - startColumn));
+            }
+        }
+
+    }
+
+    /**
+     * The ascending line numbers containing one trigram.  Line numbers are
+     * stored truncated to int, and compared by subtraction so that they may
+     * wrap around: the live range is always far smaller than 2^31.
+     */
+    private static class Postings {
+
+        /**
+         * The line numbers.
+         */
+        private int [] lines = new int[4];
+
+        /**
+         * The index of the first live line number.
+         */
+        private int start = 0;
+
+        /**
+         * The index after the last line number.
+         */
+        private int end = 0;
+
+        /**
+         * Add a line number, if it is not already the last one.
+         *
+         * @param line the line number, greater than all others
+         */
+        public void add(final int line) {
+            if ((end > start) && (lines[end - 1] == line)) {
+                return;
+            }
+            if (end == lines.length) {
+                if (start >= lines.length / 2) {
+                    System.arraycopy(lines, start, lines, 0, end - start);
+                } else {
+                    lines = Arrays.copyOf(lines, lines.length * 2);
+                    System.arraycopy(lines, start, lines, 0, end - start);
+                }
+                end -= start;
+                start = 0;
+            }
+            lines[end++] = line;
+        }
+
+        /**
+         * Drop line numbers before an eviction point.
+         *
+         * @param firstLine the first live line number
+         */
+        public void evict(final long firstLine) {
+            int first = (int) firstLine;
+            while ((start < end) && (lines[start] - first < 0)) {
+                start++;
+            }
+            if (start == end) {
+                start = 0;
+                end = 0;
+            }
+        }
+
+        /**
+         * Drop a line number and everything after it.
+         *
+         * @param line the line number
+         */
+        public void truncate(final long line) {
+            int last = (int) line;
+            while ((end > start) && (lines[end - 1] - last >= 0)) {
+                end--;
+            }
+        }
+
+        /**
+         * Get the number of line numbers in this list.
+         *
+         * @return the number of lines
+         */
+        public int size() {
+            return end - start;
+        }
+
+        /**
+         * See if a line number is in this list.
+         *
+         * @param line the line number
+         * @return true if the line contains this trigram
+         */
+        public boolean contains(final int line) {
+            int low = start;
+            int high = end - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int compare = lines[mid] - line;
+                if (compare < 0) {
+                    low = mid + 1;
+                } else if (compare > 0) {
+                    high = mid - 1;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+    }
+
+    // ------------------------------------------------------------------------
+    // Constructors -----------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Public constructor.
+     */
+    public ScrollbackIndex() {
+        pending = new ConcurrentLinkedQueue<Update>();
+        backfill = new ConcurrentLinkedQueue<Update>();
+        postings = new HashMap<Integer, Postings>();
+    }
+
+    // ------------------------------------------------------------------------
+    // ScrollbackIndex --------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Get the shared indexing thread, creating it if needed.
+     *
+     * @return the executor
+     */
+    private static synchronized ExecutorService getIndexer() {
+        if (indexer == null) {
+            indexer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(final Runnable runnable) {
+                    Thread thread = new Thread(runnable,
+                        "ScrollbackIndex");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        return indexer;
+    }
+
+    /**
+     * Compile a search string.
+     *
+     * @param text the text to search for
+     * @param regularExpression if true, text is a regular expression
+     * @param caseSensitive if true, perform a case-sensitive search
+     * @return the pattern
+     * @throws java.util.regex.PatternSyntaxException if text is not a valid
+     * regular expression
+     */
+    public static Pattern compile(final String text,
+        final boolean regularExpression, final boolean caseSensitive) {
+
+        int flags = 0;
+        if (!caseSensitive) {
+            flags |= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+        }
+        if (regularExpression) {
+            return Pattern.compile(text, flags);
+        }
+        return Pattern.compile(Pattern.quote(text), flags);
+    }
+
+    /**
+     * Find the longest run of plain characters that every match of a
+     * regular expression must contain.  This is conservative: anything
+     * inside groups or character classes, or optional through a
+     * quantifier, is skipped.  Quoted text (\Q...\E) and escaped
+     * punctuation count as plain characters.
+     *
+     * @param regex the regular expression
+     * @return the literal text, or null if none could be found
+     */
+    public static String getRequiredLiteral(final String regex) {
+        String best = "";
+        StringBuilder run = new StringBuilder();
+        int depth = 0;
+        for (int i = 0; i < regex.length(); i++) {
+            char ch = regex.charAt(i);
+            if (depth > 0) {
+                if (ch == '\\') {
+                    i++;
+                } else if (ch == '[') {
+                    i = skipClass(regex, i);
+                } else if (ch == '(') {
+                    depth++;
+                } else if (ch == ')') {
+                    depth--;
+                }
+                continue;
+            }
+            switch (ch) {
+            case '\\':
+                i++;
+                if (i >= regex.length()) {
+                    break;
+                }
+                ch = regex.charAt(i);
+                if (!Character.isLetterOrDigit(ch)) {
+                    run.append(ch);
+                    break;
+                }
+                if (ch == 'Q') {
+                    // Everything up to \E is plain text.
+                    int end = regex.indexOf("\\E", i + 1);
+                    if (end < 0) {
+                        end = regex.length();
+                    }
+                    run.append(regex, i + 1, end);
+                    i = end + 1;
+                    break;
+                }
+                best = longer(best, run);
+                i = skipEscape(regex, i);
+                break;
+            case '[':
+                best = longer(best, run);
+                i = skipClass(regex, i);
+                break;
+            case '(':
+                best = longer(best, run);
+                if (regex.startsWith("(?", i)) {
+                    int close = regex.indexOf(')', i);
+                    int colon = regex.indexOf(':', i);
+                    if ((close > 0) && ((colon < 0) || (close < colon))
+                        && regex.substring(i + 2, close).matches("[a-zA-Z-]*")
+                    ) {
+                        // Flags for the rest of the pattern.  Case does not
+                        // matter to the index, but comments mode changes
+                        // what everything means.
+                        if (regex.substring(i + 2, close).indexOf('x') >= 0) {
+                            return null;
+                        }
+                        i = close;
+                        break;
+                    }
+                }
+                depth = 1;
+                break;
+            case '|':
+                // Every branch would need the literal.
+                return null;
+            case '*':
+            case '?':
+            case '{':
+                // The previous character is optional.
+                if (run.length() > 0) {
+                    run.setLength(run.length() - 1);
+                }
+                best = longer(best, run);
+                if (ch == '{') {
+                    while ((i < regex.length()) && (regex.charAt(i) != '}')) {
+                        i++;
+                    }
+                }
+                break;
+            case '+':
+            case '.':
+            case '^':
+            case '$':
+            case ')':
+            case ']':
+            case '}':
+                best = longer(best, run);
+                break;
+            default:
+                run.append(ch);
+                break;
+            }
+        }
+        best = longer(best, run);
+        if (best.length() == 0) {
+            return null;
+        }
+        return best;
+    }
+
+    /**
+     * Skip past a character class.
+     *
+     * @param regex the regular expression
+     * @param i the position of the opening '['
+     * @return the position of the closing ']'
+     */
+    private static int skipClass(final String regex, final int i) {
+        int j = i + 1;
+        if ((j < regex.length()) && (regex.charAt(j) == '^')) {
+            j++;
+        }
+        if ((j < regex.length()) && (regex.charAt(j) == ']')) {
+            j++;
+        }
+        while ((j < regex.length()) && (regex.charAt(j) != ']')) {
+            if (regex.charAt(j) == '\\') {
+                j++;
+            } else if (regex.charAt(j) == '[') {
+                // Nested class, for example [a-z&&[^e]].
+                j = skipClass(regex, j);
+            }
+            j++;
+        }
+        return j;
+    }
+
+    /**
+     * Skip past an escape that is not a plain character, such as \d,
+     * \x41, or \p{Lu}.
+     *
+     * @param regex the regular expression
+     * @param i the position of the letter or digit after the backslash
+     * @return the position of the last character of the escape
+     */
+    private static int skipEscape(final String regex, final int i) {
+        char ch = regex.charAt(i);
+        int j = i;
+        switch (ch) {
+        case 'x':
+        case 'p':
+        case 'P':
+        case 'N':
+            if ((j + 1 < regex.length()) && (regex.charAt(j + 1) == '{')) {
+                j = regex.indexOf('}', j);
+                return (j < 0 ? regex.length() : j);
+            }
+            return j + (ch == 'x' ? 2 : 1);
+        case 'u':
+            return j + 4;
+        case 'c':
+            return j + 1;
+        case 'k':
+            j = regex.indexOf('>', j);
+            return (j < 0 ? regex.length() : j);
+        case '0':
+            // Up to three octal digits.
+            while ((j < i + 3) && (j + 1 < regex.length())
+                && (regex.charAt(j + 1) >= '0') && (regex.charAt(j + 1) <= '7')
+            ) {
+                j++;
+            }
+            return j;
+        default:
+            // Back references take every digit.
+            if (Character.isDigit(ch)) {
+                while ((j + 1 < regex.length())
+                    && Character.isDigit(regex.charAt(j + 1))
+                ) {
+                    j++;
+                }
+            }
+            return j;
+        }
+    }
+
+    /**
+     * Keep the longer of the best literal so far and the current run, and
+     * reset the run.
+     *
+     * @param best the best literal so far
+     * @param run the current run
+     * @return the longer one
+     */
+    private static String longer(final String best, final StringBuilder run) {
+        String result = best;
+        if (run.length() > best.length()) {
+            result = run.toString();
+        }
+        run.setLength(0);
+        return result;
+    }
+
+    /**
+     * Compute the trigram key at a position.
+     *
+     * @param text the lowercased text
+     * @param i the position of the first character
+     * @return the key
+     */
+    private static int trigram(final String text, final int i) {
+        // Collisions between non-ASCII characters only cost extra
+        // verification.
+        return ((text.charAt(i) & 0x3FF) << 20)
+            | ((text.charAt(i + 1) & 0x3FF) << 10)
+            | (text.charAt(i + 2) & 0x3FF);
+    }
+
+    /**
+     * Lowercase a string one char at a time, so that positions do not move.
+     *
+     * @param text the text
+     * @return the lowercased text
+     */
+    private static String lowerCase(final String text) {
+        char [] chars = text.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Get the text of a line to index: one code point per character cell,
+     * lowercased, without trailing blanks.
+     *
+     * @param displayLine the line
+     * @return the text
+     */
+    private static String getIndexText(final DisplayLine displayLine) {
+        int length = displayLine.length();
+        StringBuilder sb = new StringBuilder(length);
+        int trimmedLength = 0;
+        for (int i = 0; i < length; i++) {
+            Cell cell = displayLine.getCell(i);
+            if (cell.getWidth() == Cell.Width.RIGHT) {
+                // The left half already supplied the character.
+                continue;
+            }
+            int ch = cell.getChar();
+            sb.appendCodePoint(ch);
+            if (ch != ' ') {
+                trimmedLength = sb.length();
+            }
+        }
+        sb.setLength(trimmedLength);
+        return lowerCase(sb.toString());
+    }
+
+    /**
+     * Find every match of a pattern in one line, such as a candidate
+     * returned by search() or a line of the live display.
+     *
+     * @param pattern the pattern to look for
+     * @param line the absolute line number of this line
+     * @param displayLine the line
+     * @param matches the list to add matches to
+     */
+    static void searchLine(final Pattern pattern, final long line,
+        final DisplayLine displayLine, final List<Match> matches) {
+
+        new LineText(displayLine).match(pattern, line, matches);
+    }
+
+    /**
+     * Queue a line that has scrolled into the scrollback buffer.  Its text
+     * is copied right away, so the caller must hold the lock that guards
+     * displayLine (the emulator's).
+     *
+     * @param line the absolute line number, one more than the previous
+     * line added
+     * @param displayLine the line
+     */
+    public void addLine(final long line, final DisplayLine displayLine) {
+        pending.add(new Update(line, getIndexText(displayLine)));
+        scheduleDrain();
+    }
+
+    /**
+     * Start filling the index with lines that were in the scrollback buffer
+     * before it was created.  Call evict() first with the number of the
+     * first line.
+     */
+    public void startBackfill() {
+        backfilling = true;
+    }
+
+    /**
+     * Queue a line that was in the scrollback buffer before the index was
+     * created.  Lines must be backfilled in ascending order, and before
+     * any line queued by addLine().  As with addLine(), the text is copied
+     * right away.
+     *
+     * @param line the absolute line number
+     * @param displayLine the line
+     */
+    public void backfillLine(final long line, final DisplayLine displayLine) {
+        backfill.add(new Update(line, getIndexText(displayLine)));
+        scheduleDrain();
+    }
+
+    /**
+     * Finish the backfill, and let the lines queued by addLine() in.
+     */
+    public void finishBackfill() {
+        backfilling = false;
+        scheduleDrain();
+    }
+
+    /**
+     * Queue the removal of a line and every line after it, for example
+     * when lines move from the scrollback buffer back to the display.
+     *
+     * @param line the absolute line number
+     */
+    public void truncate(final long line) {
+        pending.add(new Update(line, null));
+        scheduleDrain();
+    }
+
+    /**
+     * Drop all lines before a line number.  The posting lists are swept
+     * lazily.
+     *
+     * @param line the absolute line number of the oldest line still in the
+     * scrollback buffer
+     */
+    public void evict(final long line) {
+        if (line > firstLine) {
+            firstLine = line;
+        }
+    }
+
+    /**
+     * Drop everything, for example when the scrollback buffer is replaced.
+     *
+     * @param line the absolute line number of the next line to be added
+     */
+    public void clear(final long line) {
+        evict(line);
+        truncate(line);
+    }
+
+    /**
+     * Make sure the indexer will get to the pending updates.
+     */
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            getIndexer().execute(new Runnable() {
+                public void run() {
+                    drainScheduled.set(false);
+                    drain();
+                }
+            });
+        }
+    }
+
+    /**
+     * Apply all pending updates.
+     */
+    private synchronized void drain() {
+        Update update;
+        while ((update = backfill.poll()) != null) {
+            indexLine(update.line, update.text);
+        }
+        if (backfilling) {
+            return;
+        }
+        while ((update = pending.poll()) != null) {
+            if (update.text == null) {
+                removeLines(update.line);
+            } else {
+                indexLine(update.line, update.text);
+            }
+        }
+    }
+
+    /**
+     * Get the oldest line still indexed.
+     *
+     * @return the absolute line number
+     */
+    private long getFirstLine() {
+        return Math.max(firstLine, capFirstLine);
+    }
+
+    /**
+     * Index one line.
+     *
+     * @param line the absolute line number
+     * @param text the line's lowercased text
+     */
+    private void indexLine(final long line, final String text) {
+        if (line < getFirstLine()) {
+            // Scrolled out before we got to it.
+            return;
+        }
+        if (line < nextLine) {
+            removeLines(line);
+        }
+        nextLine = line + 1;
+        if (nextLine - capFirstLine > MAX_LINES) {
+            capFirstLine = nextLine - MAX_LINES;
+        }
+
+        for (int i = 0; i + 2 < text.length(); i++) {
+            Integer key = trigram(text, i);
+            Postings lines = postings.get(key);
+            if (lines == null) {
+                lines = new Postings();
+                postings.put(key, lines);
+            }
+            lines.add((int) line);
+        }
+
+        linesSinceCompact++;
+        if (linesSinceCompact >= COMPACT_INTERVAL) {
+            linesSinceCompact = 0;
+            long first = getFirstLine();
+            Iterator<Postings> iterator = postings.values().iterator();
+            while (iterator.hasNext()) {
+                Postings lines = iterator.next();
+                lines.evict(first);
+                if (lines.size() == 0) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove a line and every line after it.
+     *
+     * @param line the absolute line number
+     */
+    private void removeLines(final long line) {
+        if (line >= nextLine) {
+            return;
+        }
+        Iterator<Postings> iterator = postings.values().iterator();
+        while (iterator.hasNext()) {
+            Postings lines = iterator.next();
+            lines.truncate(line);
+            if (lines.size() == 0) {
+                iterator.remove();
+            }
+        }
+        nextLine = line;
+    }
+
+    /**
+     * Find the indexed lines that contain every trigram of a literal.
+     *
+     * @param literal the text every match contains, at least three
+     * characters long
+     * @param candidates the list to add line numbers to, in ascending order
+     */
+    private void getCandidates(final String literal,
+        final List<Long> candidates) {
+
+        String text = lowerCase(literal);
+        long first = getFirstLine();
+        Postings smallest = null;
+        List<Postings> all = new ArrayList<Postings>();
+        for (int i = 0; i + 2 < text.length(); i++) {
+            Postings lines = postings.get(trigram(text, i));
+            if (lines == null) {
+                // Some trigram appears nowhere.
+                return;
+            }
+            lines.evict(first);
+            if ((smallest == null) || (lines.size() < smallest.size())) {
+                smallest = lines;
+            }
+            all.add(lines);
+        }
+
+        int base = (int) first;
+        for (int i = smallest.start; i < smallest.end; i++) {
+            int line = smallest.lines[i];
+            boolean found = true;
+            for (Postings lines: all) {
+                if ((lines != smallest) && !lines.contains(line)) {
+                    found = false;
+                    break;
+                }
+            }
+            if (found) {
+                candidates.add(first + (line - base));
+            }
+        }
+    }
+
+    /**
+     * Find the lines that might contain a literal.  Indexed lines are
+     * found through the index, lines the indexer has not gotten to yet are
+     * all candidates.  This never indexes anything itself.
+     *
+     * @param literal text that every match must contain (for example from
+     * getRequiredLiteral()), or null
+     * @param candidates the list to add line numbers to, in ascending order
+     * @return the line number from which the candidates are complete.  The
+     * caller has to check every line before it one by one.  This is
+     * Long.MAX_VALUE if the index cannot help: the literal is null or
+     * shorter than three characters, or the index is still being filled.
+     */
+    public synchronized long search(final String literal,
+        final List<Long> candidates) {
+
+        if ((literal == null) || (literal.length() < 3) || backfilling) {
+            return Long.MAX_VALUE;
+        }
+
+        // The indexer cannot take anything from the queue while we hold the
+        // lock.  Play the queue forward to see which indexed lines are
+        // still current, and which queued lines will replace them.
+        long indexedEnd = nextLine;
+        ArrayList<Long> queued = new ArrayList<Long>();
+        List<Update> updates = new ArrayList<Update>(backfill);
+        updates.addAll(pending);
+        for (Update update: updates) {
+            while ((queued.size() > 0)
+                && (queued.get(queued.size() - 1) >= update.line)
+            ) {
+                queued.remove(queued.size() - 1);
+            }
+            indexedEnd = Math.min(indexedEnd, update.line);
+            if (update.text != null) {
+                queued.add(update.line);
+            }
+        }
+
+        long first = getFirstLine();
+        getCandidates(literal, candidates);
+        while ((candidates.size() > 0)
+            && (candidates.get(candidates.size() - 1) >= indexedEnd)
+        ) {
+            candidates.remove(candidates.size() - 1);
+        }
+        for (Long line: queued) {
+            if (line >= first) {
+                candidates.add(line);
+            }
+        }
+        return first;
+    }
+
+}
@@ -0,0 +1,241 @@
+/*
+ * Jexer - Java Text User Interface
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2022 Autumn Lamonte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * @author Autumn Lamonte ⚧ Trans Liberation Now
+ * @version 1
+ */
+package jexer.tterminal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * ScrollbackSearch is one search of an ECMA48 scrollback buffer and
+ * display, run a little at a time so that no single call takes long.  It
+ * is created by ECMA48.search(), which searches the display right away.
+ * Each call to searchSome() then works backwards from the newest
+ * scrollback line: first the candidates from the search index, then the
+ * lines too old to be indexed.  The lock on the emulator is only held for
+ * BATCH_LINES lines at a time.
+ *
+ * <p>Because the search runs from newest to oldest, every match found by
+ * searchSome() is older than all the matches found before it.
+ */
+public class ScrollbackSearch {
+
+    // ------------------------------------------------------------------------
+    // Constants --------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * The number of scrollback lines checked while holding the lock on the
+     * emulator.
+     */
+    private static final int BATCH_LINES = 256;
+
+    // ------------------------------------------------------------------------
+    // Variables --------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * The emulator being searched.
+     */
+    private final ECMA48 emulator;
+
+    /**
+     * The pattern to look for.
+     */
+    private final Pattern pattern;
+
+    /**
+     * The emulator's line numbering when this search started.  If it
+     * changes, the search stops.
+     */
+    private final long generation;
+
+    /**
+     * Lines before this are not searched.
+     */
+    private final long firstLine;
+
+    /**
+     * The candidate lines from the search index, in ascending order.
+     */
+    private final List<Long> candidates;
+
+    /**
+     * The index into candidates of the next candidate to check.
+     */
+    private int nextCandidate;
+
+    /**
+     * The next line older than the search index to check.
+     */
+    private long nextLine;
+
+    /**
+     * The matches so far, in descending order.
+     */
+    private ArrayList<ScrollbackIndex.Match> found;
+
+    /**
+     * If true, every line has been checked.
+     */
+    private boolean done = false;
+
+    // ------------------------------------------------------------------------
+    // Constructors -----------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Package private constructor, see ECMA48.search().
+     *
+     * @param emulator the emulator being searched
+     * @param pattern the pattern to look for
+     * @param generation the emulator's line numbering
+     * @param firstLine the oldest line to search
+     * @param indexFirstLine lines from here on are searched only if they
+     * are candidates
+     * @param candidates the candidate lines from the search index, in
+     * ascending order
+     * @param displayMatches the matches on the display, in ascending order
+     */
+    ScrollbackSearch(final ECMA48 emulator, final Pattern pattern,
+        final long generation, final long firstLine,
+        final long indexFirstLine, final List<Long> candidates,
+        final List<ScrollbackIndex.Match> displayMatches) {
+
+        this.emulator = emulator;
+        this.pattern = pattern;
+        this.generation = generation;
+        this.firstLine = firstLine;
+        this.candidates = candidates;
+        nextCandidate = candidates.size() - 1;
+        nextLine = indexFirstLine - 1;
+        found = new ArrayList<ScrollbackIndex.Match>(displayMatches.size());
+        addMatches(displayMatches);
+    }
+
+    // ------------------------------------------------------------------------
+    // ScrollbackSearch -------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Add matches in ascending order to the matches found so far.
+     *
+     * @param matches the matches, all older than those found so far
+     */
+    private void addMatches(final List<ScrollbackIndex.Match> matches) {
+        for (int i = matches.size() - 1; i >= 0; i--) {
+            found.add(matches.get(i));
+        }
+    }
+
+    /**
+     * Search more lines.
+     *
+     * @param millis how long to keep going, in milliseconds
+     * @return true if the search is done
+     */
+    public synchronized boolean searchSome(final long millis) {
+        long deadline = System.nanoTime() + (millis * 1000000L);
+        List<ScrollbackIndex.Match> matches;
+        matches = new ArrayList<ScrollbackIndex.Match>();
+        while (!done) {
+            synchronized (emulator) {
+                if (emulator.getScrollbackGeneration() != generation) {
+                    // The scrollback was cleared, replaced, or wrapped to a
+                    // new width: the line numbers found so far are gone.
+                    found.clear();
+                    done = true;
+                    break;
+                }
+                long scrollbackFirstLine = emulator.getScrollbackFirstLine();
+                List<DisplayLine> scrollback = emulator.getScrollbackBuffer();
+                long oldest = Math.max(firstLine, scrollbackFirstLine);
+                for (int i = 0; i < BATCH_LINES; i++) {
+                    long line;
+                    if (nextCandidate >= 0) {
+                        line = candidates.get(nextCandidate);
+                        nextCandidate--;
+                    } else if (nextLine >= oldest) {
+                        line = nextLine;
+                        nextLine--;
+                    } else {
+                        done = true;
+                        break;
+                    }
+                    long row = line - scrollbackFirstLine;
+                    if ((row < 0) || (row >= scrollback.size())) {
+                        // Scrolled out, or moved back to the display.
+                        continue;
+                    }
+                    matches.clear();
+                    ScrollbackIndex.searchLine(pattern, line,
+                        scrollback.get((int) row), matches);
+                    addMatches(matches);
+                }
+            }
+            if (System.nanoTime() - deadline >= 0) {
+                break;
+            }
+        }
+        return done;
+    }
+
+    /**
+     * See if every line has been searched.
+     *
+     * @return true if the search is done
+     */
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Get the number of matches found so far.
+     *
+     * @return the number of matches
+     */
+    public synchronized int getMatchCount() {
+        return found.size();
+    }
+
+    /**
+     * Get the matches found so far.
+     *
+     * @return the matches, in ascending line order
+     */
+    public synchronized List<ScrollbackIndex.Match> getMatches() {
+        List<ScrollbackIndex.Match> matches;
+        matches = new ArrayList<ScrollbackIndex.Match>(found.size());
+        for (int i = found.size() - 1; i >= 0; i--) {
+            matches.add(found.get(i));
+        }
+        return matches;
+    }
+
+}
@@ -0,0 +1,644 @@
+/*
+ * Jexer - Java Text User Interface
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2022 Autumn Lamonte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * @author Autumn Lamonte ⚧ Trans Liberation Now
+ * @version 1
+ */
+package jexer.tterminal;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * SessionPlayer replays a log written by SessionRecorder into an ECMA48
+ * emulator.  Playback can run in real time, at a multiple of real time, or
+ * as fast as possible (useful as a throughput benchmark of the emulator).
+ * Seeking restores the nearest preceding keyframe and replays only the
+ * records after it.
+ */
+public class SessionPlayer {
+
+    // ------------------------------------------------------------------------
+    // Variables --------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * The emulator to replay into.
+     */
+    private ECMA48 emulator;
+
+    /**
+     * The log file contents, memory-mapped.
+     */
+    private ByteBuffer log;
+
+    /**
+     * The wall-clock time when the recording started.
+     */
+    private long startTime;
+
+    /**
+     * The emulator width when the recording started.
+     */
+    private int width;
+
+    /**
+     * The emulator height when the recording started.
+     */
+    private int height;
+
+    /**
+     * The offset of the first record.
+     */
+    private int dataStart;
+
+    /**
+     * The offset just past the last record.
+     */
+    private int dataEnd;
+
+    /**
+     * The keyframe times in microseconds, sorted.
+     */
+    private long [] keyframeTimes;
+
+    /**
+     * The keyframe file offsets, matching keyframeTimes.
+     */
+    private long [] keyframeOffsets;
+
+    /**
+     * The duration of the recording in microseconds.
+     */
+    private long duration;
+
+    /**
+     * The offset of the next record to replay.
+     */
+    private int position;
+
+    /**
+     * The time of the last record replayed, in microseconds.
+     */
+    private long positionMicros = 0;
+
+    /**
+     * Reusable buffer for output records.
+     */
+    private byte [] outputBuffer = new byte[4096];
+
+    // ------------------------------------------------------------------------
+    // Constructors -----------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Public constructor opens a log and positions playback at the start.
+     *
+     * @param filename the log file
+     * @param emulator the emulator to replay into
+     * @throws IOException if a java.io operation throws, or the file is
+     * not a session log
+     */
+    public SessionPlayer(final String filename,
+        final ECMA48 emulator) throws IOException {
+
+        this.emulator = emulator;
+
+        FileChannel channel = FileChannel.open(Paths.get(filename),
+            StandardOpenOption.READ);
+        try {
+            log = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                channel.size());
+        } finally {
+            channel.close();
+        }
+
+        byte [] magic = new byte[SessionRecorder.MAGIC.length];
+        if (log.remaining() < magic.length + 16) {
+            throw new IOException("Not a session log: " + filename);
+        }
+        log.get(magic);
+        if (!Arrays.equals(magic, SessionRecorder.MAGIC)) {
+            throw new IOException("Not a session log: " + filename);
+        }
+        startTime = log.getLong();
+        width = log.getInt();
+        height = log.getInt();
+        dataStart = log.position();
+        dataEnd = log.limit();
+
+        if (!readIndex()) {
+            scanIndex();
+        }
+        position = dataStart;
+    }
+
+    // ------------------------------------------------------------------------
+    // SessionPlayer ----------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Get the wall-clock time when the recording started.
+     *
+     * @return the time in millis since the epoch
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Get the emulator width when the recording started.
+     *
+     * @return the width
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Get the emulator height when the recording started.
+     *
+     * @return the height
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Get the length of the recording.
+     *
+     * @return the duration in millis
+     */
+    public long getDuration() {
+        return duration / 1000;
+    }
+
+    /**
+     * Get the number of keyframes in the recording.
+     *
+     * @return the number of keyframes
+     */
+    public int getKeyframeCount() {
+        return keyframeTimes.length;
+    }
+
+    /**
+     * Get the current playback position.
+     *
+     * @return the time of the last record replayed, in millis
+     */
+    public synchronized long getPosition() {
+        return positionMicros / 1000;
+    }
+
+    /**
+     * See if playback has reached the end.
+     *
+     * @return true if there are no more records
+     */
+    public synchronized boolean isDone() {
+        return (peekType() < 0);
+    }
+
+    /**
+     * Move playback to a point in the recording.  The emulator is restored
+     * from the last keyframe at or before that point, and then the records
+     * up to that point are replayed.  Keyframes do not carry the
+     * scrollback buffer, so afterwards the scrollback holds only the lines
+     * scrolled off since that keyframe.
+     *
+     * @param millis the time to seek to
+     */
+    public synchronized void seek(final long millis) {
+        long target = millis * 1000;
+
+        int i = Arrays.binarySearch(keyframeTimes, target);
+        if (i < 0) {
+            // Not an exact match: use the keyframe before the insertion
+            // point.
+            i = -i - 2;
+        } else {
+            // Several keyframes can have the same time, use the last one.
+            while ((i < keyframeTimes.length - 1)
+                && (keyframeTimes[i + 1] == target)
+            ) {
+                i++;
+            }
+        }
+        if ((i < 0) && (keyframeTimes.length > 0)) {
+            // Before the first keyframe: there is no earlier screen to go
+            // back to, so start from the first keyframe.
+            i = 0;
+        }
+        if (i >= 0) {
+            position = (int) keyframeOffsets[i];
+            positionMicros = keyframeTimes[i];
+            // Replay the keyframe record itself.
+            replayRecord(true, keyframeTimes[i]);
+        } else {
+            position = dataStart;
+            positionMicros = 0;
+        }
+
+        while ((peekType() >= 0) && (peekTime() <= target)) {
+            replayRecord(false, -1);
+        }
+    }
+
+    /**
+     * Replay the next record.
+     *
+     * @return false if playback has reached the end
+     */
+    public synchronized boolean step() {
+        if (peekType() < 0) {
+            return false;
+        }
+        replayRecord(false, -1);
+        return true;
+    }
+
+    /**
+     * Replay from the current position to the end on the calling thread,
+     * honoring the recorded timing.
+     *
+     * @param speed playback speed: 1.0 is real time, 2.0 is twice as fast,
+     * etc.
+     * @throws InterruptedException if the thread is interrupted while
+     * waiting for the next record
+     */
+    public void play(final double speed) throws InterruptedException {
+        long playStartNanos = System.nanoTime();
+        long playStartMicros;
+        synchronized (this) {
+            playStartMicros = positionMicros;
+        }
+        while (true) {
+            long nextMicros;
+            synchronized (this) {
+                if (peekType() < 0) {
+                    return;
+                }
+                nextMicros = peekTime();
+            }
+            long dueNanos = playStartNanos + (long) ((nextMicros
+                    - playStartMicros) * 1000 / speed);
+            long waitMillis = (dueNanos - System.nanoTime()) / 1000000;
+            if (waitMillis > 0) {
+                Thread.sleep(waitMillis);
+            }
+            step();
+        }
+    }
+
+    /**
+     * Replay the entire recording as fast as possible, ignoring the
+     * recorded timing.  This is a throughput benchmark for the emulator.
+     *
+     * @return the number of output bytes replayed per second
+     */
+    public synchronized long replayAll() {
+        position = dataStart;
+        positionMicros = 0;
+        long bytes = 0;
+        long startNanos = System.nanoTime();
+        while (peekType() >= 0) {
+            if (peekType() == SessionRecorder.RECORD_OUTPUT) {
+                int save = position;
+                log.position(position + 1);
+                SessionRecorder.getVarLong(log);
+                bytes += SessionRecorder.getVarLong(log);
+                position = save;
+            }
+            replayRecord(false, -1);
+        }
+        long nanos = Math.max(System.nanoTime() - startNanos, 1);
+        return (bytes * 1000000000L) / nanos;
+    }
+
+    /**
+     * Write the recording in asciicast v2 format (as used by asciinema).
+     * Only output and resize events are written.
+     *
+     * @param writer the writer to write to
+     * @throws IOException if a java.io operation throws
+     */
+    public synchronized void writeAsciicast(final Writer writer)
+        throws IOException {
+
+        writer.write(String.format("{\"version\": 2, \"width\": %d, " +
+                "\"height\": %d, \"timestamp\": %d}\n", width, height,
+                startTime / 1000));
+
+        long time = 0;
+        ByteBuffer records = log.duplicate();
+        records.position(dataStart);
+        while (records.position() < dataEnd) {
+            int type = records.get() & 0xFF;
+            time += SessionRecorder.getVarLong(records);
+            int length = (int) SessionRecorder.getVarLong(records);
+            if ((type == SessionRecorder.RECORD_INDEX)
+                || (length > dataEnd - records.position())
+            ) {
+                break;
+            }
+            String seconds = String.format("%d.%06d", time / 1000000,
+                time % 1000000);
+            if (type == SessionRecorder.RECORD_OUTPUT) {
+                byte [] bytes = new byte[length];
+                records.get(bytes);
+                writer.write("[" + seconds + ", \"o\", \"");
+                writeJsonString(writer, new String(bytes,
+                        StandardCharsets.UTF_8));
+                writer.write("\"]\n");
+            } else if (type == SessionRecorder.RECORD_RESIZE) {
+                int newWidth = records.getInt();
+                int newHeight = records.getInt();
+                writer.write("[" + seconds + ", \"r\", \"" + newWidth +
+                    "x" + newHeight + "\"]\n");
+            } else {
+                records.position(records.position() + length);
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Write a string as the body of a JSON string literal.
+     *
+     * @param writer the writer to write to
+     * @param str the string
+     * @throws IOException if a java.io operation throws
+     */
+    private void writeJsonString(final Writer writer,
+        final String str) throws IOException {
+
+        for (int i = 0; i < str.length(); i++) {
+            char ch = str.charAt(i);
+            switch (ch) {
+            case '"':
+                writer.write("\\\"");
+                break;
+            case '\\':
+                writer.write("\\\\");
+                break;
+            case '\n':
+                writer.write("\\n");
+                break;
+            case '\r':
+                writer.write("\\r");
+                break;
+            case '\t':
+                writer.write("\\t");
+                break;
+            default:
+                if (ch < 0x20) {
+                    writer.write(String.format("\\u%04x", (int) ch));
+                } else {
+                    writer.write(ch);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the keyframe index from the end of a closed log.
+     *
+     * @return false if the log has no index
+     */
+    private boolean readIndex() {
+        int trailer = SessionRecorder.INDEX_MAGIC.length + 8;
+        if (log.limit() - dataStart < trailer) {
+            return false;
+        }
+        byte [] magic = new byte[SessionRecorder.INDEX_MAGIC.length];
+        log.position(log.limit() - SessionRecorder.INDEX_MAGIC.length);
+        log.get(magic);
+        if (!Arrays.equals(magic, SessionRecorder.INDEX_MAGIC)) {
+            return false;
+        }
+        long indexOffset = log.getLong(log.limit() - trailer);
+        if ((indexOffset < dataStart) || (indexOffset >= log.limit())) {
+            return false;
+        }
+        log.position((int) indexOffset);
+        if ((log.get() & 0xFF) != SessionRecorder.RECORD_INDEX) {
+            return false;
+        }
+        SessionRecorder.getVarLong(log);
+        SessionRecorder.getVarLong(log);
+        duration = log.getLong();
+        int n = log.getInt();
+        keyframeTimes = new long[n];
+        keyframeOffsets = new long[n];
+        for (int i = 0; i < n; i++) {
+            keyframeTimes[i] = log.getLong();
+            keyframeOffsets[i] = log.getLong();
+        }
+        dataEnd = (int) indexOffset;
+        return true;
+    }
+
+    /**
+     * Build the keyframe index by reading every record.  This is used for
+     * logs whose recorder was not closed.
+     */
+    private void scanIndex() {
+        List<long []> keyframes = new ArrayList<long []>();
+        long time = 0;
+        log.position(dataStart);
+        while (log.remaining() > 0) {
+            int offset = log.position();
+            int type = log.get() & 0xFF;
+            if ((log.remaining() == 0) || (type < SessionRecorder.RECORD_OUTPUT)
+                || (type > SessionRecorder.RECORD_INDEX)
+            ) {
+                break;
+            }
+            long delta = SessionRecorder.getVarLong(log);
+            long length = SessionRecorder.getVarLong(log);
+            if (length > log.remaining()) {
+                // A partially-written last record.
+                break;
+            }
+            time += delta;
+            if (type == SessionRecorder.RECORD_KEYFRAME) {
+                keyframes.add(new long [] { time, offset });
+            }
+            log.position(log.position() + (int) length);
+            dataEnd = log.position();
+        }
+        keyframeTimes = new long[keyframes.size()];
+        keyframeOffsets = new long[keyframes.size()];
+        for (int i = 0; i < keyframes.size(); i++) {
+            keyframeTimes[i] = keyframes.get(i)[0];
+            keyframeOffsets[i] = keyframes.get(i)[1];
+        }
+        duration = time;
+    }
+
+    /**
+     * Get the type of the next record.
+     *
+     * @return the record type, or -1 if there are no more records
+     */
+    private int peekType() {
+        if (position >= dataEnd) {
+            return -1;
+        }
+        int type = log.get(position) & 0xFF;
+        if (type == SessionRecorder.RECORD_INDEX) {
+            return -1;
+        }
+        return type;
+    }
+
+    /**
+     * Get the time of the next record.
+     *
+     * @return the time in microseconds
+     */
+    private long peekTime() {
+        log.position(position + 1);
+        return positionMicros + SessionRecorder.getVarLong(log);
+    }
+
+    /**
+     * Replay the record at position, and advance position past it.
+     *
+     * @param restoreKeyframe if true, and this is a keyframe, restore the
+     * emulator from it.  Otherwise keyframes are skipped.
+     * @param time if non-negative, the absolute time of this record in
+     * microseconds
+     */
+    private void replayRecord(final boolean restoreKeyframe,
+        final long time) {
+
+        log.position(position);
+        int type = log.get() & 0xFF;
+        long delta = SessionRecorder.getVarLong(log);
+        int length = (int) SessionRecorder.getVarLong(log);
+        int payload = log.position();
+        position = payload + length;
+        if (time >= 0) {
+            positionMicros = time;
+        } else {
+            positionMicros += delta;
+        }
+
+        switch (type) {
+        case SessionRecorder.RECORD_OUTPUT:
+            if (outputBuffer.length < length) {
+                outputBuffer = new byte[length];
+            }
+            log.get(outputBuffer, 0, length);
+            emulator.consumeRecorded(outputBuffer, 0, length);
+            break;
+        case SessionRecorder.RECORD_RESIZE:
+            emulator.setWidth(log.getInt());
+            emulator.setHeight(log.getInt());
+            break;
+        case SessionRecorder.RECORD_KEYFRAME:
+            if (restoreKeyframe) {
+                ByteBuffer state = log.duplicate();
+                state.position(payload);
+                state.limit(payload + length);
+                try {
+                    emulator.readScreenState(new DataInputStream(
+                        new ByteBufferInputStream(state)));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * An InputStream over a ByteBuffer.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+
+        /**
+         * The buffer to read from.
+         */
+        private ByteBuffer buffer;
+
+        /**
+         * Public constructor.
+         *
+         * @param buffer the buffer to read from
+         */
+        public ByteBufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        /**
+         * Read one byte.
+         *
+         * @return the byte, or -1 at the end of the buffer
+         */
+        @Override
+        public int read() {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            return buffer.get() & 0xFF;
+        }
+
+        /**
+         * Read bytes.
+         *
+         * @param bytes the array to read into
+         * @param offset the offset into bytes
+         * @param length the maximum number of bytes to read
+         * @return the number of bytes read, or -1 at the end of the buffer
+         */
+        @Override
+        public int read(final byte [] bytes, final int offset,
+            final int length) {
+
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, n);
+            return n;
+        }
+    }
+
+}
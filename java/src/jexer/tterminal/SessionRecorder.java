@@ -0,0 +1,547 @@
+/*
+ * Jexer - Java Text User Interface
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2022 Autumn Lamonte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * @author Autumn Lamonte ⚧ Trans Liberation Now
+ * @version 1
+ */
+package jexer.tterminal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * SessionRecorder writes the byte stream read by an ECMA48 emulator to a
+ * compact binary log, with timestamps.  Periodic keyframes of the
+ * emulator's screen state are written so that SessionPlayer can seek
+ * without replaying from the beginning.
+ *
+ * <p>
+ * The log starts with an 8-byte magic and a header (start time, width,
+ * height).  Each record is a type byte, the time since the previous record
+ * in microseconds as a variable-length integer, a variable-length payload
+ * length, and the payload.  When the recorder is closed, an index of the
+ * keyframes is appended, followed by a trailer pointing to that index.  A
+ * log without the trailer (e.g. the recorder did not get closed) can still
+ * be played, the index is then rebuilt by scanning the records.
+ */
+public class SessionRecorder {
+
+    // ------------------------------------------------------------------------
+    // Constants --------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * The magic bytes at the start of every log.
+     */
+    static final byte [] MAGIC = {
+        'X', 'T', 'W', 'M', 'R', 'E', 'C', '1'
+    };
+
+    /**
+     * The magic bytes at the very end of a closed log.
+     */
+    static final byte [] INDEX_MAGIC = {
+        'X', 'T', 'W', 'M', 'I', 'D', 'X', '1'
+    };
+
+    /**
+     * Record type: bytes read from the remote side.
+     */
+    static final int RECORD_OUTPUT = 1;
+
+    /**
+     * Record type: the emulator was resized.  Payload is width and height
+     * as 4-byte integers.
+     */
+    static final int RECORD_RESIZE = 2;
+
+    /**
+     * Record type: the emulator's screen state, as written by
+     * ECMA48.writeScreenState().
+     */
+    static final int RECORD_KEYFRAME = 3;
+
+    /**
+     * Record type: the keyframe index.  Payload is the duration of the
+     * recording in microseconds, the number of keyframes, and then (time in
+     * microseconds, file offset) pairs as 8-byte integers.
+     */
+    static final int RECORD_INDEX = 4;
+
+    /**
+     * Default number of milliseconds between keyframes.
+     */
+    private static final long DEFAULT_KEYFRAME_MILLIS = 10000;
+
+    /**
+     * Default number of bytes between keyframes.
+     */
+    private static final long DEFAULT_KEYFRAME_BYTES = 1024 * 1024;
+
+    /**
+     * Number of milliseconds between writes of the buffer to the file, so
+     * that a log of a quiet session can still be played (or survive a
+     * crash) while it is being recorded.
+     */
+    private static final long FLUSH_MILLIS = 1000;
+
+    /**
+     * The timer thread that flushes all recorders.
+     */
+    private static Timer flushTimer = null;
+
+    // ------------------------------------------------------------------------
+    // Variables --------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * The log file.
+     */
+    private FileChannel channel;
+
+    /**
+     * Buffer for records waiting to be written to the channel.
+     */
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+    /**
+     * The System.nanoTime() when recording started.
+     */
+    private long startNanos;
+
+    /**
+     * The time of the last record, in microseconds since the start.
+     */
+    private long lastRecordMicros = 0;
+
+    /**
+     * The time of the last keyframe, in microseconds since the start.
+     */
+    private long lastKeyframeMicros = 0;
+
+    /**
+     * The number of output bytes recorded since the last keyframe.
+     */
+    private long bytesSinceKeyframe = 0;
+
+    /**
+     * Minimum time between keyframes in milliseconds.
+     */
+    private long keyframeMillis = DEFAULT_KEYFRAME_MILLIS;
+
+    /**
+     * Minimum number of output bytes between keyframes.
+     */
+    private long keyframeBytes = DEFAULT_KEYFRAME_BYTES;
+
+    /**
+     * The keyframe index, as (time in microseconds, file offset) pairs.
+     */
+    private List<long []> keyframes = new ArrayList<long []>();
+
+    /**
+     * The total number of output bytes recorded.
+     */
+    private long totalBytes = 0;
+
+    /**
+     * The task on flushTimer that flushes this recorder.
+     */
+    private TimerTask flushTask;
+
+    // ------------------------------------------------------------------------
+    // Constructors -----------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Public constructor creates (or truncates) the log file and writes the
+     * header.
+     *
+     * @param filename the log file
+     * @param width the emulator width at the start of recording
+     * @param height the emulator height at the start of recording
+     * @throws IOException if a java.io operation throws
+     */
+    public SessionRecorder(final String filename, final int width,
+        final int height) throws IOException {
+
+        channel = FileChannel.open(Paths.get(filename),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+        startNanos = System.nanoTime();
+
+        buffer.put(MAGIC);
+        buffer.putLong(System.currentTimeMillis());
+        buffer.putInt(width);
+        buffer.putInt(height);
+
+        flushTask = new TimerTask() {
+            public void run() {
+                flush();
+            }
+        };
+        getFlushTimer().schedule(flushTask, FLUSH_MILLIS, FLUSH_MILLIS);
+    }
+
+    // ------------------------------------------------------------------------
+    // SessionRecorder --------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Set the keyframe interval.  A keyframe is written when both limits
+     * have been reached.
+     *
+     * @param millis minimum number of milliseconds between keyframes
+     * @param bytes minimum number of output bytes between keyframes
+     */
+    public void setKeyframeInterval(final long millis, final long bytes) {
+        keyframeMillis = millis;
+        keyframeBytes = bytes;
+    }
+
+    /**
+     * Get the total number of output bytes recorded.
+     *
+     * @return the number of bytes
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * See if the recording has been closed.
+     *
+     * @return true if close() has been called
+     */
+    public boolean isClosed() {
+        return (channel == null);
+    }
+
+    /**
+     * Record characters read from the remote side.  They are saved as
+     * UTF-8.
+     *
+     * @param chars the characters
+     * @param offset the offset into chars
+     * @param length the number of characters
+     */
+    public void recordOutput(final char [] chars, final int offset,
+        final int length) {
+
+        byte [] bytes = new String(chars, offset, length).getBytes(
+            StandardCharsets.UTF_8);
+        recordOutput(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Record bytes read from the remote side.
+     *
+     * @param bytes the bytes
+     * @param offset the offset into bytes
+     * @param length the number of bytes
+     */
+    public synchronized void recordOutput(final byte [] bytes,
+        final int offset, final int length) {
+
+        if (channel == null) {
+            return;
+        }
+        try {
+            putRecordHeader(RECORD_OUTPUT, length);
+            putBytes(bytes, offset, length);
+        } catch (IOException e) {
+            abort(e);
+            return;
+        }
+        bytesSinceKeyframe += length;
+        totalBytes += length;
+    }
+
+    /**
+     * Record a change in the emulator's dimensions.
+     *
+     * @param width the new width
+     * @param height the new height
+     */
+    public synchronized void recordResize(final int width, final int height) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            putRecordHeader(RECORD_RESIZE, 8);
+            ensureSpace(8);
+            buffer.putInt(width);
+            buffer.putInt(height);
+        } catch (IOException e) {
+            abort(e);
+        }
+    }
+
+    /**
+     * See if it is time to write another keyframe.
+     *
+     * @return true if a keyframe should be written
+     */
+    public synchronized boolean isKeyframeDue() {
+        if (channel == null) {
+            return false;
+        }
+        if (keyframes.size() == 0) {
+            return true;
+        }
+        long elapsedMillis = (getNowMicros() - lastKeyframeMicros) / 1000;
+        return ((elapsedMillis >= keyframeMillis)
+            && (bytesSinceKeyframe >= keyframeBytes));
+    }
+
+    /**
+     * Write a keyframe of the emulator's screen state.  The caller must
+     * hold the emulator's lock and the emulator must be between escape
+     * sequences.
+     *
+     * @param emulator the emulator to snapshot
+     */
+    public synchronized void recordKeyframe(final ECMA48 emulator) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            emulator.writeScreenState(out, false);
+            out.flush();
+
+            // The keyframe offset is the start of its record header.
+            long offset = channel.position() + buffer.position();
+            putRecordHeader(RECORD_KEYFRAME, bytes.size());
+            keyframes.add(new long [] { lastRecordMicros, offset });
+            putBytes(bytes.toByteArray(), 0, bytes.size());
+
+            // Keyframes are the points a reader can seek to, get them into
+            // the file now.
+            drain();
+        } catch (IOException e) {
+            abort(e);
+            return;
+        }
+        lastKeyframeMicros = lastRecordMicros;
+        bytesSinceKeyframe = 0;
+    }
+
+    /**
+     * Write any buffered records to the file.
+     */
+    public synchronized void flush() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            drain();
+        } catch (IOException e) {
+            abort(e);
+        }
+    }
+
+    /**
+     * Write the keyframe index and close the log.  Note that it is safe to
+     * call this multiple times.
+     */
+    public synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            long indexOffset = channel.position() + buffer.position();
+            putRecordHeader(RECORD_INDEX, 12 + (keyframes.size() * 16));
+            ensureSpace(12);
+            buffer.putLong(lastRecordMicros);
+            buffer.putInt(keyframes.size());
+            for (long [] keyframe: keyframes) {
+                ensureSpace(16);
+                buffer.putLong(keyframe[0]);
+                buffer.putLong(keyframe[1]);
+            }
+            ensureSpace(8 + INDEX_MAGIC.length);
+            buffer.putLong(indexOffset);
+            buffer.put(INDEX_MAGIC);
+            drain();
+            channel.close();
+        } catch (IOException e) {
+            // SQUASH
+        }
+        channel = null;
+        flushTask.cancel();
+    }
+
+    /**
+     * Get the timer thread that flushes all recorders, creating it if
+     * needed.
+     *
+     * @return the timer
+     */
+    private static synchronized Timer getFlushTimer() {
+        if (flushTimer == null) {
+            flushTimer = new Timer("SessionRecorder flush", true);
+        }
+        return flushTimer;
+    }
+
+    /**
+     * Get the time since recording started.
+     *
+     * @return the time in microseconds
+     */
+    private long getNowMicros() {
+        return (System.nanoTime() - startNanos) / 1000;
+    }
+
+    /**
+     * Stop recording after an I/O error.  The log is left without its
+     * index, SessionPlayer can still read it.
+     *
+     * @param e the error
+     */
+    private void abort(final IOException e) {
+        e.printStackTrace();
+        try {
+            channel.close();
+        } catch (IOException e2) {
+            // SQUASH
+        }
+        channel = null;
+        flushTask.cancel();
+    }
+
+    /**
+     * Put a record type, time delta, and payload length into the buffer.
+     *
+     * @param type the record type
+     * @param length the payload length
+     * @throws IOException if a java.io operation throws
+     */
+    private void putRecordHeader(final int type,
+        final int length) throws IOException {
+
+        long now = getNowMicros();
+        ensureSpace(1 + 10 + 5);
+        buffer.put((byte) type);
+        putVarLong(buffer, now - lastRecordMicros);
+        putVarLong(buffer, length);
+        lastRecordMicros = now;
+    }
+
+    /**
+     * Put raw bytes into the buffer, draining it as needed.
+     *
+     * @param bytes the bytes
+     * @param offset the offset into bytes
+     * @param length the number of bytes
+     * @throws IOException if a java.io operation throws
+     */
+    private void putBytes(final byte [] bytes, final int offset,
+        final int length) throws IOException {
+
+        int i = offset;
+        int remaining = length;
+        while (remaining > 0) {
+            ensureSpace(1);
+            int n = Math.min(remaining, buffer.remaining());
+            buffer.put(bytes, i, n);
+            i += n;
+            remaining -= n;
+        }
+    }
+
+    /**
+     * Make sure the buffer has room for some bytes.
+     *
+     * @param n the number of bytes needed
+     * @throws IOException if a java.io operation throws
+     */
+    private void ensureSpace(final int n) throws IOException {
+        if (buffer.remaining() < n) {
+            drain();
+        }
+    }
+
+    /**
+     * Write the buffer to the channel.
+     *
+     * @throws IOException if a java.io operation throws
+     */
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Write a non-negative long as a variable-length integer: 7 bits per
+     * byte, high bit set on all but the last byte.
+     *
+     * @param buffer the buffer to write to
+     * @param value the value
+     */
+    static void putVarLong(final ByteBuffer buffer, final long value) {
+        long v = value;
+        while ((v & ~0x7FL) != 0) {
+            buffer.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buffer.put((byte) v);
+    }
+
+    /**
+     * Read a variable-length integer written by putVarLong().
+     *
+     * @param buffer the buffer to read from
+     * @return the value
+     */
+    static long getVarLong(final ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            int b = buffer.get() & 0xFF;
+            value |= ((long) (b & 0x7F)) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+}
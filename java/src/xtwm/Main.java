@@ -35,8 +35,6 @@ import java.io.InputStreamReader;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
 
 import jexer.TApplication;
 import jexer.TApplication.BackendType;
@@ -44,7 +42,9 @@ import jexer.TExceptionDialog;
 import jexer.backend.ECMA48Backend;
 import jexer.backend.HeadlessBackend;
 import jexer.backend.MultiBackend;
-import jexer.net.TelnetServerSocket;
+import jexer.net.TelnetConnection;
+import jexer.net.TelnetOutputStream;
+import jexer.net.TelnetServer;
 import xtwm.ui.ApplicationLayout;
 import xtwm.ui.XTWMApplication;
 
@@ -59,9 +59,9 @@ public class Main {
     private static XTWMApplication app = null;
 
     /**
-     * The headless server socket.
+     * The headless server.
      */
-    private static ServerSocket server = null;
+    private static TelnetServer server = null;
 
     /**
      * --layout filename argument.
@@ -69,17 +69,18 @@ public class Main {
     private static String layoutFilename = null;
 
     /**
-     * Request a password on a new socket connection.
+     * Request a password on a new connection.
      *
-     * @param socket the socket
+     * @param connection the connection
      * @return true if the password matches the xtwm.serverPassword value
      */
-    private static boolean isPasswordOk(final Socket socket) throws IOException {
+    private static boolean isPasswordOk(final TelnetConnection connection)
+        throws IOException {
 
-        OutputStreamWriter writer = new OutputStreamWriter(socket.
+        OutputStreamWriter writer = new OutputStreamWriter(connection.
             getOutputStream(), "UTF-8");
-        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.
-                getInputStream(), "UTF-8"));
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+            connection.getInputStream(), "UTF-8"));
 
         String password = "";
         do {
@@ -92,6 +93,21 @@ public class Main {
                 "ThePasswordToUseWhenNotDefinedInTheRCFile"));
     }
 
+    /**
+     * Get the number of bytes that can be queued for a client before it
+     * starts skipping frames.
+     *
+     * @return the xtwm.serverOutputBudget value
+     */
+    private static int getOutputBudget() {
+        try {
+            return Integer.parseInt(app.getOption("xtwm.serverOutputBudget",
+                    Integer.toString(TelnetOutputStream.DEFAULT_BUDGET)));
+        } catch (NumberFormatException e) {
+            return TelnetOutputStream.DEFAULT_BUDGET;
+        }
+    }
+
     /**
      * Run the application as a server.
      *
@@ -117,8 +133,7 @@ public class Main {
             multiBackend.setListener(app);
 
             // Fire up the telnet server and write its port to the PID file.
-            server = new TelnetServerSocket(0, 5,
-                InetAddress.getLoopbackAddress());
+            server = new TelnetServer(0, 5, InetAddress.getLoopbackAddress());
             FileWriter pidFile = new FileWriter(pid_filename);
             pidFile.write(String.format("%d", server.getLocalPort()));
             pidFile.close();
@@ -129,32 +144,38 @@ public class Main {
                     boolean first = true;
 
                     while (app.isRunning() && !server.isClosed()) {
-                        Socket socket = null;
+                        TelnetConnection connection = null;
                         try {
-                            socket = server.accept();
+                            connection = server.accept();
 
                             // The first client can connect without a
                             // password.  All other clients must enter it.
                             if (!first) {
-                                if (!isPasswordOk(socket)) {
-                                    socket.close();
+                                if (!isPasswordOk(connection)) {
+                                    connection.close();
                                     continue;
                                 }
                             }
                             first = false;
 
+                            // Let a slow client fall behind and skip
+                            // frames instead of holding up the others.
+                            ((TelnetOutputStream) connection.
+                                getOutputStream()).setBudget(
+                                    getOutputBudget());
+
                             ECMA48Backend ecmaBackend = new ECMA48Backend(app,
-                                socket.getInputStream(),
-                                socket.getOutputStream(), true);
+                                connection.getInputStream(),
+                                connection.getOutputStream(), true);
                             multiBackend.addBackend(ecmaBackend, true);
                         } catch (IOException e) {
-                            if (socket != null) {
+                            if (connection != null) {
                                 try {
-                                    socket.close();
+                                    connection.close();
                                 } catch (IOException e2) {
                                     // SQUASH
                                 }
-                                socket = null;
+                                connection = null;
                             }
                         }
                     }
@@ -28,10 +28,13 @@
  */
 package xtwm.plugins;
 
+import java.util.GregorianCalendar;
 import java.util.ResourceBundle;
 
 import jexer.TAction;
+import jexer.TApplication;
 import jexer.TCalendar;
+import jexer.TTimer;
 import jexer.TWidget;
 
 import xtwm.ui.XTWMApplication;
@@ -59,6 +62,18 @@ public class Calendar extends PluginWidget {
      */
     private TCalendar calendar;
 
+    /**
+     * The timer that follows the date past midnight.  It is created on the
+     * first draw so that the prototype instances made by
+     * XTWMApplication.loadPlugin() never own one.
+     */
+    private TTimer dayTimer = null;
+
+    /**
+     * The day the timer last saw, as year * 1000 + day of year.
+     */
+    private int today = 0;
+
     // ------------------------------------------------------------------------
     // Constructors -----------------------------------------------------------
     // ------------------------------------------------------------------------
@@ -88,6 +103,42 @@ public class Calendar extends PluginWidget {
     // TWidget ----------------------------------------------------------------
     // ------------------------------------------------------------------------
 
+    /**
+     * Remove the day timer.
+     */
+    @Override
+    public void close() {
+        if (dayTimer != null) {
+            TApplication app = getApplication();
+            if (app != null) {
+                app.removeTimer(dayTimer);
+            }
+            dayTimer = null;
+        }
+        super.close();
+    }
+
+    /**
+     * Draw the calendar.
+     */
+    @Override
+    public void draw() {
+        if (dayTimer == null) {
+            // Nothing else redraws this widget when the date changes, so
+            // check once a minute.
+            today = getDay(new GregorianCalendar());
+            dayTimer = getApplication().addTimer(60 * 1000, true,
+                new TAction() {
+                    public void DO() {
+                        Calendar.this.checkDay();
+                    }
+                }
+            );
+            dayTimer.setRepaint(false);
+        }
+        super.draw();
+    }
+
     // ------------------------------------------------------------------------
     // PluginWidget -----------------------------------------------------------
     // ------------------------------------------------------------------------
@@ -221,4 +272,32 @@ public class Calendar extends PluginWidget {
     // Calendar ---------------------------------------------------------------
     // ------------------------------------------------------------------------
 
+    /**
+     * Get a calendar's day as a single number.
+     *
+     * @param day the calendar
+     * @return year * 1000 + day of year
+     */
+    private static int getDay(final java.util.Calendar day) {
+        return (day.get(java.util.Calendar.YEAR) * 1000)
+            + day.get(java.util.Calendar.DAY_OF_YEAR);
+    }
+
+    /**
+     * Move the selection to the new day after midnight, unless the user
+     * selected some other day.
+     */
+    private void checkDay() {
+        GregorianCalendar now = new GregorianCalendar();
+        int nowDay = getDay(now);
+        if (nowDay == today) {
+            return;
+        }
+        if ((calendar != null) && (getDay(calendar.getValue()) == today)) {
+            calendar.setValue(now);
+        }
+        today = nowDay;
+        invalidate();
+    }
+
 }
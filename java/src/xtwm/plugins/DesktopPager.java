@@ -29,7 +29,10 @@
 package xtwm.plugins;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.ResourceBundle;
 
 import jexer.TAction;
@@ -41,7 +44,9 @@ import jexer.TPanel;
 import jexer.TStatusBar;
 import jexer.TWidget;
 import jexer.TWindow;
+import jexer.backend.LayerScreen;
 import jexer.bits.BorderStyle;
+import jexer.bits.Cell;
 import jexer.bits.CellAttributes;
 import jexer.bits.GraphicsChars;
 import jexer.bits.WidgetUtils;
@@ -120,6 +125,17 @@ public class DesktopPager extends PluginWidget {
          */
         private int number;
 
+        /**
+         * The miniature of the desktop drawn inside the button, or null if
+         * it must be rendered again.
+         */
+        private Cell [][] thumbnail = null;
+
+        /**
+         * The window layout and activity the thumbnail was rendered from.
+         */
+        private int thumbnailSignature = 0;
+
         /**
          * Public constructor.
          *
@@ -144,12 +160,7 @@ public class DesktopPager extends PluginWidget {
         @Override
         public void onMouseDown(final TMouseEvent mouse) {
             if (mouse.isMouse1()) {
-                if (app.getDesktop() == desktop.getDesktop()) {
-                    return;
-                }
-                while (app.getDesktop() != desktop.getDesktop()) {
-                    app.switchToNextDesktop();
-                }
+                app.switchToDesktop(desktop);
                 return;
             }
         }
@@ -173,9 +184,33 @@ public class DesktopPager extends PluginWidget {
                 drawBox(0, 0, getWidth(), getHeight(), borderColor, color);
             }
 
-            for (int x = 1; x < getWidth() - 1; x++) {
-                for (int y = 1; y < getHeight() - 1; y++) {
-                    putCharXY(x, y, GraphicsChars.HATCH, color);
+            int innerWidth = getWidth() - 2;
+            int innerHeight = getHeight() - 2;
+            if (thumbnails && (innerWidth > 0) && (innerHeight > 0)) {
+                if ((thumbnail == null)
+                    || (thumbnail.length != innerWidth)
+                    || (thumbnail[0].length != innerHeight)
+                ) {
+                    long start = System.nanoTime();
+                    thumbnail = renderThumbnail(innerWidth, innerHeight);
+                    ThumbnailCost cost = thumbnailCosts.get(desktop);
+                    if (cost == null) {
+                        cost = new ThumbnailCost();
+                        thumbnailCosts.put(desktop, cost);
+                    }
+                    cost.renders++;
+                    cost.nanos += System.nanoTime() - start;
+                }
+                for (int x = 0; x < innerWidth; x++) {
+                    for (int y = 0; y < innerHeight; y++) {
+                        putCharXY(x + 1, y + 1, thumbnail[x][y]);
+                    }
+                }
+            } else {
+                for (int x = 1; x < getWidth() - 1; x++) {
+                    for (int y = 1; y < getHeight() - 1; y++) {
+                        putCharXY(x, y, GraphicsChars.HATCH, color);
+                    }
                 }
             }
             String str = Integer.toString(number);
@@ -184,10 +219,224 @@ public class DesktopPager extends PluginWidget {
             }
             putStringXY((getWidth() - str.length()) / 2,
                 (getHeight() - 1) / 2, str, color);
+
+            // Badge other desktops that have unseen terminal activity: '!'
+            // for a bell, '*' for output.
+            if (app.getDesktop() != desktop.getDesktop()) {
+                if (desktop.hasNewBell()) {
+                    putCharXY(getWidth() - 2, 0, '!', borderColor);
+                } else if (desktop.hasNewOutput()) {
+                    putCharXY(getWidth() - 2, 0, '*', borderColor);
+                }
+            }
+        }
+
+        /**
+         * Throw away the thumbnail if the desktop may look different now.
+         * The current desktop is always refreshed, other desktops only
+         * when their windows moved or their terminals had output.
+         */
+        private void checkThumbnail() {
+            int signature = getThumbnailSignature();
+            if ((thumbnail != null)
+                && (signature == thumbnailSignature)
+                && (app.getDesktop() != desktop.getDesktop())
+            ) {
+                return;
+            }
+            thumbnailSignature = signature;
+            thumbnail = null;
+            invalidate();
+        }
+
+        /**
+         * Compute a hash of everything a thumbnail is rendered from, other
+         * than the window contents themselves.
+         *
+         * @return the signature
+         */
+        private int getThumbnailSignature() {
+            int A = 13;
+            int B = 23;
+            int hash = A;
+            hash = (B * hash) + (int) desktop.getActivityCount();
+            hash = (B * hash) + (desktop.getDesktop().hasPanels() ? 1 : 0);
+            for (TWindow window: desktop.getWindows()) {
+                hash = (B * hash) + window.getX();
+                hash = (B * hash) + window.getY();
+                hash = (B * hash) + window.getWidth();
+                hash = (B * hash) + window.getHeight();
+                hash = (B * hash) + window.getZ();
+            }
+            return hash;
+        }
+
+        /**
+         * Render a miniature of the desktop by sampling, for each thumbnail
+         * cell, the topmost window under it.  Windows are read from the
+         * layer they were last drawn into, they are never redrawn for this.
+         * Without a layer, a window is shown by its background color.
+         *
+         * @param width the thumbnail width in cells
+         * @param height the thumbnail height in cells
+         * @return the thumbnail cells, indexed [x][y]
+         */
+        private Cell [][] renderThumbnail(final int width, final int height) {
+            Cell [][] cells = new Cell[width][height];
+
+            boolean current = (app.getDesktop() == desktop.getDesktop());
+            List<TWindow> windows = new ArrayList<TWindow>();
+            for (TWindow window: desktop.getWindows()) {
+                // Everything on a hidden desktop is hidden, so only the
+                // current desktop can skip hidden windows.
+                if (!current || window.isShown()) {
+                    windows.add(window);
+                }
+            }
+            Collections.sort(windows);
+
+            CellAttributes background;
+            char backgroundChar;
+            if (desktop.getDesktop().hasPanels()) {
+                background = new CellAttributes();
+                backgroundChar = ' ';
+            } else {
+                background = desktop.getDesktop().getAttributes();
+                backgroundChar = GraphicsChars.HATCH;
+            }
+
+            int screenWidth = app.getScreen().getWidth();
+            int top = app.getDesktopTop();
+            int screenHeight = app.getDesktopBottom() - top;
+            for (int x = 0; x < width; x++) {
+                int left = x * screenWidth / width;
+                int right = Math.max((x + 1) * screenWidth / width, left + 1);
+                for (int y = 0; y < height; y++) {
+                    int upper = top + (y * screenHeight / height);
+                    int lower = Math.max(top
+                        + ((y + 1) * screenHeight / height), upper + 1);
+                    int centerX = (left + right) / 2;
+                    int centerY = (upper + lower) / 2;
+
+                    cells[x][y] = new Cell(backgroundChar, background);
+                    for (TWindow window: windows) {
+                        if ((centerX >= window.getX())
+                            && (centerX < window.getX() + window.getWidth())
+                            && (centerY >= window.getY())
+                            && (centerY < window.getY() + window.getHeight())
+                        ) {
+                            cells[x][y] = sampleWindow(window, left, upper,
+                                right, lower, centerX, centerY);
+                            break;
+                        }
+                    }
+                }
+            }
+            return cells;
+        }
+
+        /**
+         * Summarize one rectangle of a window as a single cell: the colors
+         * of the cell at the center, and a shade character for how much of
+         * the rectangle has text in it.
+         *
+         * @param window the window
+         * @param left the left screen column of the rectangle
+         * @param upper the top screen row of the rectangle
+         * @param right one past the right screen column of the rectangle
+         * @param lower one past the bottom screen row of the rectangle
+         * @param centerX the screen column to take colors from
+         * @param centerY the screen row to take colors from
+         * @return the summary cell
+         */
+        private Cell sampleWindow(final TWindow window, final int left,
+            final int upper, final int right, final int lower,
+            final int centerX, final int centerY) {
+
+            int windowX = window.getX();
+            int windowY = window.getY();
+            LayerScreen layer = window.getCachedLayer();
+            if ((layer == null)
+                || (layer.getWidth() != window.getWidth())
+                || (layer.getHeight() != window.getHeight())
+            ) {
+                return new Cell(' ', window.getBackground());
+            }
+
+            int x0 = Math.max(left, windowX) - windowX;
+            int x1 = Math.min(right, windowX + window.getWidth()) - windowX;
+            int y0 = Math.max(upper, windowY) - windowY;
+            int y1 = Math.min(lower, windowY + window.getHeight()) - windowY;
+            int total = 0;
+            int ink = 0;
+            for (int col = x0; col < x1; col++) {
+                for (int row = y0; row < y1; row++) {
+                    Cell cell = layer.getCharXY(col, row);
+                    if (cell.isImage() || (cell.getChar() > ' ')) {
+                        ink++;
+                    }
+                    total++;
+                }
+            }
+
+            Cell cell = new Cell(layer.getCharXY(centerX - windowX,
+                    centerY - windowY));
+            cell.setChar(' ');
+            if (ink * 4 > total * 3) {
+                cell.setChar(GraphicsChars.CP437[0xB2]);
+            } else if (ink * 2 > total) {
+                cell.setChar(GraphicsChars.CP437[0xB1]);
+            } else if (ink * 4 > total) {
+                cell.setChar(GraphicsChars.CP437[0xB0]);
+            }
+            return cell;
         }
 
     }
 
+    /**
+     * ThumbnailCost is the time spent rendering one desktop's thumbnails.
+     */
+    private static class ThumbnailCost {
+
+        /**
+         * The number of thumbnails rendered.
+         */
+        private int renders = 0;
+
+        /**
+         * The total time spent rendering, in nanos.
+         */
+        private long nanos = 0;
+
+    }
+
+    /**
+     * If true, draw a live miniature of each desktop inside its button.
+     */
+    private boolean thumbnails = true;
+
+    /**
+     * The minimum time in millis between thumbnail updates.
+     */
+    private int thumbnailInterval = 1000;
+
+    /**
+     * The last time the thumbnails were checked for changes, in millis.
+     */
+    private long lastThumbnailCheck = 0;
+
+    /**
+     * When thumbnail cost accounting started, in nanos.
+     */
+    private long thumbnailStartTime = System.nanoTime();
+
+    /**
+     * The thumbnail rendering cost of each desktop.
+     */
+    private Map<VirtualDesktop, ThumbnailCost> thumbnailCosts =
+        new HashMap<VirtualDesktop, ThumbnailCost>();
+
     // ------------------------------------------------------------------------
     // Constructors -----------------------------------------------------------
     // ------------------------------------------------------------------------
@@ -284,6 +533,8 @@ public class DesktopPager extends PluginWidget {
             BUTTON_WIDTH = Integer.parseInt(getOption("buttonWidth", "5"));
             BUTTON_HEIGHT = Integer.parseInt(getOption("buttonHeight", "3"));
             columns = Integer.parseInt(getOption("initialColumns", "1"));
+            thumbnailInterval = Integer.parseInt(getOption(
+                "thumbnailInterval", "1000"));
         } catch (NumberFormatException e) {
             // SQUASH
         }
@@ -302,6 +553,10 @@ public class DesktopPager extends PluginWidget {
         if (columns < 1) {
             columns = 1;
         }
+        if (thumbnailInterval < 250) {
+            thumbnailInterval = 250;
+        }
+        thumbnails = getOption("thumbnails", "true").equals("true");
         setWidth(BUTTON_WIDTH * columns);
 
         refreshDesktops();
@@ -634,6 +889,74 @@ public class DesktopPager extends PluginWidget {
         window.setY(startupY);
     }
 
+    /**
+     * Bring the desktop thumbnails up to date.  This is called from the
+     * application's periodic activity poll, and does nothing if the last
+     * update was less than thumbnailInterval millis ago.  Only buttons
+     * whose desktops changed are redrawn.
+     */
+    public void updateThumbnails() {
+        if (!thumbnails) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastThumbnailCheck < thumbnailInterval) {
+            return;
+        }
+        lastThumbnailCheck = now;
+        for (TWidget widget: getChildren()) {
+            if (widget instanceof PagerButton) {
+                ((PagerButton) widget).checkThumbnail();
+            }
+        }
+    }
+
+    /**
+     * Get the number of thumbnails rendered for a desktop.
+     *
+     * @param desktop the desktop
+     * @return the number of renders
+     */
+    public int getThumbnailRenders(final VirtualDesktop desktop) {
+        ThumbnailCost cost = thumbnailCosts.get(desktop);
+        if (cost == null) {
+            return 0;
+        }
+        return cost.renders;
+    }
+
+    /**
+     * Get the total time spent rendering thumbnails for a desktop.
+     *
+     * @param desktop the desktop
+     * @return the time in nanos
+     */
+    public long getThumbnailNanos(final VirtualDesktop desktop) {
+        ThumbnailCost cost = thumbnailCosts.get(desktop);
+        if (cost == null) {
+            return 0;
+        }
+        return cost.nanos;
+    }
+
+    /**
+     * Get the share of one CPU spent rendering thumbnails for all desktops
+     * since this pager was created.
+     *
+     * @return the load, e.g. 0.01 for 1%
+     */
+    public double getThumbnailLoad() {
+        long nanos = 0;
+        for (ThumbnailCost cost: thumbnailCosts.values()) {
+            nanos += cost.nanos;
+        }
+        long elapsed = System.nanoTime() - thumbnailStartTime;
+        if (elapsed <= 0) {
+            return 0;
+        }
+        return (double) nanos / elapsed;
+    }
+
     /**
      * Refresh the buttons to match the number of desktops.
      */
@@ -32,6 +32,9 @@ import java.lang.management.ManagementFactory;
 import java.lang.management.OperatingSystemMXBean;
 import java.util.ResourceBundle;
 
+import jexer.TAction;
+import jexer.TApplication;
+import jexer.TTimer;
 import jexer.TWidget;
 import jexer.bits.CellAttributes;
 
@@ -57,6 +60,13 @@ public class SystemMonitor extends PluginWidget {
     // Variables --------------------------------------------------------------
     // ------------------------------------------------------------------------
 
+    /**
+     * The timer that redraws the values once a second.  It is created on
+     * the first draw so that the prototype instances made by
+     * XTWMApplication.loadPlugin() never own one.
+     */
+    private TTimer updateTimer = null;
+
     // ------------------------------------------------------------------------
     // Constructors -----------------------------------------------------------
     // ------------------------------------------------------------------------
@@ -86,6 +96,21 @@ public class SystemMonitor extends PluginWidget {
     // TWidget ----------------------------------------------------------------
     // ------------------------------------------------------------------------
 
+    /**
+     * Remove the update timer.
+     */
+    @Override
+    public void close() {
+        if (updateTimer != null) {
+            TApplication app = getApplication();
+            if (app != null) {
+                app.removeTimer(updateTimer);
+            }
+            updateTimer = null;
+        }
+        super.close();
+    }
+
     /**
      * Draw the values obtained from the Java management interfaces.
      */
@@ -94,6 +119,19 @@ public class SystemMonitor extends PluginWidget {
         CellAttributes textColor;
         CellAttributes valueColor;
 
+        if (updateTimer == null) {
+            // The values change on their own, so redraw this widget once a
+            // second rather than waiting for something else to.
+            updateTimer = getApplication().addTimer(1000, true,
+                new TAction() {
+                    public void DO() {
+                        SystemMonitor.this.invalidate();
+                    }
+                }
+            );
+            updateTimer.setRepaint(false);
+        }
+
         textColor = getTheme().getColor("plugins.calendar.text");
         valueColor = getTheme().getColor("plugins.calendar.value");
 
@@ -28,11 +28,28 @@
  */
 package xtwm.ui;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.DocumentBuilder;
@@ -50,6 +67,7 @@ import org.w3c.dom.ls.LSSerializer;
 
 import jexer.TExceptionDialog;
 import jexer.TSplitPane;
+import jexer.TTerminalWidget;
 import jexer.TTerminalWindow;
 import jexer.TWidget;
 import jexer.TWindow;
@@ -59,7 +77,8 @@ import xtwm.plugins.PluginWidget;
 
 /**
  * ApplicationLayout reads and writes the desktop and window layout to XML
- * files.
+ * files, and whole sessions (the layout plus the terminal screens) to
+ * binary files.
  */
 public class ApplicationLayout {
 
@@ -67,6 +86,16 @@ public class ApplicationLayout {
     // Constants --------------------------------------------------------------
     // ------------------------------------------------------------------------
 
+    /**
+     * The first four bytes of a session file: "XTWS".
+     */
+    private static final int SESSION_MAGIC = 0x58545753;
+
+    /**
+     * The session file format version.
+     */
+    private static final int SESSION_VERSION = 1;
+
     // ------------------------------------------------------------------------
     // Variables --------------------------------------------------------------
     // ------------------------------------------------------------------------
@@ -99,11 +128,101 @@ public class ApplicationLayout {
                                       ParserConfigurationException,
                                       SAXException {
 
+        Document doc = createLayoutXml(app, null);
+
+        FileWriter output = new FileWriter(new File(filename));
+        writeXml(doc, output);
+        output.close();
+    }
+
+    /**
+     * Write the layout of an application and the screens of all of its
+     * terminals to a session file.  The file is written to a temporary file
+     * first and then moved into place, so a crash while saving leaves the
+     * previous session intact.  Plugin state is not saved.
+     *
+     * @param app the application
+     * @param filename the name of the file to write to
+     * @throws IOException if a java.io operation throws
+     * @throws ClassNotFoundException if thrown by the XML reader
+     * @throws IllegalAccessException if thrown by the XML reader
+     * @throws InstantiationException if thrown by the XML reader
+     * @throws ParserConfigurationException if thrown by the XML reader
+     * @throws SAXException if thrown by the XML reader
+     */
+    public static void saveSession(final XTWMApplication app,
+        final String filename) throws IOException,
+                                      ClassNotFoundException,
+                                      IllegalAccessException,
+                                      InstantiationException,
+                                      ParserConfigurationException,
+                                      SAXException {
+
+        List<byte []> screens = new ArrayList<byte []>();
+        Document doc = createLayoutXml(app, screens);
+        StringWriter xml = new StringWriter();
+        writeXml(doc, xml);
+        byte [] xmlBytes = xml.toString().getBytes("UTF-8");
+
+        Path path = Paths.get(filename).toAbsolutePath();
+        Path tempPath = Files.createTempFile(path.getParent(),
+            path.getFileName().toString(), ".tmp");
+        try {
+            FileChannel channel = FileChannel.open(tempPath,
+                StandardOpenOption.WRITE);
+            try {
+                DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel)));
+                out.writeInt(SESSION_MAGIC);
+                out.writeInt(SESSION_VERSION);
+                out.writeInt(xmlBytes.length);
+                out.write(xmlBytes);
+
+                out.writeInt(screens.size());
+                for (byte [] screen: screens) {
+                    out.writeInt(screen.length);
+                    out.write(screen);
+                }
+                out.flush();
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+
+            try {
+                Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempPath, path,
+                    StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    /**
+     * Create the DOM document describing the layout of an application.
+     *
+     * @param app the application
+     * @param screens if not null, the compressed screen of every terminal
+     * in the layout is added to this list, and the terminal's element gets
+     * a "snapshot" attribute with its index
+     * @return the document
+     * @throws ClassNotFoundException if thrown by the XML reader
+     * @throws IllegalAccessException if thrown by the XML reader
+     * @throws InstantiationException if thrown by the XML reader
+     * @throws ParserConfigurationException if thrown by the XML reader
+     */
+    private static Document createLayoutXml(final XTWMApplication app,
+        final List<byte []> screens) throws ClassNotFoundException,
+                                            IllegalAccessException,
+                                            InstantiationException,
+                                            ParserConfigurationException {
+
         List<VirtualDesktop> desktops = app.getDesktops();
         List<TWindow> windows = app.getAllWindows();
 
-        File file = new File(filename);
-
         DocumentBuilder domBuilder;
         DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
         domBuilder = dbFactory.newDocumentBuilder();
@@ -125,21 +244,49 @@ public class ApplicationLayout {
         // Add desktops
         Element desktopElems = doc.createElement("desktops");
         for (VirtualDesktop desktop: desktops) {
-            desktopElems.appendChild(createDesktopXml(doc, desktop));
+            desktopElems.appendChild(createDesktopXml(doc, desktop,
+                    screens));
         }
         root.appendChild(desktopElems);
 
         // Add windows
         Element windowElems = doc.createElement("windows");
         for (TWindow window: windows) {
-            Element elem = createWindowXml(app, doc, window);
+            Element elem = createWindowXml(app, doc, window, screens);
             if (elem != null) {
                 windowElems.appendChild(elem);
             }
         }
+        // Windows on desktops not shown since the last load are still
+        // waiting as XML.
+        for (VirtualDesktop desktop: desktops) {
+            PendingLayout pending = desktop.getPendingLayout();
+            if (pending != null) {
+                for (Element window: pending.getWindows()) {
+                    windowElems.appendChild(importPendingXml(doc, window,
+                            pending, screens));
+                }
+            }
+        }
         root.appendChild(windowElems);
 
-        // Write it out
+        return doc;
+    }
+
+    /**
+     * Write a DOM document out as XML.
+     *
+     * @param doc the document
+     * @param output the writer to write to
+     * @throws ClassNotFoundException if thrown by the XML writer
+     * @throws IllegalAccessException if thrown by the XML writer
+     * @throws InstantiationException if thrown by the XML writer
+     */
+    private static void writeXml(final Document doc,
+        final Writer output) throws ClassNotFoundException,
+                                    IllegalAccessException,
+                                    InstantiationException {
+
         DOMImplementationRegistry reg = DOMImplementationRegistry.newInstance();
         DOMImplementationLS impl = (DOMImplementationLS) reg.
                                                 getDOMImplementation("LS");
@@ -148,11 +295,8 @@ public class ApplicationLayout {
         ls.getDomConfig().setParameter("format-pretty-print", Boolean.TRUE);
         LSOutput lsOut = impl.createLSOutput();
         lsOut.setEncoding("UTF-8");
-        FileWriter output = new FileWriter(file);
         lsOut.setCharacterStream(output);
         ls.write(doc, lsOut);
-
-        output.close();
     }
 
     /**
@@ -176,14 +320,82 @@ public class ApplicationLayout {
             return;
         }
 
-        double scaleX = 1.0;
-        double scaleY = 1.0;
-
         DocumentBuilder domBuilder;
         DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
         domBuilder = dbFactory.newDocumentBuilder();
         Document doc = domBuilder.parse(file);
 
+        loadLayout(app, doc, null);
+    }
+
+    /**
+     * Read a session file written by saveSession() and set up the
+     * application to match.  The terminals show their saved screens right
+     * away, and each spawns its shell when it is first focused.
+     *
+     * @param app the application
+     * @param filename the name of the file to read from
+     * @throws IOException if a java.io operation throws, or the file is not
+     * a session file
+     * @throws ParserConfigurationException if thrown by the XML reader
+     * @throws SAXException if thrown by the XML reader
+     */
+    public static void loadSession(final XTWMApplication app,
+        final String filename) throws IOException,
+                                      ParserConfigurationException,
+                                      SAXException {
+
+        Path path = Paths.get(filename);
+        if (!Files.isRegularFile(path)) {
+            return;
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+            Files.readAllBytes(path)));
+        if (in.readInt() != SESSION_MAGIC) {
+            throw new IOException(filename + " is not a session file");
+        }
+        int version = in.readInt();
+        if (version != SESSION_VERSION) {
+            throw new IOException("Unknown session version " + version);
+        }
+        byte [] xmlBytes = new byte[in.readInt()];
+        in.readFully(xmlBytes);
+        int screenCount = in.readInt();
+        List<byte []> screens = new ArrayList<byte []>(screenCount);
+        for (int i = 0; i < screenCount; i++) {
+            byte [] screen = new byte[in.readInt()];
+            in.readFully(screen);
+            screens.add(screen);
+        }
+
+        DocumentBuilder domBuilder;
+        DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+        domBuilder = dbFactory.newDocumentBuilder();
+        Document doc = domBuilder.parse(new ByteArrayInputStream(xmlBytes));
+
+        TTerminalWidget.setSpawnOnFocus(true);
+        try {
+            loadLayout(app, doc, screens);
+        } finally {
+            TTerminalWidget.setSpawnOnFocus(false);
+        }
+    }
+
+    /**
+     * Set up the application to match a layout.
+     *
+     * @param app the application
+     * @param doc the layout document
+     * @param screens the compressed terminal screens referenced by the
+     * "snapshot" attributes, or null to start every terminal blank
+     */
+    private static void loadLayout(final XTWMApplication app,
+        final Document doc, final List<byte []> screens) {
+
+        double scaleX = 1.0;
+        double scaleY = 1.0;
+
         // Get the document's root XML node
         Node root = doc.getChildNodes().item(0);
         if (!(root instanceof Element)) {
@@ -242,8 +454,25 @@ public class ApplicationLayout {
         // Clear everything in the application except for the desktop
         // pager.
         for (VirtualDesktop desktop: app.getDesktops()) {
-            while (desktop.getDesktop().getChildren().size() > 0) {
-                desktop.getActivePanel().close();
+            desktop.setPendingLayout(null);
+            Desktop panels = desktop.getDesktop();
+            while (panels.getChildren().size() > 0) {
+                // Close one leaf panel at a time.  A desktop that was just
+                // loaded has no active panel to start from, and not every
+                // panel removes itself on close().
+                TWidget panel = panels;
+                while ((panel == panels)
+                    || ((panel instanceof TSplitPane)
+                        && (panel.getChildren().size() > 0))
+                ) {
+                    panel = panel.getChildren().get(0);
+                }
+                panel.close();
+                if ((panel.getParent() != null)
+                    && panel.getParent().hasChild(panel)
+                ) {
+                    panel.remove(false);
+                }
             }
         }
         List<TWindow> windowsToRemove = new ArrayList<TWindow>();
@@ -275,7 +504,7 @@ public class ApplicationLayout {
                         && (desktop.getNodeName().equals("desktop"))
                     ) {
                         addDesktopFromXml(desktopIdx, app, scaleX, scaleY, doc,
-                            (Element) desktop);
+                            (Element) desktop, screens);
                         desktopIdx++;
                     }
                 }
@@ -287,7 +516,7 @@ public class ApplicationLayout {
                     Node window = windowNodes.item(j);
                     if (window instanceof Element) {
                         addWindowFromXml(app, scaleX, scaleY, doc,
-                            (Element) window);
+                            (Element) window, screens);
                     }
                 }
             }
@@ -303,10 +532,11 @@ public class ApplicationLayout {
      * @param scaleY the ratio of layout height to current application height
      * @param doc the document
      * @param elem the element
+     * @param screens the compressed terminal screens, or null
      */
     private static void addWindowFromXml(final XTWMApplication app,
         final double scaleX, final double scaleY, final Document doc,
-        final Element elem) {
+        final Element elem, final List<byte []> screens) {
 
         int x = 0;
         int y = 0;
@@ -371,6 +601,15 @@ public class ApplicationLayout {
                 // SQUASH
             }
         }
+        if ((desktop > 0)
+            && (app.getDesktops().get(desktop - 1) != app.getCurrentDesktop())
+        ) {
+            // Wait until that desktop is shown.
+            getPendingLayout(app.getDesktops().get(desktop - 1), app, scaleX,
+                scaleY, doc, screens).addWindow(elem);
+            return;
+        }
+
         String type = elem.getAttribute("type");
         if (type.equals("terminal")) {
             List<String> commandLine = new ArrayList<String>();
@@ -396,6 +635,7 @@ public class ApplicationLayout {
             terminal.setWidth(width);
             terminal.setHeight(height);
             terminal.ensureOnScreen();
+            restoreScreen(terminal.getTerminal(), elem, screens);
             if (desktop > 0) {
                 app.getDesktops().get(desktop - 1).addWindow(terminal);
             }
@@ -465,10 +705,12 @@ public class ApplicationLayout {
      * @param scaleY the ratio of layout height to current application height
      * @param doc the document
      * @param elem the element
+     * @param screens the compressed terminal screens, or null
      */
     private static void addDesktopFromXml(final int idx,
         final XTWMApplication app, final double scaleX,
-        final double scaleY, final Document doc, final Element elem) {
+        final double scaleY, final Document doc, final Element elem,
+        final List<byte []> screens) {
 
         // System.err.println("addDesktop: " + idx);
 
@@ -476,7 +718,15 @@ public class ApplicationLayout {
             return;
         }
 
-        Desktop desktop = app.getDesktops().get(idx).getDesktop();
+        VirtualDesktop virtualDesktop = app.getDesktops().get(idx);
+        if (virtualDesktop != app.getCurrentDesktop()) {
+            // Wait until this desktop is shown.
+            getPendingLayout(virtualDesktop, app, scaleX, scaleY, doc,
+                screens).setPanels(elem);
+            return;
+        }
+
+        Desktop desktop = virtualDesktop.getDesktop();
         NodeList childNodes = elem.getChildNodes();
         for (int j = 0; j < childNodes.getLength(); j++) {
             Node childNode = childNodes.item(j);
@@ -486,7 +736,7 @@ public class ApplicationLayout {
                     || childNode.getNodeName().equals("plugin"))
             ) {
                 TWidget widget = getWidgetFromXml(app, desktop, scaleX, scaleY,
-                    doc, (Element) childNode);
+                    doc, (Element) childNode, screens);
                 if (widget != null) {
                     // System.err.println("addDesktop(): widget = " + widget.toPrettyString());
 
@@ -514,18 +764,20 @@ public class ApplicationLayout {
      * @param scaleY the ratio of layout height to current application height
      * @param doc the document
      * @param elem the element
+     * @param screens the compressed terminal screens, or null
      * @return the widget
      */
     @SuppressWarnings({"unchecked"})
     private static TWidget getWidgetFromXml(final XTWMApplication app,
         final TWidget parent, final double scaleX, final double scaleY,
-        final Document doc, final Element elem) {
+        final Document doc, final Element elem, final List<byte []> screens) {
 
         // System.err.println("getWidgetFromXml(): elem = " + elem);
 
         String type = elem.getNodeName();
         if (type.equals("terminal")) {
             TiledTerminal terminal = new TiledTerminal(parent);
+            restoreScreen(terminal, elem, screens);
             return terminal;
         }
         if (type.equals("plugin")) {
@@ -578,7 +830,7 @@ public class ApplicationLayout {
                         || childNode.getNodeName().equals("plugin"))
                 ) {
                     widget = getWidgetFromXml(app, parent, scaleX, scaleY,
-                        doc, (Element) childNode);
+                        doc, (Element) childNode, screens);
                     if (widget instanceof TSplitPane) {
                         TSplitPane subSplit = (TSplitPane) widget;
                         if (subSplit.isVertical()) {
@@ -612,16 +864,109 @@ public class ApplicationLayout {
         return null;
     }
 
+    /**
+     * Get the pending layout of a desktop, creating it if needed.
+     *
+     * @param desktop the desktop
+     * @param app the application
+     * @param scaleX the ratio of layout width to current application width
+     * @param scaleY the ratio of layout height to current application height
+     * @param doc the document
+     * @param screens the compressed terminal screens, or null
+     * @return the pending layout
+     */
+    private static PendingLayout getPendingLayout(
+        final VirtualDesktop desktop, final XTWMApplication app,
+        final double scaleX, final double scaleY, final Document doc,
+        final List<byte []> screens) {
+
+        PendingLayout pending = desktop.getPendingLayout();
+        if (pending == null) {
+            pending = new PendingLayout(app, scaleX, scaleY, doc, screens);
+            desktop.setPendingLayout(pending);
+        }
+        return pending;
+    }
+
+    /**
+     * Create the panels and windows of a desktop that were left waiting
+     * when the layout was loaded.  Note package private access.
+     *
+     * @param desktop the desktop, which is being shown
+     * @param pending the pending layout
+     */
+    static void loadPendingLayout(final VirtualDesktop desktop,
+        final PendingLayout pending) {
+
+        XTWMApplication app = pending.getApplication();
+        int idx = app.getDesktops().indexOf(desktop);
+        if (idx < 0) {
+            return;
+        }
+
+        // Terminals from a session wait for focus, as they would have at
+        // load time.
+        TTerminalWidget.setSpawnOnFocus(pending.getScreens() != null);
+        try {
+            if (pending.getPanels() != null) {
+                addDesktopFromXml(idx, app, pending.getScaleX(),
+                    pending.getScaleY(), pending.getDocument(),
+                    pending.getPanels(), pending.getScreens());
+            }
+            for (Element window: pending.getWindows()) {
+                addWindowFromXml(app, pending.getScaleX(), pending.getScaleY(),
+                    pending.getDocument(), window, pending.getScreens());
+            }
+        } finally {
+            TTerminalWidget.setSpawnOnFocus(false);
+        }
+    }
+
+    /**
+     * Restore the saved screen of a terminal, if the layout has one for it.
+     *
+     * @param terminal the terminal
+     * @param elem the element describing the terminal
+     * @param screens the compressed terminal screens, or null
+     */
+    private static void restoreScreen(final TTerminalWidget terminal,
+        final Element elem, final List<byte []> screens) {
+
+        if (screens == null) {
+            return;
+        }
+        int idx = -1;
+        try {
+            idx = Integer.parseInt(elem.getAttribute("snapshot"));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if ((idx < 0) || (idx >= screens.size())
+            || (screens.get(idx).length == 0)
+        ) {
+            return;
+        }
+        try {
+            terminal.readScreenState(new DataInputStream(
+                new InflaterInputStream(new ByteArrayInputStream(
+                    screens.get(idx)))));
+        } catch (IOException e) {
+            // SQUASH.  A damaged screen leaves the terminal blank.
+        }
+    }
+
     /**
      * Create a DOM element representing a window.
      *
      * @param app the application
      * @param doc the document
      * @param window the window
+     * @param screens if not null, the list to add a terminal screen to
      * @return the new element
      */
     private static Element createWindowXml(final XTWMApplication app,
-        final Document doc, final TWindow window) {
+        final Document doc, final TWindow window,
+        final List<byte []> screens) {
 
         Element root = doc.createElement("window");
 
@@ -648,6 +993,7 @@ public class ApplicationLayout {
                 argsList.appendChild(elem);
             }
             root.appendChild(argsList);
+            addSnapshot(root, terminal.getTerminal(), screens);
         } else {
             // No other kinds of open windows supported.
             return null;
@@ -678,23 +1024,29 @@ public class ApplicationLayout {
      *
      * @param doc the document
      * @param desktop the desktop
+     * @param screens if not null, the list to add terminal screens to
      * @return the new element
      */
     private static Element createDesktopXml(final Document doc,
-        final VirtualDesktop desktop) {
+        final VirtualDesktop desktop, final List<byte []> screens) {
+
+        PendingLayout pending = desktop.getPendingLayout();
+        if ((pending != null) && (pending.getPanels() != null)) {
+            return importPendingXml(doc, pending.getPanels(), pending,
+                screens);
+        }
 
         Element root = doc.createElement("desktop");
 
-        TWidget rootPanel = desktop.getActivePanel();
-        if (rootPanel == desktop.getDesktop()) {
+        if (desktop.getDesktop().getChildren().size() == 0) {
             // No child nodes.
             return root;
         }
 
-        rootPanel = desktop.getDesktop().getChildren().get(0);
+        TWidget rootPanel = desktop.getDesktop().getChildren().get(0);
 
         // Recursively build the tree of the panels and splits.
-        root.appendChild(createWidgetXml(doc, rootPanel));
+        root.appendChild(createWidgetXml(doc, rootPanel, screens));
 
         return root;
     }
@@ -704,10 +1056,11 @@ public class ApplicationLayout {
      *
      * @param doc the document
      * @param widget the widget
+     * @param screens if not null, the list to add terminal screens to
      * @return the new element
      */
     private static Element createWidgetXml(final Document doc,
-        final TWidget widget) {
+        final TWidget widget, final List<byte []> screens) {
 
         Element root = null;
         if (widget instanceof TSplitPane) {
@@ -719,16 +1072,21 @@ public class ApplicationLayout {
             if (split.isVertical()) {
                 assert (split.getLeft() != null);
                 assert (split.getRight() != null);
-                root.appendChild(createWidgetXml(doc, split.getLeft()));
-                root.appendChild(createWidgetXml(doc, split.getRight()));
+                root.appendChild(createWidgetXml(doc, split.getLeft(),
+                    screens));
+                root.appendChild(createWidgetXml(doc, split.getRight(),
+                    screens));
             } else {
                 assert (split.getTop() != null);
                 assert (split.getBottom() != null);
-                root.appendChild(createWidgetXml(doc, split.getTop()));
-                root.appendChild(createWidgetXml(doc, split.getBottom()));
+                root.appendChild(createWidgetXml(doc, split.getTop(),
+                    screens));
+                root.appendChild(createWidgetXml(doc, split.getBottom(),
+                    screens));
             }
         } else if (widget instanceof TiledTerminal) {
             root = doc.createElement("terminal");
+            addSnapshot(root, (TiledTerminal) widget, screens);
         } else if (widget instanceof PluginWidget) {
             root = doc.createElement("plugin");
             root.setAttribute("class", widget.getClass().getName());
@@ -740,4 +1098,84 @@ public class ApplicationLayout {
         return root;
     }
 
+    /**
+     * Compress a terminal's screen for the session file, and point the
+     * terminal's element at it.
+     *
+     * @param elem the element describing the terminal
+     * @param terminal the terminal
+     * @param screens if not null, the list to add the terminal screen to
+     */
+    private static void addSnapshot(final Element elem,
+        final TTerminalWidget terminal, final List<byte []> screens) {
+
+        if (screens == null) {
+            return;
+        }
+
+        // Each screen is compressed on its own: scrollback is mostly blank
+        // cells with the same attributes.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(
+                new DeflaterOutputStream(bytes));
+            terminal.writeScreenState(out);
+            out.close();
+        } catch (IOException e) {
+            // This terminal has no screen, it will be restored blank.
+            return;
+        }
+        elem.setAttribute("snapshot", Integer.toString(screens.size()));
+        screens.add(bytes.toByteArray());
+    }
+
+    /**
+     * Copy an element of a layout still waiting on a desktop into a new
+     * document.  Terminal screens it refers to are carried over to the new
+     * session.
+     *
+     * @param doc the new document
+     * @param elem the pending element
+     * @param pending the pending layout holding the element
+     * @param screens if not null, the list to add terminal screens to
+     * @return the copied element
+     */
+    private static Element importPendingXml(final Document doc,
+        final Element elem, final PendingLayout pending,
+        final List<byte []> screens) {
+
+        Element root = (Element) doc.importNode(elem, true);
+        List<Element> elems = new ArrayList<Element>();
+        elems.add(root);
+        NodeList children = root.getElementsByTagName("*");
+        for (int i = 0; i < children.getLength(); i++) {
+            elems.add((Element) children.item(i));
+        }
+
+        for (Element child: elems) {
+            if (!child.hasAttribute("snapshot")) {
+                continue;
+            }
+            byte [] screen = null;
+            if ((screens != null) && (pending.getScreens() != null)) {
+                try {
+                    int idx = Integer.parseInt(child.getAttribute("snapshot"));
+                    if ((idx >= 0) && (idx < pending.getScreens().size())) {
+                        screen = pending.getScreens().get(idx);
+                    }
+                } catch (NumberFormatException e) {
+                    // SQUASH
+                }
+            }
+            if (screen == null) {
+                child.removeAttribute("snapshot");
+            } else {
+                child.setAttribute("snapshot",
+                    Integer.toString(screens.size()));
+                screens.add(screen);
+            }
+        }
+        return root;
+    }
+
 }
@@ -100,7 +100,7 @@ public class ClientsWindow extends TWindow {
     public ClientsWindow(final XTWMApplication application) {
 
         // Register with the TApplication
-        super(application, i18n.getString("windowTitle"), 0, 0, 68, 18, MODAL);
+        super(application, i18n.getString("windowTitle"), 0, 0, 78, 18, MODAL);
 
         clients = addList(new ArrayList<String>(), 1, 3,
             getWidth() - 4, getHeight() - 8, null,
@@ -206,6 +206,7 @@ public class ClientsWindow extends TWindow {
     @Override
     public void onIdle() {
         refreshClientsList();
+        invalidate();
     }
 
     // ------------------------------------------------------------------------
@@ -223,19 +224,25 @@ public class ClientsWindow extends TWindow {
         CellAttributes color = getTheme().getColor("ttext");
 
         hLineXY(2, 2, getWidth() - 4, ' ', color);
-        putStringXY(2, 2, String.format("%-12s %c %11s %c %9s %c %10s",
+        putStringXY(2, 2, String.format("%-12s %c %11s %c %9s %c %10s %c %7s %c %7s",
                 i18n.getString("username"),
                 GraphicsChars.VERTICAL_BAR,
                 i18n.getString("permissions"),
                 GraphicsChars.VERTICAL_BAR,
                 i18n.getString("connected"),
                 GraphicsChars.VERTICAL_BAR,
-                i18n.getString("idle")), color);
+                i18n.getString("idle"),
+                GraphicsChars.VERTICAL_BAR,
+                i18n.getString("lag"),
+                GraphicsChars.VERTICAL_BAR,
+                i18n.getString("skipped")), color);
 
         hLineXY(2, 3, getWidth() - 4, GraphicsChars.DOUBLE_BAR, color);
         putCharXY(15, 3, 0x256A, color);
         putCharXY(29, 3, 0x256A, color);
         putCharXY(41, 3, 0x256A, color);
+        putCharXY(54, 3, 0x256A, color);
+        putCharXY(64, 3, 0x256A, color);
     }
 
     // ------------------------------------------------------------------------
@@ -252,21 +259,26 @@ public class ClientsWindow extends TWindow {
 
         long now = System.currentTimeMillis();
         XTWMApplication app = (XTWMApplication) getApplication();
-        for (Backend backend: ((MultiBackend) app.getBackend()).getBackends()) {
+        MultiBackend multiBackend = (MultiBackend) app.getBackend();
+        for (Backend backend: multiBackend.getBackends()) {
             SessionInfo sessionInfo = backend.getSessionInfo();
             TelnetInputStream telnet = (TelnetInputStream) sessionInfo;
             long connect = sessionInfo.getStartTime();
             int hours = (int)  (((now - connect) / 1000) / 3600);
             int mins  = (int) ((((now - connect) / 1000) % 3600) / 60);
             int secs  = (int)  (((now - connect) / 1000) % 60);
-            clientStrings.add(String.format("%-12s %c %11s %c  %02d:%02d:%02d %c %10d",
+            clientStrings.add(String.format("%-12s %c %11s %c  %02d:%02d:%02d %c %10d %c %7d %c %7d",
                     sessionInfo.getUsername(),
                     GraphicsChars.VERTICAL_BAR,
                     (backend.isReadOnly() ? "Read-Only" : "Read+Write"),
                     GraphicsChars.VERTICAL_BAR,
                     hours, mins, secs,
                     GraphicsChars.VERTICAL_BAR,
-                    sessionInfo.getIdleTime()));
+                    sessionInfo.getIdleTime(),
+                    GraphicsChars.VERTICAL_BAR,
+                    multiBackend.getFlushLag(backend),
+                    GraphicsChars.VERTICAL_BAR,
+                    multiBackend.getFramesSkipped(backend)));
 
             clientsById.put(clientStrings.size() - 1, backend);
         }
@@ -0,0 +1,192 @@
+/*
+ * Xterm Window Manager
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2022 Autumn Lamonte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * @author Autumn Lamonte ⚧ Trans Liberation Now
+ * @version 1
+ */
+package xtwm.ui;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * PendingLayout holds the part of a loaded layout that belongs to a virtual
+ * desktop that has not been shown yet.  Its panels and windows are created
+ * when the desktop is first shown.
+ */
+class PendingLayout {
+
+    // ------------------------------------------------------------------------
+    // Variables --------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * The application.
+     */
+    private XTWMApplication app;
+
+    /**
+     * The ratio of layout width to application width at load time.
+     */
+    private double scaleX;
+
+    /**
+     * The ratio of layout height to application height at load time.
+     */
+    private double scaleY;
+
+    /**
+     * The layout document.
+     */
+    private Document doc;
+
+    /**
+     * The compressed terminal screens of a session, or null for a plain
+     * layout.
+     */
+    private List<byte []> screens;
+
+    /**
+     * The "desktop" element holding the panels, or null if there are none.
+     */
+    private Element panels = null;
+
+    /**
+     * The "window" elements of the windows on this desktop.
+     */
+    private List<Element> windows = new ArrayList<Element>();
+
+    // ------------------------------------------------------------------------
+    // Constructors -----------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Package private constructor.
+     *
+     * @param app the application
+     * @param scaleX the ratio of layout width to current application width
+     * @param scaleY the ratio of layout height to current application height
+     * @param doc the layout document
+     * @param screens the compressed terminal screens, or null
+     */
+    PendingLayout(final XTWMApplication app, final double scaleX,
+        final double scaleY, final Document doc, final List<byte []> screens) {
+
+        this.app        = app;
+        this.scaleX     = scaleX;
+        this.scaleY     = scaleY;
+        this.doc        = doc;
+        this.screens    = screens;
+    }
+
+    // ------------------------------------------------------------------------
+    // PendingLayout ----------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Get the application.
+     *
+     * @return the application
+     */
+    XTWMApplication getApplication() {
+        return app;
+    }
+
+    /**
+     * Get the ratio of layout width to application width.
+     *
+     * @return the horizontal scale
+     */
+    double getScaleX() {
+        return scaleX;
+    }
+
+    /**
+     * Get the ratio of layout height to application height.
+     *
+     * @return the vertical scale
+     */
+    double getScaleY() {
+        return scaleY;
+    }
+
+    /**
+     * Get the layout document.
+     *
+     * @return the document
+     */
+    Document getDocument() {
+        return doc;
+    }
+
+    /**
+     * Get the compressed terminal screens.
+     *
+     * @return the screens, or null for a plain layout
+     */
+    List<byte []> getScreens() {
+        return screens;
+    }
+
+    /**
+     * Get the element holding the panels.
+     *
+     * @return the "desktop" element, or null
+     */
+    Element getPanels() {
+        return panels;
+    }
+
+    /**
+     * Set the element holding the panels.
+     *
+     * @param panels the "desktop" element
+     */
+    void setPanels(final Element panels) {
+        this.panels = panels;
+    }
+
+    /**
+     * Get the elements of the windows on this desktop.
+     *
+     * @return the "window" elements
+     */
+    List<Element> getWindows() {
+        return windows;
+    }
+
+    /**
+     * Add a window to create when the desktop is shown.
+     *
+     * @param window the "window" element
+     */
+    void addWindow(final Element window) {
+        windows.add(window);
+    }
+
+}
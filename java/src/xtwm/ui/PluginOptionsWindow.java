@@ -210,6 +210,7 @@ public class PluginOptionsWindow extends TWindow {
     @Override
     public void onIdle() {
         refreshPluginList();
+        invalidate();
     }
 
     // ------------------------------------------------------------------------
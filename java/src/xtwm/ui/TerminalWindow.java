@@ -165,6 +165,14 @@ public class TerminalWindow extends TTerminalWindow {
             }
             return;
 
+        case XTWMApplication.MENU_TERMINAL_SESSION_FIND:
+            ((XTWMApplication) getApplication()).menuTerminalFind(terminal);
+            return;
+
+        case XTWMApplication.MENU_TERMINAL_SESSION_FIND_AGAIN:
+            ((XTWMApplication) getApplication()).menuTerminalFindAgain(terminal);
+            return;
+
         case XTWMApplication.MENU_TERMINAL_CLOSE:
             close();
             return;
@@ -208,6 +208,14 @@ public class TiledTerminal extends TTerminalWidget {
             }
             return;
 
+        case XTWMApplication.MENU_TERMINAL_SESSION_FIND:
+            ((XTWMApplication) getApplication()).menuTerminalFind(this);
+            return;
+
+        case XTWMApplication.MENU_TERMINAL_SESSION_FIND_AGAIN:
+            ((XTWMApplication) getApplication()).menuTerminalFindAgain(this);
+            return;
+
         case XTWMApplication.MENU_TERMINAL_CLOSE:
             close();
             return;
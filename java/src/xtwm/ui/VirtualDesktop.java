@@ -29,10 +29,14 @@
 package xtwm.ui;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 
 import jexer.TApplication;
 import jexer.TSplitPane;
+import jexer.TTerminalWidget;
 import jexer.TWidget;
 import jexer.TWindow;
 
@@ -50,9 +54,23 @@ public class VirtualDesktop {
     // ------------------------------------------------------------------------
 
     /**
-     * The windows on this desktop.
+     * The windows on this desktop, in the order they were added.  This may
+     * still hold windows removed since the last compactWindows().
      */
-    private ArrayList<TWindow> windows = new ArrayList<TWindow>();
+    private final ArrayList<TWindow> windows = new ArrayList<TWindow>();
+
+    /**
+     * The windows on this desktop, for constant-time lookup and removal.
+     * This is the authoritative set: a window in the list but not here was
+     * removed.
+     */
+    private Set<TWindow> windowSet = Collections.newSetFromMap(
+        new IdentityHashMap<TWindow, Boolean>());
+
+    /**
+     * The number of windows removed from windowSet but still in the list.
+     */
+    private int removedWindows = 0;
 
     /**
      * The application this desktop is part of.
@@ -64,6 +82,46 @@ public class VirtualDesktop {
      */
     private Desktop desktop;
 
+    /**
+     * The output count [0] and bell count [1] of each terminal on this
+     * desktop at the last activity poll.  Terminals are compared by
+     * identity, so a terminal that opens or closes is not mistaken for
+     * activity in another one.
+     */
+    private IdentityHashMap<TTerminalWidget, long []> lastCounts =
+        new IdentityHashMap<TTerminalWidget, long []>();
+
+    /**
+     * The map that becomes lastCounts at the next activity poll, kept to
+     * avoid allocating a new one every time.
+     */
+    private IdentityHashMap<TTerminalWidget, long []> nextCounts =
+        new IdentityHashMap<TTerminalWidget, long []>();
+
+    /**
+     * Goes up whenever an activity poll sees new terminal output, a bell,
+     * or a terminal opening or closing.
+     */
+    private long activityCount = 0;
+
+    /**
+     * If true, a terminal on this desktop produced output since the desktop
+     * was last visible.
+     */
+    private boolean newOutput = false;
+
+    /**
+     * If true, a terminal on this desktop rang the bell since the desktop
+     * was last visible.
+     */
+    private boolean newBell = false;
+
+    /**
+     * The part of a loaded layout to create when this desktop is first
+     * shown, or null.
+     */
+    private PendingLayout pendingLayout = null;
+
     // ------------------------------------------------------------------------
     // Constructors -----------------------------------------------------------
     // ------------------------------------------------------------------------
@@ -82,26 +140,11 @@ public class VirtualDesktop {
     // VirtualDesktop ---------------------------------------------------------
     // ------------------------------------------------------------------------
 
-    /**
-     * Sync windows with application.  Note package private access.
-     */
-    void sync() {
-        for (int i = 0; i < windows.size(); i++) {
-            TWindow window = windows.get(i);
-            if (!application.hasWindow(window)) {
-                // Application doesn't have the window, remove it from this
-                // desktop.
-                windows.remove(i);
-                i--;
-            }
-        }
-    }
-
     /**
      * Hide all windows on this desktop.
      */
     public void hide() {
-        sync();
+        compactWindows();
         for (int i = 0; i < windows.size(); i++) {
             TWindow window = windows.get(i);
             if (window.isShown()) {
@@ -111,16 +154,42 @@ public class VirtualDesktop {
     }
 
     /**
-     * Show all windows on this desktop.
+     * Show all windows on this desktop.  The first time after a layout was
+     * loaded, this also creates the desktop's panels and windows.
      */
     public void show() {
-        sync();
+        compactWindows();
         for (int i = 0; i < windows.size(); i++) {
             TWindow window = windows.get(i);
             if (window.isHidden()) {
                 application.showWindow(window);
             }
         }
+        if (pendingLayout != null) {
+            PendingLayout layout = pendingLayout;
+            pendingLayout = null;
+            ApplicationLayout.loadPendingLayout(this, layout);
+        }
+    }
+
+    /**
+     * Get the part of a loaded layout still to be created.  Note package
+     * private access.
+     *
+     * @return the pending layout, or null
+     */
+    PendingLayout getPendingLayout() {
+        return pendingLayout;
+    }
+
+    /**
+     * Set the part of a loaded layout to create when this desktop is next
+     * shown.  Note package private access.
+     *
+     * @param pendingLayout the pending layout, or null
+     */
+    void setPendingLayout(final PendingLayout pendingLayout) {
+        this.pendingLayout = pendingLayout;
     }
 
     /**
@@ -129,7 +198,8 @@ public class VirtualDesktop {
      * @return the windows
      */
     public List<TWindow> getWindows() {
-        return windows;
+        compactWindows();
+        return Collections.unmodifiableList(windows);
     }
 
     /**
@@ -141,9 +211,14 @@ public class VirtualDesktop {
         if (window == null) {
             return;
         }
-        if (!windows.contains(window)) {
-            windows.add(window);
+        if (windowSet.contains(window)) {
+            return;
         }
+        // A window removed and added again goes to the end, so drop its old
+        // place first.
+        compactWindows();
+        windowSet.add(window);
+        windows.add(window);
     }
 
     /**
@@ -155,11 +230,34 @@ public class VirtualDesktop {
         if (window == null) {
             return;
         }
-        if (windows.contains(window)) {
-            windows.remove(window);
+        if (windowSet.remove(window)) {
+            // The list is cleaned up the next time it is used.
+            removedWindows++;
         }
     }
 
+    /**
+     * Drop the windows removed since the last call from the ordered list.
+     * This is one pass over the list, so closing many windows between
+     * frames costs no more than closing one.
+     */
+    private void compactWindows() {
+        if (removedWindows == 0) {
+            return;
+        }
+        // Compact in place, so that lists from getWindows() stay views.
+        int kept = 0;
+        for (int i = 0; i < windows.size(); i++) {
+            TWindow window = windows.get(i);
+            if (windowSet.contains(window)) {
+                windows.set(kept, window);
+                kept++;
+            }
+        }
+        windows.subList(kept, windows.size()).clear();
+        removedWindows = 0;
+    }
+
     /**
      * See if a window is associated with this desktop.
      *
@@ -170,7 +268,121 @@ public class VirtualDesktop {
         if (window == null) {
             return false;
         }
-        return windows.contains(window);
+        return windowSet.contains(window);
+    }
+
+    /**
+     * Poll the terminals on this desktop for new output and bells.  This
+     * only reads the emulators' counters, so it is cheap even when the
+     * terminals are hidden and not rendering.  Note package private access.
+     *
+     * @param visible if true, this desktop is on screen, so anything that
+     * happened on it has been seen
+     * @return true if hasNewOutput() or hasNewBell() changed
+     */
+    boolean pollActivity(final boolean visible) {
+        List<TTerminalWidget> terminals = new ArrayList<TTerminalWidget>();
+        for (TWindow window: windowSet) {
+            findTerminals(window, terminals);
+        }
+        findTerminals(desktop, terminals);
+
+        boolean output = false;
+        boolean bell = false;
+        int stillOpen = 0;
+        nextCounts.clear();
+        for (TTerminalWidget terminal: terminals) {
+            long outputCount = terminal.getOutputCount();
+            long bellCount = terminal.getBellCount();
+            long [] counts = lastCounts.get(terminal);
+            if (counts == null) {
+                // New to this desktop: what it did before now happened
+                // somewhere else.
+                counts = new long[2];
+                activityCount++;
+            } else {
+                stillOpen++;
+                if (outputCount > counts[0]) {
+                    output = true;
+                    activityCount++;
+                }
+                if (bellCount > counts[1]) {
+                    bell = true;
+                    activityCount++;
+                }
+            }
+            counts[0] = outputCount;
+            counts[1] = bellCount;
+            nextCounts.put(terminal, counts);
+        }
+        if (stillOpen < lastCounts.size()) {
+            // A terminal closed or left this desktop.
+            activityCount++;
+        }
+        IdentityHashMap<TTerminalWidget, long []> swap = lastCounts;
+        lastCounts = nextCounts;
+        nextCounts = swap;
+        nextCounts.clear();
+
+        boolean oldNewOutput = newOutput;
+        boolean oldNewBell = newBell;
+        if (visible) {
+            newOutput = false;
+            newBell = false;
+        } else {
+            newOutput |= output;
+            newBell |= bell;
+        }
+        return ((oldNewOutput != newOutput) || (oldNewBell != newBell));
+    }
+
+    /**
+     * Collect every terminal in a widget tree.
+     *
+     * @param widget the root of the tree
+     * @param terminals the list to add the terminals to
+     */
+    private void findTerminals(final TWidget widget,
+        final List<TTerminalWidget> terminals) {
+
+        if (widget instanceof TTerminalWidget) {
+            terminals.add((TTerminalWidget) widget);
+        }
+        for (TWidget child: widget.getChildren()) {
+            findTerminals(child, terminals);
+        }
+    }
+
+    /**
+     * Get a count of the terminal activity on this desktop as of the last
+     * activity poll: output, bells, and terminals opening or closing.  The
+     * value only ever means something compared to an earlier one: if it
+     * differs, something happened.
+     *
+     * @return the activity count
+     */
+    public long getActivityCount() {
+        return activityCount;
+    }
+
+    /**
+     * See if a terminal on this desktop produced output since the desktop
+     * was last visible.
+     *
+     * @return true if there is unseen output
+     */
+    public boolean hasNewOutput() {
+        return newOutput;
+    }
+
+    /**
+     * See if a terminal on this desktop rang the bell since the desktop was
+     * last visible.
+     *
+     * @return true if there is an unseen bell
+     */
+    public boolean hasNewBell() {
+        return newBell;
     }
 
     /**
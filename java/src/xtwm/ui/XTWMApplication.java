@@ -45,6 +45,7 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.ResourceBundle;
 import java.util.ServiceLoader;
+import java.util.regex.PatternSyntaxException;
 
 import jexer.TAction;
 import jexer.TApplication;
@@ -57,6 +58,8 @@ import jexer.TMessageBox;
 import jexer.TScreenOptionsWindow;
 import jexer.TSplitPane;
 import jexer.TStatusBar;
+import jexer.TTerminalWidget;
+import jexer.TTimer;
 import jexer.TWidget;
 import jexer.TWindow;
 import jexer.backend.Backend;
@@ -157,6 +160,8 @@ public class XTWMApplication extends TApplication {
             static final int MENU_TERMINAL_SESSION_SAVE_TEXT            = 2205;
             static final int MENU_TERMINAL_SESSION_SEND_SIGTERM         = 2206;
             static final int MENU_TERMINAL_SESSION_SEND_OTHER_SIGNAL    = 2207;
+            static final int MENU_TERMINAL_SESSION_FIND                 = 2209;
+            static final int MENU_TERMINAL_SESSION_FIND_AGAIN           = 2210;
 
     /**
      * Terminal | Close menu item.
@@ -169,6 +174,8 @@ public class XTWMApplication extends TApplication {
     private static final int MENU_PANEL_CLOSE                           = 2304;
     private static final int MENU_PANEL_SAVE_LAYOUT                     = 2305;
     private static final int MENU_PANEL_LOAD_LAYOUT                     = 2306;
+    private static final int MENU_PANEL_SAVE_SESSION                    = 2307;
+    private static final int MENU_PANEL_LOAD_SESSION                    = 2308;
 
     private static final int MENU_WINDOW_TO_DESKTOP                     = 2400;
     private static final int MENU_WINDOW_ON_ALL_DESKTOPS                = 2401;
@@ -396,17 +403,18 @@ public class XTWMApplication extends TApplication {
         // plugins.
         resolveOptions();
 
-        if (getBackend() instanceof jexer.backend.ECMA48Backend) {
-            // For the Xterm backend, force a repaint so that the clock will
-            // be updated.
-            addTimer(500, true,
-                new TAction() {
-                    public void DO() {
-                        XTWMApplication.this.doRepaint();
-                    }
+        // Redraw the menu bar every half second so that the clock will be
+        // updated.  onPreDraw() refreshes the tray text.  The desktops are
+        // checked for terminal activity at the same rate.
+        TTimer clockTimer = addTimer(500, true,
+            new TAction() {
+                public void DO() {
+                    invalidate(0, 0, getScreen().getWidth(), 1);
+                    pollDesktopActivity();
                 }
-            );
-        }
+            }
+        );
+        clockTimer.setRepaint(false);
 
         if ((getBackend() instanceof jexer.backend.SwingBackend)
             && (getOption("xtwm.maximizeOnSwing").equals("true"))
@@ -449,8 +457,6 @@ public class XTWMApplication extends TApplication {
      */
     @Override
     protected void onPreDraw() {
-        getCurrentDesktop().sync();
-
         long now = System.currentTimeMillis();
 
         if ((screensaverTimeout > 0) && (desktopIndex != 0)) {
@@ -622,6 +628,18 @@ public class XTWMApplication extends TApplication {
         }
     }
 
+    /**
+     * Drop a closed window from the virtual desktops.
+     *
+     * @param window the closed window
+     */
+    @Override
+    protected void onWindowClose(final TWindow window) {
+        for (VirtualDesktop desktop: desktops) {
+            desktop.removeWindow(window);
+        }
+    }
+
     /**
      * Method that TApplication subclasses can override to handle keystrokes.
      *
@@ -907,6 +925,36 @@ public class XTWMApplication extends TApplication {
             }
             return true;
 
+        case MENU_PANEL_SAVE_SESSION:
+            try {
+                String filename = fileSaveBox(".");
+                if (filename != null) {
+                    ApplicationLayout.saveSession(this, filename);
+                }
+            } catch (Exception e) {
+                if (e instanceof RuntimeException) {
+                    throw (RuntimeException) e;
+                }
+                // Show this exception to the user.
+                new TExceptionDialog(this, e);
+            }
+            return true;
+
+        case MENU_PANEL_LOAD_SESSION:
+            try {
+                String filename = fileOpenBox(".");
+                if (filename != null) {
+                    ApplicationLayout.loadSession(this, filename);
+                }
+            } catch (Exception e) {
+                if (e instanceof RuntimeException) {
+                    throw (RuntimeException) e;
+                }
+                // Show this exception to the user.
+                new TExceptionDialog(this, e);
+            }
+            return true;
+
         case TMenu.MID_WINDOW_CLOSE:
             window = getActiveWindow();
             if ((window != null) && (desktopPager != null)) {
@@ -1247,6 +1295,11 @@ public class XTWMApplication extends TApplication {
             i18n.getString("terminalSessionSendSIGTERM"));
         subSession.addItem(MENU_TERMINAL_SESSION_SEND_OTHER_SIGNAL,
             i18n.getString("terminalSessionSendOtherSignal"));
+        subSession.addSeparator();
+        subSession.addItem(MENU_TERMINAL_SESSION_FIND,
+            i18n.getString("terminalSessionFind"));
+        subSession.addItem(MENU_TERMINAL_SESSION_FIND_AGAIN,
+            i18n.getString("terminalSessionFindAgain"));
 
         terminalMenu.addSeparator();
         terminalMenu.addItem(MENU_TERMINAL_CLOSE,
@@ -1273,6 +1326,10 @@ public class XTWMApplication extends TApplication {
             i18n.getString("panelSaveLayout"));
         panelMenu.addItem(MENU_PANEL_LOAD_LAYOUT,
             i18n.getString("panelLoadLayout"));
+        panelMenu.addItem(MENU_PANEL_SAVE_SESSION,
+            i18n.getString("panelSaveSession"));
+        panelMenu.addItem(MENU_PANEL_LOAD_SESSION,
+            i18n.getString("panelLoadSession"));
         TStatusBar panelStatusBar = panelMenu.newStatusBar(i18n.
             getString("panelMenuStatus"));
         panelStatusBar.addShortcutKeypress(kbF1, cmHelp,
@@ -1469,6 +1526,7 @@ public class XTWMApplication extends TApplication {
         setOption("jexer.Swing.mouseStyle", "default");
         setOption("jexer.Swing.tripleBuffer", "true");
         setOption("jexer.TTerminal.closeOnExit", "true");
+        setOption("jexer.TTerminal.pty", "auto");
         setOption("jexer.TTerminal.ptypipe", "auto");
         setOption("jexer.TTerminal.scrollbackMax", "2000");
         setOption("menuTray.clock", "true");
@@ -1492,6 +1550,7 @@ public class XTWMApplication extends TApplication {
         setOption("xtwm.lockScreenPassword", "");
         setOption("xtwm.maximizeOnSwing", "true");
         setOption("xtwm.screensaver", "");
+        setOption("xtwm.serverOutputBudget", "65536");
         setOption("xtwm.serverPassword", "elsa");
         setOption("xtwm.simpleBoxGlyphs", "false");
 
@@ -1866,6 +1925,25 @@ public class XTWMApplication extends TApplication {
         return desktops.get(desktopIndex);
     }
 
+    /**
+     * Check every desktop for new terminal output and bells, and redraw the
+     * desktop pager if its badges or thumbnails need to change.
+     */
+    private void pollDesktopActivity() {
+        boolean changed = false;
+        for (int i = 1; i < desktops.size(); i++) {
+            if (desktops.get(i).pollActivity(i == desktopIndex)) {
+                changed = true;
+            }
+        }
+        if ((desktopPager != null) && desktopPager.isDrawable()) {
+            if (changed) {
+                desktopPager.invalidate();
+            }
+            desktopPager.updateThumbnails();
+        }
+    }
+
     /**
      * Switch to the next desktop.
      */
@@ -1876,16 +1954,11 @@ public class XTWMApplication extends TApplication {
             return;
         }
 
-        getCurrentDesktop().hide();
-        desktopIndex++;
-        if (desktopIndex == desktops.size()) {
-            desktopIndex = 1;
+        int newIndex = desktopIndex + 1;
+        if (newIndex == desktops.size()) {
+            newIndex = 1;
         }
-        getCurrentDesktop().show();
-        getCurrentDesktop().getDesktop().setFocusFollowsMouse(getOption(
-            "panel.focusFollowsMouse", "true").equals("true"));
-        setDesktop(getCurrentDesktop().getDesktop(), false);
-        getMenuItem(MENU_TERMINAL_SEND_KEYS_TO_ALL).setChecked(getDesktop().isEchoKeystrokes());
+        switchToDesktop(desktops.get(newIndex));
     }
 
     /**
@@ -1898,11 +1971,27 @@ public class XTWMApplication extends TApplication {
             return;
         }
 
-        getCurrentDesktop().hide();
-        desktopIndex--;
-        if (desktopIndex < 1) {
-            desktopIndex = desktops.size() - 1;
+        int newIndex = desktopIndex - 1;
+        if (newIndex < 1) {
+            newIndex = desktops.size() - 1;
+        }
+        switchToDesktop(desktops.get(newIndex));
+    }
+
+    /**
+     * Switch straight to a desktop, without showing the desktops in
+     * between.
+     *
+     * @param desktop the desktop to switch to
+     */
+    public void switchToDesktop(final VirtualDesktop desktop) {
+        int newIndex = desktops.indexOf(desktop);
+        if ((newIndex < 1) || (newIndex == desktopIndex)) {
+            return;
         }
+
+        getCurrentDesktop().hide();
+        desktopIndex = newIndex;
         getCurrentDesktop().show();
         getCurrentDesktop().getDesktop().setFocusFollowsMouse(getOption(
             "panel.focusFollowsMouse", "true").equals("true"));
@@ -2597,6 +2686,57 @@ public class XTWMApplication extends TApplication {
         getCurrentDesktop().addWindow(new SearchInputWindow(this, true));
     }
 
+    /**
+     * Handle the Terminal | Session | Find in scrollback menu item.  Note
+     * package private access.
+     *
+     * @param terminal the terminal to search
+     */
+    void menuTerminalFind(final TTerminalWidget terminal) {
+        TInputBox inputBox = inputBox(i18n.
+            getString("terminalFindInputBoxTitle"),
+            i18n.getString("terminalFindInputBoxCaption"), searchText,
+            TInputBox.Type.OKCANCEL);
+        if (!inputBox.isOk()) {
+            return;
+        }
+        searchText = inputBox.getText();
+        final String text = searchText;
+        try {
+            // Older lines are searched in the background, so the verdict
+            // comes from the done action.
+            terminal.find(searchText, searchRegularExpression,
+                searchCaseSensitive, new TAction() {
+                    public void DO() {
+                        if (terminal.getSearchMatchCount() == 0) {
+                            messageBox(i18n.
+                                getString("terminalFindNotFoundTitle"),
+                                MessageFormat.format(i18n.
+                                    getString("terminalFindNotFoundCaption"),
+                                    text));
+                        }
+                    }
+                });
+        } catch (PatternSyntaxException e) {
+            // Show this exception to the user.
+            new TExceptionDialog(this, e);
+        }
+    }
+
+    /**
+     * Handle the Terminal | Session | Find previous menu item.  Note
+     * package private access.
+     *
+     * @param terminal the terminal to search
+     */
+    void menuTerminalFindAgain(final TTerminalWidget terminal) {
+        if (terminal.getSearchMatch() == null) {
+            menuTerminalFind(terminal);
+            return;
+        }
+        terminal.findAgain(false);
+    }
+
     /**
      * Handle the Edit | Search again menu item.
      */
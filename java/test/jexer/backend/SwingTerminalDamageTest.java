@@ -0,0 +1,195 @@
+/*
+ * Jexer - Java Text User Interface
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2022 Autumn Lamonte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * @author Autumn Lamonte ⚧ Trans Liberation Now
+ * @version 1
+ */
+package jexer.backend;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import javax.swing.JPanel;
+
+import jexer.bits.Cell;
+import jexer.bits.CellAttributes;
+
+/**
+ * Headless check that SwingTerminal only re-renders the cells that changed
+ * between flushes.  Run with -Djava.awt.headless=true; exits non-zero on
+ * failure.
+ */
+public class SwingTerminalDamageTest {
+
+    // ------------------------------------------------------------------------
+    // Variables --------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * The terminal under test.
+     */
+    private SwingTerminal terminal;
+
+    /**
+     * The component the terminal paints into.
+     */
+    private JPanel panel;
+
+    /**
+     * Value of getCellsPainted() at the last flush.
+     */
+    private long lastPainted = 0;
+
+    /**
+     * Number of failed checks.
+     */
+    private int failures = 0;
+
+    // ------------------------------------------------------------------------
+    // Constructors -----------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Public constructor.
+     */
+    public SwingTerminalDamageTest() {
+        panel = new JPanel();
+        SwingBackend backend = new SwingBackend(panel, new Object(),
+            20, 5, 16);
+        terminal = (SwingTerminal) backend.getScreen();
+    }
+
+    // ------------------------------------------------------------------------
+    // SwingTerminalDamageTest ------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+     * Flush the terminal, paint the component offscreen, and return the
+     * number of cells rendered by that flush.
+     *
+     * @return the number of cells rendered
+     */
+    private long flush() {
+        terminal.flushPhysical();
+
+        int w = Math.max(panel.getWidth(), 1);
+        int h = Math.max(panel.getHeight(), 1);
+        BufferedImage offscreen = new BufferedImage(w, h,
+            BufferedImage.TYPE_INT_ARGB);
+        Graphics2D gr = offscreen.createGraphics();
+        panel.paint(gr);
+        gr.dispose();
+
+        long painted = terminal.getCellsPainted() - lastPainted;
+        lastPainted = terminal.getCellsPainted();
+        return painted;
+    }
+
+    /**
+     * Record a check.
+     *
+     * @param what description of the check
+     * @param expected expected number of cells rendered
+     * @param actual actual number of cells rendered
+     */
+    private void check(final String what, final long expected,
+        final long actual) {
+
+        if (expected == actual) {
+            System.out.printf("ok   %s: %d\n", what, actual);
+        } else {
+            System.out.printf("FAIL %s: expected %d, got %d\n", what,
+                expected, actual);
+            failures++;
+        }
+    }
+
+    /**
+     * Run all checks.
+     *
+     * @return the number of failed checks
+     */
+    public int run() {
+        int width = terminal.getWidth();
+        int height = terminal.getHeight();
+        CellAttributes attr = new CellAttributes();
+
+        check("initial paint", width * height, flush());
+        check("no-op flush", 0, flush());
+
+        terminal.putCharXY(3, 2, 'x', attr);
+        check("single cell", 1, flush());
+
+        // Damaged but unchanged cells are not rendered again.
+        terminal.putCharXY(3, 2, 'x', attr);
+        check("rewrite same cell", 0, flush());
+
+        // Both halves of a fullwidth character land in the damage span.
+        terminal.putFullwidthCharXY(9, 1, 0x4E2D, attr);
+        check("fullwidth char", 2, flush());
+        check("fullwidth no-op", 0, flush());
+
+        // Overwriting the right half: only that cell is damaged, the left
+        // half sits just outside the damage span and keeps its pixels.
+        terminal.putCharXY(10, 1, 'y', attr);
+        check("overwrite right half", 1, flush());
+        Cell left = terminal.getCharXY(9, 1);
+        if (left.getWidth() != Cell.Width.LEFT) {
+            System.out.printf("FAIL left half changed to %s\n",
+                left.getWidth());
+            failures++;
+        }
+
+        // A fullwidth character at the right edge is clipped to one cell.
+        terminal.putFullwidthCharXY(width - 1, 3, 0x4E2D, attr);
+        check("fullwidth at right edge", 1, flush());
+
+        // Full-screen clear: every row is damaged, but only the cells that
+        // were not already blank are rendered.
+        terminal.clear();
+        check("full-screen clear", 4, flush());
+        check("no-op after clear", 0, flush());
+
+        return failures;
+    }
+
+    /**
+     * Main entry point.
+     *
+     * @param args Command line arguments
+     */
+    public static void main(final String [] args) {
+        // The text mouse pointer needs a real display.
+        System.setProperty("jexer.textMouse", "false");
+
+        int failures = new SwingTerminalDamageTest().run();
+        if (failures > 0) {
+            System.out.printf("%d check(s) failed\n", failures);
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+}
@@ -0,0 +1,402 @@
+/*
+ * jexerpty - JNI functions for jexer.tterminal.PtyProcess
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2022 Autumn Lamonte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * @author Autumn Lamonte [AutumnWalksTheLake@gmail.com] ⚧ Trans Liberation Now
+ * @version 1
+ */
+
+/*
+ * This is the same forkpty() / TIOCSWINSZ logic as ptypipe, but called
+ * in-process by the JVM: the terminal reads and writes the pseudo-terminal
+ * master directly, with no ptypipe or script process in between.
+ */
+
+#ifdef HAVE_CONFIG_H
+#  include "config.h"
+#endif
+
+#include <jni.h>
+
+/* read(), write(), close(), execvp() */
+#include <sys/types.h>
+#include <unistd.h>
+
+/* forkpty() */
+#ifdef __APPLE__
+#  include <util.h>
+#else
+#  if defined(__FreeBSD__) || \
+      defined(__OpenBSD__) || \
+      defined(__NetBSD__)
+#    include <sys/types.h>
+#    include <util.h>
+#  else
+#    include <pty.h>
+#  endif
+#endif
+
+/* snprintf() */
+#include <stdio.h>
+
+/* strerror() */
+#include <errno.h>
+#include <string.h>
+
+/* malloc(), free() */
+#include <stdlib.h>
+
+/* kill(), signal(), sigprocmask() */
+#include <signal.h>
+
+/* waitpid() */
+#include <sys/wait.h>
+
+/* ioctl() */
+#include <sys/ioctl.h>
+
+/* poll() */
+#include <poll.h>
+
+/* The environment, replaced in the child before exec. */
+extern char ** environ;
+
+/**
+ * Throw a java.io.IOException.
+ *
+ * @param env the JNI environment
+ * @param what the operation that failed
+ * @param error the errno value
+ */
+static void throw_io_exception(JNIEnv * env, const char * what,
+    const int error) {
+
+    char message[256];
+    jclass exception_class;
+
+    snprintf(message, sizeof(message), "%s: %s", what, strerror(error));
+    exception_class = (*env)->FindClass(env, "java/io/IOException");
+    if (exception_class != NULL) {
+        (*env)->ThrowNew(env, exception_class, message);
+    }
+}
+
+/**
+ * Copy a Java String[] into a NULL-terminated array of C strings.
+ *
+ * @param env the JNI environment
+ * @param array the Java array
+ * @return the C array, or NULL if out of memory
+ */
+static char ** to_c_strings(JNIEnv * env, jobjectArray array) {
+    jsize length = (*env)->GetArrayLength(env, array);
+    char ** result = calloc(length + 1, sizeof(char *));
+    jsize i;
+
+    if (result == NULL) {
+        return NULL;
+    }
+    for (i = 0; i < length; i++) {
+        jstring string = (*env)->GetObjectArrayElement(env, array, i);
+        const char * chars = (*env)->GetStringUTFChars(env, string, NULL);
+        if (chars == NULL) {
+            break;
+        }
+        result[i] = strdup(chars);
+        (*env)->ReleaseStringUTFChars(env, string, chars);
+        (*env)->DeleteLocalRef(env, string);
+    }
+    return result;
+}
+
+/**
+ * Free an array made by to_c_strings().
+ *
+ * @param strings the array
+ */
+static void free_c_strings(char ** strings) {
+    char ** p;
+
+    if (strings == NULL) {
+        return;
+    }
+    for (p = strings; *p != NULL; p++) {
+        free(*p);
+    }
+    free(strings);
+}
+
+/*
+ * Class:     jexer_tterminal_PtyProcess
+ * Method:    spawn
+ * Signature: ([Ljava/lang/String;[Ljava/lang/String;II)[I
+ */
+JNIEXPORT jintArray JNICALL Java_jexer_tterminal_PtyProcess_spawn(
+    JNIEnv * env, jclass cls, jobjectArray command, jobjectArray environment,
+    jint columns, jint rows) {
+
+    char ** argv = to_c_strings(env, command);
+    char ** envp = to_c_strings(env, environment);
+    struct winsize window_size;
+    sigset_t all_signals;
+    int master_fd = -1;
+    pid_t child_pid;
+    jint result[2];
+    jintArray array;
+    long max_fd;
+    int i;
+
+    if ((argv == NULL) || (envp == NULL) || (argv[0] == NULL)) {
+        free_c_strings(argv);
+        free_c_strings(envp);
+        throw_io_exception(env, "spawn", ENOMEM);
+        return NULL;
+    }
+
+    memset(&window_size, 0, sizeof(window_size));
+    window_size.ws_col = columns;
+    window_size.ws_row = rows;
+
+    /*
+     * Everything the child needs is allocated before the fork: only
+     * async-signal-safe calls are made between fork and exec.
+     */
+    max_fd = sysconf(_SC_OPEN_MAX);
+    if ((max_fd < 0) || (max_fd > 65536)) {
+        max_fd = 65536;
+    }
+
+    child_pid = forkpty(&master_fd, NULL, NULL, &window_size);
+    if (child_pid == 0) {
+        /*
+         * Child process.  Undo what the JVM did to signals, and drop every
+         * descriptor but the new controlling terminal.
+         */
+        for (i = 1; i < NSIG; i++) {
+            signal(i, SIG_DFL);
+        }
+        sigfillset(&all_signals);
+        sigprocmask(SIG_UNBLOCK, &all_signals, NULL);
+        for (i = 3; i < max_fd; i++) {
+            close(i);
+        }
+        environ = envp;
+        execvp(argv[0], argv);
+        _exit(127);
+    }
+
+    free_c_strings(argv);
+    free_c_strings(envp);
+
+    if (child_pid < 0) {
+        throw_io_exception(env, "forkpty", errno);
+        return NULL;
+    }
+
+    result[0] = child_pid;
+    result[1] = master_fd;
+    array = (*env)->NewIntArray(env, 2);
+    if (array != NULL) {
+        (*env)->SetIntArrayRegion(env, array, 0, 2, result);
+    }
+    return array;
+}
+
+/*
+ * Class:     jexer_tterminal_PtyProcess
+ * Method:    read
+ * Signature: (ILjava/nio/ByteBuffer;I)I
+ */
+JNIEXPORT jint JNICALL Java_jexer_tterminal_PtyProcess_read(JNIEnv * env,
+    jclass cls, jint fd, jobject buffer, jint length) {
+
+    char * data = (*env)->GetDirectBufferAddress(env, buffer);
+    ssize_t rc;
+
+    if (data == NULL) {
+        throw_io_exception(env, "read", EINVAL);
+        return -1;
+    }
+    do {
+        rc = read(fd, data, length);
+    } while ((rc < 0) && (errno == EINTR));
+
+    if (rc == 0) {
+        return -1;
+    }
+    if (rc < 0) {
+        if (errno == EIO) {
+            /*
+             * Linux reports EIO on the master once every slave descriptor
+             * is closed, that is the child has exited.
+             */
+            return -1;
+        }
+        throw_io_exception(env, "read", errno);
+        return -1;
+    }
+    return (jint) rc;
+}
+
+/*
+ * Class:     jexer_tterminal_PtyProcess
+ * Method:    write
+ * Signature: (I[BII)V
+ */
+JNIEXPORT void JNICALL Java_jexer_tterminal_PtyProcess_write(JNIEnv * env,
+    jclass cls, jint fd, jbyteArray bytes, jint offset, jint length) {
+
+    jbyte * data = (*env)->GetByteArrayElements(env, bytes, NULL);
+    jint written = 0;
+    ssize_t rc;
+
+    if (data == NULL) {
+        return;
+    }
+    while (written < length) {
+        rc = write(fd, data + offset + written, length - written);
+        if (rc < 0) {
+            if (errno == EINTR) {
+                continue;
+            }
+            throw_io_exception(env, "write", errno);
+            break;
+        }
+        written += rc;
+    }
+    (*env)->ReleaseByteArrayElements(env, bytes, data, JNI_ABORT);
+}
+
+/*
+ * Class:     jexer_tterminal_PtyProcess
+ * Method:    poll
+ * Signature: (I)Z
+ */
+JNIEXPORT jboolean JNICALL Java_jexer_tterminal_PtyProcess_poll(JNIEnv * env,
+    jclass cls, jint fd) {
+
+    struct pollfd poll_fd;
+
+    poll_fd.fd = fd;
+    poll_fd.events = POLLIN;
+    poll_fd.revents = 0;
+    if (poll(&poll_fd, 1, 0) < 0) {
+        return (errno == EINTR) ? JNI_FALSE : JNI_TRUE;
+    }
+    return (poll_fd.revents != 0) ? JNI_TRUE : JNI_FALSE;
+}
+
+/*
+ * Class:     jexer_tterminal_PtyProcess
+ * Method:    available
+ * Signature: (I)I
+ */
+JNIEXPORT jint JNICALL Java_jexer_tterminal_PtyProcess_available(
+    JNIEnv * env, jclass cls, jint fd) {
+
+    int count = 0;
+
+    if (ioctl(fd, FIONREAD, &count) < 0) {
+        return 0;
+    }
+    return count;
+}
+
+/*
+ * Class:     jexer_tterminal_PtyProcess
+ * Method:    setWindowSize
+ * Signature: (IIIII)V
+ */
+JNIEXPORT void JNICALL Java_jexer_tterminal_PtyProcess_setWindowSize(
+    JNIEnv * env, jclass cls, jint fd, jint columns, jint rows,
+    jint pixelWidth, jint pixelHeight) {
+
+    struct winsize window_size;
+
+    memset(&window_size, 0, sizeof(window_size));
+    window_size.ws_col = columns;
+    window_size.ws_row = rows;
+    window_size.ws_xpixel = pixelWidth;
+    window_size.ws_ypixel = pixelHeight;
+    if (ioctl(fd, TIOCSWINSZ, &window_size) < 0) {
+        throw_io_exception(env, "ioctl(TIOCSWINSZ)", errno);
+    }
+}
+
+/*
+ * Class:     jexer_tterminal_PtyProcess
+ * Method:    waitFor
+ * Signature: (I)I
+ */
+JNIEXPORT jint JNICALL Java_jexer_tterminal_PtyProcess_waitFor(JNIEnv * env,
+    jclass cls, jint pid) {
+
+    int status = 0;
+    pid_t rc;
+
+    do {
+        rc = waitpid(pid, &status, 0);
+    } while ((rc < 0) && (errno == EINTR));
+
+    if (rc < 0) {
+        return -1;
+    }
+    if (WIFEXITED(status)) {
+        return WEXITSTATUS(status);
+    }
+    if (WIFSIGNALED(status)) {
+        /*
+         * Same as the shell, and as java.lang.Process on POSIX.
+         */
+        return 128 + WTERMSIG(status);
+    }
+    return -1;
+}
+
+/*
+ * Class:     jexer_tterminal_PtyProcess
+ * Method:    kill
+ * Signature: (II)V
+ */
+JNIEXPORT void JNICALL Java_jexer_tterminal_PtyProcess_kill(JNIEnv * env,
+    jclass cls, jint pid, jint signal_number) {
+
+    /*
+     * The child is a session leader, signal its whole process group.
+     */
+    if (kill(-pid, signal_number) < 0) {
+        kill(pid, signal_number);
+    }
+}
+
+/*
+ * Class:     jexer_tterminal_PtyProcess
+ * Method:    close
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_jexer_tterminal_PtyProcess_close(JNIEnv * env,
+    jclass cls, jint fd) {
+
+    close(fd);
+}